@@ -447,6 +447,10 @@ public abstract class AbstractContactsProvider extends ContentProvider
             pw.println("mDbHelper is null");
             return;
         }
+        if (mDbHelper instanceof ContactsDatabaseHelper) {
+            pw.println();
+            ((ContactsDatabaseHelper) mDbHelper).dumpStatementCache(pw);
+        }
         try {
             pw.println();
             pw.println("  Accounts:");
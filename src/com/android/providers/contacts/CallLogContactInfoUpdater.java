@@ -0,0 +1,436 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderClient;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.provider.CallLog.Calls;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.DeletedContacts;
+import android.provider.ContactsContract.PhoneLookup;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.providers.contacts.CallLogDatabaseHelper.DbProperties;
+import com.android.providers.contacts.CallLogDatabaseHelper.Tables;
+import com.android.providers.contacts.util.PropertyUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Fills in the cached contact info of the calls (name, number type and label, lookup URI, photo)
+ * in the background, so that the clients showing the call log don't need to look up the contact
+ * of every call they show.
+ * <p>
+ * Each call records the generation of the contacts it was last looked up against in
+ * {@link CallLogDatabaseHelper#CALLS_CONTACT_INFO_GENERATION}.  New calls start at 0, and
+ * {@link #invalidate} starts a new generation, which makes all the calls stale.  When contacts
+ * change, {@link #invalidateChanged} only resets the calls that the changed contacts can affect:
+ * those whose number matches one of their phone numbers, and those whose cached info came from
+ * one of them ({@link CallLogDatabaseHelper#CALLS_CACHED_CONTACT_ID}).  Changes that only record
+ * usage (which also update the contact) are skipped.
+ * {@link #update} then goes through the stale calls, most recent first, in batches: the distinct
+ * numbers of a batch are looked up together with {@link ContactsProvider2#queryPhoneLookups},
+ * and the result for each is written to all the stale calls with that number.
+ * <p>
+ * Not thread safe; only used on the background thread of {@link CallLogProvider}.
+ */
+/* package */ class CallLogContactInfoUpdater {
+    private static final String TAG = "CallLogContactInfo";
+
+    /** Number of stale calls whose numbers are looked up in one go. */
+    @VisibleForTesting
+    static final int BATCH_SIZE = 100;
+
+    private static final String[] PHONE_LOOKUP_PROJECTION = new String[] {
+            PhoneLookup._ID,
+            PhoneLookup.LOOKUP_KEY,
+            PhoneLookup.DISPLAY_NAME,
+            PhoneLookup.TYPE,
+            PhoneLookup.LABEL,
+            PhoneLookup.NUMBER,
+            PhoneLookup.NORMALIZED_NUMBER,
+            PhoneLookup.PHOTO_ID,
+            PhoneLookup.PHOTO_URI,
+    };
+
+    private static final String[] NUMBER_PROJECTION = new String[] { Calls.NUMBER };
+
+    /**
+     * Maximum number of changed contacts whose calls are reset one by one.  Beyond that (e.g. on
+     * an account sync), all the calls are made stale instead.
+     */
+    @VisibleForTesting
+    static final int MAX_CHANGED_CONTACTS = 50;
+
+    private static final String[] CHANGED_CONTACTS_PROJECTION = new String[] {
+            Contacts._ID,
+            Contacts.CONTACT_LAST_UPDATED_TIMESTAMP,
+            Contacts.LAST_TIME_CONTACTED,
+    };
+
+    private static final String[] DELETED_CONTACTS_PROJECTION = new String[] {
+            DeletedContacts.CONTACT_ID,
+            DeletedContacts.CONTACT_DELETED_TIMESTAMP,
+    };
+
+    private static final String[] PHONE_NUMBER_PROJECTION = new String[] { Phone.NUMBER };
+
+    private static final String STALE_SELECTION =
+            CallLogDatabaseHelper.CALLS_CONTACT_INFO_GENERATION + "<?";
+
+    private static final String STALE_NUMBER_SELECTION =
+            Calls.NUMBER + "=? AND " + STALE_SELECTION;
+
+    private static final String STALE_NO_NUMBER_SELECTION =
+            "(" + Calls.NUMBER + " IS NULL OR " + Calls.NUMBER + "='') AND " + STALE_SELECTION;
+
+    /**
+     * Selects the calls whose cached info came from a local contact, which needs to be cleared
+     * if the number no longer matches a contact.  Info from elsewhere (e.g. a directory lookup
+     * by the dialer) is left alone.
+     */
+    private static final String LOCAL_CONTACT_SELECTION =
+            CallLogDatabaseHelper.CALLS_CACHED_CONTACT_ID + " IS NOT NULL";
+
+    private final Context mContext;
+    private final CallLogDatabaseHelper mDbHelper;
+
+    public CallLogContactInfoUpdater(Context context, CallLogDatabaseHelper dbHelper) {
+        mContext = context;
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Makes the cached contact info of all calls stale.  Called when contacts have changed.
+     */
+    public void invalidate() {
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        PropertyUtils.setProperty(db, DbProperties.CONTACT_INFO_GENERATION,
+                String.valueOf(getGeneration(db) + 1));
+    }
+
+    /**
+     * Makes stale the cached contact info of the calls that can be affected by the contacts
+     * changed or deleted since the last time.  Called when contacts have changed.
+     */
+    public void invalidateChanged() {
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        final long since = Long.parseLong(PropertyUtils.getProperty(db,
+                DbProperties.CONTACT_INFO_CHECKED_TIMESTAMP, "-1"));
+        if (since < 0) {
+            // Nothing to compare against yet.
+            invalidate();
+            PropertyUtils.setProperty(db, DbProperties.CONTACT_INFO_CHECKED_TIMESTAMP,
+                    String.valueOf(System.currentTimeMillis()));
+            return;
+        }
+        long checked = since;
+
+        // Contacts whose usage was recorded have both timestamps set to the same time; their
+        // phone numbers and names haven't changed.
+        final Set<Long> changedIds = new HashSet<Long>();
+        final Set<Long> contactIds = new HashSet<Long>();
+        Cursor cursor = mContext.getContentResolver().query(Contacts.CONTENT_URI,
+                CHANGED_CONTACTS_PROJECTION, Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + ">=?",
+                new String[] { String.valueOf(since) }, null);
+        if (cursor == null) {
+            Log.w(TAG, "Changed contacts query failed");
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                final long timestamp = cursor.getLong(1);
+                checked = Math.max(checked, timestamp);
+                if (cursor.isNull(2) || cursor.getLong(2) != timestamp) {
+                    changedIds.add(cursor.getLong(0));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        contactIds.addAll(changedIds);
+
+        cursor = mContext.getContentResolver().query(DeletedContacts.CONTENT_URI,
+                DELETED_CONTACTS_PROJECTION, DeletedContacts.CONTACT_DELETED_TIMESTAMP + ">=?",
+                new String[] { String.valueOf(since) }, null);
+        if (cursor == null) {
+            Log.w(TAG, "Deleted contacts query failed");
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                contactIds.add(cursor.getLong(0));
+                checked = Math.max(checked, cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (contactIds.size() > MAX_CHANGED_CONTACTS) {
+            invalidate();
+        } else if (!contactIds.isEmpty()) {
+            resetCalls(db, contactIds, getMinMatches(changedIds));
+        }
+        PropertyUtils.setProperty(db, DbProperties.CONTACT_INFO_CHECKED_TIMESTAMP,
+                String.valueOf(checked));
+    }
+
+    /**
+     * Returns the min matches of the phone numbers of the given contacts.
+     */
+    private Set<String> getMinMatches(Set<Long> contactIds) {
+        final Set<String> minMatches = new HashSet<String>();
+        if (contactIds.isEmpty()) {
+            return minMatches;
+        }
+        final Cursor cursor = mContext.getContentResolver().query(Phone.CONTENT_URI,
+                PHONE_NUMBER_PROJECTION,
+                Phone.CONTACT_ID + " IN (" + TextUtils.join(",", contactIds) + ")", null, null);
+        if (cursor == null) {
+            return minMatches;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                final String minMatch = CallLogDatabaseHelper.getMinMatch(cursor.getString(0));
+                if (minMatch != null) {
+                    minMatches.add(minMatch);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return minMatches;
+    }
+
+    /**
+     * Makes stale the calls whose number has one of the given min matches, or whose cached info
+     * came from one of the given contacts.  Both are index lookups.
+     */
+    private static void resetCalls(SQLiteDatabase db, Set<Long> contactIds,
+            Set<String> minMatches) {
+        final StringBuilder selection = new StringBuilder(
+                CallLogDatabaseHelper.CALLS_CACHED_CONTACT_ID + " IN (");
+        selection.append(TextUtils.join(",", contactIds)).append(")");
+        final String[] args = new String[minMatches.size()];
+        if (!minMatches.isEmpty()) {
+            selection.append(" OR " + CallLogDatabaseHelper.CALLS_MIN_MATCH + " IN (");
+            int i = 0;
+            for (String minMatch : minMatches) {
+                selection.append(i > 0 ? ",?" : "?");
+                args[i++] = minMatch;
+            }
+            selection.append(")");
+        }
+        final ContentValues values = new ContentValues();
+        values.put(CallLogDatabaseHelper.CALLS_CONTACT_INFO_GENERATION, 0);
+        db.update(Tables.CALLS, values, selection.toString(), args);
+    }
+
+    /**
+     * Brings the cached contact info of all the stale calls up to date.
+     *
+     * @return Whether the cached contact info of any call has changed.
+     */
+    public boolean update() {
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        final String generation = String.valueOf(getGeneration(db));
+        boolean changed = false;
+        while (true) {
+            final Set<String> numbers = getStaleNumbers(db, generation);
+            if (numbers.isEmpty()) {
+                return changed;
+            }
+            if (numbers.remove(null) | numbers.remove("")) {
+                // Nothing to look up.
+                final ContentValues values = new ContentValues();
+                values.put(CallLogDatabaseHelper.CALLS_CONTACT_INFO_GENERATION, generation);
+                db.update(Tables.CALLS, values, STALE_NO_NUMBER_SELECTION,
+                        new String[] { generation });
+            }
+            final Map<String, ContentValues> cachedValues = lookUp(numbers);
+            if (cachedValues == null) {
+                // The contacts provider isn't available; try again next time.
+                Log.w(TAG, "Phone lookup failed");
+                return changed;
+            }
+            for (String number : numbers) {
+                changed |= updateNumber(db, number, generation, cachedValues.get(number));
+            }
+        }
+    }
+
+    private static long getGeneration(SQLiteDatabase db) {
+        return Long.parseLong(
+                PropertyUtils.getProperty(db, DbProperties.CONTACT_INFO_GENERATION, "1"));
+    }
+
+    /**
+     * Returns the distinct numbers of the next batch of stale calls.
+     */
+    private static Set<String> getStaleNumbers(SQLiteDatabase db, String generation) {
+        final Set<String> numbers = new LinkedHashSet<String>();
+        final Cursor cursor = db.query(Tables.CALLS, NUMBER_PROJECTION, STALE_SELECTION,
+                new String[] { generation }, null, null, Calls.DATE + " DESC",
+                String.valueOf(BATCH_SIZE));
+        try {
+            while (cursor.moveToNext()) {
+                numbers.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return numbers;
+    }
+
+    /**
+     * Looks up the given (non-empty) numbers.  When the contacts provider is in this process, all
+     * but the SIP addresses are looked up with one query; otherwise each number is looked up on
+     * its own.
+     *
+     * @return The cached contact info of each number that matches a contact, or null if the
+     *     lookup failed.
+     */
+    private Map<String, ContentValues> lookUp(Collection<String> numbers) {
+        final Map<String, ContentValues> cachedValues = new HashMap<String, ContentValues>();
+        final List<String> numbersToLookUp = new ArrayList<String>(numbers);
+        final ContentProviderClient client = mContext.getContentResolver()
+                .acquireContentProviderClient(ContactsContract.AUTHORITY);
+        if (client == null) {
+            return null;
+        }
+        try {
+            final ContentProvider provider = client.getLocalContentProvider();
+            if (provider instanceof ContactsProvider2) {
+                final List<String> phoneNumbers = new ArrayList<String>();
+                for (String number : numbers) {
+                    if (!PhoneNumberUtils.isUriNumber(number)) {
+                        phoneNumbers.add(number);
+                    }
+                }
+                final Cursor cursor = ((ContactsProvider2) provider).queryPhoneLookups(
+                        phoneNumbers, PHONE_LOOKUP_PROJECTION);
+                try {
+                    while (cursor.moveToNext()) {
+                        cachedValues.put(cursor.getString(0), getCachedValues(cursor, 1));
+                    }
+                } finally {
+                    cursor.close();
+                }
+                numbersToLookUp.removeAll(phoneNumbers);
+            }
+
+            for (String number : numbersToLookUp) {
+                final Cursor cursor = lookUp(client, number);
+                if (cursor == null) {
+                    return null;
+                }
+                try {
+                    if (cursor.moveToFirst()) {
+                        cachedValues.put(number, getCachedValues(cursor, 0));
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        } catch (RemoteException e) {
+            return null;
+        } finally {
+            client.release();
+        }
+        return cachedValues;
+    }
+
+    private static Cursor lookUp(ContentProviderClient client, String number)
+            throws RemoteException {
+        Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(number));
+        if (PhoneNumberUtils.isUriNumber(number)) {
+            uri = uri.buildUpon()
+                    .appendQueryParameter(PhoneLookup.QUERY_PARAMETER_SIP_ADDRESS, "1")
+                    .build();
+        }
+        return client.query(uri, PHONE_LOOKUP_PROJECTION, null, null, null);
+    }
+
+    /**
+     * Returns the cached contact info of a call from the {@link #PHONE_LOOKUP_PROJECTION} columns
+     * of the current row, which start at {@code offset}.
+     */
+    private static ContentValues getCachedValues(Cursor lookup, int offset) {
+        final ContentValues values = new ContentValues();
+        values.put(Calls.CACHED_NAME, lookup.getString(offset + 2));
+        values.put(Calls.CACHED_NUMBER_TYPE, lookup.getInt(offset + 3));
+        values.put(Calls.CACHED_NUMBER_LABEL, lookup.getString(offset + 4));
+        values.put(Calls.CACHED_LOOKUP_URI, Contacts.getLookupUri(lookup.getLong(offset),
+                lookup.getString(offset + 1)).toString());
+        values.put(Calls.CACHED_MATCHED_NUMBER, lookup.getString(offset + 5));
+        values.put(Calls.CACHED_NORMALIZED_NUMBER, lookup.getString(offset + 6));
+        values.put(Calls.CACHED_PHOTO_ID, lookup.getLong(offset + 7));
+        values.put(Calls.CACHED_PHOTO_URI, lookup.getString(offset + 8));
+        values.put(CallLogDatabaseHelper.CALLS_CACHED_CONTACT_ID, lookup.getLong(offset));
+        return values;
+    }
+
+    /**
+     * Writes the cached contact info for {@code number}, or null if it matches no contact, to the
+     * stale calls with that number, and marks them up to date.
+     */
+    private static boolean updateNumber(SQLiteDatabase db, String number, String generation,
+            ContentValues cachedValues) {
+        final String[] args = new String[] { number, generation };
+        final ContentValues values = new ContentValues();
+        final int count;
+        if (cachedValues != null) {
+            values.putAll(cachedValues);
+            values.put(CallLogDatabaseHelper.CALLS_CONTACT_INFO_GENERATION, generation);
+            count = db.update(Tables.CALLS, values, STALE_NUMBER_SELECTION, args);
+        } else {
+            values.putNull(Calls.CACHED_NAME);
+            values.putNull(Calls.CACHED_NUMBER_TYPE);
+            values.putNull(Calls.CACHED_NUMBER_LABEL);
+            values.putNull(Calls.CACHED_LOOKUP_URI);
+            values.putNull(Calls.CACHED_MATCHED_NUMBER);
+            values.put(Calls.CACHED_PHOTO_ID, 0);
+            values.putNull(Calls.CACHED_PHOTO_URI);
+            values.putNull(CallLogDatabaseHelper.CALLS_CACHED_CONTACT_ID);
+            values.put(CallLogDatabaseHelper.CALLS_CONTACT_INFO_GENERATION, generation);
+            count = db.update(Tables.CALLS, values,
+                    STALE_NUMBER_SELECTION + " AND " + LOCAL_CONTACT_SELECTION, args);
+
+            values.clear();
+            values.put(CallLogDatabaseHelper.CALLS_CONTACT_INFO_GENERATION, generation);
+            db.update(Tables.CALLS, values, STALE_NUMBER_SELECTION, args);
+        }
+        return count > 0;
+    }
+}
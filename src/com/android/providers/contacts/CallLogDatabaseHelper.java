@@ -22,10 +22,15 @@ import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.provider.BaseColumns;
 import android.provider.CallLog.Calls;
+import android.provider.ContactsContract.Contacts;
 import android.provider.VoicemailContract;
 import android.provider.VoicemailContract.Status;
 import android.provider.VoicemailContract.Voicemails;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -37,7 +42,7 @@ import com.android.providers.contacts.util.PropertyUtils;
 public class CallLogDatabaseHelper {
     private static final String TAG = "CallLogDatabaseHelper";
 
-    private static final int DATABASE_VERSION = 4;
+    private static final int DATABASE_VERSION = 11;
 
     private static final boolean DEBUG = false; // DON'T SUBMIT WITH TRUE
 
@@ -55,15 +60,81 @@ public class CallLogDatabaseHelper {
     private final OpenHelper mOpenHelper;
     public static final String CALLS_OPERATOR = "operator";
 
+    /**
+     * The reversed trailing digits of the number (see
+     * {@link PhoneNumberUtils#toCallerIDMinMatch}), so that the calls for a number can be found
+     * with an index lookup before the loose number comparison.  Maintained by
+     * {@link DbModifierWithNotification}.
+     */
+    public static final String CALLS_MIN_MATCH = "min_match";
+
+    /**
+     * The {@link DbProperties#CONTACT_INFO_GENERATION} the cached contact info of the call was
+     * last looked up against, or 0 if it never was.  Maintained by
+     * {@link CallLogContactInfoUpdater}.
+     */
+    public static final String CALLS_CONTACT_INFO_GENERATION = "contact_info_generation";
+
+    /**
+     * The ID of the local contact that {@link Calls#CACHED_LOOKUP_URI} points to, or null, so
+     * that the calls whose cached info came from a changed contact can be found with an index
+     * lookup.  Maintained along with the lookup URI by {@link DbModifierWithNotification} and
+     * {@link CallLogContactInfoUpdater}.
+     */
+    public static final String CALLS_CACHED_CONTACT_ID = "cached_contact_id";
+
     public interface Tables {
         String CALLS = "calls";
         String VOICEMAIL_STATUS = "voicemail_status";
+        String CALL_GROUPS = "call_groups";
+        String VOICEMAIL_RECLAIM = "voicemail_reclaim";
+    }
+
+    /**
+     * Columns of {@link Tables#CALL_GROUPS}, which collapses consecutive calls (in date order) to
+     * and from the same number.  Only the calls that are shown in the call log (i.e. no
+     * voicemails, and no calls on hidden phone accounts) are grouped.
+     */
+    public interface CallGroupsColumns {
+        String _ID = BaseColumns._ID;
+        String NUMBER = "group_number";
+        /** Date of the most recent call in the group. */
+        String DATE = "group_date";
+        String NEWEST_CALL_ID = "group_newest_call_id";
+        String OLDEST_DATE = "group_oldest_date";
+        String OLDEST_CALL_ID = "group_oldest_call_id";
+        String COUNT = "group_count";
+    }
+
+    /**
+     * Columns of {@link Tables#VOICEMAIL_RECLAIM}, the queue of files left behind by deleted
+     * voicemails.  See {@link VoicemailFileReclaimer}.
+     */
+    public interface VoicemailReclaimColumns {
+        String _ID = BaseColumns._ID;
+        String DATA = Voicemails._DATA;
     }
 
     public interface DbProperties {
         String CALL_LOG_LAST_SYNCED = "call_log_last_synced";
         String CALL_LOG_LAST_SYNCED_FOR_SHADOW = "call_log_last_synced_for_shadow";
         String DATA_MIGRATED = "migrated";
+        /**
+         * "1" if {@link Tables#CALL_GROUPS} is up to date.  Cleared by the triggers on changes
+         * they can't apply incrementally.
+         */
+        String CALL_GROUPS_VALID = "call_groups_valid";
+        /**
+         * Incremented when contacts change in a way that can't be traced to specific calls,
+         * which makes the cached contact info of all calls stale.  See
+         * {@link CallLogDatabaseHelper#CALLS_CONTACT_INFO_GENERATION}.
+         */
+        String CONTACT_INFO_GENERATION = "contact_info_generation";
+        /**
+         * The last update (or deletion) time of the contacts whose changes have been applied to
+         * the cached contact info of the calls.  See {@link CallLogContactInfoUpdater}.
+         */
+        String CONTACT_INFO_CHECKED_TIMESTAMP = "contact_info_checked_timestamp";
     }
 
     /**
@@ -157,8 +228,34 @@ public class CallLogDatabaseHelper {
                     Voicemails.RESTORED + " INTEGER NOT NULL DEFAULT 0," +
                     Voicemails.ARCHIVED + " INTEGER NOT NULL DEFAULT 0," +
                     Voicemails.IS_OMTP_VOICEMAIL + " INTEGER NOT NULL DEFAULT 0," +
-                    CALLS_OPERATOR + " TEXT" +
+                    CALLS_OPERATOR + " TEXT," +
+                    CALLS_MIN_MATCH + " TEXT," +
+                    CALLS_CONTACT_INFO_GENERATION + " INTEGER NOT NULL DEFAULT 0," +
+                    CALLS_CACHED_CONTACT_ID + " INTEGER" +
+                    ");");
+
+            db.execSQL("CREATE INDEX calls_min_match_index ON " + Tables.CALLS + " (" +
+                    CALLS_MIN_MATCH +
+                    ");");
+            db.execSQL("CREATE INDEX calls_date_number_index ON " + Tables.CALLS + " (" +
+                    Calls.DATE + "," +
+                    Calls.NUMBER +
                     ");");
+            // Only voicemails have a source package, so this lets us find the voicemails
+            // affected by a change without scanning the call log.
+            db.execSQL("CREATE INDEX calls_source_package_index ON " + Tables.CALLS + " (" +
+                    Voicemails.SOURCE_PACKAGE +
+                    ") WHERE " + Voicemails.SOURCE_PACKAGE + " IS NOT NULL;");
+            db.execSQL("CREATE INDEX calls_contact_info_generation_index ON " + Tables.CALLS +
+                    " (" +
+                    CALLS_CONTACT_INFO_GENERATION +
+                    ");");
+            db.execSQL("CREATE INDEX calls_cached_contact_id_index ON " + Tables.CALLS + " (" +
+                    CALLS_CACHED_CONTACT_ID +
+                    ") WHERE " + CALLS_CACHED_CONTACT_ID + " IS NOT NULL;");
+
+            createCallGroupsTable(db);
+            createVoicemailReclaimTable(db);
 
             db.execSQL("CREATE TABLE " + Tables.VOICEMAIL_STATUS + " (" +
                     VoicemailContract.Status._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
@@ -176,6 +273,7 @@ public class CallLogDatabaseHelper {
                     ");");
 
             migrateFromLegacyTables(db);
+            ensureCallGroups(db);
         }
 
         @Override
@@ -191,6 +289,30 @@ public class CallLogDatabaseHelper {
             if (oldVersion < 4) {
                 upgradeToVersion4(db);
             }
+
+            if (oldVersion < 6) {
+                upgradeToVersion6(db);
+            }
+
+            if (oldVersion < 7) {
+                upgradeToVersion7(db);
+            }
+
+            if (oldVersion < 8) {
+                upgradeToVersion8(db);
+            }
+
+            if (oldVersion < 9) {
+                upgradeToVersion9(db);
+            }
+
+            if (oldVersion < 10) {
+                upgradeToVersion10(db);
+            }
+
+            if (oldVersion < 11) {
+                upgradeToVersion11(db);
+            }
         }
     }
 
@@ -246,6 +368,577 @@ public class CallLogDatabaseHelper {
         // Empty due to CAF changes
     }
 
+    /**
+     * Add the {@link #CALLS_MIN_MATCH} column, populate it, and index it along with the date.
+     * (Version 5 is skipped, as {@link #upgradeToVersion5} is not applied to this schema.)
+     */
+    private void upgradeToVersion6(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + Tables.CALLS + " ADD " + CALLS_MIN_MATCH + " TEXT;");
+        updateMinMatch(db);
+        db.execSQL("CREATE INDEX calls_min_match_index ON " + Tables.CALLS + " (" +
+                CALLS_MIN_MATCH +
+                ");");
+        db.execSQL("CREATE INDEX calls_date_index ON " + Tables.CALLS + " (" +
+                Calls.DATE +
+                ");");
+    }
+
+    /**
+     * Replace the date index with one on (date, number), which also serves the duplicate
+     * check when syncing call log entries between users.
+     */
+    private void upgradeToVersion7(SQLiteDatabase db) {
+        db.execSQL("DROP INDEX IF EXISTS calls_date_index");
+        db.execSQL("CREATE INDEX calls_date_number_index ON " + Tables.CALLS + " (" +
+                Calls.DATE + "," +
+                Calls.NUMBER +
+                ");");
+    }
+
+    /**
+     * Add {@link Tables#CALL_GROUPS}, and populate it.
+     */
+    private void upgradeToVersion8(SQLiteDatabase db) {
+        createCallGroupsTable(db);
+        rebuildCallGroups(db);
+    }
+
+    /**
+     * Add the partial index on the source package of voicemails.
+     */
+    private void upgradeToVersion9(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX calls_source_package_index ON " + Tables.CALLS + " (" +
+                Voicemails.SOURCE_PACKAGE +
+                ") WHERE " + Voicemails.SOURCE_PACKAGE + " IS NOT NULL;");
+    }
+
+    /**
+     * Add {@link Tables#VOICEMAIL_RECLAIM}.
+     */
+    private void upgradeToVersion10(SQLiteDatabase db) {
+        createVoicemailReclaimTable(db);
+    }
+
+    /**
+     * Add the {@link #CALLS_CONTACT_INFO_GENERATION} and {@link #CALLS_CACHED_CONTACT_ID}
+     * columns and index them.  The existing calls start out as never looked up, and get the
+     * contact ID of their current lookup URI until they are.
+     */
+    private void upgradeToVersion11(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + Tables.CALLS + " ADD " + CALLS_CONTACT_INFO_GENERATION +
+                " INTEGER NOT NULL DEFAULT 0;");
+        db.execSQL("ALTER TABLE " + Tables.CALLS + " ADD " + CALLS_CACHED_CONTACT_ID +
+                " INTEGER;");
+        db.execSQL("CREATE INDEX calls_contact_info_generation_index ON " + Tables.CALLS + " (" +
+                CALLS_CONTACT_INFO_GENERATION +
+                ");");
+        db.execSQL("CREATE INDEX calls_cached_contact_id_index ON " + Tables.CALLS + " (" +
+                CALLS_CACHED_CONTACT_ID +
+                ") WHERE " + CALLS_CACHED_CONTACT_ID + " IS NOT NULL;");
+
+        final Cursor c = db.query(Tables.CALLS,
+                new String[] {Calls._ID, Calls.CACHED_LOOKUP_URI},
+                Calls.CACHED_LOOKUP_URI + " LIKE ?",
+                new String[] {Contacts.CONTENT_LOOKUP_URI.toString() + "/%"},
+                null, null, null);
+        try {
+            final ContentValues values = new ContentValues();
+            while (c.moveToNext()) {
+                values.clear();
+                values.put(Calls.CACHED_LOOKUP_URI, c.getString(1));
+                putCachedContactId(values);
+                values.remove(Calls.CACHED_LOOKUP_URI);
+                db.update(Tables.CALLS, values, Calls._ID + "=" + c.getLong(0), null);
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Creates {@link Tables#VOICEMAIL_RECLAIM} and the trigger that queues the file of a
+     * voicemail in the same statement that deletes its row.  Soft-deleted voicemails keep their
+     * file until they are deleted for good.
+     */
+    private static void createVoicemailReclaimTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + Tables.VOICEMAIL_RECLAIM + " (" +
+                VoicemailReclaimColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                VoicemailReclaimColumns.DATA + " TEXT NOT NULL" +
+                ");");
+
+        db.execSQL("CREATE TRIGGER " + Tables.CALLS + "_voicemail_reclaim"
+                + "   AFTER DELETE ON " + Tables.CALLS
+                + "   WHEN OLD." + Voicemails._DATA + " IS NOT NULL"
+                + " BEGIN "
+                + "   INSERT INTO " + Tables.VOICEMAIL_RECLAIM
+                + "     (" + VoicemailReclaimColumns.DATA + ")"
+                + "     VALUES (OLD." + Voicemails._DATA + ");"
+                + " END");
+    }
+
+    /**
+     * Creates {@link Tables#CALL_GROUPS} and the triggers that maintain it.
+     *
+     * The triggers apply inserts and deletes incrementally, looking up only the groups next to
+     * the call through the indexes on either end of the groups: a call joins the group it falls
+     * in or next to if it has the same number, splits it otherwise, and may merge the groups on
+     * either side; a deleted call shrinks its group, and the groups on either side merge if the
+     * group is gone.  A change to the number, date, type or visibility of a call, or a call
+     * without a date, invalidates the table instead.  It is then rebuilt in the background (see
+     * {@link #ensureCallGroups()}), and the triggers do nothing until it is.
+     */
+    private static void createCallGroupsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + Tables.CALL_GROUPS + " (" +
+                CallGroupsColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                CallGroupsColumns.NUMBER + " TEXT," +
+                CallGroupsColumns.DATE + " INTEGER," +
+                CallGroupsColumns.NEWEST_CALL_ID + " INTEGER," +
+                CallGroupsColumns.OLDEST_DATE + " INTEGER," +
+                CallGroupsColumns.OLDEST_CALL_ID + " INTEGER," +
+                CallGroupsColumns.COUNT + " INTEGER NOT NULL DEFAULT 0" +
+                ");");
+
+        db.execSQL("CREATE INDEX call_groups_date_index ON " + Tables.CALL_GROUPS + " (" +
+                CallGroupsColumns.DATE + "," +
+                CallGroupsColumns.NEWEST_CALL_ID +
+                ");");
+        db.execSQL("CREATE INDEX call_groups_oldest_date_index ON " + Tables.CALL_GROUPS + " (" +
+                CallGroupsColumns.OLDEST_DATE + "," +
+                CallGroupsColumns.OLDEST_CALL_ID +
+                ");");
+
+        final String valid =
+                "(SELECT " + PropertyUtils.PropertiesColumns.PROPERTY_VALUE +
+                " FROM " + PropertyUtils.Tables.PROPERTIES +
+                " WHERE " + PropertyUtils.PropertiesColumns.PROPERTY_KEY +
+                "='" + DbProperties.CALL_GROUPS_VALID + "')='1'";
+        final String invalidate =
+                " INSERT OR REPLACE INTO " + PropertyUtils.Tables.PROPERTIES +
+                "  (" + PropertyUtils.PropertiesColumns.PROPERTY_KEY + "," +
+                PropertyUtils.PropertiesColumns.PROPERTY_VALUE + ")" +
+                " SELECT '" + DbProperties.CALL_GROUPS_VALID + "','0'";
+
+        // Another group with the same newest (or oldest) call, i.e. one just merged into it.
+        final String sameNewestCall =
+                "EXISTS (SELECT 1 FROM " + Tables.CALL_GROUPS + " AS g" +
+                " WHERE g." + CallGroupsColumns.DATE + "=" +
+                Tables.CALL_GROUPS + "." + CallGroupsColumns.DATE +
+                " AND g." + CallGroupsColumns.NEWEST_CALL_ID + "=" +
+                Tables.CALL_GROUPS + "." + CallGroupsColumns.NEWEST_CALL_ID +
+                " AND g." + CallGroupsColumns._ID + "!=" +
+                Tables.CALL_GROUPS + "." + CallGroupsColumns._ID + ")";
+        final String sameOldestCall =
+                "EXISTS (SELECT 1 FROM " + Tables.CALL_GROUPS + " AS g" +
+                " WHERE g." + CallGroupsColumns.OLDEST_DATE + "=" +
+                Tables.CALL_GROUPS + "." + CallGroupsColumns.OLDEST_DATE +
+                " AND g." + CallGroupsColumns.OLDEST_CALL_ID + "=" +
+                Tables.CALL_GROUPS + "." + CallGroupsColumns.OLDEST_CALL_ID +
+                " AND g." + CallGroupsColumns._ID + "!=" +
+                Tables.CALL_GROUPS + "." + CallGroupsColumns._ID + ")";
+
+        final String spanningNew = getGroupQuery("NEW", 0);
+        final String beforeNew = getGroupQuery("NEW", -1);
+        final String afterNew = getGroupQuery("NEW", 1);
+        final String differentNumberThanNew =
+                "NOT IFNULL(" + CallGroupsColumns.NUMBER + "=NEW." + Calls.NUMBER + ",0)";
+        final String sameNumberAsBefore =
+                getGroupColumnQuery(CallGroupsColumns.NUMBER, beforeNew) + "=NEW." + Calls.NUMBER;
+
+        db.execSQL("CREATE TRIGGER " + Tables.CALLS + "_grouped_insert"
+                + "   AFTER INSERT ON " + Tables.CALLS
+                + "   WHEN " + getGroupedCallSelection("NEW") + " AND " + valid
+                + " BEGIN "
+                // A call with another number in the middle of a group splits it: first the
+                // calls after the new one are moved to a group of their own...
+                + "   INSERT INTO " + Tables.CALL_GROUPS + " ("
+                +         CallGroupsColumns.NUMBER + ","
+                +         CallGroupsColumns.DATE + ","
+                +         CallGroupsColumns.NEWEST_CALL_ID + ","
+                +         CallGroupsColumns.OLDEST_DATE + ","
+                +         CallGroupsColumns.OLDEST_CALL_ID + ","
+                +         CallGroupsColumns.COUNT + ")"
+                + "     SELECT " + CallGroupsColumns.NUMBER + ","
+                +         CallGroupsColumns.DATE + ","
+                +         CallGroupsColumns.NEWEST_CALL_ID + ","
+                +         "(" + getAdjacentCallQuery("NEW", Calls.DATE, true) + "),"
+                +         "(" + getAdjacentCallQuery("NEW", Calls._ID, true) + "),"
+                +         "(SELECT COUNT(*) FROM " + Tables.CALLS
+                + "         WHERE " + getGroupedCallSelection(Tables.CALLS)
+                + "         AND " + Calls.DATE + ">=NEW." + Calls.DATE
+                + "         AND (" + Calls.DATE + ">NEW." + Calls.DATE
+                +             " OR " + Calls._ID + ">NEW." + Calls._ID + ")"
+                + "         AND " + Calls.DATE + "<=" + CallGroupsColumns.DATE
+                + "         AND (" + Calls.DATE + "<" + CallGroupsColumns.DATE
+                +             " OR " + Calls._ID + "<=" + CallGroupsColumns.NEWEST_CALL_ID + "))"
+                + "     FROM " + Tables.CALL_GROUPS
+                + "     WHERE " + CallGroupsColumns._ID + "=(" + spanningNew + ")"
+                + "       AND " + differentNumberThanNew + ";"
+                // ...then the group is cut off right before the new call.
+                + "   UPDATE " + Tables.CALL_GROUPS
+                + "     SET " + CallGroupsColumns.COUNT + "=" + CallGroupsColumns.COUNT + "-"
+                +         getGroupColumnQuery(CallGroupsColumns.COUNT, afterNew) + ","
+                +         CallGroupsColumns.DATE + "=("
+                +         getAdjacentCallQuery("NEW", Calls.DATE, false) + "),"
+                +         CallGroupsColumns.NEWEST_CALL_ID + "=("
+                +         getAdjacentCallQuery("NEW", Calls._ID, false) + ")"
+                + "     WHERE " + CallGroupsColumns._ID + "=(" + spanningNew + ")"
+                + "       AND " + differentNumberThanNew + ";"
+                // A call with the same number in the middle of a group joins it.
+                + "   UPDATE " + Tables.CALL_GROUPS
+                + "     SET " + CallGroupsColumns.COUNT + "=" + CallGroupsColumns.COUNT + "+1"
+                + "     WHERE " + CallGroupsColumns._ID + "=(" + spanningNew + ")"
+                + "       AND " + CallGroupsColumns.NUMBER + "=NEW." + Calls.NUMBER + ";"
+                // Otherwise the call joins the group after it, merging it with the group before
+                // it if that has the same number too...
+                + "   UPDATE " + Tables.CALL_GROUPS
+                + "     SET " + CallGroupsColumns.OLDEST_DATE + "=CASE WHEN " + sameNumberAsBefore
+                +         " THEN " + getGroupColumnQuery(CallGroupsColumns.OLDEST_DATE, beforeNew)
+                +         " ELSE NEW." + Calls.DATE + " END,"
+                +         CallGroupsColumns.OLDEST_CALL_ID + "=CASE WHEN " + sameNumberAsBefore
+                +         " THEN "
+                +         getGroupColumnQuery(CallGroupsColumns.OLDEST_CALL_ID, beforeNew)
+                +         " ELSE NEW." + Calls._ID + " END,"
+                +         CallGroupsColumns.COUNT + "=" + CallGroupsColumns.COUNT + "+1+"
+                +         "CASE WHEN " + sameNumberAsBefore
+                +         " THEN " + getGroupColumnQuery(CallGroupsColumns.COUNT, beforeNew)
+                +         " ELSE 0 END"
+                + "     WHERE " + CallGroupsColumns._ID + "=(" + afterNew + ")"
+                + "       AND " + CallGroupsColumns.NUMBER + "=NEW." + Calls.NUMBER
+                + "       AND NOT EXISTS (" + spanningNew + ");"
+                + "   DELETE FROM " + Tables.CALL_GROUPS
+                + "     WHERE " + CallGroupsColumns._ID + "=(" + beforeNew + ")"
+                + "       AND " + sameOldestCall + ";"
+                // ...or the group before it...
+                + "   UPDATE " + Tables.CALL_GROUPS
+                + "     SET " + CallGroupsColumns.COUNT + "=" + CallGroupsColumns.COUNT + "+1,"
+                +         CallGroupsColumns.DATE + "=NEW." + Calls.DATE + ","
+                +         CallGroupsColumns.NEWEST_CALL_ID + "=NEW." + Calls._ID
+                + "     WHERE " + CallGroupsColumns._ID + "=(" + beforeNew + ")"
+                + "       AND " + CallGroupsColumns.NUMBER + "=NEW." + Calls.NUMBER
+                + "       AND NOT EXISTS (" + spanningNew + ");"
+                // ...or starts a group of its own.
+                + "   INSERT INTO " + Tables.CALL_GROUPS + " ("
+                +         CallGroupsColumns.NUMBER + ","
+                +         CallGroupsColumns.DATE + ","
+                +         CallGroupsColumns.NEWEST_CALL_ID + ","
+                +         CallGroupsColumns.OLDEST_DATE + ","
+                +         CallGroupsColumns.OLDEST_CALL_ID + ","
+                +         CallGroupsColumns.COUNT + ")"
+                + "     SELECT NEW." + Calls.NUMBER + ",NEW." + Calls.DATE + ",NEW." + Calls._ID
+                +         ",NEW." + Calls.DATE + ",NEW." + Calls._ID + ",1"
+                + "     WHERE NEW." + Calls.DATE + " IS NOT NULL"
+                + "       AND NOT EXISTS (" + spanningNew + ");"
+                +     invalidate
+                + "     WHERE NEW." + Calls.DATE + " IS NULL;"
+                + " END");
+
+        final String spanningOld = getGroupQuery("OLD", 0);
+        final String beforeOld = getGroupQuery("OLD", -1);
+        final String afterOld = getGroupQuery("OLD", 1);
+
+        db.execSQL("CREATE TRIGGER " + Tables.CALLS + "_grouped_delete"
+                + "   AFTER DELETE ON " + Tables.CALLS
+                + "   WHEN " + getGroupedCallSelection("OLD") + " AND " + valid
+                + " BEGIN "
+                + "   UPDATE " + Tables.CALL_GROUPS
+                + "     SET " + CallGroupsColumns.COUNT + "=" + CallGroupsColumns.COUNT + "-1"
+                + "     WHERE " + CallGroupsColumns._ID + "=(" + spanningOld + ");"
+                // If the group is gone, the groups on either side of it merge if they have the
+                // same number: the one before takes over the one after.
+                + "   UPDATE " + Tables.CALL_GROUPS
+                + "     SET " + CallGroupsColumns.COUNT + "=" + CallGroupsColumns.COUNT + "+"
+                +         getGroupColumnQuery(CallGroupsColumns.COUNT, afterOld) + ","
+                +         CallGroupsColumns.DATE + "="
+                +         getGroupColumnQuery(CallGroupsColumns.DATE, afterOld) + ","
+                +         CallGroupsColumns.NEWEST_CALL_ID + "="
+                +         getGroupColumnQuery(CallGroupsColumns.NEWEST_CALL_ID, afterOld)
+                + "     WHERE " + CallGroupsColumns._ID + "=(" + beforeOld + ")"
+                + "       AND " + getGroupColumnQuery(CallGroupsColumns.COUNT, spanningOld)
+                +         "<=0"
+                + "       AND " + CallGroupsColumns.NUMBER + "="
+                +         getGroupColumnQuery(CallGroupsColumns.NUMBER, afterOld) + ";"
+                + "   DELETE FROM " + Tables.CALL_GROUPS
+                + "     WHERE " + CallGroupsColumns._ID + "=(" + afterOld + ")"
+                + "       AND " + sameNewestCall + ";"
+                + "   DELETE FROM " + Tables.CALL_GROUPS
+                + "     WHERE " + CallGroupsColumns._ID + "=(" + spanningOld + ")"
+                + "       AND " + CallGroupsColumns.COUNT + "<=0;"
+                // If the call was at either end of its group, move that end to the next call.
+                + "   UPDATE " + Tables.CALL_GROUPS
+                + "     SET " + CallGroupsColumns.NEWEST_CALL_ID + "=("
+                +         getAdjacentCallQuery("OLD", Calls._ID, false) + "),"
+                +         CallGroupsColumns.DATE + "=("
+                +         getAdjacentCallQuery("OLD", Calls.DATE, false) + ")"
+                + "     WHERE " + CallGroupsColumns.DATE + "=OLD." + Calls.DATE
+                + "       AND " + CallGroupsColumns.NEWEST_CALL_ID + "=OLD." + Calls._ID + ";"
+                + "   UPDATE " + Tables.CALL_GROUPS
+                + "     SET " + CallGroupsColumns.OLDEST_CALL_ID + "=("
+                +         getAdjacentCallQuery("OLD", Calls._ID, true) + "),"
+                +         CallGroupsColumns.OLDEST_DATE + "=("
+                +         getAdjacentCallQuery("OLD", Calls.DATE, true) + ")"
+                + "     WHERE " + CallGroupsColumns.OLDEST_DATE + "=OLD." + Calls.DATE
+                + "       AND " + CallGroupsColumns.OLDEST_CALL_ID + "=OLD." + Calls._ID + ";"
+                +     invalidate
+                + "     WHERE OLD." + Calls.DATE + " IS NULL;"
+                + " END");
+
+        final String groupedOld = "(" + getGroupedCallSelection("OLD") + ")";
+        final String groupedNew = "(" + getGroupedCallSelection("NEW") + ")";
+        db.execSQL("CREATE TRIGGER " + Tables.CALLS + "_grouped_update"
+                + "   AFTER UPDATE OF " + Calls.NUMBER + "," + Calls.DATE + "," + Calls.TYPE + ","
+                +         Calls.PHONE_ACCOUNT_HIDDEN + " ON " + Tables.CALLS
+                + "   WHEN (" + groupedOld + " OR " + groupedNew + ")"
+                + "     AND (OLD." + Calls.NUMBER + " IS NOT NEW." + Calls.NUMBER
+                + "       OR OLD." + Calls.DATE + " IS NOT NEW." + Calls.DATE
+                + "       OR " + groupedOld + " IS NOT " + groupedNew + ")"
+                + "     AND " + valid
+                + " BEGIN "
+                +     invalidate + ";"
+                + " END");
+    }
+
+    /**
+     * Returns the selection for the calls that are grouped, on the given row.
+     */
+    static String getGroupedCallSelection(String row) {
+        return row + "." + Calls.TYPE + "!=" + Calls.VOICEMAIL_TYPE
+                + " AND " + row + "." + Calls.PHONE_ACCOUNT_HIDDEN + "=0";
+    }
+
+    /**
+     * Returns a query for the given column of the grouped call right after (or before) the
+     * given call in date order.
+     */
+    private static String getAdjacentCallQuery(String row, String column, boolean after) {
+        final String op = after ? ">" : "<";
+        final String order = after ? " ASC" : " DESC";
+        return "SELECT " + column + " FROM " + Tables.CALLS
+                + " WHERE " + getGroupedCallSelection(Tables.CALLS)
+                + " AND " + Calls.DATE + op + "=" + row + "." + Calls.DATE
+                + " AND (" + Calls.DATE + op + row + "." + Calls.DATE
+                + " OR " + Calls._ID + op + row + "." + Calls._ID + ")"
+                + " ORDER BY " + Calls.DATE + order + "," + Calls._ID + order + " LIMIT 1";
+    }
+
+    /**
+     * Returns a query for the ID of the group right before the given call in date order (if
+     * {@code side} is negative), right after it (if positive), or spanning it (if zero).  Each
+     * is a range scan of the index on one end of the groups that stops at the first group.
+     */
+    private static String getGroupQuery(String row, int side) {
+        final String date = row + "." + Calls.DATE;
+        final String id = row + "." + Calls._ID;
+        if (side < 0) {
+            return "SELECT " + CallGroupsColumns._ID + " FROM " + Tables.CALL_GROUPS
+                    + " WHERE " + CallGroupsColumns.DATE + "<=" + date
+                    + " AND (" + CallGroupsColumns.DATE + "<" + date
+                    + " OR " + CallGroupsColumns.NEWEST_CALL_ID + "<" + id + ")"
+                    + " ORDER BY " + CallGroupsColumns.DATE + " DESC,"
+                    + CallGroupsColumns.NEWEST_CALL_ID + " DESC LIMIT 1";
+        } else if (side > 0) {
+            return "SELECT " + CallGroupsColumns._ID + " FROM " + Tables.CALL_GROUPS
+                    + " WHERE " + CallGroupsColumns.OLDEST_DATE + ">=" + date
+                    + " AND (" + CallGroupsColumns.OLDEST_DATE + ">" + date
+                    + " OR " + CallGroupsColumns.OLDEST_CALL_ID + ">" + id + ")"
+                    + " ORDER BY " + CallGroupsColumns.OLDEST_DATE + ","
+                    + CallGroupsColumns.OLDEST_CALL_ID + " LIMIT 1";
+        }
+        // The last group starting at or before the call, if the call isn't past its end.
+        return "SELECT " + CallGroupsColumns._ID + " FROM (SELECT " + CallGroupsColumns._ID + ","
+                + CallGroupsColumns.DATE + "," + CallGroupsColumns.NEWEST_CALL_ID
+                + " FROM " + Tables.CALL_GROUPS
+                + " WHERE " + CallGroupsColumns.OLDEST_DATE + "<=" + date
+                + " AND (" + CallGroupsColumns.OLDEST_DATE + "<" + date
+                + " OR " + CallGroupsColumns.OLDEST_CALL_ID + "<=" + id + ")"
+                + " ORDER BY " + CallGroupsColumns.OLDEST_DATE + " DESC,"
+                + CallGroupsColumns.OLDEST_CALL_ID + " DESC LIMIT 1)"
+                + " WHERE " + CallGroupsColumns.DATE + ">" + date
+                + " OR (" + CallGroupsColumns.DATE + "=" + date
+                + " AND " + CallGroupsColumns.NEWEST_CALL_ID + ">=" + id + ")";
+    }
+
+    /**
+     * Returns a query for a column of the group with the ID returned by the given query.
+     */
+    private static String getGroupColumnQuery(String column, String groupQuery) {
+        return "(SELECT " + column + " FROM " + Tables.CALL_GROUPS
+                + " WHERE " + CallGroupsColumns._ID + "=(" + groupQuery + "))";
+    }
+
+    /**
+     * Returns whether {@link Tables#CALL_GROUPS} is up to date.
+     */
+    public boolean areCallGroupsValid() {
+        return "1".equals(getProperty(DbProperties.CALL_GROUPS_VALID, null));
+    }
+
+    /**
+     * Rebuilds {@link Tables#CALL_GROUPS} in its own transaction, if it has been invalidated.
+     *
+     * @return Whether it was rebuilt.
+     */
+    public boolean ensureCallGroups() {
+        final SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            final boolean rebuilt = ensureCallGroups(db);
+            db.setTransactionSuccessful();
+            return rebuilt;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Rebuilds {@link Tables#CALL_GROUPS} in a single pass over the calls, if it has been
+     * invalidated.  This is O(calls), so it is only done in the background (see
+     * {@link CallLogProvider}), or when the table is created.
+     *
+     * @return Whether it was rebuilt.
+     */
+    private static boolean ensureCallGroups(SQLiteDatabase db) {
+        if ("1".equals(PropertyUtils.getProperty(db, DbProperties.CALL_GROUPS_VALID, null))) {
+            return false;
+        }
+        rebuildCallGroups(db);
+        return true;
+    }
+
+    private static void rebuildCallGroups(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + Tables.CALL_GROUPS);
+        final SQLiteStatement insert = db.compileStatement(
+                "INSERT INTO " + Tables.CALL_GROUPS + " (" +
+                CallGroupsColumns.NUMBER + "," +
+                CallGroupsColumns.DATE + "," +
+                CallGroupsColumns.NEWEST_CALL_ID + "," +
+                CallGroupsColumns.OLDEST_DATE + "," +
+                CallGroupsColumns.OLDEST_CALL_ID + "," +
+                CallGroupsColumns.COUNT + ") VALUES (?,?,?,?,?,?)");
+        final Cursor c = db.query(Tables.CALLS,
+                new String[] {Calls._ID, Calls.NUMBER, Calls.DATE},
+                getGroupedCallSelection(Tables.CALLS), null, null, null,
+                Calls.DATE + "," + Calls._ID);
+        try {
+            String number = null;
+            long oldestId = 0;
+            long oldestDate = 0;
+            long newestId = 0;
+            long newestDate = 0;
+            int count = 0;
+            while (c.moveToNext()) {
+                final String callNumber = c.getString(1);
+                if (count > 0 && (number == null || !number.equals(callNumber))) {
+                    insertCallGroup(insert, number, newestDate, newestId, oldestDate, oldestId,
+                            count);
+                    count = 0;
+                }
+                if (count == 0) {
+                    number = callNumber;
+                    oldestId = c.getLong(0);
+                    oldestDate = c.getLong(2);
+                }
+                newestId = c.getLong(0);
+                newestDate = c.getLong(2);
+                count++;
+            }
+            if (count > 0) {
+                insertCallGroup(insert, number, newestDate, newestId, oldestDate, oldestId,
+                        count);
+            }
+        } finally {
+            c.close();
+            insert.close();
+        }
+        PropertyUtils.setProperty(db, DbProperties.CALL_GROUPS_VALID, "1");
+    }
+
+    private static void insertCallGroup(SQLiteStatement insert, String number, long newestDate,
+            long newestId, long oldestDate, long oldestId, int count) {
+        if (number == null) {
+            insert.bindNull(1);
+        } else {
+            insert.bindString(1, number);
+        }
+        insert.bindLong(2, newestDate);
+        insert.bindLong(3, newestId);
+        insert.bindLong(4, oldestDate);
+        insert.bindLong(5, oldestId);
+        insert.bindLong(6, count);
+        insert.executeInsert();
+    }
+
+    /**
+     * Populates {@link #CALLS_MIN_MATCH} for the rows that don't have it yet.
+     */
+    private static void updateMinMatch(SQLiteDatabase db) {
+        final SQLiteStatement update = db.compileStatement(
+                "UPDATE " + Tables.CALLS +
+                " SET " + CALLS_MIN_MATCH + "=?" +
+                " WHERE " + Calls._ID + "=?");
+        final Cursor c = db.query(Tables.CALLS, new String[] {Calls._ID, Calls.NUMBER},
+                CALLS_MIN_MATCH + " IS NULL AND " + Calls.NUMBER + " IS NOT NULL",
+                null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                final String minMatch = getMinMatch(c.getString(1));
+                if (minMatch != null) {
+                    update.bindString(1, minMatch);
+                    update.bindLong(2, c.getLong(0));
+                    update.execute();
+                }
+            }
+        } finally {
+            c.close();
+            update.close();
+        }
+    }
+
+    /**
+     * Returns the value of {@link #CALLS_MIN_MATCH} for the given number, or null if it has no
+     * digits to match on.
+     */
+    public static String getMinMatch(String number) {
+        if (TextUtils.isEmpty(number)) {
+            return null;
+        }
+        final String minMatch = PhoneNumberUtils.toCallerIDMinMatch(number);
+        return TextUtils.isEmpty(minMatch) ? null : minMatch;
+    }
+
+    /**
+     * Sets {@link #CALLS_MIN_MATCH} in the given values, if they change the number.
+     */
+    public static void putMinMatch(ContentValues values) {
+        if (values.containsKey(Calls.NUMBER)) {
+            values.put(CALLS_MIN_MATCH, getMinMatch(values.getAsString(Calls.NUMBER)));
+        }
+    }
+
+    /**
+     * Sets {@link #CALLS_CACHED_CONTACT_ID} in the given values, if they change the cached lookup
+     * URI.  Lookup URIs of local contacts end with the contact ID; others (e.g. from a directory)
+     * have none.
+     */
+    public static void putCachedContactId(ContentValues values) {
+        if (!values.containsKey(Calls.CACHED_LOOKUP_URI)) {
+            return;
+        }
+        final String lookupUri = values.getAsString(Calls.CACHED_LOOKUP_URI);
+        final String prefix = Contacts.CONTENT_LOOKUP_URI.toString() + "/";
+        Long contactId = null;
+        if (lookupUri != null && lookupUri.startsWith(prefix)) {
+            final String lastSegment = lookupUri.substring(lookupUri.lastIndexOf('/') + 1);
+            if (!lastSegment.isEmpty() && TextUtils.isDigitsOnly(lastSegment)) {
+                try {
+                    contactId = Long.valueOf(lastSegment);
+                } catch (NumberFormatException e) {
+                    // Not a contact ID after all.
+                }
+            }
+        }
+        values.put(CALLS_CACHED_CONTACT_ID, contactId);
+    }
+
     /**
      * Add {@link Voicemails.BACKED_UP} {@link Voicemails.ARCHIVE} {@link
      * Voicemails.IS_OMTP_VOICEMAIL} column to the CallLog database.
@@ -318,6 +1011,8 @@ public class CallLogDatabaseHelper {
                     }
                 }
 
+                updateMinMatch(calllog);
+
                 contacts.execSQL("DROP TABLE " + LegacyConstants.CALLS_LEGACY + ";");
                 contacts.execSQL("DROP TABLE " + LegacyConstants.VOICEMAIL_STATUS_LEGACY + ";");
 
@@ -22,15 +22,20 @@ import static com.android.providers.contacts.util.DbQueryUtils.getInequalityClau
 
 import android.app.AppOpsManager;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Handler;
@@ -41,6 +46,7 @@ import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.CallLog;
 import android.provider.CallLog.Calls;
+import android.provider.ContactsContract;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
@@ -51,13 +57,16 @@ import android.text.TextUtils;
 import android.util.Log;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.PhoneConstants;
+import com.android.providers.contacts.CallLogDatabaseHelper.CallGroupsColumns;
 import com.android.providers.contacts.CallLogDatabaseHelper.DbProperties;
 import com.android.providers.contacts.CallLogDatabaseHelper.Tables;
 import com.android.providers.contacts.util.SelectionBuilder;
 import com.android.providers.contacts.util.UserUtils;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 
 /**
@@ -70,6 +79,15 @@ public class CallLogProvider extends ContentProvider {
 
     private static final int BACKGROUND_TASK_INITIALIZE = 0;
     private static final int BACKGROUND_TASK_ADJUST_PHONE_ACCOUNT = 1;
+    private static final int BACKGROUND_TASK_UPDATE_CONTACT_INFO = 2;
+    private static final int BACKGROUND_TASK_INVALIDATE_CONTACT_INFO = 3;
+    private static final int BACKGROUND_TASK_ENSURE_CALL_GROUPS = 4;
+
+    /**
+     * Delay before the cached contact info is updated, so that a burst of inserts or contact
+     * changes results in a single pass.
+     */
+    private static final long CONTACT_INFO_UPDATE_DELAY_MS = 2000;
 
     private static final String GROUP_BY = "groupby";
 
@@ -98,12 +116,17 @@ public class CallLogProvider extends ContentProvider {
 
     static final String[] MINIMAL_PROJECTION = new String[] { Calls._ID };
 
+    /** Temporary table the entries being synced are staged in. */
+    private static final String SYNC_STAGING_TABLE = "temp.calls_sync";
+
     private static final int CALLS = 1;
 
     private static final int CALLS_ID = 2;
 
     private static final int CALLS_FILTER = 3;
 
+    private static final int CALLS_GROUPED = 4;
+
     private static final String UNHIDE_BY_PHONE_ACCOUNT_QUERY =
             "UPDATE " + Tables.CALLS + " SET " + Calls.PHONE_ACCOUNT_HIDDEN + "=0 WHERE " +
             Calls.PHONE_ACCOUNT_COMPONENT_NAME + "=? AND " + Calls.PHONE_ACCOUNT_ID + "=?;";
@@ -117,6 +140,7 @@ public class CallLogProvider extends ContentProvider {
         sURIMatcher.addURI(CallLog.AUTHORITY, "calls", CALLS);
         sURIMatcher.addURI(CallLog.AUTHORITY, "calls/#", CALLS_ID);
         sURIMatcher.addURI(CallLog.AUTHORITY, "calls/filter/*", CALLS_FILTER);
+        sURIMatcher.addURI(CallLog.AUTHORITY, "calls/grouped", CALLS_GROUPED);
 
         // Shadow provider only supports "/calls".
         sURIMatcher.addURI(CallLog.SHADOW_AUTHORITY, "calls", CALLS);
@@ -161,6 +185,65 @@ public class CallLogProvider extends ContentProvider {
                 CallLogDatabaseHelper.CALLS_OPERATOR);
     }
 
+    /**
+     * Number of calls in the group, on the rows returned for {@link #CALLS_GROUPED}.  The other
+     * columns are those of the most recent call in the group.
+     */
+    public static final String GROUPED_CALLS_COUNT = CallGroupsColumns.COUNT;
+
+    /** Date of the earliest call in the group, on the rows returned for {@link #CALLS_GROUPED}. */
+    public static final String GROUPED_CALLS_OLDEST_DATE = CallGroupsColumns.OLDEST_DATE;
+
+    private static final HashMap<String, String> sGroupedCallsProjectionMap;
+    static {
+        sGroupedCallsProjectionMap = new HashMap<String, String>();
+        for (String column : sCallsProjectionMap.keySet()) {
+            sGroupedCallsProjectionMap.put(column,
+                    Tables.CALLS + "." + sCallsProjectionMap.get(column) + " AS " + column);
+        }
+        sGroupedCallsProjectionMap.put(GROUPED_CALLS_COUNT,
+                Tables.CALL_GROUPS + "." + CallGroupsColumns.COUNT + " AS " + GROUPED_CALLS_COUNT);
+        sGroupedCallsProjectionMap.put(GROUPED_CALLS_OLDEST_DATE,
+                Tables.CALL_GROUPS + "." + CallGroupsColumns.OLDEST_DATE
+                        + " AS " + GROUPED_CALLS_OLDEST_DATE);
+    }
+
+    /**
+     * Projection for {@link #CALLS_GROUPED} while the groups are being rebuilt: every call is
+     * returned as a group of its own.
+     */
+    private static final HashMap<String, String> sUngroupedCallsProjectionMap;
+    static {
+        sUngroupedCallsProjectionMap = new HashMap<String, String>(sCallsProjectionMap);
+        sUngroupedCallsProjectionMap.put(GROUPED_CALLS_COUNT, "1 AS " + GROUPED_CALLS_COUNT);
+        sUngroupedCallsProjectionMap.put(GROUPED_CALLS_OLDEST_DATE,
+                Calls.DATE + " AS " + GROUPED_CALLS_OLDEST_DATE);
+    }
+
+    /**
+     * The call groups joined with their most recent call.  The groups are selected without
+     * their _id, so that the _id in the caller's selection can only be that of the call.
+     */
+    private static final String GROUPED_CALLS_TABLES = "(SELECT "
+            + CallGroupsColumns.DATE + ","
+            + CallGroupsColumns.NEWEST_CALL_ID + ","
+            + CallGroupsColumns.OLDEST_DATE + ","
+            + CallGroupsColumns.COUNT
+            + " FROM " + Tables.CALL_GROUPS + ") AS " + Tables.CALL_GROUPS
+            + " JOIN " + Tables.CALLS + " ON (" + Tables.CALLS + "." + Calls._ID + "="
+            + Tables.CALL_GROUPS + "." + CallGroupsColumns.NEWEST_CALL_ID + ")";
+
+    /**
+     * Query parameters to page through the calls (or call groups) by seeking, rather than with
+     * an offset that makes every page scan all the rows before it: the date and ID of the last
+     * row of the previous page.  The rows are returned in descending order of date and ID, so
+     * these can't be combined with a sort order.
+     */
+    @VisibleForTesting
+    static final String PARAM_KEY_BEFORE_DATE = "before_date";
+    @VisibleForTesting
+    static final String PARAM_KEY_BEFORE_ID = "before_id";
+
     private static final String ALLOWED_PACKAGE_FOR_TESTING = "com.android.providers.contacts";
 
     @VisibleForTesting
@@ -183,6 +266,11 @@ public class CallLogProvider extends ContentProvider {
     private boolean mUseStrictPhoneNumberComparation;
     private VoicemailPermissions mVoicemailPermissions;
     private CallLogInsertionHelper mCallLogInsertionHelper;
+    private CallLogContactInfoUpdater mContactInfoUpdater;
+
+    /** The modifier collecting notifications for the batch being applied on this thread. */
+    private final ThreadLocal<DbModifierWithNotification> mBatchModifier =
+            new ThreadLocal<DbModifierWithNotification>();
 
     protected boolean isShadow() {
         return false;
@@ -220,6 +308,18 @@ public class CallLogProvider extends ContentProvider {
 
         scheduleBackgroundTask(BACKGROUND_TASK_INITIALIZE, null);
 
+        mContactInfoUpdater = new CallLogContactInfoUpdater(context, mDbHelper);
+        if (isContactInfoUpdateEnabled()) {
+            context.getContentResolver().registerContentObserver(ContactsContract.AUTHORITY_URI,
+                    true, new ContentObserver(mBackgroundHandler) {
+                        @Override
+                        public void onChange(boolean selfChange) {
+                            scheduleContactInfoUpdate(true);
+                        }
+                    });
+            scheduleContactInfoUpdate(false);
+        }
+
         if (Log.isLoggable(Constants.PERFORMANCE_TAG, Log.DEBUG)) {
             Log.d(Constants.PERFORMANCE_TAG, getProviderName() + ".onCreate finish");
         }
@@ -257,11 +357,45 @@ public class CallLogProvider extends ContentProvider {
         checkVoicemailPermissionAndAddRestriction(uri, selectionBuilder, true /*isQuery*/);
         selectionBuilder.addClause(EXCLUDE_HIDDEN_SELECTION);
 
+        final long beforeDate = getLongParam(uri, PARAM_KEY_BEFORE_DATE, -1);
+        if (beforeDate >= 0 && sortOrder != null) {
+            throw new IllegalArgumentException(
+                    PARAM_KEY_BEFORE_DATE + " can't be combined with a sort order");
+        }
+
+        // The columns that identify the position of a row, for seeking.
+        String dateColumn = Tables.CALLS + "." + Calls.DATE;
+        String idColumn = Tables.CALLS + "." + Calls._ID;
+
         final int match = sURIMatcher.match(uri);
         switch (match) {
             case CALLS:
                 break;
 
+            case CALLS_GROUPED: {
+                // The groups are kept up to date by the writes to the calls, except for the
+                // changes that make them rebuilt in the background, which notifies the change
+                // once done.  Until then, the calls are returned ungrouped.
+                if (!mDbHelper.areCallGroupsValid()) {
+                    scheduleCallGroupsRebuild();
+                    qb.setProjectionMap(sUngroupedCallsProjectionMap);
+                    selectionBuilder.addClause(
+                            CallLogDatabaseHelper.getGroupedCallSelection(Tables.CALLS));
+                    if (sortOrder == null) {
+                        sortOrder = dateColumn + " DESC," + idColumn + " DESC";
+                    }
+                    break;
+                }
+                qb.setTables(GROUPED_CALLS_TABLES);
+                qb.setProjectionMap(sGroupedCallsProjectionMap);
+                dateColumn = Tables.CALL_GROUPS + "." + CallGroupsColumns.DATE;
+                idColumn = Tables.CALL_GROUPS + "." + CallGroupsColumns.NEWEST_CALL_ID;
+                if (sortOrder == null) {
+                    sortOrder = dateColumn + " DESC," + idColumn + " DESC";
+                }
+                break;
+            }
+
             case CALLS_ID: {
                 selectionBuilder.addClause(getEqualityClause(Calls._ID,
                         parseCallIdFromUri(uri)));
@@ -272,6 +406,14 @@ public class CallLogProvider extends ContentProvider {
                 List<String> pathSegments = uri.getPathSegments();
                 String phoneNumber = pathSegments.size() >= 2 ? pathSegments.get(2) : null;
                 if (!TextUtils.isEmpty(phoneNumber)) {
+                    // Narrow down the candidates with the index on the min match first, so that
+                    // the loose comparison is only applied to the calls that can match.
+                    final String minMatch = CallLogDatabaseHelper.getMinMatch(phoneNumber);
+                    if (minMatch != null) {
+                        qb.appendWhere(CallLogDatabaseHelper.CALLS_MIN_MATCH + "=");
+                        qb.appendWhereEscapeString(minMatch);
+                        qb.appendWhere(" AND ");
+                    }
                     qb.appendWhere("PHONE_NUMBERS_EQUAL(number, ");
                     qb.appendWhereEscapeString(phoneNumber);
                     qb.appendWhere(mUseStrictPhoneNumberComparation ? ", 1)" : ", 0)");
@@ -286,6 +428,15 @@ public class CallLogProvider extends ContentProvider {
                 throw new IllegalArgumentException("Unknown URL " + uri);
         }
 
+        if (beforeDate >= 0) {
+            final long beforeId = getLongParam(uri, PARAM_KEY_BEFORE_ID, Long.MAX_VALUE);
+            // Written so that the date bound can drive a (descending) index range scan.
+            selectionBuilder.addClause(dateColumn + "<=" + beforeDate
+                    + " AND (" + dateColumn + "<" + beforeDate
+                    + " OR " + idColumn + "<" + beforeId + ")");
+            sortOrder = dateColumn + " DESC," + idColumn + " DESC";
+        }
+
         final int limit = getIntParam(uri, Calls.LIMIT_PARAM_KEY, 0);
         final int offset = getIntParam(uri, Calls.OFFSET_PARAM_KEY, 0);
         String limitClause = null;
@@ -353,6 +504,26 @@ public class CallLogProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Gets a long query parameter from a given uri.
+     *
+     * @throws IllegalArgumentException when the value in the query parameter is not a long.
+     */
+    private long getLongParam(Uri uri, String key, long defaultValue) {
+        String valueString = uri.getQueryParameter(key);
+        if (valueString == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(valueString);
+        } catch (NumberFormatException e) {
+            String msg = "Long required for " + key + " parameter but value '" + valueString +
+                    "' was found instead.";
+            throw new IllegalArgumentException(msg, e);
+        }
+    }
+
     /**
      * Gets an String query parameter from a given uri.
      *
@@ -379,6 +550,7 @@ public class CallLogProvider extends ContentProvider {
             case CALLS_ID:
                 return Calls.CONTENT_ITEM_TYPE;
             case CALLS_FILTER:
+            case CALLS_GROUPED:
                 return Calls.CONTENT_TYPE;
             default:
                 throw new IllegalArgumentException("Unknown URI: " + uri);
@@ -386,18 +558,138 @@ public class CallLogProvider extends ContentProvider {
     }
 
     @Override
-    public Uri insert(Uri uri, ContentValues values) {
+    public Uri insert(final Uri uri, final ContentValues values) {
         if (VERBOSE_LOGGING) {
             Log.v(TAG, "insert: uri=" + uri + "  values=[" + values + "]" +
                     " CPID=" + Binder.getCallingPid());
         }
         waitForAccess(mReadAccessLatch);
+        return writeCalls(new CallsWrite<Uri>() {
+            @Override
+            public Uri perform(DbModifierWithNotification modifier) {
+                return insertInternal(uri, values, modifier, null);
+            }
+        });
+    }
+
+    /**
+     * Inserts all the given rows in a single transaction, sending change notifications once at
+     * the end rather than for every row.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        if (VERBOSE_LOGGING) {
+            Log.v(TAG, "bulkInsert: uri=" + uri + "  count=" + values.length +
+                    " CPID=" + Binder.getCallingPid());
+        }
+        waitForAccess(mReadAccessLatch);
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        final DbModifierWithNotification modifier = new DbModifierWithNotification(
+                Tables.CALLS, db, getCallsInserter(), getContext()).deferNotifications();
+        final HashMap<Integer, String> operatorNames = new HashMap<Integer, String>();
+        int count = 0;
+        db.beginTransaction();
+        try {
+            for (ContentValues rowValues : values) {
+                if (insertInternal(uri, rowValues, modifier, operatorNames) != null) {
+                    count++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        modifier.flushNotifications();
+        scheduleCallGroupsRebuildIfNeeded();
+        return count;
+    }
+
+    /**
+     * Applies the operations in a single transaction.  Change notifications are collected and
+     * sent once the transaction has been committed.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        waitForAccess(mReadAccessLatch);
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        final DbModifierWithNotification modifier = new DbModifierWithNotification(
+                Tables.CALLS, db, getCallsInserter(), getContext()).deferNotifications();
+        final ContentProviderResult[] results;
+        mBatchModifier.set(modifier);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mBatchModifier.set(null);
+        }
+        modifier.flushNotifications();
+        scheduleCallGroupsRebuildIfNeeded();
+        return results;
+    }
+
+    /** A write to the calls table, see {@link #writeCalls}. */
+    private interface CallsWrite<T> {
+        T perform(DbModifierWithNotification modifier);
+    }
+
+    /**
+     * Performs a write to the calls table.  Unless it is part of a batch (which does the same for
+     * all its operations at once), the write gets its own transaction, the change notifications
+     * are sent once it has been committed, and {@link Tables#CALL_GROUPS} is rebuilt in the
+     * background if the write invalidated it.
+     */
+    private <T> T writeCalls(CallsWrite<T> write) {
+        final DbModifierWithNotification batchModifier = mBatchModifier.get();
+        if (batchModifier != null) {
+            return write.perform(batchModifier);
+        }
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        final DbModifierWithNotification modifier = new DbModifierWithNotification(
+                Tables.CALLS, db, getCallsInserter(), getContext()).deferNotifications();
+        final T result;
+        db.beginTransaction();
+        try {
+            result = write.perform(modifier);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        modifier.flushNotifications();
+        scheduleCallGroupsRebuildIfNeeded();
+        return result;
+    }
+
+    private DatabaseUtils.InsertHelper getCallsInserter() {
+        if (mCallsInserter == null) {
+            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            mCallsInserter = new DatabaseUtils.InsertHelper(db, Tables.CALLS);
+        }
+        return mCallsInserter;
+    }
+
+    /**
+     * Inserts a single row.
+     *
+     * @param operatorNames If not null, memoizes the network operator names looked up by
+     *     subscription across the rows of a bulk insert.
+     */
+    private Uri insertInternal(Uri uri, ContentValues values, DatabaseModifier modifier,
+            Map<Integer, String> operatorNames) {
         checkForSupportedColumns(sCallsProjectionMap, values);
         if (values.containsKey(Calls.PHONE_ACCOUNT_ID)
                     && values.getAsInteger(Calls.PHONE_ACCOUNT_ID) != null) {
             int subscription = values.getAsInteger(Calls.PHONE_ACCOUNT_ID);
             if (subscription > SubscriptionManager.INVALID_SUBSCRIPTION_ID) {
-                String operator = getNetworkSpnName(subscription);
+                String operator = operatorNames != null ? operatorNames.get(subscription) : null;
+                if (operator == null) {
+                    operator = getNetworkSpnName(subscription);
+                    if (operatorNames != null) {
+                        operatorNames.put(subscription, operator);
+                    }
+                }
                 values.put(CallLogDatabaseHelper.CALLS_OPERATOR, operator);
             }
         }
@@ -407,25 +699,23 @@ public class CallLogProvider extends ContentProvider {
             checkIsAllowVoicemailRequest(uri);
             mVoicemailPermissions.checkCallerHasWriteAccess(getCallingPackage());
         }
-        if (mCallsInserter == null) {
-            SQLiteDatabase db = mDbHelper.getWritableDatabase();
-            mCallsInserter = new DatabaseUtils.InsertHelper(db, Tables.CALLS);
-        }
 
         ContentValues copiedValues = new ContentValues(values);
 
         // Add the computed fields to the copied values.
         mCallLogInsertionHelper.addComputedValues(copiedValues);
 
-        long rowId = getDatabaseModifier(mCallsInserter).insert(copiedValues);
+        long rowId = modifier.insert(copiedValues);
         if (rowId > 0) {
+            scheduleContactInfoUpdate(false);
             return ContentUris.withAppendedId(uri, rowId);
         }
         return null;
     }
 
     @Override
-    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+    public int update(final Uri uri, final ContentValues values, String selection,
+            final String[] selectionArgs) {
         if (VERBOSE_LOGGING) {
             Log.v(TAG, "update: uri=" + uri +
                     "  selection=[" + selection + "]  args=" + Arrays.toString(selectionArgs) +
@@ -443,7 +733,6 @@ public class CallLogProvider extends ContentProvider {
         SelectionBuilder selectionBuilder = new SelectionBuilder(selection);
         checkVoicemailPermissionAndAddRestriction(uri, selectionBuilder, false /*isQuery*/);
 
-        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
         final int matchedUriId = sURIMatcher.match(uri);
         switch (matchedUriId) {
             case CALLS:
@@ -457,8 +746,17 @@ public class CallLogProvider extends ContentProvider {
                 throw new UnsupportedOperationException("Cannot update URL: " + uri);
         }
 
-        return getDatabaseModifier(db).update(uri, Tables.CALLS, values, selectionBuilder.build(),
-                selectionArgs);
+        final String where = selectionBuilder.build();
+        final int count = writeCalls(new CallsWrite<Integer>() {
+            @Override
+            public Integer perform(DbModifierWithNotification modifier) {
+                return modifier.update(uri, Tables.CALLS, values, where, selectionArgs);
+            }
+        });
+        if (count > 0 && values.containsKey(Calls.NUMBER)) {
+            scheduleContactInfoUpdate(false);
+        }
+        return count;
     }
 
     @Override
@@ -473,43 +771,35 @@ public class CallLogProvider extends ContentProvider {
         SelectionBuilder selectionBuilder = new SelectionBuilder(selection);
         checkVoicemailPermissionAndAddRestriction(uri, selectionBuilder, false /*isQuery*/);
 
-        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        final String where;
+        final String[] whereArgs;
         final int matchedUriId = sURIMatcher.match(uri);
         switch (matchedUriId) {
             case CALLS:
                 // TODO: Special case - We may want to forward the delete request on user 0 to the
                 // shadow provider too.
-                return getDatabaseModifier(db).delete(Tables.CALLS,
-                        selectionBuilder.build(), selectionArgs);
+                where = selectionBuilder.build();
+                whereArgs = selectionArgs;
+                break;
             case CALLS_ID:
-                return getDatabaseModifier(db).delete(Tables.CALLS,
-                        new SelectionBuilder(Calls._ID + "=?").build(),
-                        new String[] { uri.getLastPathSegment() });
+                where = new SelectionBuilder(Calls._ID + "=?").build();
+                whereArgs = new String[] { uri.getLastPathSegment() };
+                break;
             default:
                 throw new UnsupportedOperationException("Cannot delete that URL: " + uri);
         }
+        return writeCalls(new CallsWrite<Integer>() {
+            @Override
+            public Integer perform(DbModifierWithNotification modifier) {
+                return modifier.delete(Tables.CALLS, where, whereArgs);
+            }
+        });
     }
 
     void adjustForNewPhoneAccount(PhoneAccountHandle handle) {
         scheduleBackgroundTask(BACKGROUND_TASK_ADJUST_PHONE_ACCOUNT, handle);
     }
 
-    /**
-     * Returns a {@link DatabaseModifier} that takes care of sending necessary notifications
-     * after the operation is performed.
-     */
-    private DatabaseModifier getDatabaseModifier(SQLiteDatabase db) {
-        return new DbModifierWithNotification(Tables.CALLS, db, getContext());
-    }
-
-    /**
-     * Same as {@link #getDatabaseModifier(SQLiteDatabase)} but used for insert helper operations
-     * only.
-     */
-    private DatabaseModifier getDatabaseModifier(DatabaseUtils.InsertHelper insertHelper) {
-        return new DbModifierWithNotification(Tables.CALLS, insertHelper, getContext());
-    }
-
     private static final Integer VOICEMAIL_TYPE = new Integer(Calls.VOICEMAIL_TYPE);
     private boolean hasVoicemailValue(ContentValues values) {
         return VOICEMAIL_TYPE.equals(values.getAsInteger(Calls.TYPE));
@@ -683,54 +973,89 @@ public class CallLogProvider extends ContentProvider {
             } finally {
                 cursor.close();
             }
+            // Un-hiding calls invalidates the groups.
+            scheduleCallGroupsRebuildIfNeeded();
         }
 
     }
 
     /**
-     * @param cursor to copy call log entries from
+     * Copies the call log entries from the cursor, skipping those that already exist (an entry is
+     * uniquely identified by its number and start time).
+     *
+     * The entries are staged in a temporary table first, so that the duplicates are filtered out
+     * by a single statement rather than a query per entry.
+     *
+     * @param cursor to copy call log entries from, with the columns in
+     *     {@link #CALL_LOG_SYNC_PROJECTION}
      */
     @VisibleForTesting
     long copyEntriesFromCursor(Cursor cursor, long lastSyncTime, boolean forShadow) {
         long latestTimestamp = 0;
-        final ContentValues values = new ContentValues();
         final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        final int dateIndex = cursor.getColumnIndexOrThrow(Calls.DATE);
+        final int numberIndex = cursor.getColumnIndexOrThrow(Calls.NUMBER);
+        final String[] columns = cursor.getColumnNames();
+        final String columnList = TextUtils.join(",", columns) + ","
+                + CallLogDatabaseHelper.CALLS_MIN_MATCH;
         db.beginTransaction();
         try {
-            final String[] args = new String[2];
-            cursor.moveToPosition(-1);
-            while (cursor.moveToNext()) {
-                values.clear();
-                DatabaseUtils.cursorRowToContentValues(cursor, values);
-
-                final String startTime = values.getAsString(Calls.DATE);
-                final String number = values.getAsString(Calls.NUMBER);
+            db.execSQL("DROP TABLE IF EXISTS " + SYNC_STAGING_TABLE);
+            db.execSQL("CREATE TEMP TABLE " + SYNC_STAGING_TABLE + " AS SELECT " + columnList
+                    + " FROM " + Tables.CALLS + " WHERE 0");
+
+            final StringBuilder sb = new StringBuilder();
+            sb.append("INSERT INTO " + SYNC_STAGING_TABLE + "(" + columnList + ") VALUES (");
+            for (int i = 0; i < columns.length; i++) {
+                sb.append("?,");
+            }
+            sb.append("?)");
+            final SQLiteStatement stage = db.compileStatement(sb.toString());
+            try {
+                cursor.moveToPosition(-1);
+                while (cursor.moveToNext()) {
+                    final String startTime = cursor.getString(dateIndex);
+                    final String number = cursor.getString(numberIndex);
 
-                if (startTime == null || number == null) {
-                    continue;
-                }
+                    if (startTime == null || number == null) {
+                        continue;
+                    }
 
-                if (cursor.isLast()) {
-                    try {
-                        latestTimestamp = Long.valueOf(startTime);
-                    } catch (NumberFormatException e) {
-                        Log.e(TAG, "Call log entry does not contain valid start time: "
-                                + startTime);
+                    if (cursor.isLast()) {
+                        try {
+                            latestTimestamp = Long.valueOf(startTime);
+                        } catch (NumberFormatException e) {
+                            Log.e(TAG, "Call log entry does not contain valid start time: "
+                                    + startTime);
+                        }
                     }
-                }
 
-                // Avoid duplicating an already existing entry (which is uniquely identified by
-                // the number, and the start time)
-                args[0] = startTime;
-                args[1] = number;
-                if (DatabaseUtils.queryNumEntries(db, Tables.CALLS,
-                        Calls.DATE + " = ? AND " + Calls.NUMBER + " = ?", args) > 0) {
-                    continue;
+                    stage.clearBindings();
+                    for (int i = 0; i < columns.length; i++) {
+                        bindCursorValue(stage, i + 1, cursor, i);
+                    }
+                    final String minMatch = CallLogDatabaseHelper.getMinMatch(number);
+                    if (minMatch != null) {
+                        stage.bindString(columns.length + 1, minMatch);
+                    }
+                    stage.executeInsert();
                 }
-
-                db.insert(Tables.CALLS, null, values);
+            } finally {
+                stage.close();
             }
 
+            // Copy the staged entries that are neither already in the call log, nor repeated
+            // earlier in the cursor.
+            db.execSQL("INSERT INTO " + Tables.CALLS + "(" + columnList + ")"
+                    + " SELECT " + columnList + " FROM " + SYNC_STAGING_TABLE + " AS s"
+                    + " WHERE s.rowid IN (SELECT MIN(rowid) FROM " + SYNC_STAGING_TABLE
+                    + " GROUP BY " + Calls.DATE + "," + Calls.NUMBER + ")"
+                    + " AND NOT EXISTS (SELECT 1 FROM " + Tables.CALLS + " AS c"
+                    + " WHERE c." + Calls.DATE + "=s." + Calls.DATE
+                    + " AND c." + Calls.NUMBER + "=s." + Calls.NUMBER + ")"
+                    + " ORDER BY s.rowid");
+            db.execSQL("DROP TABLE " + SYNC_STAGING_TABLE);
+
             if (latestTimestamp > lastSyncTime) {
                 setLastTimeSynced(latestTimestamp, forShadow);
             }
@@ -739,9 +1064,31 @@ public class CallLogProvider extends ContentProvider {
         } finally {
             db.endTransaction();
         }
+        scheduleCallGroupsRebuildIfNeeded();
         return latestTimestamp;
     }
 
+    private static void bindCursorValue(SQLiteStatement statement, int index, Cursor cursor,
+            int column) {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_NULL:
+                statement.bindNull(index);
+                break;
+            case Cursor.FIELD_TYPE_INTEGER:
+                statement.bindLong(index, cursor.getLong(column));
+                break;
+            case Cursor.FIELD_TYPE_FLOAT:
+                statement.bindDouble(index, cursor.getDouble(column));
+                break;
+            case Cursor.FIELD_TYPE_BLOB:
+                statement.bindBlob(index, cursor.getBlob(column));
+                break;
+            default:
+                statement.bindString(index, cursor.getString(column));
+                break;
+        }
+    }
+
     private static String getLastSyncTimePropertyName(boolean forShadow) {
         return forShadow
                 ? DbProperties.CALL_LOG_LAST_SYNCED_FOR_SHADOW
@@ -780,6 +1127,67 @@ public class CallLogProvider extends ContentProvider {
         mBackgroundHandler.obtainMessage(task, arg).sendToTarget();
     }
 
+    /**
+     * Schedules a rebuild of {@link Tables#CALL_GROUPS} if a write invalidated it.
+     */
+    private void scheduleCallGroupsRebuildIfNeeded() {
+        if (!mDbHelper.areCallGroupsValid()) {
+            scheduleCallGroupsRebuild();
+        }
+    }
+
+    private void scheduleCallGroupsRebuild() {
+        if (!mBackgroundHandler.hasMessages(BACKGROUND_TASK_ENSURE_CALL_GROUPS)) {
+            scheduleBackgroundTask(BACKGROUND_TASK_ENSURE_CALL_GROUPS, null);
+        }
+    }
+
+    /**
+     * Whether the cached contact info of the calls is kept up to date in the background.  The
+     * shadow provider only holds calls until they are copied to the real one, so it doesn't.
+     */
+    protected boolean isContactInfoUpdateEnabled() {
+        return !isShadow();
+    }
+
+    /**
+     * Schedules an update of the cached contact info of the calls that need it, coalescing it
+     * with any update that is already scheduled.
+     *
+     * @param invalidate Whether contacts have changed, so the calls they affect need it.
+     */
+    private void scheduleContactInfoUpdate(boolean invalidate) {
+        if (!isContactInfoUpdateEnabled()) {
+            return;
+        }
+        if (invalidate) {
+            mBackgroundHandler.removeMessages(BACKGROUND_TASK_UPDATE_CONTACT_INFO);
+            mBackgroundHandler.removeMessages(BACKGROUND_TASK_INVALIDATE_CONTACT_INFO);
+            mBackgroundHandler.sendEmptyMessageDelayed(BACKGROUND_TASK_INVALIDATE_CONTACT_INFO,
+                    CONTACT_INFO_UPDATE_DELAY_MS);
+        } else if (!mBackgroundHandler.hasMessages(BACKGROUND_TASK_INVALIDATE_CONTACT_INFO)) {
+            mBackgroundHandler.removeMessages(BACKGROUND_TASK_UPDATE_CONTACT_INFO);
+            mBackgroundHandler.sendEmptyMessageDelayed(BACKGROUND_TASK_UPDATE_CONTACT_INFO,
+                    CONTACT_INFO_UPDATE_DELAY_MS);
+        }
+    }
+
+    /**
+     * Brings the cached contact info of the calls up to date.
+     *
+     * @param invalidate Whether contacts have changed, so the calls they can affect need to be
+     *     looked up again.
+     */
+    @VisibleForTesting
+    void updateContactInfo(boolean invalidate) {
+        if (invalidate) {
+            mContactInfoUpdater.invalidateChanged();
+        }
+        if (mContactInfoUpdater.update()) {
+            getContext().getContentResolver().notifyChange(Calls.CONTENT_URI, null, false);
+        }
+    }
+
     private void performBackgroundTask(int task, Object arg) {
         if (task == BACKGROUND_TASK_INITIALIZE) {
             try {
@@ -790,6 +1198,14 @@ public class CallLogProvider extends ContentProvider {
             }
         } else if (task == BACKGROUND_TASK_ADJUST_PHONE_ACCOUNT) {
             adjustForNewPhoneAccountInternal((PhoneAccountHandle) arg);
+        } else if (task == BACKGROUND_TASK_UPDATE_CONTACT_INFO) {
+            updateContactInfo(false);
+        } else if (task == BACKGROUND_TASK_INVALIDATE_CONTACT_INFO) {
+            updateContactInfo(true);
+        } else if (task == BACKGROUND_TASK_ENSURE_CALL_GROUPS) {
+            if (mDbHelper.ensureCallGroups()) {
+                getContext().getContentResolver().notifyChange(Calls.CONTENT_URI, null, false);
+            }
         }
     }
 
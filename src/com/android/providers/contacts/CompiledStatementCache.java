@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the statements compiled for a database, keyed by their SQL, so that the hot write paths
+ * of {@link ContactsDatabaseHelper} and the data row handlers compile each statement once rather
+ * than once per row.  The least recently used statement is dropped when there are more than
+ * {@link #MAX_SIZE}.
+ * <p>
+ * The statements are shared, so they need to be bound and executed before anything else is done
+ * with the cache, as was the case for the lazily compiled statements this replaces.  A caller
+ * may still be holding the statement that gets dropped (e.g. if it gets other statements
+ * between binding and executing it, or another thread fills the cache meanwhile), so dropped
+ * statements are not closed: a statement only holds its SQL and bindings, and the prepared
+ * statement lives in the cache of the database connection, so nothing is leaked.
+ */
+public class CompiledStatementCache {
+
+    @VisibleForTesting
+    static final int MAX_SIZE = 64;
+
+    private final SQLiteDatabase mDb;
+    private final int mMaxSize;
+
+    private final LinkedHashMap<String, SQLiteStatement> mStatements =
+            new LinkedHashMap<String, SQLiteStatement>(16, 0.75f, true /* accessOrder */) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+                    if (size() <= mMaxSize) {
+                        return false;
+                    }
+                    mEvictionCount++;
+                    return true;
+                }
+            };
+
+    private long mCompileCount;
+    private long mHitCount;
+    private long mEvictionCount;
+
+    public CompiledStatementCache(SQLiteDatabase db) {
+        this(db, MAX_SIZE);
+    }
+
+    @VisibleForTesting
+    CompiledStatementCache(SQLiteDatabase db, int maxSize) {
+        mDb = db;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Returns the compiled statement for the given SQL, compiling it if it isn't in the cache.
+     * The statement keeps the bindings of its previous use, so all the arguments must be bound.
+     */
+    public synchronized SQLiteStatement get(String sql) {
+        SQLiteStatement statement = mStatements.get(sql);
+        if (statement != null) {
+            mHitCount++;
+            return statement;
+        }
+        statement = mDb.compileStatement(sql);
+        mCompileCount++;
+        mStatements.put(sql, statement);
+        return statement;
+    }
+
+    /**
+     * Closes all the cached statements.  Only called when the database is being replaced, so
+     * none of them can be in use.
+     */
+    public synchronized void clear() {
+        for (SQLiteStatement statement : mStatements.values()) {
+            statement.close();
+        }
+        mStatements.clear();
+    }
+
+    @VisibleForTesting
+    synchronized long getCompileCount() {
+        return mCompileCount;
+    }
+
+    @VisibleForTesting
+    synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.printf("  Compiled statements: cached=%d  compiled=%d  reused=%d  evicted=%d\n",
+                mStatements.size(), mCompileCount, mHitCount, mEvictionCount);
+    }
+}
@@ -24,6 +24,7 @@ import android.provider.ContactsContract.FullNameStyle;
 import android.provider.ContactsContract.PhoneticNameStyle;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
 
 import com.android.providers.contacts.HanziToPinyin.Token;
 
@@ -392,6 +393,7 @@ public class ContactLocaleUtils {
 
         private static boolean mInitializedTransliterator;
         private static Transliterator mJapaneseTransliterator;
+        private static TransliterationCache mJapaneseTransliterationCache;
 
         private static Transliterator getJapaneseTransliterator() {
             synchronized(JapaneseContactUtils.class) {
@@ -406,17 +408,57 @@ public class ContactLocaleUtils {
                                 + " is missing");
                     }
                     mJapaneseTransliterator = t;
+                    if (t != null) {
+                        mJapaneseTransliterationCache = new TransliterationCache(t);
+                    }
                 }
                 return mJapaneseTransliterator;
             }
         }
 
+        /**
+         * Returns whether the romaji of a character depends on the characters around it: small
+         * kana (e.g. "kya", doubled consonants), the syllabic n ("n'" before a vowel), the
+         * prolonged sound and iteration marks, combining marks and half-width katakana.
+         */
+        private static boolean isContextSensitive(char c) {
+            switch (c) {
+                case '\u3041': case '\u3043': case '\u3045': case '\u3047': case '\u3049':
+                case '\u3063': case '\u3083': case '\u3085': case '\u3087': case '\u308e':
+                case '\u3093': case '\u3095': case '\u3096':
+                case '\u30a1': case '\u30a3': case '\u30a5': case '\u30a7': case '\u30a9':
+                case '\u30c3': case '\u30e3': case '\u30e5': case '\u30e7': case '\u30ee':
+                case '\u30f3': case '\u30f5': case '\u30f6': case '\u30fc':
+                    return true;
+            }
+            return (c >= '\u3099' && c <= '\u309e')      // Sound marks, hiragana iteration
+                    || (c >= '\u30fd' && c <= '\u30fe')  // Katakana iteration marks
+                    || (c >= '\u31f0' && c <= '\u31ff')  // Small katakana extensions
+                    || (c >= '\uff61' && c <= '\uff9f')  // Half-width katakana
+                    || Character.isSurrogate(c)
+                    || Character.getType(c) == Character.NON_SPACING_MARK;
+        }
+
+        /**
+         * Transliterates the name to romaji, one character at a time through the cache unless
+         * a character needs to be transliterated along with its neighbours.
+         */
+        private static String transliterateToRomaji(Transliterator t, String name) {
+            final int length = name.length();
+            for (int i = 0; i < length; i++) {
+                if (isContextSensitive(name.charAt(i))) {
+                    return t.transliterate(name);
+                }
+            }
+            return mJapaneseTransliterationCache.transliterate(name);
+        }
+
         public static Iterator<String> getRomajiNameLookupKeys(String name) {
             final Transliterator t = getJapaneseTransliterator();
             if (t == null) {
                 return null;
             }
-            final String romajiName = t.transliterate(name);
+            final String romajiName = transliterateToRomaji(t, name);
             if (TextUtils.isEmpty(romajiName) ||
                     TextUtils.equals(name, romajiName)) {
                 return null;
@@ -492,11 +534,39 @@ public class ContactLocaleUtils {
         }
     }
 
+    /**
+     * The phonebook bucket and label a name goes into.
+     */
+    public static final class BucketInfo {
+        public final int bucketIndex;
+        public final String bucketLabel;
+
+        BucketInfo(int bucketIndex, String bucketLabel) {
+            this.bucketIndex = bucketIndex;
+            this.bucketLabel = bucketLabel;
+        }
+    }
+
+    /**
+     * Number of names whose {@link BucketInfo} is remembered.  Bucketing a name goes through
+     * the AlphabeticIndex (and the pinyin transliterator for Chinese), which adds up when the
+     * sort keys of all raw contacts are rebuilt after a locale change.
+     */
+    @VisibleForTesting
+    static final int BUCKET_CACHE_SIZE = 1000;
+
     private static ContactLocaleUtils sSingleton;
 
     private final LocaleSet mLocales;
     private final ContactLocaleUtilsBase mUtils;
 
+    /**
+     * Keyed by name.  Belongs to this instance, so {@link #setLocales} drops it along with the
+     * buckets it was computed for.
+     */
+    private final LruCache<String, BucketInfo> mBucketCache =
+            new LruCache<String, BucketInfo>(BUCKET_CACHE_SIZE);
+
     private ContactLocaleUtils(LocaleSet locales) {
         if (locales == null) {
             mLocales = LocaleSet.newDefault();
@@ -568,6 +638,24 @@ public class ContactLocaleUtils {
         return getBucketLabel(getBucketIndex(name));
     }
 
+    /**
+     * Returns the bucket index and bucket label of a name.  Empty names go into the phone number
+     * bucket.  The results are cached for the current locales.
+     */
+    public BucketInfo getBucketInfo(String name) {
+        if (TextUtils.isEmpty(name)) {
+            final int bucketIndex = getNumberBucketIndex();
+            return new BucketInfo(bucketIndex, getBucketLabel(bucketIndex));
+        }
+        BucketInfo info = mBucketCache.get(name);
+        if (info == null) {
+            final int bucketIndex = getBucketIndex(name);
+            info = new BucketInfo(bucketIndex, getBucketLabel(bucketIndex));
+            mBucketCache.put(name, info);
+        }
+        return info;
+    }
+
     public ArrayList<String> getLabels() {
         return mUtils.getLabels();
     }
@@ -76,7 +76,7 @@ public class ContactLookupKey {
         lookupKey.append(getAccountHashCode(accountTypeWithDataSet, accountName));
         if (sourceId == null) {
             lookupKey.append('r').append(rawContactId).append('-').append(
-                    NameNormalizer.normalize(displayName));
+                    NameNormalizer.normalizeToHex(displayName));
         } else {
             int pos = lookupKey.length();
             lookupKey.append('i');
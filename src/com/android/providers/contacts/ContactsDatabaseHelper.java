@@ -85,7 +85,6 @@ import android.util.Base64;
 import android.util.Log;
 
 import com.android.common.content.SyncStateContentProviderHelper;
-import com.android.providers.contacts.aggregation.util.CommonNicknameCache;
 import com.android.providers.contacts.database.ContactsTableUtil;
 import com.android.providers.contacts.database.DeletedContactsTableUtil;
 import com.android.providers.contacts.database.MoreDatabaseUtils;
@@ -93,8 +92,10 @@ import com.android.providers.contacts.util.NeededForTesting;
 
 import libcore.icu.ICU;
 
+import java.io.PrintWriter;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
 import java.util.Locale;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -125,7 +126,13 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
      *   1100-1199 N
      * </pre>
      */
-    static final int DATABASE_VERSION = 1111;
+    static final int DATABASE_VERSION = 1113;
+
+    /**
+     * Number of raw contacts updated per transaction when the locale changes.
+     */
+    @VisibleForTesting
+    static final int LOCALE_CHANGE_BATCH_SIZE = 200;
 
     public interface Tables {
         public static final String CONTACTS = "contacts";
@@ -151,6 +158,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         public static final String DIRECTORIES = "directories";
         public static final String DEFAULT_DIRECTORY = "default_directory";
         public static final String SEARCH_INDEX = "search_index";
+        public static final String SEARCH_NGRAM = "search_ngram";
         public static final String METADATA_SYNC = "metadata_sync";
         public static final String METADATA_SYNC_STATE = "metadata_sync_state";
         public static final String PRE_AUTHORIZED_URIS = "pre_authorized_uris";
@@ -335,6 +343,12 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         String ICU_VERSION = "icu_version";
         String LOCALE = "locale";
         String DATABASE_TIME_CREATED = "database_time_created";
+        String PHOTO_CLEANUP_CURSOR = "photo_cleanup_cursor";
+        String PHOTO_CLEANUP_DATA_CURSOR = "photo_cleanup_data_cursor";
+        String PHOTO_STORE_INDEX_STAMP = "photo_store_index_stamp";
+        String NAME_KEY_FORMAT = "name_key_format";
+        String LOCALE_CHANGE_TARGET = "locale_change_target";
+        String LOCALE_CHANGE_CHECKPOINT = "locale_change_checkpoint";
     }
 
     public interface Clauses {
@@ -692,6 +706,11 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         public static final String TOKENS = "tokens";
     }
 
+    public interface SearchNgramColumns {
+        public static final String NGRAM = "ngram";
+        public static final String CONTACT_ID = "contact_id";
+    }
+
     public interface PreAuthorizedUris {
         public static final String _ID = BaseColumns._ID;
         public static final String URI = "uri";
@@ -751,6 +770,13 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         static final String CONCRETE_ACCOUNT_ID = Tables.METADATA_SYNC_STATE + "." + ACCOUNT_ID;
     }
 
+    /**
+     * Appended to the data queries used to rebuild the name lookup table, to restrict them to
+     * a range of raw contacts.
+     */
+    private static final String RAW_CONTACT_ID_RANGE_SELECTION =
+            " AND " + Data.RAW_CONTACT_ID + " BETWEEN ? AND ?";
+
     private  interface EmailQuery {
         public static final String TABLE = Tables.DATA;
 
@@ -925,35 +951,6 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
-    private class StructuredNameLookupBuilder extends NameLookupBuilder {
-        // NOTE(gilad): Is in intentional that we don't use the declaration on L960?
-        private final SQLiteStatement mNameLookupInsert;
-        private final CommonNicknameCache mCommonNicknameCache;
-
-        public StructuredNameLookupBuilder(NameSplitter splitter,
-                CommonNicknameCache commonNicknameCache, SQLiteStatement nameLookupInsert) {
-
-            super(splitter);
-            this.mCommonNicknameCache = commonNicknameCache;
-            this.mNameLookupInsert = nameLookupInsert;
-        }
-
-        @Override
-        protected void insertNameLookup(
-                long rawContactId, long dataId, int lookupType, String name) {
-
-            if (!TextUtils.isEmpty(name)) {
-                ContactsDatabaseHelper.this.insertNormalizedNameLookup(
-                        mNameLookupInsert, rawContactId, dataId, lookupType, name);
-            }
-        }
-
-        @Override
-        protected String[] getCommonNicknameClusters(String normalizedName) {
-            return mCommonNicknameCache.getCommonNicknameClusters(normalizedName);
-        }
-    }
-
     private static final String TAG = "ContactsDatabaseHelper";
 
     private static final String DATABASE_NAME = "contacts2.db";
@@ -983,31 +980,13 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
     private long mMimeTypeIdStructuredName;
     private long mMimeTypeIdStructuredPostal;
 
-    /** Compiled statements for querying and inserting mappings */
-    private SQLiteStatement mContactIdQuery;
-    private SQLiteStatement mAggregationModeQuery;
-    private SQLiteStatement mDataMimetypeQuery;
-
-    /** Precompiled SQL statement for setting a data record to the primary. */
-    private SQLiteStatement mSetPrimaryStatement;
-    /** Precompiled SQL statement for setting a data record to the super primary. */
-    private SQLiteStatement mSetSuperPrimaryStatement;
-    /** Precompiled SQL statement for clearing super primary of a single record. */
-    private SQLiteStatement mClearSuperPrimaryStatement;
-    /** Precompiled SQL statement for updating a contact display name */
-    private SQLiteStatement mRawContactDisplayNameUpdate;
-
-    private SQLiteStatement mNameLookupInsert;
-    private SQLiteStatement mNameLookupDelete;
-    private SQLiteStatement mStatusUpdateAutoTimestamp;
-    private SQLiteStatement mStatusUpdateInsert;
-    private SQLiteStatement mStatusUpdateReplace;
-    private SQLiteStatement mStatusAttributionUpdate;
-    private SQLiteStatement mStatusUpdateDelete;
-    private SQLiteStatement mResetNameVerifiedForOtherRawContacts;
-    private SQLiteStatement mContactInDefaultDirectoryQuery;
-    private SQLiteStatement mMetadataSyncInsert;
-    private SQLiteStatement mMetadataSyncUpdate;
+    /** Compiled statements of the hot paths, shared with the data row handlers. */
+    private CompiledStatementCache mStatementCache;
+
+    /** Buffers the lookup table changes of the transaction in progress on each thread. */
+    private final ThreadLocal<LookupTableWriter> mLookupBatch =
+            new ThreadLocal<LookupTableWriter>();
+
 
     private StringBuilder mSb = new StringBuilder();
 
@@ -1065,22 +1044,12 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
      * @param db target database
      */
     private void refreshDatabaseCaches(SQLiteDatabase db) {
-        mStatusUpdateDelete = null;
-        mStatusUpdateReplace = null;
-        mStatusUpdateInsert = null;
-        mStatusUpdateAutoTimestamp = null;
-        mStatusAttributionUpdate = null;
-        mResetNameVerifiedForOtherRawContacts = null;
-        mRawContactDisplayNameUpdate = null;
-        mSetPrimaryStatement = null;
-        mClearSuperPrimaryStatement = null;
-        mSetSuperPrimaryStatement = null;
-        mNameLookupInsert = null;
-        mNameLookupDelete = null;
-        mDataMimetypeQuery = null;
-        mContactIdQuery = null;
-        mAggregationModeQuery = null;
-        mContactInDefaultDirectoryQuery = null;
+        synchronized (this) {
+            if (mStatementCache != null) {
+                mStatementCache.clear();
+            }
+            mStatementCache = new CompiledStatementCache(db);
+        }
 
         initializeCache(db);
     }
@@ -1192,6 +1161,37 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                 + " BEGIN "
                 + replaceAggregatePresenceSql
                 + " END");
+
+        upgradeNameKeyFormat(db);
+    }
+
+    /**
+     * Rewrites the normalized names stored in the name and nickname lookup tables if they
+     * aren't in the key format used by {@link NameNormalizer}, which is chosen at boot (see
+     * {@link NameNormalizer#KEY_FORMAT_COMPACT}).  Lookup keys and the search index always use
+     * hex, and don't need to change.
+     */
+    private void upgradeNameKeyFormat(SQLiteDatabase db) {
+        final String format = String.valueOf(NameNormalizer.getKeyFormat());
+        final String dbFormat = PropertyUtils.getProperty(db, DbProperties.NAME_KEY_FORMAT,
+                String.valueOf(NameNormalizer.KEY_FORMAT_HEX));
+        if (format.equals(dbFormat)) {
+            return;
+        }
+
+        Log.i(TAG, "Upgrading name key format from " + dbFormat + " to " + format);
+        final long start = SystemClock.elapsedRealtime();
+        db.beginTransaction();
+        try {
+            loadNicknameLookupTable(db);
+            rebuildNameLookup(db, true);
+            PropertyUtils.setProperty(db, DbProperties.NAME_KEY_FORMAT, format);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Log.i(TAG, "Name key format upgrade completed in "
+                + (SystemClock.elapsedRealtime() - start) + "ms");
     }
 
     @Override
@@ -1206,6 +1206,8 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
 
         PropertyUtils.setProperty(db, DbProperties.DATABASE_TIME_CREATED, String.valueOf(
                 System.currentTimeMillis()));
+        PropertyUtils.setProperty(db, DbProperties.NAME_KEY_FORMAT,
+                String.valueOf(NameNormalizer.getKeyFormat()));
 
         db.execSQL("CREATE TABLE " + Tables.ACCOUNTS + " (" +
                 AccountsColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
@@ -1407,6 +1409,8 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                 Data.HASH_ID +
         ");");
 
+        createDataPhotoFileIdIndex(db);
+
 
         // Private phone numbers table used for lookup
         db.execSQL("CREATE TABLE " + Tables.PHONE_LOOKUP + " (" +
@@ -1656,6 +1660,17 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                     + SearchIndexColumns.NAME + " TEXT, "
                     + SearchIndexColumns.TOKENS + " TEXT"
                     + ")");
+
+            // The n-grams of the names in the search index, see NameNgramIndex.
+            db.execSQL("DROP TABLE IF EXISTS " + Tables.SEARCH_NGRAM);
+            db.execSQL("CREATE TABLE " + Tables.SEARCH_NGRAM + " ("
+                    + SearchNgramColumns.NGRAM + " TEXT NOT NULL,"
+                    + SearchNgramColumns.CONTACT_ID + " INTEGER REFERENCES contacts(_id) NOT NULL,"
+                    + " UNIQUE(" + SearchNgramColumns.NGRAM + ", "
+                    + SearchNgramColumns.CONTACT_ID + ")"
+                    + ")");
+            db.execSQL("CREATE INDEX search_ngram_contact_id_index ON " + Tables.SEARCH_NGRAM
+                    + " (" + SearchNgramColumns.CONTACT_ID + ")");
             if (rebuildSqliteStats) {
                 updateSqliteStats(db);
             }
@@ -2997,6 +3012,17 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
             oldVersion = 1111;
         }
 
+        if (isUpgradeRequired(oldVersion, newVersion, 1112)) {
+            // Creates the n-gram table of the names in the search index.
+            upgradeSearchIndex = true;
+            oldVersion = 1112;
+        }
+
+        if (isUpgradeRequired(oldVersion, newVersion, 1113)) {
+            upgradeToVersion1113(db);
+            oldVersion = 1113;
+        }
+
         // We extracted "calls" and "voicemail_status" at this point, but we can't remove them here
         // yet, until CallLogDatabaseHelper moves the data.
 
@@ -3614,28 +3640,119 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
      * Regenerates all locale-sensitive data if needed:
      * nickname_lookup, name_lookup and sort keys. Invalidates the fast
      * scrolling index cache.
+     * <p>
+     * The raw contacts are updated in batches of {@link #LOCALE_CHANGE_BATCH_SIZE} in ID order,
+     * each in its own transaction, so that other writers only wait for one batch at a time and
+     * readers keep seeing the old data of a raw contact until its batch is committed.  Each
+     * batch records the last raw contact it updated in
+     * {@link DbProperties#LOCALE_CHANGE_CHECKPOINT}, so that a change interrupted by the process
+     * dying picks up from there the next time it is started for the same locales.
+     * <p>
+     * The sort key columns are collated with the phonebook collator, which follows the locale,
+     * so their indexes are out of order until they are rebuilt in the last transaction.
      */
     public void setLocale(LocaleSet locales) {
         if (!needsToUpdateLocaleData(locales)) {
             return;
         }
-        Log.i(TAG, "Switching to locale " + locales
-                + " (ICU v" + ICU.getIcuVersion() + ")");
 
         final long start = SystemClock.elapsedRealtime();
         SQLiteDatabase db = getWritableDatabase();
         db.setLocale(locales.getPrimaryLocale());
-        db.beginTransaction();
+
+        // The ICU version is part of the target, as it also affects the locale data.
+        final String target = locales.toString() + "/" + ICU.getIcuVersion();
+        long checkpoint;
+        if (target.equals(getProperty(DbProperties.LOCALE_CHANGE_TARGET, ""))) {
+            checkpoint = Long.parseLong(
+                    getProperty(DbProperties.LOCALE_CHANGE_CHECKPOINT, "0"));
+            Log.i(TAG, "Resuming switch to locale " + locales
+                    + " (ICU v" + ICU.getIcuVersion() + ") after raw contact " + checkpoint);
+        } else {
+            Log.i(TAG, "Switching to locale " + locales
+                    + " (ICU v" + ICU.getIcuVersion() + ")");
+            checkpoint = 0;
+            db.beginTransaction();
+            try {
+                loadNicknameLookupTable(db);
+                PropertyUtils.setProperty(db, DbProperties.LOCALE_CHANGE_TARGET, target);
+                PropertyUtils.setProperty(db, DbProperties.LOCALE_CHANGE_CHECKPOINT, "0");
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+
+        final NameLookupRebuilder nameLookupRebuilder = new NameLookupRebuilder(this, db);
         try {
-            rebuildLocaleData(db, locales, true);
-            db.setTransactionSuccessful();
+            while (checkpoint >= 0) {
+                db.beginTransaction();
+                try {
+                    checkpoint = rebuildLocaleDataForBatch(db, nameLookupRebuilder, checkpoint);
+                    if (checkpoint >= 0) {
+                        PropertyUtils.setProperty(db, DbProperties.LOCALE_CHANGE_CHECKPOINT,
+                                String.valueOf(checkpoint));
+                    } else {
+                        db.execSQL("REINDEX raw_contact_sort_key1_index");
+                        db.execSQL("REINDEX raw_contact_sort_key2_index");
+                        rebuildDefaultGroupTitles(db, locales.getPrimaryLocale());
+                        updateSqliteStats(db);
+                        PropertyUtils.setProperty(db, DbProperties.ICU_VERSION,
+                                ICU.getIcuVersion());
+                        PropertyUtils.setProperty(db, DbProperties.LOCALE, locales.toString());
+                        PropertyUtils.setProperty(db, DbProperties.LOCALE_CHANGE_TARGET, "");
+                        PropertyUtils.setProperty(db, DbProperties.LOCALE_CHANGE_CHECKPOINT, "");
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                // The buckets have changed for the contacts in the batch.
+                FastScrollingIndexCache.getInstance(mContext).invalidate();
+            }
         } finally {
-            db.endTransaction();
+            nameLookupRebuilder.close();
         }
 
         Log.i(TAG, "Locale change completed in " + (SystemClock.elapsedRealtime() - start) + "ms");
     }
 
+    /**
+     * Rebuilds the name lookup rows and the sort keys of the next
+     * {@link #LOCALE_CHANGE_BATCH_SIZE} raw contacts after the given one.
+     *
+     * @return The ID of the last raw contact updated, or -1 if there were none left.
+     */
+    private long rebuildLocaleDataForBatch(SQLiteDatabase db,
+            NameLookupRebuilder nameLookupRebuilder, long afterRawContactId) {
+        final long[] rawContactIds = new long[LOCALE_CHANGE_BATCH_SIZE];
+        int count = 0;
+        Cursor cursor = db.query(Tables.RAW_CONTACTS, new String[] {RawContacts._ID},
+                RawContacts._ID + ">?", new String[] {String.valueOf(afterRawContactId)},
+                null, null, RawContacts._ID, String.valueOf(LOCALE_CHANGE_BATCH_SIZE));
+        try {
+            while (cursor.moveToNext()) {
+                rawContactIds[count++] = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        if (count == 0) {
+            return -1;
+        }
+
+        final long firstRawContactId = rawContactIds[0];
+        final long lastRawContactId = rawContactIds[count - 1];
+        db.execSQL("DELETE FROM " + Tables.NAME_LOOKUP
+                + " WHERE " + NameLookupColumns.RAW_CONTACT_ID
+                + " BETWEEN " + firstRawContactId + " AND " + lastRawContactId);
+        insertNameLookup(db, nameLookupRebuilder, firstRawContactId, lastRawContactId);
+        for (int i = 0; i < count; i++) {
+            updateRawContactDisplayName(db, rawContactIds[i]);
+        }
+        return lastRawContactId;
+    }
+
     /**
      * Regenerates sort keys for all contacts.
      */
@@ -3654,43 +3771,45 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
 
     private void insertNameLookup(SQLiteDatabase db) {
         db.execSQL("DELETE FROM " + Tables.NAME_LOOKUP);
-
-        SQLiteStatement nameLookupInsert = db.compileStatement(
-                "INSERT OR IGNORE INTO " + Tables.NAME_LOOKUP + "("
-                        + NameLookupColumns.RAW_CONTACT_ID + ","
-                        + NameLookupColumns.DATA_ID + ","
-                        + NameLookupColumns.NAME_TYPE + ","
-                        + NameLookupColumns.NORMALIZED_NAME +
-                ") VALUES (?,?,?,?)");
-
+        final NameLookupRebuilder nameLookupRebuilder = new NameLookupRebuilder(this, db);
         try {
-            insertStructuredNameLookup(db, nameLookupInsert);
-            insertEmailLookup(db, nameLookupInsert);
-            insertNicknameLookup(db, nameLookupInsert);
+            insertNameLookup(db, nameLookupRebuilder, 0, Long.MAX_VALUE);
         } finally {
-            nameLookupInsert.close();
+            nameLookupRebuilder.close();
         }
     }
 
     /**
-     * Inserts name lookup rows for all structured names in the database.
+     * Inserts the name lookup rows of the raw contacts in the given range of IDs, which must not
+     * have any yet.  The names are normalized on the worker threads of the
+     * {@link NameLookupRebuilder}.
      */
-    private void insertStructuredNameLookup(SQLiteDatabase db, SQLiteStatement nameLookupInsert) {
-        NameSplitter nameSplitter = createNameSplitter();
-        NameLookupBuilder nameLookupBuilder = new StructuredNameLookupBuilder(nameSplitter,
-                new CommonNicknameCache(db), nameLookupInsert);
+    private void insertNameLookup(SQLiteDatabase db, NameLookupRebuilder nameLookupRebuilder,
+            long firstRawContactId, long lastRawContactId) {
+        final String[] args = new String[] {
+                null, String.valueOf(firstRawContactId), String.valueOf(lastRawContactId)};
+        insertStructuredNameLookup(db, nameLookupRebuilder, args);
+        insertEmailLookup(db, nameLookupRebuilder, args);
+        insertNicknameLookup(db, nameLookupRebuilder, args);
+        nameLookupRebuilder.flush();
+    }
+
+    /**
+     * Inserts name lookup rows for the structured names of a range of raw contacts.
+     */
+    private void insertStructuredNameLookup(SQLiteDatabase db,
+            NameLookupRebuilder nameLookupRebuilder, String[] args) {
         final long mimeTypeId = lookupMimeTypeId(db, StructuredName.CONTENT_ITEM_TYPE);
+        args[0] = String.valueOf(mimeTypeId);
         Cursor cursor = db.query(StructuredNameQuery.TABLE, StructuredNameQuery.COLUMNS,
-                StructuredNameQuery.SELECTION, new String[] {String.valueOf(mimeTypeId)},
+                StructuredNameQuery.SELECTION + RAW_CONTACT_ID_RANGE_SELECTION, args,
                 null, null, null);
         try {
             while (cursor.moveToNext()) {
                 long dataId = cursor.getLong(StructuredNameQuery.ID);
                 long rawContactId = cursor.getLong(StructuredNameQuery.RAW_CONTACT_ID);
                 String name = cursor.getString(StructuredNameQuery.DISPLAY_NAME);
-                int fullNameStyle = nameSplitter.guessFullNameStyle(name);
-                fullNameStyle = nameSplitter.getAdjustedFullNameStyle(fullNameStyle);
-                nameLookupBuilder.insertNameLookup(rawContactId, dataId, name, fullNameStyle);
+                nameLookupRebuilder.addStructuredName(rawContactId, dataId, name);
             }
         } finally {
             cursor.close();
@@ -3698,12 +3817,14 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
     }
 
     /**
-     * Inserts name lookup rows for all email addresses in the database.
+     * Inserts name lookup rows for the email addresses of a range of raw contacts.
      */
-    private void insertEmailLookup(SQLiteDatabase db, SQLiteStatement nameLookupInsert) {
+    private void insertEmailLookup(SQLiteDatabase db, NameLookupRebuilder nameLookupRebuilder,
+            String[] args) {
         final long mimeTypeId = lookupMimeTypeId(db, Email.CONTENT_ITEM_TYPE);
+        args[0] = String.valueOf(mimeTypeId);
         Cursor cursor = db.query(EmailQuery.TABLE, EmailQuery.COLUMNS,
-                EmailQuery.SELECTION, new String[] {String.valueOf(mimeTypeId)},
+                EmailQuery.SELECTION + RAW_CONTACT_ID_RANGE_SELECTION, args,
                 null, null, null);
         try {
             while (cursor.moveToNext()) {
@@ -3711,8 +3832,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
                 long rawContactId = cursor.getLong(EmailQuery.RAW_CONTACT_ID);
                 String address = cursor.getString(EmailQuery.ADDRESS);
                 address = extractHandleFromEmailAddress(address);
-                insertNameLookup(nameLookupInsert, rawContactId, dataId,
-                        NameLookupType.EMAIL_BASED_NICKNAME, address);
+                nameLookupRebuilder.addEmail(rawContactId, dataId, address);
             }
         } finally {
             cursor.close();
@@ -3720,20 +3840,21 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
     }
 
     /**
-     * Inserts name lookup rows for all nicknames in the database.
+     * Inserts name lookup rows for the nicknames of a range of raw contacts.
      */
-    private void insertNicknameLookup(SQLiteDatabase db, SQLiteStatement nameLookupInsert) {
+    private void insertNicknameLookup(SQLiteDatabase db, NameLookupRebuilder nameLookupRebuilder,
+            String[] args) {
         final long mimeTypeId = lookupMimeTypeId(db, Nickname.CONTENT_ITEM_TYPE);
+        args[0] = String.valueOf(mimeTypeId);
         Cursor cursor = db.query(NicknameQuery.TABLE, NicknameQuery.COLUMNS,
-                NicknameQuery.SELECTION, new String[]{String.valueOf(mimeTypeId)},
+                NicknameQuery.SELECTION + RAW_CONTACT_ID_RANGE_SELECTION, args,
                 null, null, null);
         try {
             while (cursor.moveToNext()) {
                 long dataId = cursor.getLong(NicknameQuery.ID);
                 long rawContactId = cursor.getLong(NicknameQuery.RAW_CONTACT_ID);
                 String nickname = cursor.getString(NicknameQuery.NAME);
-                insertNameLookup(nameLookupInsert, rawContactId, dataId,
-                        NameLookupType.NICKNAME, nickname);
+                nameLookupRebuilder.addNickname(rawContactId, dataId, nickname);
             }
         } finally {
             cursor.close();
@@ -4674,6 +4795,21 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         FastScrollingIndexCache.getInstance(mContext).invalidate();
     }
 
+    private void upgradeToVersion1113(SQLiteDatabase db) {
+        createDataPhotoFileIdIndex(db);
+    }
+
+    /**
+     * For the photo store cleanup, which looks up the data rows referring to photo files
+     * (Photo.PHOTO_FILE_ID is DATA14).  Only the rows that have a value in the column are
+     * indexed.
+     */
+    private void createDataPhotoFileIdIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS data_photo_file_id_index ON " + Tables.DATA + " (" +
+                Data.DATA14 +
+        ") WHERE " + Data.DATA14 + " IS NOT NULL;");
+    }
+
     /**
      * This method is only used in upgradeToVersion1101 method, and should not be used in other
      * places now. Because data15 is not used to generate hash_id for photo, and the new generating
@@ -4992,6 +5128,7 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DELETE FROM " + Tables.SETTINGS + ";");
         db.execSQL("DELETE FROM " + Tables.DIRECTORIES + ";");
         db.execSQL("DELETE FROM " + Tables.SEARCH_INDEX + ";");
+        db.execSQL("DELETE FROM " + Tables.SEARCH_NGRAM + ";");
         db.execSQL("DELETE FROM " + Tables.DELETED_CONTACTS + ";");
         db.execSQL("DELETE FROM " + Tables.MIMETYPES + ";");
         db.execSQL("DELETE FROM " + Tables.PACKAGES + ";");
@@ -5192,20 +5329,88 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         return DisplayNameSources.UNDEFINED;
     }
 
+    /**
+     * Returns the compiled statement for the given SQL on the writable database, compiling it
+     * only the first time (see {@link CompiledStatementCache}).  All of its arguments need to be
+     * bound before it is executed.
+     */
+    public SQLiteStatement getCompiledStatement(String sql) {
+        return getCompiledStatement(getWritableDatabase(), sql);
+    }
+
+    /**
+     * Same as {@link #getCompiledStatement(String)}, for the code that runs while the database
+     * is being created, upgraded or opened and can't call {@link #getWritableDatabase}.
+     */
+    SQLiteStatement getCompiledStatement(SQLiteDatabase db, String sql) {
+        final CompiledStatementCache cache;
+        synchronized (this) {
+            if (mStatementCache == null) {
+                mStatementCache = new CompiledStatementCache(db);
+            }
+            cache = mStatementCache;
+        }
+        return cache.get(sql);
+    }
+
+    /**
+     * Starts buffering the changes the calling thread makes to the {@link Tables#NAME_LOOKUP}
+     * and {@link Tables#PHONE_LOOKUP} tables, so that they are written together by
+     * {@link #flushLookupBatch} rather than one row at a time.  Must be called inside a
+     * transaction, which needs to end with {@link #endLookupBatch}.
+     */
+    public void beginLookupBatch() {
+        final LookupTableWriter batch = mLookupBatch.get();
+        if (batch != null) {
+            batch.clear();
+        } else {
+            mLookupBatch.set(new LookupTableWriter(this));
+        }
+    }
+
+    /**
+     * Writes the lookup table changes buffered by the calling thread.  Needs to be called
+     * before reading the lookup tables in the same transaction.
+     */
+    public void flushLookupBatch() {
+        final LookupTableWriter batch = mLookupBatch.get();
+        if (batch != null && !batch.isEmpty()) {
+            batch.flush(getWritableDatabase());
+        }
+    }
+
+    /**
+     * Stops buffering the lookup table changes of the calling thread, writing the ones still
+     * pending if the transaction is being committed.
+     */
+    public void endLookupBatch(boolean commit) {
+        if (commit) {
+            flushLookupBatch();
+        }
+        mLookupBatch.remove();
+    }
+
+    /**
+     * Dumps the statistics of the compiled statement cache.
+     */
+    public synchronized void dumpStatementCache(PrintWriter pw) {
+        if (mStatementCache != null) {
+            mStatementCache.dump(pw);
+        }
+    }
+
     /**
      * Find the mimetype for the given {@link Data#_ID}.
      */
     public String getDataMimeType(long dataId) {
-        if (mDataMimetypeQuery == null) {
-            mDataMimetypeQuery = getWritableDatabase().compileStatement(
-                    "SELECT " + MimetypesColumns.MIMETYPE +
-                    " FROM " + Tables.DATA_JOIN_MIMETYPES +
-                    " WHERE " + Tables.DATA + "." + Data._ID + "=?");
-        }
+        final SQLiteStatement dataMimetypeQuery = getCompiledStatement(
+                "SELECT " + MimetypesColumns.MIMETYPE +
+                " FROM " + Tables.DATA_JOIN_MIMETYPES +
+                " WHERE " + Tables.DATA + "." + Data._ID + "=?");
         try {
             // Try database query to find mimetype
-            DatabaseUtils.bindObjectToProgram(mDataMimetypeQuery, 1, dataId);
-            String mimetype = mDataMimetypeQuery.simpleQueryForString();
+            DatabaseUtils.bindObjectToProgram(dataMimetypeQuery, 1, dataId);
+            String mimetype = dataMimetypeQuery.simpleQueryForString();
             return mimetype;
         } catch (SQLiteDoneException e) {
             // No valid mapping found, so return null
@@ -5383,19 +5588,20 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
             db.execSQL("DELETE FROM " + Tables.SEARCH_INDEX +
                         " WHERE " + SearchIndexColumns.CONTACT_ID + "=CAST(? AS int)",
                     new String[] {contactIdAsString});
+            db.execSQL("DELETE FROM " + Tables.SEARCH_NGRAM +
+                        " WHERE " + SearchNgramColumns.CONTACT_ID + "=CAST(? AS int)",
+                    new String[] {contactIdAsString});
         }
         return true;
     }
 
     public boolean isContactInDefaultDirectory(SQLiteDatabase db, long contactId) {
-        if (mContactInDefaultDirectoryQuery == null) {
-            mContactInDefaultDirectoryQuery = db.compileStatement(
-                    "SELECT EXISTS (" +
-                            "SELECT 1 FROM " + Tables.DEFAULT_DIRECTORY +
-                            " WHERE " + Contacts._ID + "=?)");
-        }
-        mContactInDefaultDirectoryQuery.bindLong(1, contactId);
-        return mContactInDefaultDirectoryQuery.simpleQueryForLong() != 0;
+        final SQLiteStatement contactInDefaultDirectoryQuery = getCompiledStatement(db,
+                "SELECT EXISTS (" +
+                        "SELECT 1 FROM " + Tables.DEFAULT_DIRECTORY +
+                        " WHERE " + Contacts._ID + "=?)");
+        contactInDefaultDirectoryQuery.bindLong(1, contactId);
+        return contactInDefaultDirectoryQuery.simpleQueryForLong() != 0;
     }
 
     /**
@@ -5437,30 +5643,26 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
      * Returns contact ID for the given contact or zero if it is NULL.
      */
     public long getContactId(long rawContactId) {
-        if (mContactIdQuery == null) {
-            mContactIdQuery = getWritableDatabase().compileStatement(
-                    "SELECT " + RawContacts.CONTACT_ID +
-                    " FROM " + Tables.RAW_CONTACTS +
-                    " WHERE " + RawContacts._ID + "=?");
-        }
+        final SQLiteStatement contactIdQuery = getCompiledStatement(
+                "SELECT " + RawContacts.CONTACT_ID +
+                " FROM " + Tables.RAW_CONTACTS +
+                " WHERE " + RawContacts._ID + "=?");
         try {
-            DatabaseUtils.bindObjectToProgram(mContactIdQuery, 1, rawContactId);
-            return mContactIdQuery.simpleQueryForLong();
+            DatabaseUtils.bindObjectToProgram(contactIdQuery, 1, rawContactId);
+            return contactIdQuery.simpleQueryForLong();
         } catch (SQLiteDoneException e) {
             return 0;  // No valid mapping found.
         }
     }
 
     public int getAggregationMode(long rawContactId) {
-        if (mAggregationModeQuery == null) {
-            mAggregationModeQuery = getWritableDatabase().compileStatement(
-                    "SELECT " + RawContacts.AGGREGATION_MODE +
-                    " FROM " + Tables.RAW_CONTACTS +
-                    " WHERE " + RawContacts._ID + "=?");
-        }
+        final SQLiteStatement aggregationModeQuery = getCompiledStatement(
+                "SELECT " + RawContacts.AGGREGATION_MODE +
+                " FROM " + Tables.RAW_CONTACTS +
+                " WHERE " + RawContacts._ID + "=?");
         try {
-            DatabaseUtils.bindObjectToProgram(mAggregationModeQuery, 1, rawContactId);
-            return (int)mAggregationModeQuery.simpleQueryForLong();
+            DatabaseUtils.bindObjectToProgram(aggregationModeQuery, 1, rawContactId);
+            return (int)aggregationModeQuery.simpleQueryForLong();
         } catch (SQLiteDoneException e) {
             return RawContacts.AGGREGATION_MODE_DISABLED;  // No valid row found.
         }
@@ -5512,6 +5714,73 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
         qb.appendWhere(sb.toString());
     }
 
+    /**
+     * Phone lookup of several numbers at once: selects the phone numbers with any of the given
+     * min matches, along with their contacts, as {@code lookup.min_match} and
+     * {@code lookup.normalized_number}.  The caller picks the candidates of each number with
+     * {@link #isPhoneLookupMatch} and {@link #isFallbackPhoneLookupMatch}, which select the
+     * same rows as {@link #buildPhoneLookupAndContactQuery} and
+     * {@link #buildFallbackPhoneLookupAndContactQuery}.
+     * @param qb The query builder.
+     * @param minMatches The min matches of the numbers to search for.
+     */
+    public void buildPhoneLookupCandidatesAndContactQuery(SQLiteQueryBuilder qb,
+            Collection<String> minMatches) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(Tables.RAW_CONTACTS);
+        sb.append(" JOIN " + Views.CONTACTS + " contacts_view"
+                + " ON (contacts_view._id = raw_contacts.contact_id)");
+        sb.append(" JOIN (SELECT " + PhoneLookupColumns.DATA_ID + ","
+                + PhoneLookupColumns.MIN_MATCH + "," + PhoneLookupColumns.NORMALIZED_NUMBER
+                + " FROM " + Tables.PHONE_LOOKUP
+                + " WHERE " + PhoneLookupColumns.MIN_MATCH + " IN (");
+        boolean first = true;
+        for (String minMatch : minMatches) {
+            if (!first) {
+                sb.append(',');
+            }
+            DatabaseUtils.appendEscapedSQLString(sb, minMatch);
+            first = false;
+        }
+        sb.append(")) AS lookup"
+                + " JOIN " + Tables.DATA
+                + " ON (lookup." + PhoneLookupColumns.DATA_ID + "=" + Tables.DATA + "." + Data._ID
+                + " AND " + Tables.DATA + "." + Data.RAW_CONTACT_ID + "=" + Tables.RAW_CONTACTS
+                + "." + RawContacts._ID + ")");
+        qb.setTables(sb.toString());
+    }
+
+    /**
+     * Returns whether the phone number {@code lookupNumber} (normalized, from the phone_lookup
+     * table) is selected by {@link #buildPhoneLookupAndContactQuery} for the given number.
+     */
+    public boolean isPhoneLookupMatch(String normalizedNumber, String numberE164,
+            String lookupNumber) {
+        if (lookupNumber == null) {
+            return false;
+        }
+        final boolean hasNumberE164 = !TextUtils.isEmpty(numberE164);
+        final boolean hasNumber = !TextUtils.isEmpty(normalizedNumber);
+        if (!hasNumberE164 && !hasNumber) {
+            return true;
+        }
+        if (hasNumberE164 && lookupNumber.equals(numberE164)) {
+            return true;
+        }
+        // Same suffix match as appendPhoneLookupSelection(), in either direction.
+        return hasNumber && !mUseStrictPhoneNumberComparison
+                && (normalizedNumber.endsWith(lookupNumber)
+                        || lookupNumber.endsWith(normalizedNumber));
+    }
+
+    /**
+     * Returns whether the phone number {@code dataNumber} is selected by
+     * {@link #buildFallbackPhoneLookupAndContactQuery} for the given number.
+     */
+    public boolean isFallbackPhoneLookupMatch(String number, String dataNumber) {
+        return PhoneNumberUtils.compare(dataNumber, number, mUseStrictPhoneNumberComparison);
+    }
+
     /**
      * Adds query for selecting the contact with the given {@code sipAddress} to the given
      * {@link StringBuilder}.
@@ -5770,87 +6039,77 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
     }
 
     public void deleteStatusUpdate(long dataId) {
-        if (mStatusUpdateDelete == null) {
-            mStatusUpdateDelete = getWritableDatabase().compileStatement(
-                    "DELETE FROM " + Tables.STATUS_UPDATES +
-                    " WHERE " + StatusUpdatesColumns.DATA_ID + "=?");
-        }
-        mStatusUpdateDelete.bindLong(1, dataId);
-        mStatusUpdateDelete.execute();
+        final SQLiteStatement statusUpdateDelete = getCompiledStatement(
+                "DELETE FROM " + Tables.STATUS_UPDATES +
+                " WHERE " + StatusUpdatesColumns.DATA_ID + "=?");
+        statusUpdateDelete.bindLong(1, dataId);
+        statusUpdateDelete.execute();
     }
 
     public void replaceStatusUpdate(Long dataId, long timestamp, String status, String resPackage,
             Integer iconResource, Integer labelResource) {
-        if (mStatusUpdateReplace == null) {
-            mStatusUpdateReplace = getWritableDatabase().compileStatement(
-                    "INSERT OR REPLACE INTO " + Tables.STATUS_UPDATES + "("
-                            + StatusUpdatesColumns.DATA_ID + ", "
-                            + StatusUpdates.STATUS_TIMESTAMP + ","
-                            + StatusUpdates.STATUS + ","
-                            + StatusUpdates.STATUS_RES_PACKAGE + ","
-                            + StatusUpdates.STATUS_ICON + ","
-                            + StatusUpdates.STATUS_LABEL + ")" +
-                    " VALUES (?,?,?,?,?,?)");
-        }
-        mStatusUpdateReplace.bindLong(1, dataId);
-        mStatusUpdateReplace.bindLong(2, timestamp);
-        bindString(mStatusUpdateReplace, 3, status);
-        bindString(mStatusUpdateReplace, 4, resPackage);
-        bindLong(mStatusUpdateReplace, 5, iconResource);
-        bindLong(mStatusUpdateReplace, 6, labelResource);
-        mStatusUpdateReplace.execute();
+        final SQLiteStatement statusUpdateReplace = getCompiledStatement(
+                "INSERT OR REPLACE INTO " + Tables.STATUS_UPDATES + "("
+                        + StatusUpdatesColumns.DATA_ID + ", "
+                        + StatusUpdates.STATUS_TIMESTAMP + ","
+                        + StatusUpdates.STATUS + ","
+                        + StatusUpdates.STATUS_RES_PACKAGE + ","
+                        + StatusUpdates.STATUS_ICON + ","
+                        + StatusUpdates.STATUS_LABEL + ")" +
+                " VALUES (?,?,?,?,?,?)");
+        statusUpdateReplace.bindLong(1, dataId);
+        statusUpdateReplace.bindLong(2, timestamp);
+        bindString(statusUpdateReplace, 3, status);
+        bindString(statusUpdateReplace, 4, resPackage);
+        bindLong(statusUpdateReplace, 5, iconResource);
+        bindLong(statusUpdateReplace, 6, labelResource);
+        statusUpdateReplace.execute();
     }
 
     public void insertStatusUpdate(Long dataId, String status, String resPackage,
             Integer iconResource, Integer labelResource) {
-        if (mStatusUpdateInsert == null) {
-            mStatusUpdateInsert = getWritableDatabase().compileStatement(
-                    "INSERT INTO " + Tables.STATUS_UPDATES + "("
-                            + StatusUpdatesColumns.DATA_ID + ", "
-                            + StatusUpdates.STATUS + ","
-                            + StatusUpdates.STATUS_RES_PACKAGE + ","
-                            + StatusUpdates.STATUS_ICON + ","
-                            + StatusUpdates.STATUS_LABEL + ")" +
-                    " VALUES (?,?,?,?,?)");
-        }
+        final SQLiteStatement statusUpdateInsert = getCompiledStatement(
+                "INSERT INTO " + Tables.STATUS_UPDATES + "("
+                        + StatusUpdatesColumns.DATA_ID + ", "
+                        + StatusUpdates.STATUS + ","
+                        + StatusUpdates.STATUS_RES_PACKAGE + ","
+                        + StatusUpdates.STATUS_ICON + ","
+                        + StatusUpdates.STATUS_LABEL + ")" +
+                " VALUES (?,?,?,?,?)");
         try {
-            mStatusUpdateInsert.bindLong(1, dataId);
-            bindString(mStatusUpdateInsert, 2, status);
-            bindString(mStatusUpdateInsert, 3, resPackage);
-            bindLong(mStatusUpdateInsert, 4, iconResource);
-            bindLong(mStatusUpdateInsert, 5, labelResource);
-            mStatusUpdateInsert.executeInsert();
+            statusUpdateInsert.bindLong(1, dataId);
+            bindString(statusUpdateInsert, 2, status);
+            bindString(statusUpdateInsert, 3, resPackage);
+            bindLong(statusUpdateInsert, 4, iconResource);
+            bindLong(statusUpdateInsert, 5, labelResource);
+            statusUpdateInsert.executeInsert();
         } catch (SQLiteConstraintException e) {
             // The row already exists - update it
-            if (mStatusUpdateAutoTimestamp == null) {
-                mStatusUpdateAutoTimestamp = getWritableDatabase().compileStatement(
-                        "UPDATE " + Tables.STATUS_UPDATES +
-                        " SET " + StatusUpdates.STATUS_TIMESTAMP + "=?,"
-                                + StatusUpdates.STATUS + "=?" +
-                        " WHERE " + StatusUpdatesColumns.DATA_ID + "=?"
-                                + " AND " + StatusUpdates.STATUS + "!=?");
-            }
+            final SQLiteStatement statusUpdateAutoTimestamp = getCompiledStatement(
+                    "UPDATE " + Tables.STATUS_UPDATES +
+                    " SET " + StatusUpdates.STATUS_TIMESTAMP + "=?,"
+                            + StatusUpdates.STATUS + "=?" +
+                    " WHERE " + StatusUpdatesColumns.DATA_ID + "=?"
+                            + " AND " + StatusUpdates.STATUS + "!=?");
 
             long timestamp = System.currentTimeMillis();
-            mStatusUpdateAutoTimestamp.bindLong(1, timestamp);
-            bindString(mStatusUpdateAutoTimestamp, 2, status);
-            mStatusUpdateAutoTimestamp.bindLong(3, dataId);
-            bindString(mStatusUpdateAutoTimestamp, 4, status);
-            mStatusUpdateAutoTimestamp.execute();
-
-            if (mStatusAttributionUpdate == null) {
-                mStatusAttributionUpdate = getWritableDatabase().compileStatement(
-                        "UPDATE " + Tables.STATUS_UPDATES +
-                        " SET " + StatusUpdates.STATUS_RES_PACKAGE + "=?,"
-                                + StatusUpdates.STATUS_ICON + "=?,"
-                                + StatusUpdates.STATUS_LABEL + "=?" +
-                        " WHERE " + StatusUpdatesColumns.DATA_ID + "=?");
-            }
-            bindString(mStatusAttributionUpdate, 1, resPackage);
-            bindLong(mStatusAttributionUpdate, 2, iconResource);
-            bindLong(mStatusAttributionUpdate, 3, labelResource);
-            mStatusAttributionUpdate.bindLong(4, dataId);
-            mStatusAttributionUpdate.execute();
+            statusUpdateAutoTimestamp.bindLong(1, timestamp);
+            bindString(statusUpdateAutoTimestamp, 2, status);
+            statusUpdateAutoTimestamp.bindLong(3, dataId);
+            bindString(statusUpdateAutoTimestamp, 4, status);
+            statusUpdateAutoTimestamp.execute();
+
+            final SQLiteStatement statusAttributionUpdate = getCompiledStatement(
+                    "UPDATE " + Tables.STATUS_UPDATES +
+                    " SET " + StatusUpdates.STATUS_RES_PACKAGE + "=?,"
+                            + StatusUpdates.STATUS_ICON + "=?,"
+                            + StatusUpdates.STATUS_LABEL + "=?" +
+                    " WHERE " + StatusUpdatesColumns.DATA_ID + "=?");
+            bindString(statusAttributionUpdate, 1, resPackage);
+            bindLong(statusAttributionUpdate, 2, iconResource);
+            bindLong(statusAttributionUpdate, 3, labelResource);
+            statusAttributionUpdate.bindLong(4, dataId);
+            statusAttributionUpdate.execute();
         }
     }
 
@@ -6039,48 +6298,47 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
             sortKeyAlternative = sortNameAlternative;
         }
 
+        // The primary and alternative sort keys are often the same name.
         final ContactLocaleUtils localeUtils = ContactLocaleUtils.getInstance();
-        int phonebookBucketPrimary = TextUtils.isEmpty(sortKeyPrimary)
-                ? localeUtils.getNumberBucketIndex()
-                : localeUtils.getBucketIndex(sortKeyPrimary);
-        String phonebookLabelPrimary = localeUtils.getBucketLabel(phonebookBucketPrimary);
-
-        int phonebookBucketAlternative = TextUtils.isEmpty(sortKeyAlternative)
-                ? localeUtils.getNumberBucketIndex()
-                : localeUtils.getBucketIndex(sortKeyAlternative);
-        String phonebookLabelAlternative = localeUtils.getBucketLabel(phonebookBucketAlternative);
-
-        if (mRawContactDisplayNameUpdate == null) {
-            mRawContactDisplayNameUpdate = db.compileStatement(
-                    "UPDATE " + Tables.RAW_CONTACTS +
-                    " SET " +
-                            RawContacts.DISPLAY_NAME_SOURCE + "=?," +
-                            RawContacts.DISPLAY_NAME_PRIMARY + "=?," +
-                            RawContacts.DISPLAY_NAME_ALTERNATIVE + "=?," +
-                            RawContacts.PHONETIC_NAME + "=?," +
-                            RawContacts.PHONETIC_NAME_STYLE + "=?," +
-                            RawContacts.SORT_KEY_PRIMARY + "=?," +
-                            RawContactsColumns.PHONEBOOK_LABEL_PRIMARY + "=?," +
-                            RawContactsColumns.PHONEBOOK_BUCKET_PRIMARY + "=?," +
-                            RawContacts.SORT_KEY_ALTERNATIVE + "=?," +
-                            RawContactsColumns.PHONEBOOK_LABEL_ALTERNATIVE + "=?," +
-                            RawContactsColumns.PHONEBOOK_BUCKET_ALTERNATIVE + "=?" +
-                    " WHERE " + RawContacts._ID + "=?");
-        }
-
-        mRawContactDisplayNameUpdate.bindLong(1, bestDisplayNameSource);
-        bindString(mRawContactDisplayNameUpdate, 2, displayNamePrimary);
-        bindString(mRawContactDisplayNameUpdate, 3, displayNameAlternative);
-        bindString(mRawContactDisplayNameUpdate, 4, bestPhoneticName);
-        mRawContactDisplayNameUpdate.bindLong(5, bestPhoneticNameStyle);
-        bindString(mRawContactDisplayNameUpdate, 6, sortKeyPrimary);
-        bindString(mRawContactDisplayNameUpdate, 7, phonebookLabelPrimary);
-        mRawContactDisplayNameUpdate.bindLong(8, phonebookBucketPrimary);
-        bindString(mRawContactDisplayNameUpdate, 9, sortKeyAlternative);
-        bindString(mRawContactDisplayNameUpdate, 10, phonebookLabelAlternative);
-        mRawContactDisplayNameUpdate.bindLong(11, phonebookBucketAlternative);
-        mRawContactDisplayNameUpdate.bindLong(12, rawContactId);
-        mRawContactDisplayNameUpdate.execute();
+        final ContactLocaleUtils.BucketInfo bucketPrimary = localeUtils.getBucketInfo(
+                sortKeyPrimary);
+        final ContactLocaleUtils.BucketInfo bucketAlternative =
+                TextUtils.equals(sortKeyPrimary, sortKeyAlternative)
+                        ? bucketPrimary : localeUtils.getBucketInfo(sortKeyAlternative);
+        int phonebookBucketPrimary = bucketPrimary.bucketIndex;
+        String phonebookLabelPrimary = bucketPrimary.bucketLabel;
+        int phonebookBucketAlternative = bucketAlternative.bucketIndex;
+        String phonebookLabelAlternative = bucketAlternative.bucketLabel;
+
+        final SQLiteStatement rawContactDisplayNameUpdate = getCompiledStatement(db,
+                "UPDATE " + Tables.RAW_CONTACTS +
+                " SET " +
+                        RawContacts.DISPLAY_NAME_SOURCE + "=?," +
+                        RawContacts.DISPLAY_NAME_PRIMARY + "=?," +
+                        RawContacts.DISPLAY_NAME_ALTERNATIVE + "=?," +
+                        RawContacts.PHONETIC_NAME + "=?," +
+                        RawContacts.PHONETIC_NAME_STYLE + "=?," +
+                        RawContacts.SORT_KEY_PRIMARY + "=?," +
+                        RawContactsColumns.PHONEBOOK_LABEL_PRIMARY + "=?," +
+                        RawContactsColumns.PHONEBOOK_BUCKET_PRIMARY + "=?," +
+                        RawContacts.SORT_KEY_ALTERNATIVE + "=?," +
+                        RawContactsColumns.PHONEBOOK_LABEL_ALTERNATIVE + "=?," +
+                        RawContactsColumns.PHONEBOOK_BUCKET_ALTERNATIVE + "=?" +
+                " WHERE " + RawContacts._ID + "=?");
+
+        rawContactDisplayNameUpdate.bindLong(1, bestDisplayNameSource);
+        bindString(rawContactDisplayNameUpdate, 2, displayNamePrimary);
+        bindString(rawContactDisplayNameUpdate, 3, displayNameAlternative);
+        bindString(rawContactDisplayNameUpdate, 4, bestPhoneticName);
+        rawContactDisplayNameUpdate.bindLong(5, bestPhoneticNameStyle);
+        bindString(rawContactDisplayNameUpdate, 6, sortKeyPrimary);
+        bindString(rawContactDisplayNameUpdate, 7, phonebookLabelPrimary);
+        rawContactDisplayNameUpdate.bindLong(8, phonebookBucketPrimary);
+        bindString(rawContactDisplayNameUpdate, 9, sortKeyAlternative);
+        bindString(rawContactDisplayNameUpdate, 10, phonebookLabelAlternative);
+        rawContactDisplayNameUpdate.bindLong(11, phonebookBucketAlternative);
+        rawContactDisplayNameUpdate.bindLong(12, rawContactId);
+        rawContactDisplayNameUpdate.execute();
     }
 
     /**
@@ -6091,17 +6349,15 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
      * flag of all data items of this raw contacts
      */
     public void setIsPrimary(long rawContactId, long dataId, long mimeTypeId) {
-        if (mSetPrimaryStatement == null) {
-            mSetPrimaryStatement = getWritableDatabase().compileStatement(
-                    "UPDATE " + Tables.DATA +
-                    " SET " + Data.IS_PRIMARY + "=(_id=?)" +
-                    " WHERE " + DataColumns.MIMETYPE_ID + "=?" +
-                    "   AND " + Data.RAW_CONTACT_ID + "=?");
-        }
-        mSetPrimaryStatement.bindLong(1, dataId);
-        mSetPrimaryStatement.bindLong(2, mimeTypeId);
-        mSetPrimaryStatement.bindLong(3, rawContactId);
-        mSetPrimaryStatement.execute();
+        final SQLiteStatement setPrimaryStatement = getCompiledStatement(
+                "UPDATE " + Tables.DATA +
+                " SET " + Data.IS_PRIMARY + "=(_id=?)" +
+                " WHERE " + DataColumns.MIMETYPE_ID + "=?" +
+                "   AND " + Data.RAW_CONTACT_ID + "=?");
+        setPrimaryStatement.bindLong(1, dataId);
+        setPrimaryStatement.bindLong(2, mimeTypeId);
+        setPrimaryStatement.bindLong(3, rawContactId);
+        setPrimaryStatement.execute();
     }
 
     /**
@@ -6109,16 +6365,14 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
      * other raw contacts of the same joined aggregate
      */
     public void clearSuperPrimary(long rawContactId, long mimeTypeId) {
-        if (mClearSuperPrimaryStatement == null) {
-            mClearSuperPrimaryStatement = getWritableDatabase().compileStatement(
-                    "UPDATE " + Tables.DATA +
-                    " SET " + Data.IS_SUPER_PRIMARY + "=0" +
-                    " WHERE " + DataColumns.MIMETYPE_ID + "=?" +
-                    "   AND " + Data.RAW_CONTACT_ID + "=?");
-        }
-        mClearSuperPrimaryStatement.bindLong(1, mimeTypeId);
-        mClearSuperPrimaryStatement.bindLong(2, rawContactId);
-        mClearSuperPrimaryStatement.execute();
+        final SQLiteStatement clearSuperPrimaryStatement = getCompiledStatement(
+                "UPDATE " + Tables.DATA +
+                " SET " + Data.IS_SUPER_PRIMARY + "=0" +
+                " WHERE " + DataColumns.MIMETYPE_ID + "=?" +
+                "   AND " + Data.RAW_CONTACT_ID + "=?");
+        clearSuperPrimaryStatement.bindLong(1, mimeTypeId);
+        clearSuperPrimaryStatement.bindLong(2, rawContactId);
+        clearSuperPrimaryStatement.execute();
     }
 
     /**
@@ -6128,23 +6382,21 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
      * @param dataId the id of the data record to be set to primary.
      */
     public void setIsSuperPrimary(long rawContactId, long dataId, long mimeTypeId) {
-        if (mSetSuperPrimaryStatement == null) {
-            mSetSuperPrimaryStatement = getWritableDatabase().compileStatement(
-                    "UPDATE " + Tables.DATA +
-                    " SET " + Data.IS_SUPER_PRIMARY + "=(" + Data._ID + "=?)" +
-                    " WHERE " + DataColumns.MIMETYPE_ID + "=?" +
-                    "   AND " + Data.RAW_CONTACT_ID + " IN (" +
-                            "SELECT " + RawContacts._ID +
-                            " FROM " + Tables.RAW_CONTACTS +
-                            " WHERE " + RawContacts.CONTACT_ID + " =(" +
-                                    "SELECT " + RawContacts.CONTACT_ID +
-                                    " FROM " + Tables.RAW_CONTACTS +
-                                    " WHERE " + RawContacts._ID + "=?))");
-        }
-        mSetSuperPrimaryStatement.bindLong(1, dataId);
-        mSetSuperPrimaryStatement.bindLong(2, mimeTypeId);
-        mSetSuperPrimaryStatement.bindLong(3, rawContactId);
-        mSetSuperPrimaryStatement.execute();
+        final SQLiteStatement setSuperPrimaryStatement = getCompiledStatement(
+                "UPDATE " + Tables.DATA +
+                " SET " + Data.IS_SUPER_PRIMARY + "=(" + Data._ID + "=?)" +
+                " WHERE " + DataColumns.MIMETYPE_ID + "=?" +
+                "   AND " + Data.RAW_CONTACT_ID + " IN (" +
+                        "SELECT " + RawContacts._ID +
+                        " FROM " + Tables.RAW_CONTACTS +
+                        " WHERE " + RawContacts.CONTACT_ID + " =(" +
+                                "SELECT " + RawContacts.CONTACT_ID +
+                                " FROM " + Tables.RAW_CONTACTS +
+                                " WHERE " + RawContacts._ID + "=?))");
+        setSuperPrimaryStatement.bindLong(1, dataId);
+        setSuperPrimaryStatement.bindLong(2, mimeTypeId);
+        setSuperPrimaryStatement.bindLong(3, rawContactId);
+        setSuperPrimaryStatement.execute();
     }
 
     /**
@@ -6155,33 +6407,84 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
             return;
         }
 
-        if (mNameLookupInsert == null) {
-            mNameLookupInsert = getWritableDatabase().compileStatement(
-                    "INSERT OR IGNORE INTO " + Tables.NAME_LOOKUP + "("
-                            + NameLookupColumns.RAW_CONTACT_ID + ","
-                            + NameLookupColumns.DATA_ID + ","
-                            + NameLookupColumns.NAME_TYPE + ","
-                            + NameLookupColumns.NORMALIZED_NAME
-                    + ") VALUES (?,?,?,?)");
+        final LookupTableWriter batch = mLookupBatch.get();
+        if (batch != null) {
+            batch.insertNameLookup(rawContactId, dataId, lookupType, name);
+            return;
         }
-        mNameLookupInsert.bindLong(1, rawContactId);
-        mNameLookupInsert.bindLong(2, dataId);
-        mNameLookupInsert.bindLong(3, lookupType);
-        bindString(mNameLookupInsert, 4, name);
-        mNameLookupInsert.executeInsert();
+
+        final SQLiteStatement nameLookupInsert = getCompiledStatement(
+                "INSERT OR IGNORE INTO " + Tables.NAME_LOOKUP + "("
+                        + NameLookupColumns.RAW_CONTACT_ID + ","
+                        + NameLookupColumns.DATA_ID + ","
+                        + NameLookupColumns.NAME_TYPE + ","
+                        + NameLookupColumns.NORMALIZED_NAME
+                + ") VALUES (?,?,?,?)");
+        nameLookupInsert.bindLong(1, rawContactId);
+        nameLookupInsert.bindLong(2, dataId);
+        nameLookupInsert.bindLong(3, lookupType);
+        bindString(nameLookupInsert, 4, name);
+        nameLookupInsert.executeInsert();
     }
 
     /**
      * Deletes all {@link Tables#NAME_LOOKUP} table rows associated with the specified data element.
      */
     public void deleteNameLookup(long dataId) {
-        if (mNameLookupDelete == null) {
-            mNameLookupDelete = getWritableDatabase().compileStatement(
-                    "DELETE FROM " + Tables.NAME_LOOKUP +
-                    " WHERE " + NameLookupColumns.DATA_ID + "=?");
+        final LookupTableWriter batch = mLookupBatch.get();
+        if (batch != null) {
+            batch.deleteNameLookup(dataId);
+            return;
+        }
+
+        final SQLiteStatement nameLookupDelete = getCompiledStatement(
+                "DELETE FROM " + Tables.NAME_LOOKUP +
+                " WHERE " + NameLookupColumns.DATA_ID + "=?");
+        nameLookupDelete.bindLong(1, dataId);
+        nameLookupDelete.execute();
+    }
+
+    /**
+     * Inserts a record in the {@link Tables#PHONE_LOOKUP} table.
+     */
+    public void insertPhoneLookup(long rawContactId, long dataId, String normalizedNumber) {
+        final LookupTableWriter batch = mLookupBatch.get();
+        if (batch != null) {
+            batch.insertPhoneLookup(rawContactId, dataId, normalizedNumber,
+                    PhoneNumberUtils.toCallerIDMinMatch(normalizedNumber));
+            return;
         }
-        mNameLookupDelete.bindLong(1, dataId);
-        mNameLookupDelete.execute();
+
+        final SQLiteStatement phoneLookupInsert = getCompiledStatement(
+                "INSERT INTO " + Tables.PHONE_LOOKUP + "("
+                        + PhoneLookupColumns.RAW_CONTACT_ID + ","
+                        + PhoneLookupColumns.DATA_ID + ","
+                        + PhoneLookupColumns.NORMALIZED_NUMBER + ","
+                        + PhoneLookupColumns.MIN_MATCH
+                + ") VALUES (?,?,?,?)");
+        phoneLookupInsert.bindLong(1, rawContactId);
+        phoneLookupInsert.bindLong(2, dataId);
+        phoneLookupInsert.bindString(3, normalizedNumber);
+        bindString(phoneLookupInsert, 4, PhoneNumberUtils.toCallerIDMinMatch(normalizedNumber));
+        phoneLookupInsert.executeInsert();
+    }
+
+    /**
+     * Deletes all {@link Tables#PHONE_LOOKUP} table rows associated with the specified data
+     * element.
+     */
+    public void deletePhoneLookup(long dataId) {
+        final LookupTableWriter batch = mLookupBatch.get();
+        if (batch != null) {
+            batch.deletePhoneLookup(dataId);
+            return;
+        }
+
+        final SQLiteStatement phoneLookupDelete = getCompiledStatement(
+                "DELETE FROM " + Tables.PHONE_LOOKUP +
+                " WHERE " + PhoneLookupColumns.DATA_ID + "=?");
+        phoneLookupDelete.bindLong(1, dataId);
+        phoneLookupDelete.execute();
     }
 
     public String insertNameLookupForEmail(long rawContactId, long dataId, String email) {
@@ -6262,21 +6565,19 @@ public class ContactsDatabaseHelper extends SQLiteOpenHelper {
 
 
     public long upsertMetadataSync(String backupId, Long accountId, String data, Integer deleted) {
-        if (mMetadataSyncInsert == null) {
-            mMetadataSyncInsert = getWritableDatabase().compileStatement(
-                    "INSERT OR REPLACE INTO " + Tables.METADATA_SYNC + "("
-                            + MetadataSync.RAW_CONTACT_BACKUP_ID + ", "
-                            + MetadataSyncColumns.ACCOUNT_ID + ", "
-                            + MetadataSync.DATA + ","
-                            + MetadataSync.DELETED + ")" +
-                            " VALUES (?,?,?,?)");
-        }
-        mMetadataSyncInsert.bindString(1, backupId);
-        mMetadataSyncInsert.bindLong(2, accountId);
+        final SQLiteStatement metadataSyncInsert = getCompiledStatement(
+                "INSERT OR REPLACE INTO " + Tables.METADATA_SYNC + "("
+                        + MetadataSync.RAW_CONTACT_BACKUP_ID + ", "
+                        + MetadataSyncColumns.ACCOUNT_ID + ", "
+                        + MetadataSync.DATA + ","
+                        + MetadataSync.DELETED + ")" +
+                        " VALUES (?,?,?,?)");
+        metadataSyncInsert.bindString(1, backupId);
+        metadataSyncInsert.bindLong(2, accountId);
         data = (data == null) ? "" : data;
-        mMetadataSyncInsert.bindString(3, data);
-        mMetadataSyncInsert.bindLong(4, deleted);
-        return mMetadataSyncInsert.executeInsert();
+        metadataSyncInsert.bindString(3, data);
+        metadataSyncInsert.bindLong(4, deleted);
+        return metadataSyncInsert.executeInsert();
      }
 
     private void createDefaultGroups4PhoneAccount(SQLiteDatabase db) {
@@ -198,6 +198,7 @@ import java.security.SecureRandom;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -272,6 +273,9 @@ public class ContactsProvider2 extends AbstractContactsProvider
     /** Rate limit (in milliseconds) for photo cleanup.  Do it at most once per day. */
     private static final int PHOTO_CLEANUP_RATE_LIMIT = 24 * 60 * 60 * 1000;
 
+    /** Number of photo file IDs examined per chunk of an incremental photo cleanup. */
+    private static final int PHOTO_CLEANUP_CHUNK_SIZE = 500;
+
     /** Maximum length of a phone number that can be inserted into the database */
     private static final int PHONE_NUMBER_LENGTH_LIMIT = 1000;
 
@@ -300,6 +304,36 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
     private static final String CONTACT_MEMORY_FILE_NAME = "contactAssetFile";
 
+    /**
+     * Query parameter for display photo URIs that requests a variant of the photo that fits
+     * in the given number of pixels (width and height).  See {@link PhotoStore#getVariant}.
+     */
+    public static final String QUERY_PARAMETER_DISPLAY_PHOTO_MAX_DIM = "max_dim";
+
+    /**
+     * Query parameter for the contacts, phones and emails filter URIs that identifies the
+     * type-ahead session of the caller (any string unique to it, e.g. one per search view).
+     * When the filter of a session only grows from one query to the next, the matching contacts
+     * are narrowed down in memory instead of searching again.  See {@link FilterSessionCache}.
+     */
+    public static final String QUERY_PARAMETER_FILTER_SESSION = "filter_session";
+
+    /**
+     * Boolean query parameter for the contacts filter URI that returns the contacts best matching
+     * the filter first: contacts whose name matches before the ones matching other data, starred
+     * and frequently contacted contacts first.  Only the best contacts are returned, up to the
+     * "limit" parameter or {@link SearchRanker#DEFAULT_LIMIT}; the sort order is ignored.
+     */
+    public static final String QUERY_PARAMETER_RANKED = "ranked";
+
+    /**
+     * Boolean query parameter for the contacts filter URI that tolerates typos in names: if few
+     * contacts match the filter, the contacts whose name is close to it (e.g. "John" for "jonh")
+     * are returned after them, closest first; the sort order is then ignored.  See
+     * {@link NameNgramIndex}.
+     */
+    public static final String QUERY_PARAMETER_FUZZY = "fuzzy";
+
     /**
      * If set to "1", we don't remove account data when accounts have been removed.
      *
@@ -1020,6 +1054,19 @@ public class ContactsProvider2 extends AbstractContactsProvider
             .add(PhoneLookup.NORMALIZED_NUMBER, Phone.NORMALIZED_NUMBER)
             .build();
 
+    /**
+     * Columns read for each phone lookup candidate before the requested ones: the min match and
+     * normalized number it was found with, and its phone number.
+     */
+    private static final String[] PHONE_LOOKUP_CANDIDATE_COLUMNS = new String[] {
+            "lookup." + PhoneLookupColumns.MIN_MATCH,
+            "lookup." + PhoneLookupColumns.NORMALIZED_NUMBER,
+            Tables.DATA + "." + Phone.NUMBER,
+    };
+
+    /** Column of {@link #queryPhoneLookups} with the number that was looked up. */
+    public static final String PHONE_LOOKUPS_NUMBER = "lookup_number";
+
     /** Contains the just the {@link Groups} columns */
     private static final ProjectionMap sGroupsProjectionMap = ProjectionMap.builder()
             .add(Groups._ID)
@@ -1529,6 +1576,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
     private GlobalSearchSupport mGlobalSearchSupport;
     private CommonNicknameCache mCommonNicknameCache;
     private SearchIndexManager mSearchIndexManager;
+    private final FilterSessionCache mFilterSessionCache = new FilterSessionCache();
 
     private int mProviderStatus = STATUS_NORMAL;
     private boolean mProviderStatusUpdateNeeded;
@@ -1950,6 +1998,9 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 break;
             }
         }
+
+        // The task may have changed the contacts without going through a transaction.
+        mFilterSessionCache.invalidate();
     }
 
     public void onLocaleChanged() {
@@ -2092,88 +2143,205 @@ public class ContactsProvider2 extends AbstractContactsProvider
         }
     }
 
+    /**
+     * Cleans up the photo store in bounded chunks, in two passes.
+     *
+     * The first pass walks the (ordered) keys of the photo store one chunk at a time, looks up
+     * the photo data rows (through the photo file ID index) and stream item photos referring to
+     * the keys of the chunk, and deletes the photos that nothing refers to.  The second pass walks the
+     * photo data rows in the order of their IDs and clears out the references to photos that
+     * no longer exist in the photo store, then does the same for stream item photos.
+     *
+     * Each chunk runs in its own transaction, so that writers get in between chunks.  The
+     * position of each pass is persisted with its chunk, so that an interrupted cleanup resumes
+     * where it left off.
+     */
     @VisibleForTesting
     protected void cleanupPhotoStore() {
-        final SQLiteDatabase db = mDbHelper.get().getWritableDatabase();
+        final ContactsDatabaseHelper dbHelper = mDbHelper.get();
+        final PhotoStore photoStore = mPhotoStore.get();
+        final long photoMimeTypeId = dbHelper.getMimeTypeId(Photo.CONTENT_ITEM_TYPE);
+        try {
+            long afterKey = getPhotoCleanupCursor(dbHelper, DbProperties.PHOTO_CLEANUP_CURSOR);
+            do {
+                afterKey = sweepPhotoStoreChunk(dbHelper, photoStore, photoMimeTypeId, afterKey);
+            } while (afterKey != 0);
+
+            long afterDataId = getPhotoCleanupCursor(dbHelper,
+                    DbProperties.PHOTO_CLEANUP_DATA_CURSOR);
+            do {
+                afterDataId = clearMissingDataPhotosChunk(dbHelper, photoStore, photoMimeTypeId,
+                        afterDataId);
+            } while (afterDataId != 0);
+
+            long afterStreamItemPhotoId = 0;
+            do {
+                afterStreamItemPhotoId = clearMissingStreamItemPhotosChunk(dbHelper, photoStore,
+                        afterStreamItemPhotoId);
+            } while (afterStreamItemPhotoId != 0);
+        } catch (Exception e) {
+            // Cleanup failure is not a fatal problem.  We'll try again later.
+            Log.e(TAG, "Failed to clean up the photo store", e);
+        }
+    }
+
+    private static long getPhotoCleanupCursor(ContactsDatabaseHelper dbHelper, String property) {
+        try {
+            return Long.parseLong(dbHelper.getProperty(property, "0"));
+        } catch (NumberFormatException e) {
+            // Start over.
+            return 0;
+        }
+    }
 
-        // Assemble the set of photo store file IDs that are in use, and send those to the photo
-        // store.  Any photos that aren't in that set will be deleted, and any photos that no
-        // longer exist in the photo store will be returned for us to clear out in the DB.
-        long photoMimeTypeId = mDbHelper.get().getMimeTypeId(Photo.CONTENT_ITEM_TYPE);
-        Cursor c = db.query(Views.DATA, new String[] {Data._ID, Photo.PHOTO_FILE_ID},
-                DataColumns.MIMETYPE_ID + "=" + photoMimeTypeId + " AND "
-                        + Photo.PHOTO_FILE_ID + " IS NOT NULL", null, null, null, null);
-        Set<Long> usedPhotoFileIds = Sets.newHashSet();
-        Map<Long, Long> photoFileIdToDataId = Maps.newHashMap();
+    /**
+     * Deletes the photos of the next chunk of photo store keys that nothing refers to.
+     *
+     * @return The last key of the chunk, or 0 if there are no more keys.
+     */
+    private long sweepPhotoStoreChunk(ContactsDatabaseHelper dbHelper, PhotoStore photoStore,
+            long photoMimeTypeId, long afterKey) {
+        final SQLiteDatabase db = dbHelper.getWritableDatabase();
+        // Writers insert the photo and the row referring to it in one transaction, so the
+        // photos of the chunk can't be in use by a row that isn't committed yet.
+        db.beginTransaction();
         try {
-            while (c.moveToNext()) {
-                long dataId = c.getLong(0);
-                long photoFileId = c.getLong(1);
-                usedPhotoFileIds.add(photoFileId);
-                photoFileIdToDataId.put(photoFileId, dataId);
+            final long[] storeKeys = photoStore.getKeysAfter(afterKey, PHOTO_CLEANUP_CHUNK_SIZE);
+            long upToKey = 0;
+            if (storeKeys.length != 0) {
+                upToKey = storeKeys[storeKeys.length - 1];
+                final StringBuilder keys = new StringBuilder();
+                appendIds(keys, storeKeys);
+
+                // Photo file IDs are stored in a TEXT column of the data table: the keys are
+                // compared as text, which lets the lookup use the photo file ID index.
+                final long[] keysInUse = new long[storeKeys.length];
+                int keyCount = 0;
+                final Cursor c = db.rawQuery(
+                        "SELECT CAST(" + Photo.PHOTO_FILE_ID + " AS INTEGER) AS photo_file_id"
+                        + " FROM " + Tables.DATA
+                        + " WHERE " + DataColumns.MIMETYPE_ID + "=" + photoMimeTypeId
+                        + " AND " + Photo.PHOTO_FILE_ID + " IN (" + keys + ")"
+                        + " UNION"
+                        + " SELECT " + StreamItemPhotos.PHOTO_FILE_ID
+                        + " FROM " + Tables.STREAM_ITEM_PHOTOS
+                        + " WHERE " + StreamItemPhotos.PHOTO_FILE_ID + " IN (" + keys + ")"
+                        + " ORDER BY 1", null);
+                try {
+                    while (c.moveToNext() && keyCount < keysInUse.length) {
+                        keysInUse[keyCount++] = c.getLong(0);
+                    }
+                } finally {
+                    c.close();
+                }
+                photoStore.cleanupRange(afterKey, upToKey, keysInUse, keyCount);
             }
+
+            // Remember where we are, so that the next run picks up from here.
+            dbHelper.setProperty(DbProperties.PHOTO_CLEANUP_CURSOR, String.valueOf(upToKey));
+            db.setTransactionSuccessful();
+            return upToKey;
         } finally {
-            c.close();
+            db.endTransaction();
         }
+    }
 
-        // Also query for all social stream item photos.
-        c = db.query(Tables.STREAM_ITEM_PHOTOS + " JOIN " + Tables.STREAM_ITEMS
-                + " ON " + StreamItemPhotos.STREAM_ITEM_ID + "=" + StreamItemsColumns.CONCRETE_ID,
-                new String[] {
-                        StreamItemPhotosColumns.CONCRETE_ID,
-                        StreamItemPhotosColumns.CONCRETE_STREAM_ITEM_ID,
-                        StreamItemPhotos.PHOTO_FILE_ID
-                },
-                null, null, null, null, null);
-        Map<Long, Long> photoFileIdToStreamItemPhotoId = Maps.newHashMap();
-        Map<Long, Long> streamItemPhotoIdToStreamItemId = Maps.newHashMap();
+    /**
+     * Clears the photo file IDs of the next chunk of photo data rows that refer to photos that
+     * don't exist in the photo store.
+     *
+     * @return The last data ID of the chunk, or 0 if there are no more rows.
+     */
+    private long clearMissingDataPhotosChunk(ContactsDatabaseHelper dbHelper,
+            PhotoStore photoStore, long photoMimeTypeId, long afterDataId) {
+        final SQLiteDatabase db = dbHelper.getWritableDatabase();
+        // Need to set the db listener because we need to run onCommit afterwards.
+        // Make sure to use the proper listener depending on the current mode.
+        db.beginTransactionWithListener(inProfileMode() ? mProfileProvider : this);
         try {
-            while (c.moveToNext()) {
-                long streamItemPhotoId = c.getLong(0);
-                long streamItemId = c.getLong(1);
-                long photoFileId = c.getLong(2);
-                usedPhotoFileIds.add(photoFileId);
-                photoFileIdToStreamItemPhotoId.put(photoFileId, streamItemPhotoId);
-                streamItemPhotoIdToStreamItemId.put(streamItemPhotoId, streamItemId);
+            final Cursor c = db.query(Tables.DATA, new String[] {
+                            Data._ID, "CAST(" + Photo.PHOTO_FILE_ID + " AS INTEGER)"},
+                    DataColumns.MIMETYPE_ID + "=" + photoMimeTypeId + " AND "
+                            + Photo.PHOTO_FILE_ID + " IS NOT NULL AND "
+                            + Data._ID + ">" + afterDataId,
+                    null, null, null, Data._ID, String.valueOf(PHOTO_CLEANUP_CHUNK_SIZE));
+            final long[] missingDataIds = new long[PHOTO_CLEANUP_CHUNK_SIZE];
+            int missingCount = 0;
+            int count = 0;
+            long lastDataId = 0;
+            try {
+                while (c.moveToNext()) {
+                    lastDataId = c.getLong(0);
+                    if (photoStore.get(c.getLong(1)) == null) {
+                        missingDataIds[missingCount++] = lastDataId;
+                    }
+                    count++;
+                }
+            } finally {
+                c.close();
+            }
+
+            // We need to do these using internal APIs to avoid permission errors.
+            for (int i = 0; i < missingCount; i++) {
+                ContentValues updateValues = new ContentValues();
+                updateValues.putNull(Photo.PHOTO_FILE_ID);
+                updateData(ContentUris.withAppendedId(Data.CONTENT_URI, missingDataIds[i]),
+                        updateValues, null, null, /* callerIsSyncAdapter =*/false,
+                        /* callerIsMetadataSyncAdapter =*/false);
             }
+
+            final long nextDataId = count == PHOTO_CLEANUP_CHUNK_SIZE ? lastDataId : 0;
+            dbHelper.setProperty(DbProperties.PHOTO_CLEANUP_DATA_CURSOR,
+                    String.valueOf(nextDataId));
+            db.setTransactionSuccessful();
+            return nextDataId;
         } finally {
-            c.close();
+            db.endTransaction();
         }
+    }
 
-        // Run the photo store cleanup.
-        Set<Long> missingPhotoIds = mPhotoStore.get().cleanup(usedPhotoFileIds);
-
-        // If any of the keys we're using no longer exist, clean them up.  We need to do these
-        // using internal APIs or direct DB access to avoid permission errors.
-        if (!missingPhotoIds.isEmpty()) {
+    /**
+     * Deletes the stream item photos of the next chunk that refer to photos that don't exist in
+     * the photo store.
+     *
+     * @return The last stream item photo ID of the chunk, or 0 if there are no more rows.
+     */
+    private long clearMissingStreamItemPhotosChunk(ContactsDatabaseHelper dbHelper,
+            PhotoStore photoStore, long afterStreamItemPhotoId) {
+        final SQLiteDatabase db = dbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            final Cursor c = db.query(Tables.STREAM_ITEM_PHOTOS, new String[] {
+                            StreamItemPhotos._ID, StreamItemPhotos.PHOTO_FILE_ID},
+                    StreamItemPhotos._ID + ">" + afterStreamItemPhotoId,
+                    null, null, null, StreamItemPhotos._ID,
+                    String.valueOf(PHOTO_CLEANUP_CHUNK_SIZE));
+            final long[] missingIds = new long[PHOTO_CLEANUP_CHUNK_SIZE];
+            int missingCount = 0;
+            int count = 0;
+            long lastId = 0;
             try {
-                // Need to set the db listener because we need to run onCommit afterwards.
-                // Make sure to use the proper listener depending on the current mode.
-                db.beginTransactionWithListener(inProfileMode() ? mProfileProvider : this);
-                for (long missingPhotoId : missingPhotoIds) {
-                    if (photoFileIdToDataId.containsKey(missingPhotoId)) {
-                        long dataId = photoFileIdToDataId.get(missingPhotoId);
-                        ContentValues updateValues = new ContentValues();
-                        updateValues.putNull(Photo.PHOTO_FILE_ID);
-                        updateData(ContentUris.withAppendedId(Data.CONTENT_URI, dataId),
-                                updateValues, null, null, /* callerIsSyncAdapter =*/false,
-                                /* callerIsMetadataSyncAdapter =*/false);
-                    }
-                    if (photoFileIdToStreamItemPhotoId.containsKey(missingPhotoId)) {
-                        // For missing photos that were in stream item photos, just delete the
-                        // stream item photo.
-                        long streamItemPhotoId = photoFileIdToStreamItemPhotoId.get(missingPhotoId);
-                        db.delete(Tables.STREAM_ITEM_PHOTOS, StreamItemPhotos._ID + "=?",
-                                new String[] {String.valueOf(streamItemPhotoId)});
+                while (c.moveToNext()) {
+                    lastId = c.getLong(0);
+                    if (photoStore.get(c.getLong(1)) == null) {
+                        missingIds[missingCount++] = lastId;
                     }
+                    count++;
                 }
-                db.setTransactionSuccessful();
-            } catch (Exception e) {
-                // Cleanup failure is not a fatal problem.  We'll try again later.
-                Log.e(TAG, "Failed to clean up outdated photo references", e);
             } finally {
-                db.endTransaction();
+                c.close();
             }
+
+            // For missing photos that were in stream item photos, just delete the stream item
+            // photo.
+            for (int i = 0; i < missingCount; i++) {
+                db.delete(Tables.STREAM_ITEM_PHOTOS, StreamItemPhotos._ID + "=?",
+                        new String[] {String.valueOf(missingIds[i])});
+            }
+            db.setTransactionSuccessful();
+            return count == PHOTO_CLEANUP_CHUNK_SIZE ? lastId : 0;
+        } finally {
+            db.endTransaction();
         }
     }
 
@@ -2270,6 +2438,11 @@ public class ContactsProvider2 extends AbstractContactsProvider
         return mProfilePhotoStore;
     }
 
+    @VisibleForTesting
+    /* package */ FilterSessionCache getFilterSessionCache() {
+        return mFilterSessionCache;
+    }
+
     /**
      * Maximum dimension (height or width) of photo thumbnails.
      */
@@ -2595,6 +2768,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
             mContactAggregator.clearPendingAggregations();
             mContactTransactionContext.clearExceptSearchIndexUpdates();
         }
+        mDbHelper.get().beginLookupBatch();
     }
 
     @Override
@@ -2630,6 +2804,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
             updateProviderStatus();
             mProviderStatusUpdateNeeded = false;
         }
+        mDbHelper.get().endLookupBatch(true);
     }
 
     @Override
@@ -2648,6 +2823,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
             switchToContactMode();
         }
 
+        mDbHelper.get().endLookupBatch(false);
         mDbHelper.get().invalidateAllCache();
     }
 
@@ -2665,6 +2841,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
             Log.v(TAG, "flushTransactionalChanges: " + (inProfileMode() ? "profile" : "contacts"));
         }
 
+        mDbHelper.get().flushLookupBatch();
         final SQLiteDatabase db = mDbHelper.get().getWritableDatabase();
         for (long rawContactId : mTransactionContext.get().getInsertedRawContactIds()) {
             mDbHelper.get().updateRawContactDisplayName(db, rawContactId);
@@ -2795,6 +2972,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
     @Override
     protected void notifyChange() {
+        // Called once the transaction has been committed.
+        mFilterSessionCache.invalidate();
         notifyChange(mSyncToNetwork, mSyncToMetadataNetWork);
         mSyncToNetwork = false;
         mSyncToMetadataNetWork = false;
@@ -5638,6 +5817,134 @@ public class ContactsProvider2 extends AbstractContactsProvider
         scheduleBackgroundTask(BACKGROUND_TASK_UPDATE_DIRECTORIES, packageName);
     }
 
+    /**
+     * Looks up several phone numbers in one go, for the call log, which is in the same process.
+     * The candidates of all the numbers are read with one query on their min matches, and then
+     * matched against each number the way a {@link PhoneLookup#CONTENT_FILTER_URI} query does.
+     * SIP addresses are not supported.
+     *
+     * @param numbers The numbers to look up.
+     * @param projection {@link PhoneLookup} columns.
+     * @return For each number that matches a contact, a row with {@link #PHONE_LOOKUPS_NUMBER}
+     *     followed by the projection, from the first row its own phone lookup would return.
+     */
+    public Cursor queryPhoneLookups(Collection<String> numbers, String[] projection) {
+        waitForAccess(mReadAccessLatch);
+        final ContactsDatabaseHelper dbHelper = mContactsHelper;
+        final String[] columns =
+                new String[PHONE_LOOKUP_CANDIDATE_COLUMNS.length + projection.length];
+        System.arraycopy(PHONE_LOOKUP_CANDIDATE_COLUMNS, 0, columns, 0,
+                PHONE_LOOKUP_CANDIDATE_COLUMNS.length);
+        for (int i = 0; i < projection.length; i++) {
+            final String column = sPhoneLookupProjectionMap.get(projection[i]);
+            if (column == null) {
+                throw new IllegalArgumentException("Invalid column " + projection[i]);
+            }
+            columns[PHONE_LOOKUP_CANDIDATE_COLUMNS.length + i] = column;
+        }
+
+        final Set<String> minMatches = new HashSet<String>();
+        for (String number : numbers) {
+            if (TextUtils.isEmpty(number)) {
+                continue;
+            }
+            // The fallback lookup uses the min match of the number as it is.
+            for (String minMatch : new String[] {
+                    PhoneNumberUtils.toCallerIDMinMatch(PhoneNumberUtils.normalizeNumber(number)),
+                    PhoneNumberUtils.toCallerIDMinMatch(number)}) {
+                if (!TextUtils.isEmpty(minMatch)) {
+                    minMatches.add(minMatch);
+                }
+            }
+        }
+
+        // Candidates by min match, longest normalized number first, like a single lookup.
+        final HashMap<String, List<Object[]>> candidates = new HashMap<String, List<Object[]>>();
+        if (!minMatches.isEmpty()) {
+            final SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+            dbHelper.buildPhoneLookupCandidatesAndContactQuery(qb, minMatches);
+            final Cursor cursor = qb.query(dbHelper.getReadableDatabase(), columns, null, null,
+                    null, null, "length(lookup." + PhoneLookupColumns.NORMALIZED_NUMBER + ") DESC");
+            try {
+                while (cursor.moveToNext()) {
+                    final Object[] row = new Object[columns.length];
+                    for (int i = 0; i < columns.length; i++) {
+                        row[i] = i < PHONE_LOOKUP_CANDIDATE_COLUMNS.length ? cursor.getString(i)
+                                : PhoneLookupWithStarPrefix.cursorValue(cursor, i);
+                    }
+                    List<Object[]> list = candidates.get(row[0]);
+                    if (list == null) {
+                        list = new ArrayList<Object[]>();
+                        candidates.put((String) row[0], list);
+                    }
+                    list.add(row);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        final String[] resultColumns = new String[projection.length + 1];
+        resultColumns[0] = PHONE_LOOKUPS_NUMBER;
+        System.arraycopy(projection, 0, resultColumns, 1, projection.length);
+        final MatrixCursor result = new MatrixCursor(resultColumns);
+        for (String number : numbers) {
+            if (TextUtils.isEmpty(number)) {
+                continue;
+            }
+            final Object[] match = findPhoneLookupMatch(dbHelper, number, candidates);
+            if (match != null) {
+                final Object[] row = new Object[resultColumns.length];
+                row[0] = number;
+                System.arraycopy(match, PHONE_LOOKUP_CANDIDATE_COLUMNS.length, row, 1,
+                        projection.length);
+                result.addRow(row);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the first of the candidates that the {@link PhoneLookup} query for the given number
+     * would return, or null.
+     */
+    private static Object[] findPhoneLookupMatch(ContactsDatabaseHelper dbHelper, String number,
+            Map<String, List<Object[]>> candidates) {
+        final String normalizedNumber = PhoneNumberUtils.normalizeNumber(number);
+        final String numberE164 = PhoneNumberUtils.formatNumberToE164(
+                number, dbHelper.getCurrentCountryIso());
+        final List<Object[]> lookupCandidates =
+                candidates.get(PhoneNumberUtils.toCallerIDMinMatch(normalizedNumber));
+        if (lookupCandidates != null) {
+            boolean found = false;
+            for (Object[] candidate : lookupCandidates) {
+                if (dbHelper.isPhoneLookupMatch(normalizedNumber, numberE164,
+                        (String) candidate[1])) {
+                    if (PhoneLookupWithStarPrefix.isStarMatch(number, (String) candidate[2])) {
+                        return candidate;
+                    }
+                    found = true;
+                }
+            }
+            if (found) {
+                // There is no fallback once the first lookup has found something.
+                return null;
+            }
+        }
+
+        final List<Object[]> fallbackCandidates =
+                candidates.get(PhoneNumberUtils.toCallerIDMinMatch(number));
+        if (fallbackCandidates != null) {
+            for (Object[] candidate : fallbackCandidates) {
+                if (dbHelper.isFallbackPhoneLookupMatch(number, (String) candidate[2])
+                        && PhoneLookupWithStarPrefix.isStarMatch(number, (String) candidate[2])) {
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
     private void removeStaleAccountRows(String table, String accountNameColumn,
             String accountTypeColumn, Account[] systemAccounts) {
         final SQLiteDatabase db = mDbHelper.get().getWritableDatabase();
@@ -5923,6 +6230,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
             String[] selectionArgs, String sortOrder, final long directoryId,
             final CancellationSignal cancellationSignal) {
 
+        // A query made in the middle of a batch needs to see the lookup rows written so far.
+        mDbHelper.get().flushLookupBatch();
         final SQLiteDatabase db = mDbHelper.get().getReadableDatabase();
 
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
@@ -5930,6 +6239,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
         String having = null;
         String limit = getLimit(uri);
         boolean snippetDeferred = false;
+        String lazySnippetFilter = null;
+        SearchRanker.Result rankedMatches = null;
 
         // The expression used in bundleLetterCountExtras() to get count.
         String addressBookIndexerCountExpression = null;
@@ -6097,9 +6408,38 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 // a performance boost. Otherwise, we can't defer.
                 snippetDeferred = isSingleWordQuery(filterParam)
                         && deferredSnipRequested && snippetNeeded(projection);
+
+                // Otherwise snippets of names are computed as the rows are read, rather than in
+                // SQL for every matching contact.
+                if (!snippetDeferred && snippetNeeded(projection)
+                        && isLazySnippetFilter(filterParam, directoryId)) {
+                    lazySnippetFilter = filterParam.trim();
+                }
+                if (readBooleanQueryParameter(uri, QUERY_PARAMETER_RANKED, false)
+                        && isNameFilter(filterParam, directoryId)) {
+                    rankedMatches = SearchRanker.rank(db, filterParam.trim(), limit != null
+                            ? Integer.parseInt(limit) : SearchRanker.DEFAULT_LIMIT);
+                }
+                if (readBooleanQueryParameter(uri, QUERY_PARAMETER_FUZZY, false)
+                        && isNameFilter(filterParam, directoryId)) {
+                    rankedMatches = NameNgramIndex.appendFuzzyMatches(db, filterParam.trim(),
+                            rankedMatches, limit != null
+                                    ? Integer.parseInt(limit) : SearchRanker.DEFAULT_LIMIT);
+                }
                 setTablesAndProjectionMapForContactsWithSnippet(
                         qb, uri, projection, filterParam, directoryId,
-                        snippetDeferred);
+                        snippetDeferred, lazySnippetFilter != null, rankedMatches);
+                if (rankedMatches != null) {
+                    if (isWhereAppended) {
+                        qb.appendWhere(" AND ");
+                    }
+                    final StringBuilder rankedBuilder = new StringBuilder();
+                    rankedBuilder.append(Contacts._ID + " IN (");
+                    appendIds(rankedBuilder, rankedMatches.contactIds);
+                    rankedBuilder.append(")");
+                    qb.appendWhere(rankedBuilder.toString());
+                    isWhereAppended = true;
+                }
                 long groupId = -1;
                 try {
                     groupId = Long.parseLong(uri.getQueryParameter(Groups._ID));
@@ -6547,15 +6887,9 @@ public class ContactsProvider2 extends AbstractContactsProvider
                                     FtsQueryBuilder.UNSCOPED_NORMALIZING)
                             : null;
                     if (!TextUtils.isEmpty(ftsMatchQuery)) {
-                        sb.append(Data.RAW_CONTACT_ID + " IN " +
-                                "(SELECT " + RawContactsColumns.CONCRETE_ID +
-                                " FROM " + Tables.SEARCH_INDEX +
-                                " JOIN " + Tables.RAW_CONTACTS +
-                                " ON (" + Tables.SEARCH_INDEX + "." + SearchIndexColumns.CONTACT_ID
-                                        + "=" + RawContactsColumns.CONCRETE_CONTACT_ID + ")" +
-                                " WHERE " + SearchIndexColumns.NAME + " MATCH '");
-                        sb.append(ftsMatchQuery);
-                        sb.append("')");
+                        sb.append(Data.RAW_CONTACT_ID + " IN ");
+                        sb.append(getRawContactIdsMatchingNameQuery(uri, filterParam,
+                                ftsMatchQuery));
                         hasCondition = true;
                     }
 
@@ -6728,17 +7062,11 @@ public class ContactsProvider2 extends AbstractContactsProvider
                                 " FROM " + Tables.DATA +
                                 " WHERE +" + DataColumns.MIMETYPE_ID + "=");
                         sb.append(mDbHelper.get().getMimeTypeIdForEmail());
-                        sb.append(" AND " + Data.RAW_CONTACT_ID + " IN " +
-                                "(SELECT " + RawContactsColumns.CONCRETE_ID +
-                                " FROM " + Tables.SEARCH_INDEX +
-                                " JOIN " + Tables.RAW_CONTACTS +
-                                " ON (" + Tables.SEARCH_INDEX + "." + SearchIndexColumns.CONTACT_ID
-                                        + "=" + RawContactsColumns.CONCRETE_CONTACT_ID + ")" +
-                                " WHERE " + SearchIndexColumns.NAME + " MATCH '");
                         final String ftsMatchQuery = SearchIndexManager.getFtsMatchQuery(
                                 filterParam, FtsQueryBuilder.UNSCOPED_NORMALIZING);
-                        sb.append(ftsMatchQuery);
-                        sb.append("')");
+                        sb.append(" AND " + Data.RAW_CONTACT_ID + " IN ");
+                        sb.append(getRawContactIdsMatchingNameQuery(uri, filterParam,
+                                ftsMatchQuery));
                     }
                     sb.append(")");
                     qb.appendWhere(sb);
@@ -7301,10 +7629,19 @@ public class ContactsProvider2 extends AbstractContactsProvider
         qb.setStrict(true);
 
         // Auto-rewrite SORT_KEY_{PRIMARY, ALTERNATIVE} sort orders.
-        String localizedSortOrder = getLocalizedSortOrder(sortOrder);
+        String localizedSortOrder = rankedMatches != null
+                ? getRankedSortOrder(rankedMatches) : getLocalizedSortOrder(sortOrder);
+
+        // LazySnippetCursor requires the contact ID. If the projection explicitly omits it,
+        // extend the projection; the cursor hides the extra column.
+        String[] queryProjection = projection;
+        if (lazySnippetFilter != null && projection != null
+                && !ArrayUtils.contains(projection, Contacts._ID)) {
+            queryProjection = ArrayUtils.appendElement(String.class, projection, Contacts._ID);
+        }
         Cursor cursor =
-                doQuery(db, qb, projection, selection, selectionArgs, localizedSortOrder, groupBy,
-                        having, limit, cancellationSignal);
+                doQuery(db, qb, queryProjection, selection, selectionArgs, localizedSortOrder,
+                        groupBy, having, limit, cancellationSignal);
 
         if (readBooleanQueryParameter(uri, Contacts.EXTRA_ADDRESS_BOOK_INDEX, false)) {
             bundleFastScrollingIndexExtras(cursor, uri, db, qb, selection,
@@ -7314,6 +7651,12 @@ public class ContactsProvider2 extends AbstractContactsProvider
         if (snippetDeferred) {
             cursor = addDeferredSnippetingExtra(cursor);
         }
+        if (lazySnippetFilter != null) {
+            final String[] snippetArgs = getSnippetArgs(uri);
+            cursor = new LazySnippetCursor(cursor, db, lazySnippetFilter, snippetArgs[0],
+                    snippetArgs[1], snippetArgs[2], Integer.parseInt(snippetArgs[3]),
+                    queryProjection != projection);
+        }
 
         return cursor;
     }
@@ -8100,7 +8443,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
         for (LookupKeySegment segment : segments) {
             if (segment.lookupType == ContactLookupKey.LOOKUP_TYPE_DISPLAY_NAME
                     || segment.lookupType == ContactLookupKey.LOOKUP_TYPE_RAW_CONTACT_ID) {
-                DatabaseUtils.appendEscapedSQLString(sb, segment.key);
+                DatabaseUtils.appendEscapedSQLString(sb, getLookupKeyNormalizedName(segment));
                 sb.append(",");
             }
         }
@@ -8122,7 +8465,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
                     if ((segment.lookupType == ContactLookupKey.LOOKUP_TYPE_DISPLAY_NAME
                             || segment.lookupType == ContactLookupKey.LOOKUP_TYPE_RAW_CONTACT_ID)
                             && accountHashCode == segment.accountHashCode
-                            && segment.key.equals(name)) {
+                            && getLookupKeyNormalizedName(segment).equals(name)) {
                         segment.contactId = c.getLong(LookupByDisplayNameQuery.CONTACT_ID);
                         break;
                     }
@@ -8135,6 +8478,19 @@ public class ContactsProvider2 extends AbstractContactsProvider
         return getMostReferencedContactId(segments);
     }
 
+    /**
+     * Returns the normalized display name of a lookup key segment in the format of the name
+     * lookup table.  Lookup keys always have it in hex.
+     */
+    private static String getLookupKeyNormalizedName(LookupKeySegment segment) {
+        try {
+            return NameNormalizer.fromHex(segment.key);
+        } catch (IllegalArgumentException e) {
+            // Not a valid key; it won't match anything either way.
+            return segment.key;
+        }
+    }
+
     private boolean lookupKeyContainsType(ArrayList<LookupKeySegment> segments, int lookupType) {
         for (LookupKeySegment segment : segments) {
             if (segment.lookupType == lookupType) {
@@ -8216,7 +8572,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
      * contact and joins that with other contacts tables.
      */
     private void setTablesAndProjectionMapForContactsWithSnippet(SQLiteQueryBuilder qb, Uri uri,
-            String[] projection, String filter, long directoryId, boolean deferSnippeting) {
+            String[] projection, String filter, long directoryId, boolean deferSnippeting,
+            boolean lazySnippeting, SearchRanker.Result rankedMatches) {
 
         isWhereAppended = false;
         StringBuilder sb = new StringBuilder();
@@ -8282,7 +8639,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
         if (TextUtils.isEmpty(filter) || (directoryId != -1 && directoryId != Directory.DEFAULT)) {
             sb.append(" JOIN (SELECT NULL AS " + SearchSnippets.SNIPPET + " WHERE 0)");
         } else {
-            appendSearchIndexJoin(sb, uri, projection, filter, deferSnippeting);
+            appendSearchIndexJoin(sb, uri, projection, filter, deferSnippeting, lazySnippeting,
+                    rankedMatches);
         }
         appendContactPresenceJoin(sb, projection, Contacts._ID);
         appendContactStatusUpdateJoin(sb, projection, ContactsColumns.LAST_STATUS_UPDATE_ID);
@@ -8292,27 +8650,39 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
     private void appendSearchIndexJoin(
             StringBuilder sb, Uri uri, String[] projection, String filter,
-            boolean  deferSnippeting) {
-
-        if (snippetNeeded(projection)) {
-            String[] args = null;
-            String snippetArgs =
-                    getQueryParameter(uri, SearchSnippets.SNIPPET_ARGS_PARAM_KEY);
-            if (snippetArgs != null) {
-                args = snippetArgs.split(",");
-            }
-
-            String startMatch = args != null && args.length > 0 ? args[0]
-                    : DEFAULT_SNIPPET_ARG_START_MATCH;
-            String endMatch = args != null && args.length > 1 ? args[1]
-                    : DEFAULT_SNIPPET_ARG_END_MATCH;
-            String ellipsis = args != null && args.length > 2 ? args[2]
-                    : DEFAULT_SNIPPET_ARG_ELLIPSIS;
-            int maxTokens = args != null && args.length > 3 ? Integer.parseInt(args[3])
-                    : DEFAULT_SNIPPET_ARG_MAX_TOKENS;
-
-            appendSearchIndexJoin(
-                    sb, filter, true, startMatch, endMatch, ellipsis, maxTokens, deferSnippeting);
+            boolean  deferSnippeting, boolean lazySnippeting, SearchRanker.Result rankedMatches) {
+
+        // Snippets computed in SQL need the full text search to run.
+        if ((!snippetNeeded(projection) || deferSnippeting || lazySnippeting)
+                && filter.indexOf('@') == -1 && !isPhoneNumber(filter)) {
+            long[] docIds = rankedMatches != null ? rankedMatches.docIds : null;
+            if (docIds == null) {
+                final FilterSessionCache.Candidates candidates =
+                        getFilterSessionCandidates(uri, FilterSessionCache.MODE_CONTACTS, filter);
+                if (candidates != null) {
+                    docIds = candidates.docIds;
+                }
+            }
+            if (docIds != null) {
+                sb.append(" JOIN (SELECT " + SearchIndexColumns.CONTACT_ID
+                        + " AS snippet_contact_id");
+                if (snippetNeeded(projection)) {
+                    sb.append(", " + SearchIndexColumns.CONTENT + " AS " + SearchSnippets.SNIPPET);
+                }
+                sb.append(" FROM " + Tables.SEARCH_INDEX + " WHERE docid IN (");
+                appendIds(sb, docIds);
+                sb.append(")) ON (" + Contacts._ID + "=snippet_contact_id)");
+                return;
+            }
+        }
+
+        if (lazySnippeting) {
+            // The content is snippetized by LazySnippetCursor.
+            appendSearchIndexJoin(sb, filter, true, null, null, null, 0, true);
+        } else if (snippetNeeded(projection)) {
+            final String[] args = getSnippetArgs(uri);
+            appendSearchIndexJoin(sb, filter, true, args[0], args[1], args[2],
+                    Integer.parseInt(args[3]), deferSnippeting);
         } else {
             appendSearchIndexJoin(sb, filter, false, null, null, null, 0, false);
         }
@@ -8472,6 +8842,106 @@ public class ContactsProvider2 extends AbstractContactsProvider
         sb.append(" ON (" + Contacts._ID + "=" + SNIPPET_CONTACT_ID + ")");
     }
 
+    /**
+     * Returns the search index rows matching the filter from the filter session of the URI, or
+     * null if the URI doesn't have one or the filter can't be matched in memory.
+     */
+    private FilterSessionCache.Candidates getFilterSessionCandidates(Uri uri, int mode,
+            String filter) {
+        final String sessionId = getQueryParameter(uri, QUERY_PARAMETER_FILTER_SESSION);
+        if (TextUtils.isEmpty(sessionId) || inProfileMode()) {
+            return null;
+        }
+        return mFilterSessionCache.getCandidates(mDbHelper.get().getReadableDatabase(),
+                sessionId, mode, filter);
+    }
+
+    /**
+     * Returns a subquery selecting the raw contacts whose names match the filter, for the phone
+     * and email filters.
+     */
+    private String getRawContactIdsMatchingNameQuery(Uri uri, String filter,
+            String ftsMatchQuery) {
+        final FilterSessionCache.Candidates candidates =
+                getFilterSessionCandidates(uri, FilterSessionCache.MODE_NAMES, filter);
+        if (candidates != null) {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("(SELECT " + RawContactsColumns.CONCRETE_ID
+                    + " FROM " + Tables.RAW_CONTACTS
+                    + " WHERE " + RawContactsColumns.CONCRETE_CONTACT_ID + " IN (");
+            appendIds(sb, candidates.contactIds);
+            sb.append("))");
+            return sb.toString();
+        }
+        return "(SELECT " + RawContactsColumns.CONCRETE_ID +
+                " FROM " + Tables.SEARCH_INDEX +
+                " JOIN " + Tables.RAW_CONTACTS +
+                " ON (" + Tables.SEARCH_INDEX + "." + SearchIndexColumns.CONTACT_ID
+                        + "=" + RawContactsColumns.CONCRETE_CONTACT_ID + ")" +
+                " WHERE " + SearchIndexColumns.NAME + " MATCH '" + ftsMatchQuery + "')";
+    }
+
+    private static void appendIds(StringBuilder sb, long[] ids) {
+        for (int i = 0; i < ids.length; i++) {
+            if (i != 0) {
+                sb.append(',');
+            }
+            sb.append(ids[i]);
+        }
+    }
+
+    /**
+     * Returns the arguments of the snippet function from the URI, or their defaults: start match,
+     * end match, ellipsis and maximum number of tokens.
+     */
+    private static String[] getSnippetArgs(Uri uri) {
+        final String snippetArgs = getQueryParameter(uri, SearchSnippets.SNIPPET_ARGS_PARAM_KEY);
+        final String[] args = snippetArgs != null ? snippetArgs.split(",") : new String[0];
+        return new String[] {
+                args.length > 0 ? args[0] : DEFAULT_SNIPPET_ARG_START_MATCH,
+                args.length > 1 ? args[1] : DEFAULT_SNIPPET_ARG_END_MATCH,
+                args.length > 2 ? args[2] : DEFAULT_SNIPPET_ARG_ELLIPSIS,
+                args.length > 3 ? args[3] : String.valueOf(DEFAULT_SNIPPET_ARG_MAX_TOKENS)};
+    }
+
+    /**
+     * Returns whether the snippets of a contacts filter can be computed by
+     * {@link LazySnippetCursor}, i.e. whether the filter is matched against the names and
+     * content of the search index rather than as an email address or phone number.
+     */
+    private boolean isLazySnippetFilter(String filter, long directoryId) {
+        return isNameFilter(filter, directoryId)
+                && !TextUtils.isEmpty(NameNormalizer.normalize(filter.trim()));
+    }
+
+    /**
+     * Returns whether a contacts filter is matched against the search index of the default
+     * directory as names and content, rather than as an email address or phone number.
+     */
+    private boolean isNameFilter(String filter, long directoryId) {
+        if (directoryId != -1 && directoryId != Directory.DEFAULT) {
+            return false;
+        }
+        filter = filter.trim();
+        return !TextUtils.isEmpty(filter) && filter.indexOf('@') == -1 && !isPhoneNumber(filter);
+    }
+
+    /**
+     * Returns the sort order listing the contacts in the order of the ranked or fuzzy matches.
+     */
+    private static String getRankedSortOrder(SearchRanker.Result rankedMatches) {
+        if (rankedMatches.contactIds.length == 0) {
+            return null;
+        }
+        final StringBuilder sb = new StringBuilder();
+        sb.append("CASE " + Contacts._ID);
+        for (int i = 0; i < rankedMatches.contactIds.length; i++) {
+            sb.append(" WHEN ").append(rankedMatches.contactIds[i]).append(" THEN ").append(i);
+        }
+        sb.append(" END");
+        return sb.toString();
+    }
+
     private static String sanitizeMatch(String filter) {
         return filter.replace("'", "").replace("*", "").replace("-", "").replace("\"", "");
     }
@@ -9021,7 +9491,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 try {
                     if (c.moveToFirst()) {
                         long photoFileId = c.getLong(0);
-                        return openDisplayPhotoForRead(photoFileId);
+                        return openDisplayPhotoForRead(photoFileId, getDisplayPhotoMaxDim(uri));
                     }
                     // No contact for this ID.
                     throw new FileNotFoundException(uri.toString());
@@ -9153,7 +9623,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
                     throw new IllegalArgumentException(
                             "Display photos retrieved by key can only be read.");
                 }
-                return openDisplayPhotoForRead(photoFileId);
+                return openDisplayPhotoForRead(photoFileId, getDisplayPhotoMaxDim(uri));
             }
 
             case DATA_ID: {
@@ -9348,8 +9818,23 @@ public class ContactsProvider2 extends AbstractContactsProvider
      */
     private AssetFileDescriptor openDisplayPhotoForRead(
             long photoFileId) throws FileNotFoundException {
+        return openDisplayPhotoForRead(photoFileId, 0);
+    }
+
+    /**
+     * Opens a display photo from the photo store for reading, scaled down to fit in the given
+     * dimension if needed.
+     * @param photoFileId The display photo file ID
+     * @param maxDim Maximum width and height of the photo, or 0 for the full display photo.
+     * @return An asset file descriptor that allows the file to be read.
+     * @throws FileNotFoundException If no photo file for the given ID exists.
+     */
+    private AssetFileDescriptor openDisplayPhotoForRead(
+            long photoFileId, int maxDim) throws FileNotFoundException {
 
-        PhotoStore.Entry entry = mPhotoStore.get().get(photoFileId);
+        PhotoStore.Entry entry = maxDim > 0
+                ? mPhotoStore.get().getVariant(photoFileId, maxDim)
+                : mPhotoStore.get().get(photoFileId);
         if (entry != null) {
             try {
                 return makeAssetFileDescriptor(
@@ -9366,6 +9851,28 @@ public class ContactsProvider2 extends AbstractContactsProvider
         }
     }
 
+    /**
+     * Returns the value of {@link #QUERY_PARAMETER_DISPLAY_PHOTO_MAX_DIM} in the given URI, or
+     * 0 if it is absent.
+     */
+    private static int getDisplayPhotoMaxDim(Uri uri) {
+        final String maxDimParam = uri.getQueryParameter(QUERY_PARAMETER_DISPLAY_PHOTO_MAX_DIM);
+        if (TextUtils.isEmpty(maxDimParam)) {
+            return 0;
+        }
+        try {
+            final int maxDim = Integer.parseInt(maxDimParam);
+            if (maxDim <= 0) {
+                throw new IllegalArgumentException(
+                        "Invalid " + QUERY_PARAMETER_DISPLAY_PHOTO_MAX_DIM + ": " + maxDimParam);
+            }
+            return maxDim;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                    "Invalid " + QUERY_PARAMETER_DISPLAY_PHOTO_MAX_DIM + ": " + maxDimParam);
+        }
+    }
+
     /**
      * Opens a file descriptor for a photo to be written.  When the caller completes writing
      * to the file (closing the output stream), the image will be parsed out and processed.
@@ -10441,6 +10948,9 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
         dump(pw, "Contacts");
 
+        pw.println();
+        NameNgramIndex.dump(pw, mContactsHelper.getReadableDatabase());
+
         pw.println();
 
         mProfileProvider.dump(fd, pw, args);
@@ -19,6 +19,7 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Email;
 import android.provider.ContactsContract.CommonDataKinds.Nickname;
@@ -41,6 +42,12 @@ public abstract class DataRowHandler {
     private static final String[] HASH_INPUT_COLUMNS = new String[] {
             Data.DATA1, Data.DATA2};
 
+    private static final String DATA_DELETE_SQL =
+            "DELETE FROM " + Tables.DATA + " WHERE " + Data._ID + "=?";
+
+    private static final String PRESENCE_DELETE_SQL =
+            "DELETE FROM " + Tables.PRESENCE + " WHERE " + PresenceColumns.RAW_CONTACT_ID + "=?";
+
     public interface DataDeleteQuery {
         public static final String TABLE = Tables.DATA_JOIN_MIMETYPES;
 
@@ -319,10 +326,13 @@ public abstract class DataRowHandler {
         long dataId = c.getLong(DataDeleteQuery._ID);
         long rawContactId = c.getLong(DataDeleteQuery.RAW_CONTACT_ID);
         boolean primary = c.getInt(DataDeleteQuery.IS_PRIMARY) != 0;
-        mSelectionArgs1[0] = String.valueOf(dataId);
-        int count = db.delete(Tables.DATA, Data._ID + "=?", mSelectionArgs1);
-        mSelectionArgs1[0] = String.valueOf(rawContactId);
-        db.delete(Tables.PRESENCE, PresenceColumns.RAW_CONTACT_ID + "=?", mSelectionArgs1);
+        final SQLiteStatement dataDelete = mDbHelper.getCompiledStatement(DATA_DELETE_SQL);
+        dataDelete.bindLong(1, dataId);
+        int count = dataDelete.executeUpdateDelete();
+        final SQLiteStatement presenceDelete =
+                mDbHelper.getCompiledStatement(PRESENCE_DELETE_SQL);
+        presenceDelete.bindLong(1, rawContactId);
+        presenceDelete.executeUpdateDelete();
         if (count != 0 && primary) {
             fixPrimary(db, rawContactId);
             txContext.markRawContactMetadataDirty(rawContactId, /* isMetadataSyncAdapter =*/false);
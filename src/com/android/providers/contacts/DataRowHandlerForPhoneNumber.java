@@ -23,8 +23,6 @@ import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 
-import com.android.providers.contacts.ContactsDatabaseHelper.PhoneLookupColumns;
-import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
 import com.android.providers.contacts.SearchIndexManager.IndexBuilder;
 import com.android.providers.contacts.aggregation.AbstractContactAggregator;
 
@@ -113,24 +111,14 @@ public class DataRowHandlerForPhoneNumber extends DataRowHandlerForCommonDataKin
 
     private void updatePhoneLookup(SQLiteDatabase db, long rawContactId, long dataId,
             String number, String numberE164) {
-        mSelectionArgs1[0] = String.valueOf(dataId);
-        db.delete(Tables.PHONE_LOOKUP, PhoneLookupColumns.DATA_ID + "=?", mSelectionArgs1);
+        mDbHelper.deletePhoneLookup(dataId);
         if (number != null) {
             String normalizedNumber = PhoneNumberUtils.normalizeNumber(number);
             if (!TextUtils.isEmpty(normalizedNumber)) {
-                ContentValues phoneValues = new ContentValues();
-                phoneValues.put(PhoneLookupColumns.RAW_CONTACT_ID, rawContactId);
-                phoneValues.put(PhoneLookupColumns.DATA_ID, dataId);
-                phoneValues.put(PhoneLookupColumns.NORMALIZED_NUMBER, normalizedNumber);
-                phoneValues.put(PhoneLookupColumns.MIN_MATCH,
-                        PhoneNumberUtils.toCallerIDMinMatch(normalizedNumber));
-                db.insert(Tables.PHONE_LOOKUP, null, phoneValues);
+                mDbHelper.insertPhoneLookup(rawContactId, dataId, normalizedNumber);
 
                 if (numberE164 != null && !numberE164.equals(normalizedNumber)) {
-                    phoneValues.put(PhoneLookupColumns.NORMALIZED_NUMBER, numberE164);
-                    phoneValues.put(PhoneLookupColumns.MIN_MATCH,
-                            PhoneNumberUtils.toCallerIDMinMatch(numberE164));
-                    db.insert(Tables.PHONE_LOOKUP, null, phoneValues);
+                    mDbHelper.insertPhoneLookup(rawContactId, dataId, numberE164);
                 }
             }
         }
@@ -25,24 +25,24 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.ActivityInfo;
-import android.content.pm.ResolveInfo;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.DatabaseUtils.InsertHelper;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Binder;
 import android.provider.CallLog.Calls;
 import android.provider.VoicemailContract;
 import android.provider.VoicemailContract.Status;
 import android.provider.VoicemailContract.Voicemails;
+import android.text.TextUtils;
 import android.util.Log;
 import com.android.common.io.MoreCloseables;
 import com.android.providers.contacts.CallLogDatabaseHelper.Tables;
 import com.android.providers.contacts.util.DbQueryUtils;
 import com.google.android.collect.Lists;
 import com.google.common.collect.Iterables;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
@@ -73,6 +73,13 @@ public class DbModifierWithNotification implements DatabaseModifier {
     private final boolean mIsCallsTable;
     private final VoicemailPermissions mVoicemailPermissions;
 
+    /** Whether notifications are collected until {@link #flushNotifications()}. */
+    private boolean mDeferNotifications;
+    private boolean mPendingCallLogChange;
+    private boolean mPendingMarkedRead;
+    private boolean mPendingReclaim;
+    private final Set<String> mPendingInsertedPackages = new HashSet<String>();
+    private final Set<String> mPendingChangedPackages = new HashSet<String>();
 
     public DbModifierWithNotification(String tableName, SQLiteDatabase db, Context context) {
         this(tableName, db, null, context);
@@ -83,7 +90,7 @@ public class DbModifierWithNotification implements DatabaseModifier {
         this(tableName, null, insertHelper, context);
     }
 
-    private DbModifierWithNotification(String tableName, SQLiteDatabase db,
+    public DbModifierWithNotification(String tableName, SQLiteDatabase db,
             InsertHelper insertHelper, Context context) {
         mTableName = tableName;
         mDb = db;
@@ -95,11 +102,55 @@ public class DbModifierWithNotification implements DatabaseModifier {
         mVoicemailPermissions = new VoicemailPermissions(mContext);
     }
 
+    /**
+     * Makes this modifier collect the notifications of the operations performed through it,
+     * instead of sending them right away, so that a batch of operations results in a single
+     * round of notifications when {@link #flushNotifications()} is called.  A modifier used
+     * within a transaction must defer its notifications, and flush them once the transaction
+     * has been committed.
+     */
+    public DbModifierWithNotification deferNotifications() {
+        mDeferNotifications = true;
+        return this;
+    }
+
+    /**
+     * Sends the notifications collected since {@link #deferNotifications()}, and goes back to
+     * sending them right away.
+     */
+    public void flushNotifications() {
+        mDeferNotifications = false;
+        if (!mPendingInsertedPackages.isEmpty()) {
+            notifyVoicemailChangeOnInsert(mBaseUri, mPendingInsertedPackages);
+            mPendingChangedPackages.removeAll(mPendingInsertedPackages);
+        }
+        if (!mPendingChangedPackages.isEmpty()) {
+            notifyVoicemailChange(mBaseUri, mPendingChangedPackages,
+                    Intent.ACTION_PROVIDER_CHANGED);
+        }
+        if (mPendingCallLogChange) {
+            notifyCallLogChange();
+        }
+        if (mPendingMarkedRead) {
+            notifyMarkedRead(mBaseUri);
+        }
+        if (mPendingReclaim) {
+            VoicemailFileReclaimer.schedule(mDb);
+        }
+        mPendingInsertedPackages.clear();
+        mPendingChangedPackages.clear();
+        mPendingCallLogChange = false;
+        mPendingMarkedRead = false;
+        mPendingReclaim = false;
+    }
+
     @Override
     public long insert(String table, String nullColumnHack, ContentValues values) {
         Set<String> packagesModified = getModifiedPackages(values);
         if (mIsCallsTable) {
             values.put(Calls.LAST_MODIFIED, getTimeMillis());
+            CallLogDatabaseHelper.putMinMatch(values);
+            CallLogDatabaseHelper.putCachedContactId(values);
         }
         long rowId = mDb.insert(table, nullColumnHack, values);
         if (rowId > 0 && packagesModified.size() != 0) {
@@ -117,6 +168,8 @@ public class DbModifierWithNotification implements DatabaseModifier {
         Set<String> packagesModified = getModifiedPackages(values);
         if (mIsCallsTable) {
             values.put(Calls.LAST_MODIFIED, getTimeMillis());
+            CallLogDatabaseHelper.putMinMatch(values);
+            CallLogDatabaseHelper.putCachedContactId(values);
         }
         long rowId = mInsertHelper.insert(values);
         if (rowId > 0 && packagesModified.size() != 0) {
@@ -130,18 +183,32 @@ public class DbModifierWithNotification implements DatabaseModifier {
     }
 
     private void notifyCallLogChange() {
-        mContext.getContentResolver().notifyChange(Calls.CONTENT_URI, null, false);
-
-        Intent intent = new Intent("android.intent.action.CALL_LOG_CHANGE");
-        intent.setComponent(new ComponentName("com.android.calllogbackup",
-                "com.android.calllogbackup.CallLogChangeReceiver"));
-
-        if (!mContext.getPackageManager().queryBroadcastReceivers(intent, 0).isEmpty()) {
-            mContext.sendBroadcast(intent);
+        if (mDeferNotifications) {
+            mPendingCallLogChange = true;
+            return;
         }
+        final Context context = mContext;
+        NotificationCoalescer.notifyCallLogChange(new Runnable() {
+            @Override
+            public void run() {
+                context.getContentResolver().notifyChange(Calls.CONTENT_URI, null, false);
+
+                Intent intent = new Intent("android.intent.action.CALL_LOG_CHANGE");
+                intent.setComponent(new ComponentName("com.android.calllogbackup",
+                        "com.android.calllogbackup.CallLogChangeReceiver"));
+
+                if (!NotificationCoalescer.getReceiverComponents(context, intent).isEmpty()) {
+                    context.sendBroadcast(intent);
+                }
+            }
+        });
     }
 
     private void notifyVoicemailChangeOnInsert(Uri notificationUri, Set<String> packagesModified) {
+        if (mDeferNotifications) {
+            mPendingInsertedPackages.addAll(packagesModified);
+            return;
+        }
         if (mIsCallsTable) {
             notifyVoicemailChange(notificationUri, packagesModified,
                     VoicemailContract.ACTION_NEW_VOICEMAIL, Intent.ACTION_PROVIDER_CHANGED);
@@ -160,12 +227,20 @@ public class DbModifierWithNotification implements DatabaseModifier {
         boolean isVoicemail = packagesModified.size() != 0;
 
         boolean hasMarkedRead = false;
+        boolean updateLastModified = false;
         if (mIsCallsTable) {
             if (values.containsKey(Voicemails.DELETED)
                     && !values.getAsBoolean(Voicemails.DELETED)) {
                 values.put(Calls.LAST_MODIFIED, getTimeMillis());
-            } else {
-                updateLastModified(table, whereClause, whereArgs);
+            } else if (!values.containsKey(Calls.LAST_MODIFIED)) {
+                // A last_modified set by the caller is kept as it is.
+                updateLastModified = true;
+            }
+            CallLogDatabaseHelper.putMinMatch(values);
+            CallLogDatabaseHelper.putCachedContactId(values);
+            if (values.containsKey(Calls.NUMBER)) {
+                // The cached contact info needs to be looked up again for the new number.
+                values.put(CallLogDatabaseHelper.CALLS_CONTACT_INFO_GENERATION, 0);
             }
             if (isVoicemail) {
                 // If a calling package is modifying its own entries, it means that the change came
@@ -186,7 +261,9 @@ public class DbModifierWithNotification implements DatabaseModifier {
             }
         }
 
-        int count = mDb.update(table, values, whereClause, whereArgs);
+        int count = updateLastModified
+                ? updateWithLastModified(table, values, whereClause, whereArgs)
+                : mDb.update(table, values, whereClause, whereArgs);
         if (count > 0 && isVoicemail) {
             notifyVoicemailChange(mBaseUri, packagesModified, Intent.ACTION_PROVIDER_CHANGED);
         }
@@ -194,23 +271,57 @@ public class DbModifierWithNotification implements DatabaseModifier {
             notifyCallLogChange();
         }
         if (hasMarkedRead) {
-            // A "New" voicemail has been marked as read by the server. This voicemail is no longer
-            // new but the content consumer might still think it is. ACTION_NEW_VOICEMAIL should
-            // trigger a rescan of new voicemails.
-            mContext.sendBroadcast(
-                    new Intent(VoicemailContract.ACTION_NEW_VOICEMAIL, uri),
-                    READ_VOICEMAIL);
+            notifyMarkedRead(uri);
         }
         return count;
     }
 
-    private void updateLastModified(String table, String whereClause, String[] whereArgs) {
-        ContentValues values = new ContentValues();
-        values.put(Calls.LAST_MODIFIED, getTimeMillis());
+    private void notifyMarkedRead(Uri uri) {
+        if (mDeferNotifications) {
+            mPendingMarkedRead = true;
+            return;
+        }
+        // A "New" voicemail has been marked as read by the server. This voicemail is no longer
+        // new but the content consumer might still think it is. ACTION_NEW_VOICEMAIL should
+        // trigger a rescan of new voicemails.
+        mContext.sendBroadcast(
+                new Intent(VoicemailContract.ACTION_NEW_VOICEMAIL, uri),
+                READ_VOICEMAIL);
+    }
 
-        mDb.update(table, values,
-                DbQueryUtils.concatenateClauses(NOT_DELETED_SELECTION, whereClause),
-                whereArgs);
+    /**
+     * Same as {@link SQLiteDatabase#update}, but also sets {@link Calls#LAST_MODIFIED} on the
+     * rows that are not deleted, in the same statement.
+     */
+    private int updateWithLastModified(String table, ContentValues values, String whereClause,
+            String[] whereArgs) {
+        final int whereArgsCount = whereArgs == null ? 0 : whereArgs.length;
+        final Object[] bindArgs = new Object[values.size() + 1 + whereArgsCount];
+        final StringBuilder sql = new StringBuilder("UPDATE " + table + " SET ");
+        int i = 0;
+        for (String column : values.keySet()) {
+            sql.append(column).append("=?,");
+            bindArgs[i++] = values.get(column);
+        }
+        sql.append(Calls.LAST_MODIFIED + "=CASE WHEN " + NOT_DELETED_SELECTION + " THEN ? ELSE "
+                + Calls.LAST_MODIFIED + " END");
+        bindArgs[i++] = getTimeMillis();
+        if (!TextUtils.isEmpty(whereClause)) {
+            sql.append(" WHERE ").append(whereClause);
+        }
+        for (int j = 0; j < whereArgsCount; j++) {
+            bindArgs[i++] = whereArgs[j];
+        }
+
+        final SQLiteStatement statement = mDb.compileStatement(sql.toString());
+        try {
+            for (int j = 0; j < bindArgs.length; j++) {
+                DatabaseUtils.bindObjectToProgram(statement, j + 1, bindArgs[j]);
+            }
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
     }
 
     @Override
@@ -235,6 +346,15 @@ public class DbModifierWithNotification implements DatabaseModifier {
             count = mDb.update(table, values, whereClause, whereArgs);
         } else {
             count = mDb.delete(table, whereClause, whereArgs);
+            if (count > 0 && mIsCallsTable && isVoicemail) {
+                // The files are queued by the delete, but the queue can only be drained once
+                // the delete has been committed.
+                if (mDeferNotifications) {
+                    mPendingReclaim = true;
+                } else {
+                    VoicemailFileReclaimer.schedule(mDb);
+                }
+            }
         }
 
         if (count > 0 && isVoicemail) {
@@ -251,12 +371,15 @@ public class DbModifierWithNotification implements DatabaseModifier {
      * where clause. When called from an insert operation an empty set returned by this method
      * implies (indirectly) that this does not affect any voicemail entry, as a voicemail entry is
      * always expected to have the source package field set.
+     * <p>
+     * In the calls table, only the voicemails are looked at (through a partial index on the
+     * source package), so this doesn't scan the call log.
      */
     private Set<String> getModifiedPackages(String whereClause, String[] whereArgs) {
         Set<String> modifiedPackages = new HashSet<String>();
-        Cursor cursor = mDb.query(mTableName, PROJECTION,
+        Cursor cursor = mDb.query(true /* distinct */, mTableName, PROJECTION,
                 DbQueryUtils.concatenateClauses(NON_NULL_SOURCE_PACKAGE_SELECTION, whereClause),
-                whereArgs, null, null, null);
+                whereArgs, null, null, null, null);
         while(cursor.moveToNext()) {
             modifiedPackages.add(cursor.getString(SOURCE_PACKAGE_COLUMN_INDEX));
         }
@@ -297,6 +420,10 @@ public class DbModifierWithNotification implements DatabaseModifier {
 
     private void notifyVoicemailChange(Uri notificationUri, Set<String> modifiedPackages,
             String... intentActions) {
+        if (mDeferNotifications) {
+            mPendingChangedPackages.addAll(modifiedPackages);
+            return;
+        }
         // Notify the observers.
         // Must be done only once, even if there are multiple broadcast intents.
         mContext.getContentResolver().notifyChange(notificationUri, null, true);
@@ -336,15 +463,8 @@ public class DbModifierWithNotification implements DatabaseModifier {
 
     /** Determines the components that can possibly receive the specified intent. */
     private List<ComponentName> getBroadcastReceiverComponents(String intentAction, Uri uri) {
-        Intent intent = new Intent(intentAction, uri);
-        List<ComponentName> receiverComponents = new ArrayList<ComponentName>();
-        // For broadcast receivers ResolveInfo.activityInfo is the one that is populated.
-        for (ResolveInfo resolveInfo :
-                mContext.getPackageManager().queryBroadcastReceivers(intent, 0)) {
-            ActivityInfo activityInfo = resolveInfo.activityInfo;
-            receiverComponents.add(new ComponentName(activityInfo.packageName, activityInfo.name));
-        }
-        return receiverComponents;
+        return NotificationCoalescer.getReceiverComponents(mContext,
+                new Intent(intentAction, uri));
     }
 
     /**
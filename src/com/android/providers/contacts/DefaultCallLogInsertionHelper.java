@@ -21,6 +21,7 @@ import android.content.Context;
 import android.provider.CallLog.Calls;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
+import android.util.LruCache;
 
 import com.android.i18n.phonenumbers.NumberParseException;
 import com.android.i18n.phonenumbers.PhoneNumberUtil;
@@ -39,16 +40,35 @@ import java.util.Set;
  * It checks for legacy unknown numbers and updates number presentation.
  * <p>
  * It uses {@link PhoneNumberOfflineGeocoder} to compute the geocoded location of a phone number.
+ * The parsed results are memoized per number, country and locale, since call logs (and
+ * particularly call log restores) contain the same numbers over and over.
  */
 /*package*/ class DefaultCallLogInsertionHelper implements CallLogInsertionHelper {
     private static DefaultCallLogInsertionHelper sInstance;
 
     private static final Set<String> LEGACY_UNKNOWN_NUMBERS = Sets.newHashSet("-1", "-2", "-3");
 
+    /** Maximum number of (number, country, locale) keys whose computed values are memoized. */
+    private static final int COMPUTED_NUMBER_CACHE_SIZE = 256;
+
+    /** The values computed for a number in a country, in a locale. */
+    private static final class ComputedNumber {
+        final String geocodedLocation;
+        final String normalizedNumber;
+
+        ComputedNumber(String geocodedLocation, String normalizedNumber) {
+            this.geocodedLocation = geocodedLocation;
+            this.normalizedNumber = normalizedNumber;
+        }
+    }
+
+    private final LruCache<String, ComputedNumber> mComputedNumberCache =
+            new LruCache<String, ComputedNumber>(COMPUTED_NUMBER_CACHE_SIZE);
+
     private final CountryMonitor mCountryMonitor;
     private PhoneNumberUtil mPhoneNumberUtil;
     private PhoneNumberOfflineGeocoder mPhoneNumberOfflineGeocoder;
-    private final Locale mLocale;
+    private final Context mContext;
 
     public static synchronized DefaultCallLogInsertionHelper getInstance(Context context) {
         if (sInstance == null) {
@@ -59,7 +79,7 @@ import java.util.Set;
 
     private DefaultCallLogInsertionHelper(Context context) {
         mCountryMonitor = new CountryMonitor(context);
-        mLocale = context.getResources().getConfiguration().locale;
+        mContext = context;
     }
 
     @Override
@@ -67,11 +87,13 @@ import java.util.Set;
         // Insert the current country code, so we know the country the number belongs to.
         String countryIso = getCurrentCountryIso();
         values.put(Calls.COUNTRY_ISO, countryIso);
-        // Insert the geocoded location, so that we do not need to compute it on the fly.
-        values.put(Calls.GEOCODED_LOCATION,
-                getGeocodedLocationFor(values.getAsString(Calls.NUMBER), countryIso));
 
         final String number = values.getAsString(Calls.NUMBER);
+        final ComputedNumber computed = getComputedNumber(number, countryIso);
+
+        // Insert the geocoded location, so that we do not need to compute it on the fly.
+        values.put(Calls.GEOCODED_LOCATION, computed.geocodedLocation);
+
         if (LEGACY_UNKNOWN_NUMBERS.contains(number)) {
             values.put(Calls.NUMBER_PRESENTATION, Calls.PRESENTATION_UNKNOWN);
             values.put(Calls.NUMBER, "");
@@ -79,18 +101,39 @@ import java.util.Set;
 
         // Check for a normalized number; if not present attempt to determine one now.
         if (!values.containsKey(Calls.CACHED_NORMALIZED_NUMBER) &&
-                !TextUtils.isEmpty(number)) {
-            String normalizedNumber = PhoneNumberUtils.formatNumberToE164(number, countryIso);
-            if (!TextUtils.isEmpty(normalizedNumber)) {
-                values.put(Calls.CACHED_NORMALIZED_NUMBER, normalizedNumber);
-            }
+                !TextUtils.isEmpty(computed.normalizedNumber)) {
+            values.put(Calls.CACHED_NORMALIZED_NUMBER, computed.normalizedNumber);
+        }
+    }
+
+    /**
+     * Returns the geocoded location and normalized number for the given number, computing them
+     * only if they aren't memoized yet.  The geocoded location is in the current locale, which
+     * is part of the key, so a locale change doesn't return locations in the old language.
+     */
+    private ComputedNumber getComputedNumber(String number, String countryIso) {
+        final Locale locale = getCurrentLocale();
+        if (TextUtils.isEmpty(number)) {
+            return new ComputedNumber(getGeocodedLocationFor(number, countryIso, locale), null);
+        }
+        final String key = locale + "|" + countryIso + "|" + number;
+        ComputedNumber computed = mComputedNumberCache.get(key);
+        if (computed == null) {
+            computed = new ComputedNumber(getGeocodedLocationFor(number, countryIso, locale),
+                    PhoneNumberUtils.formatNumberToE164(number, countryIso));
+            mComputedNumberCache.put(key, computed);
         }
+        return computed;
     }
 
     private String getCurrentCountryIso() {
         return mCountryMonitor.getCountryIso();
     }
 
+    private Locale getCurrentLocale() {
+        return mContext.getResources().getConfiguration().locale;
+    }
+
     private synchronized PhoneNumberUtil getPhoneNumberUtil() {
         if (mPhoneNumberUtil == null) {
             mPhoneNumberUtil = PhoneNumberUtil.getInstance();
@@ -115,10 +158,14 @@ import java.util.Set;
 
     @Override
     public String getGeocodedLocationFor(String number, String countryIso) {
+        return getGeocodedLocationFor(number, countryIso, getCurrentLocale());
+    }
+
+    private String getGeocodedLocationFor(String number, String countryIso, Locale locale) {
         PhoneNumber structuredPhoneNumber = parsePhoneNumber(number, countryIso);
         if (structuredPhoneNumber != null) {
             return getPhoneNumberOfflineGeocoder().getDescriptionForNumber(
-                    structuredPhoneNumber, mLocale);
+                    structuredPhoneNumber, locale);
         } else {
             return null;
         }
@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.providers.contacts.ContactsDatabaseHelper.SearchIndexColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
+import com.android.providers.contacts.SearchIndexManager.FtsQueryBuilder;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the {@link Tables#SEARCH_INDEX} rows that matched the last filter of each type-ahead
+ * session, so that when the user types one more character the rows matching the longer filter
+ * can be picked out in memory instead of running the full text search again.
+ * <p>
+ * A session is identified by a string chosen by the client (see
+ * {@link ContactsProvider2#QUERY_PARAMETER_FILTER_SESSION}).  The rows of a session are only
+ * narrowed down if the new filter starts with the previous one, i.e. if it can only match
+ * fewer rows, and if the contacts haven't changed since (see {@link #invalidate}).  Otherwise
+ * the caller runs its usual query, and the rows are read again to start the session over if
+ * there are at most {@link #MAX_ROWS} of them.
+ * <p>
+ * The in-memory match follows the full text query built by {@link SearchIndexManager}: every
+ * token of the filter must be a prefix of a word of the row, in the columns the query is
+ * scoped to, with SQLite's "simple" tokenizer rules (only ASCII is case folded).
+ */
+public class FilterSessionCache {
+
+    /**
+     * Matches tokens against the content, name and tokens columns, and only returns contacts
+     * in the default directory, like the contacts filter.
+     */
+    public static final int MODE_CONTACTS = 0;
+
+    /** Matches tokens against the name column only, like the phone and email filters. */
+    public static final int MODE_NAMES = 1;
+
+    @VisibleForTesting
+    static final int MAX_SESSIONS = 8;
+
+    /**
+     * Sessions with more candidate rows than this are not kept; the first character or two of
+     * a filter may match most contacts.
+     */
+    @VisibleForTesting
+    static final int MAX_ROWS = 1000;
+
+    private final LruCache<String, Session> mSessions = new LruCache<String, Session>(MAX_SESSIONS);
+
+    private final AtomicLong mGeneration = new AtomicLong();
+
+    private final AtomicLong mQueryCount = new AtomicLong();
+    private final AtomicLong mNarrowCount = new AtomicLong();
+
+    /**
+     * The rows matching the filter of a session.
+     */
+    public static final class Candidates {
+        /** The rowids of the {@link Tables#SEARCH_INDEX} rows. */
+        public final long[] docIds;
+        public final long[] contactIds;
+
+        private final String[][] mContentWords;
+        private final String[][] mNameWords;
+        private final String[][] mTokenWords;
+
+        Candidates(int count) {
+            docIds = new long[count];
+            contactIds = new long[count];
+            mContentWords = new String[count][];
+            mNameWords = new String[count][];
+            mTokenWords = new String[count][];
+        }
+
+        public int size() {
+            return docIds.length;
+        }
+    }
+
+    private static final class Session {
+        final int mMode;
+        final String mFilter;
+        final long mGeneration;
+        final Candidates mCandidates;
+
+        Session(int mode, String filter, long generation, Candidates candidates) {
+            mMode = mode;
+            mFilter = filter;
+            mGeneration = generation;
+            mCandidates = candidates;
+        }
+    }
+
+    /**
+     * Drops what all the sessions have cached.  Called whenever the contacts may have changed.
+     */
+    public void invalidate() {
+        mGeneration.incrementAndGet();
+    }
+
+    /**
+     * Returns the search index rows matching the filter, narrowed down from the rows of the
+     * previous filter of the session, or null if the session has nothing to narrow down (e.g. on
+     * the first filter) or the filter can't be matched in memory (e.g. it has no tokens), in
+     * which case the caller should run its usual query.
+     */
+    public Candidates getCandidates(SQLiteDatabase db, String sessionId, int mode,
+            String filter) {
+        final List<String> tokens = SearchIndexManager.splitIntoFtsTokens(filter);
+        if (tokens.isEmpty()) {
+            return null;
+        }
+        final String[] foldedTokens = new String[tokens.size()];
+        final String[] nameTokens = new String[tokens.size()];
+        for (int i = 0; i < foldedTokens.length; i++) {
+            foldedTokens[i] = foldAscii(tokens.get(i));
+            nameTokens[i] = foldAscii(NameNormalizer.normalizeToHex(tokens.get(i)));
+            if (mode == MODE_NAMES && TextUtils.isEmpty(nameTokens[i])) {
+                return null;
+            }
+        }
+
+        // Read before querying, so that changes committed during the query invalidate it.
+        final long generation = mGeneration.get();
+        final Session session = mSessions.get(sessionId);
+        if (session != null && session.mMode == mode && session.mGeneration == generation
+                && filter.startsWith(session.mFilter)) {
+            final Candidates candidates =
+                    narrow(session.mCandidates, mode, foldedTokens, nameTokens);
+            mNarrowCount.incrementAndGet();
+            mSessions.put(sessionId, new Session(mode, filter, generation, candidates));
+            return candidates;
+        }
+
+        // Nothing to narrow down: the caller runs its usual query, and the rows are only read
+        // here for the next filter of the session.
+        final Candidates candidates = query(db, mode, filter);
+        mQueryCount.incrementAndGet();
+        if (candidates != null) {
+            mSessions.put(sessionId, new Session(mode, filter, generation, candidates));
+        } else {
+            mSessions.remove(sessionId);
+        }
+        return null;
+    }
+
+    /**
+     * Reads the rows matching the filter, or returns null without reading them if there are
+     * more than {@link #MAX_ROWS}.  Only the docids come from the full text search; the content
+     * of the rows is then read by docid, once there are few enough of them to keep.
+     */
+    private static Candidates query(SQLiteDatabase db, int mode, String filter) {
+        final long[] docIds = queryDocIds(db, mode, filter);
+        if (docIds == null) {
+            return null;
+        }
+        if (docIds.length == 0) {
+            return new Candidates(0);
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        sb.append("SELECT docid, " + SearchIndexColumns.CONTACT_ID + ", "
+                + SearchIndexColumns.CONTENT + ", " + SearchIndexColumns.NAME + ", "
+                + SearchIndexColumns.TOKENS
+                + " FROM " + Tables.SEARCH_INDEX + " WHERE docid IN (");
+        for (int i = 0; i < docIds.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(docIds[i]);
+        }
+        sb.append(')');
+
+        final Cursor cursor = db.rawQuery(sb.toString(), null);
+        try {
+            // Rows deleted in between are left out; the deletion invalidates the session anyway.
+            final Candidates candidates = new Candidates(cursor.getCount());
+            int i = 0;
+            while (cursor.moveToNext()) {
+                candidates.docIds[i] = cursor.getLong(0);
+                candidates.contactIds[i] = cursor.getLong(1);
+                candidates.mContentWords[i] = splitWords(cursor.getString(2));
+                candidates.mNameWords[i] = splitWords(cursor.getString(3));
+                candidates.mTokenWords[i] = splitWords(cursor.getString(4));
+                i++;
+            }
+            return candidates;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the docids of the rows matching the filter, or null if there are more than
+     * {@link #MAX_ROWS}.
+     */
+    private static long[] queryDocIds(SQLiteDatabase db, int mode, String filter) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("SELECT docid FROM " + Tables.SEARCH_INDEX + " WHERE ");
+        if (mode == MODE_CONTACTS) {
+            sb.append(Tables.SEARCH_INDEX + " MATCH '");
+            sb.append(SearchIndexManager.getFtsMatchQuery(filter,
+                    FtsQueryBuilder.SCOPED_NAME_NORMALIZING));
+            sb.append("' AND " + SearchIndexColumns.CONTACT_ID + " IN "
+                    + Tables.DEFAULT_DIRECTORY);
+        } else {
+            sb.append(SearchIndexColumns.NAME + " MATCH '");
+            sb.append(SearchIndexManager.getFtsMatchQuery(filter,
+                    FtsQueryBuilder.UNSCOPED_NORMALIZING));
+            sb.append("'");
+        }
+        sb.append(" LIMIT " + (MAX_ROWS + 1));
+
+        final Cursor cursor = db.rawQuery(sb.toString(), null);
+        try {
+            final int count = cursor.getCount();
+            if (count > MAX_ROWS) {
+                return null;
+            }
+            final long[] docIds = new long[count];
+            int i = 0;
+            while (cursor.moveToNext()) {
+                docIds[i++] = cursor.getLong(0);
+            }
+            return docIds;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static Candidates narrow(Candidates candidates, int mode, String[] tokens,
+            String[] nameTokens) {
+        final boolean[] matches = new boolean[candidates.size()];
+        int count = 0;
+        for (int i = 0; i < matches.length; i++) {
+            matches[i] = matches(candidates, i, mode, tokens, nameTokens);
+            if (matches[i]) {
+                count++;
+            }
+        }
+
+        final Candidates narrowed = new Candidates(count);
+        int j = 0;
+        for (int i = 0; i < matches.length; i++) {
+            if (matches[i]) {
+                narrowed.docIds[j] = candidates.docIds[i];
+                narrowed.contactIds[j] = candidates.contactIds[i];
+                narrowed.mContentWords[j] = candidates.mContentWords[i];
+                narrowed.mNameWords[j] = candidates.mNameWords[i];
+                narrowed.mTokenWords[j] = candidates.mTokenWords[i];
+                j++;
+            }
+        }
+        return narrowed;
+    }
+
+    private static boolean matches(Candidates candidates, int row, int mode, String[] tokens,
+            String[] nameTokens) {
+        for (int i = 0; i < tokens.length; i++) {
+            final boolean tokenMatches;
+            if (mode == MODE_CONTACTS) {
+                tokenMatches = hasWordWithPrefix(candidates.mContentWords[row], tokens[i])
+                        || (!TextUtils.isEmpty(nameTokens[i])
+                                && hasWordWithPrefix(candidates.mNameWords[row], nameTokens[i]))
+                        || hasWordWithPrefix(candidates.mTokenWords[row], tokens[i]);
+            } else {
+                tokenMatches = hasWordWithPrefix(candidates.mNameWords[row], nameTokens[i]);
+            }
+            if (!tokenMatches) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasWordWithPrefix(String[] words, String prefix) {
+        for (String word : words) {
+            if (word.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final String[] EMPTY_WORDS = new String[0];
+
+    private static String[] splitWords(String text) {
+        if (TextUtils.isEmpty(text)) {
+            return EMPTY_WORDS;
+        }
+        final List<String> words = SearchIndexManager.splitIntoFtsTokens(text);
+        final String[] result = new String[words.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = foldAscii(words.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Lower-cases the ASCII letters only, like SQLite's "simple" tokenizer.
+     */
+    @VisibleForTesting
+    static String foldAscii(String s) {
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                final char[] chars = s.toCharArray();
+                for (int j = i; j < length; j++) {
+                    if (chars[j] >= 'A' && chars[j] <= 'Z') {
+                        chars[j] += 'a' - 'A';
+                    }
+                }
+                return new String(chars);
+            }
+        }
+        return s;
+    }
+
+    @VisibleForTesting
+    long getQueryCount() {
+        return mQueryCount.get();
+    }
+
+    @VisibleForTesting
+    long getNarrowCount() {
+        return mNarrowCount.get();
+    }
+}
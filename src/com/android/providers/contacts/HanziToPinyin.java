@@ -37,6 +37,10 @@ public class HanziToPinyin {
     private Transliterator mPinyinTransliterator;
     private Transliterator mAsciiTransliterator;
 
+    /** Per-character results of the transliterators, as {@link #tokenize} goes char by char. */
+    private TransliterationCache mPinyinCache;
+    private TransliterationCache mAsciiCache;
+
     public static class Token {
         /**
          * Separator between target string for each source char
@@ -75,7 +79,9 @@ public class HanziToPinyin {
         try {
             mPinyinTransliterator = Transliterator.getInstance(
                     "Han-Latin/Names; Latin-Ascii; Any-Upper");
+            mPinyinCache = new TransliterationCache(mPinyinTransliterator);
             mAsciiTransliterator = Transliterator.getInstance("Latin-Ascii");
+            mAsciiCache = new TransliterationCache(mAsciiTransliterator);
         } catch (IllegalArgumentException e) {
             Log.w(TAG, "Han-Latin/Names transliterator data is missing,"
                   + " HanziToPinyin is disabled");
@@ -108,13 +114,13 @@ public class HanziToPinyin {
         // Extended Latin. Transcode these to ASCII equivalents
         if (character < 0x250 || (0x1e00 <= character && character < 0x1eff)) {
             token.type = Token.LATIN;
-            token.target = mAsciiTransliterator == null ? token.source :
-                mAsciiTransliterator.transliterate(token.source);
+            token.target = mAsciiCache == null ? token.source :
+                mAsciiCache.transliterate(character);
             return;
         }
 
         token.type = Token.PINYIN;
-        token.target = mPinyinTransliterator.transliterate(token.source);
+        token.target = mPinyinCache.transliterate(character);
         if (TextUtils.isEmpty(token.target) ||
             TextUtils.equals(token.source, token.target)) {
             token.type = Token.UNKNOWN;
@@ -0,0 +1,408 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.RawContacts;
+import android.provider.ContactsContract.SearchSnippets;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupType;
+import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Wraps the cursor of a contacts filter query whose {@link SearchSnippets#SNIPPET} column holds
+ * the {@link Tables#SEARCH_INDEX} content of each contact, and turns the content into the
+ * snippet when the row is read.  The snippets are then only computed for the rows the client
+ * actually reads, e.g. the first window of a large result set, rather than by SQLite for every
+ * matching row.
+ * <p>
+ * The snippets are the same as the ones computed in SQL: null if one of the names of the
+ * contact starts with the filter, or else the FTS snippet() of the content for the tokens of the
+ * filter (see {@link #snippetize}).
+ */
+public class LazySnippetCursor extends CursorWrapper {
+
+    /**
+     * The contacts one of whose names starts with the filter.  The GLOB prefix is a range scan
+     * of the name lookup index.
+     */
+    private static final String NAME_MATCH_QUERY =
+            "SELECT DISTINCT rc." + RawContacts.CONTACT_ID
+            + " FROM " + Tables.NAME_LOOKUP + " AS nl"
+            + " JOIN " + Tables.RAW_CONTACTS + " AS rc"
+            + " ON (rc." + RawContacts._ID + "=nl." + NameLookupColumns.RAW_CONTACT_ID + ")"
+            + " WHERE nl." + NameLookupColumns.NORMALIZED_NAME + " GLOB ?"
+            + " AND nl." + NameLookupColumns.NAME_TYPE + "=" + NameLookupType.NAME_COLLATION_KEY;
+
+    /** Same limits as the FTS snippet() function. */
+    private static final int MAX_TOKENS = 64;
+    private static final int MAX_FRAGMENTS = 4;
+
+    private final SQLiteDatabase mDb;
+    private final String mNameGlob;
+    private final String[] mTokens;
+    private final String mStartMatch;
+    private final String mEndMatch;
+    private final String mEllipsis;
+    private final int mMaxTokens;
+
+    private final int mSnippetColumn;
+    private final int mContactIdColumn;
+
+    /** Columns visible to the client; the contact ID may have been added for this cursor. */
+    private final String[] mColumnNames;
+
+    /** Snippets computed so far, by position. */
+    private final SparseArray<String> mSnippets = new SparseArray<String>();
+
+    /**
+     * The contacts whose names match the filter, loaded when the first snippet is read: the
+     * whole window may be read at once, e.g. when the cursor is sent to another process.
+     */
+    private HashSet<Long> mNameMatches;
+
+    /**
+     * @param filter A filter that normalizes to a non-empty name.
+     * @param hideContactIdColumn Whether the last column is the contact ID, added to the
+     *     projection of the client for this cursor.
+     */
+    public LazySnippetCursor(Cursor cursor, SQLiteDatabase db, String filter, String startMatch,
+            String endMatch, String ellipsis, int maxTokens, boolean hideContactIdColumn) {
+        super(cursor);
+        mDb = db;
+        mNameGlob = NameNormalizer.normalize(filter) + "*";
+        final List<String> tokens = SearchIndexManager.splitIntoFtsTokens(filter);
+        mTokens = new String[tokens.size()];
+        for (int i = 0; i < mTokens.length; i++) {
+            mTokens[i] = FilterSessionCache.foldAscii(tokens.get(i));
+        }
+        mStartMatch = startMatch;
+        mEndMatch = endMatch;
+        mEllipsis = ellipsis;
+        mMaxTokens = maxTokens;
+
+        mSnippetColumn = cursor.getColumnIndex(SearchSnippets.SNIPPET);
+        final String[] columnNames = cursor.getColumnNames();
+        if (hideContactIdColumn) {
+            mContactIdColumn = columnNames.length - 1;
+            mColumnNames = Arrays.copyOf(columnNames, columnNames.length - 1);
+        } else {
+            mContactIdColumn = cursor.getColumnIndex(Contacts._ID);
+            mColumnNames = columnNames;
+        }
+    }
+
+    @Override
+    public int getColumnCount() {
+        return mColumnNames.length;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public int getColumnIndex(String columnName) {
+        final int index = super.getColumnIndex(columnName);
+        return index < mColumnNames.length ? index : -1;
+    }
+
+    @Override
+    public int getColumnIndexOrThrow(String columnName) {
+        final int index = getColumnIndex(columnName);
+        if (index < 0) {
+            throw new IllegalArgumentException("column '" + columnName + "' does not exist");
+        }
+        return index;
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        if (columnIndex == mSnippetColumn) {
+            return getSnippet();
+        }
+        return super.getString(columnIndex);
+    }
+
+    @Override
+    public int getType(int columnIndex) {
+        if (columnIndex == mSnippetColumn) {
+            return getSnippet() == null ? FIELD_TYPE_NULL : FIELD_TYPE_STRING;
+        }
+        return super.getType(columnIndex);
+    }
+
+    @Override
+    public boolean isNull(int columnIndex) {
+        if (columnIndex == mSnippetColumn) {
+            return getSnippet() == null;
+        }
+        return super.isNull(columnIndex);
+    }
+
+    private String getSnippet() {
+        final int position = getPosition();
+        final int index = mSnippets.indexOfKey(position);
+        if (index >= 0) {
+            return mSnippets.valueAt(index);
+        }
+
+        final String content = super.getString(mSnippetColumn);
+        final String snippet;
+        if (content == null || nameMatches(super.getLong(mContactIdColumn))) {
+            snippet = null;
+        } else {
+            snippet = snippetize(content, mTokens, mStartMatch, mEndMatch, mEllipsis, mMaxTokens);
+        }
+        mSnippets.put(position, snippet);
+        return snippet;
+    }
+
+    private boolean nameMatches(long contactId) {
+        if (mNameMatches == null) {
+            mNameMatches = new HashSet<Long>();
+            final Cursor cursor = mDb.rawQuery(NAME_MATCH_QUERY, new String[] {mNameGlob});
+            try {
+                while (cursor.moveToNext()) {
+                    mNameMatches.add(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return mNameMatches.contains(contactId);
+    }
+
+    /**
+     * A window of the content.
+     */
+    private static final class Fragment {
+        /** Index of the first token, before the matches are centered in the window. */
+        int mPosition;
+
+        /** Bit i is set if token mPosition + i is to be highlighted. */
+        long mHighlights;
+
+        /** Bit i is set if the fragment contains a match of token i of the filter. */
+        long mCovered;
+
+        int mScore = -1;
+    }
+
+    /**
+     * Returns the snippet of the content for the tokens of a filter, as computed by the
+     * snippet() function of SQLite's FTS3 module for a query with one prefix term per token:
+     * up to {@link #MAX_FRAGMENTS} windows of the content, chosen to contain a match of as many
+     * tokens as possible, with the matches highlighted.
+     *
+     * @param tokens The tokens of the filter, with ASCII letters in lower case.
+     * @param maxTokens The total number of tokens in the windows, or minus the number of tokens
+     *     in each window.
+     */
+    @VisibleForTesting
+    static String snippetize(String content, String[] tokens, String startMatch,
+            String endMatch, String ellipsis, int maxTokens) {
+        if (maxTokens == 0) {
+            return "";
+        }
+        maxTokens = Math.max(-MAX_TOKENS, Math.min(MAX_TOKENS, maxTokens));
+
+        // Tokenizes the content like the "simple" tokenizer.
+        final ArrayList<Integer> bounds = new ArrayList<Integer>();
+        final int length = content.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && !isTokenChar(content.charAt(i))) {
+                i++;
+            }
+            if (i == length) {
+                break;
+            }
+            final int begin = i;
+            while (i < length && isTokenChar(content.charAt(i))) {
+                i++;
+            }
+            bounds.add(begin);
+            bounds.add(i);
+        }
+        final int tokenCount = bounds.size() / 2;
+        final int[] begins = new int[tokenCount];
+        final int[] ends = new int[tokenCount];
+        for (int t = 0; t < tokenCount; t++) {
+            begins[t] = bounds.get(t * 2);
+            ends[t] = bounds.get(t * 2 + 1);
+        }
+
+        // matches[t] has bit i set if token t of the content matches token i of the filter.
+        final long[] matches = new long[tokenCount];
+        long seen = 0;
+        for (int t = 0; t < tokenCount; t++) {
+            final String word =
+                    FilterSessionCache.foldAscii(content.substring(begins[t], ends[t]));
+            for (int p = 0; p < tokens.length; p++) {
+                if (word.startsWith(tokens[p])) {
+                    matches[t] |= 1L << (p % 64);
+                }
+            }
+            seen |= matches[t];
+        }
+
+        // Uses more, shorter fragments until all the matched tokens of the filter are covered.
+        Fragment[] fragments;
+        int fragmentTokens;
+        for (int fragmentCount = 1; ; fragmentCount++) {
+            fragmentTokens = maxTokens >= 0
+                    ? (maxTokens + fragmentCount - 1) / fragmentCount : -maxTokens;
+            fragments = new Fragment[fragmentCount];
+            long covered = 0;
+            for (int f = 0; f < fragmentCount; f++) {
+                fragments[f] = findBestFragment(matches, fragmentTokens, covered);
+                covered |= fragments[f].mCovered;
+            }
+            if (covered == seen || fragmentCount == MAX_FRAGMENTS) {
+                break;
+            }
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        for (int f = 0; f < fragments.length; f++) {
+            appendFragment(sb, content, begins, ends, fragments[f], f, f == fragments.length - 1,
+                    fragmentTokens, startMatch, endMatch, ellipsis);
+        }
+        return sb.toString();
+    }
+
+    private static boolean isTokenChar(char c) {
+        return c >= 0x80 || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                || (c >= '0' && c <= '9');
+    }
+
+    /**
+     * Scores the window starting at the beginning of the content, then the windows ending at each
+     * match past the first one, and returns the first with the best score: 1000 for each token of
+     * the filter matched that isn't already covered, plus 1 for each match.
+     */
+    private static Fragment findBestFragment(long[] matches, int fragmentTokens, long covered) {
+        final Fragment best = new Fragment();
+        for (int end = fragmentTokens - 1; end < matches.length || best.mScore < 0; end++) {
+            if (end >= fragmentTokens && (end >= matches.length || matches[end] == 0)) {
+                continue;
+            }
+            final int start = end - fragmentTokens + 1;
+            long fragmentCovered = 0;
+            long highlights = 0;
+            int score = 0;
+            for (int t = start; t <= end && t < matches.length; t++) {
+                long tokenMatches = matches[t];
+                if (tokenMatches == 0) {
+                    continue;
+                }
+                highlights |= 1L << (t - start);
+                while (tokenMatches != 0) {
+                    final long bit = Long.lowestOneBit(tokenMatches);
+                    score += ((fragmentCovered | covered) & bit) != 0 ? 1 : 1000;
+                    fragmentCovered |= bit;
+                    tokenMatches &= ~bit;
+                }
+            }
+            if (score > best.mScore) {
+                best.mPosition = start;
+                best.mHighlights = highlights;
+                best.mCovered = fragmentCovered;
+                best.mScore = score;
+            }
+        }
+        return best;
+    }
+
+    private static void appendFragment(StringBuilder sb, String content, int[] begins,
+            int[] ends, Fragment fragment, int fragmentIndex, boolean isLast, int fragmentTokens,
+            String startMatch, String endMatch, String ellipsis) {
+        int position = fragment.mPosition;
+        long highlights = fragment.mHighlights;
+        boolean shifted = false;
+        int end = 0;
+        for (int t = 0; t < begins.length; t++) {
+            if (t < position) {
+                continue;
+            }
+
+            if (!shifted) {
+                // Centers the matches in the window, if there are enough tokens after it.
+                if (highlights != 0) {
+                    final int left = Long.numberOfTrailingZeros(highlights);
+                    int right = 0;
+                    while ((highlights & (1L << (fragmentTokens - 1 - right))) == 0) {
+                        right++;
+                    }
+                    final int desired = (left - right) / 2;
+                    if (desired > 0) {
+                        final int shift = Math.min(desired, begins.length - t - fragmentTokens);
+                        if (shift > 0) {
+                            position += shift;
+                            highlights >>>= shift;
+                        }
+                    }
+                }
+                shifted = true;
+
+                if (position > 0 || fragmentIndex > 0) {
+                    sb.append(ellipsis);
+                } else {
+                    sb.append(content, 0, begins[t]);
+                }
+                if (t < position) {
+                    continue;
+                }
+            }
+
+            if (t >= position + fragmentTokens) {
+                if (isLast) {
+                    sb.append(ellipsis);
+                }
+                return;
+            }
+
+            if (t > position) {
+                sb.append(content, end, begins[t]);
+            }
+            final boolean highlight = (highlights & (1L << (t - position))) != 0;
+            if (highlight) {
+                sb.append(startMatch);
+            }
+            sb.append(content, begins[t], ends[t]);
+            if (highlight) {
+                sb.append(endMatch);
+            }
+            end = ends[t];
+        }
+
+        // The window reaches the end of the content.
+        sb.append(content, end, content.length());
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.PhoneLookupColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+
+/**
+ * Accumulates the {@link Tables#NAME_LOOKUP} and {@link Tables#PHONE_LOOKUP} rows written by
+ * the data row handlers during a transaction, and writes them in {@link #flush} with a single
+ * set-based delete per table followed by multi-row inserts.
+ * <p>
+ * Deleting the lookup rows of a data element drops the rows still pending for it, so the
+ * result of a flush is the same as if each change had been written right away.  Anything that
+ * reads the lookup tables in the same transaction (e.g. the aggregator) must flush first.
+ * <p>
+ * Not thread safe; each transaction uses its own instance (see
+ * {@link ContactsDatabaseHelper#beginLookupBatch}).
+ */
+public class LookupTableWriter {
+
+    /**
+     * Number of rows inserted by a statement.  Keeps the number of bound arguments well below
+     * SQLite's limit of 999.
+     */
+    @VisibleForTesting
+    static final int ROWS_PER_INSERT = 100;
+
+    private final ContactsDatabaseHelper mDbHelper;
+
+    private final PendingRows mNameLookup = new PendingRows(
+            "INSERT OR IGNORE INTO " + Tables.NAME_LOOKUP + "("
+                    + NameLookupColumns.RAW_CONTACT_ID + ","
+                    + NameLookupColumns.DATA_ID + ","
+                    + NameLookupColumns.NAME_TYPE + ","
+                    + NameLookupColumns.NORMALIZED_NAME
+            + ") VALUES ",
+            "DELETE FROM " + Tables.NAME_LOOKUP
+                    + " WHERE " + NameLookupColumns.DATA_ID + " IN (",
+            4);
+
+    private final PendingRows mPhoneLookup = new PendingRows(
+            "INSERT INTO " + Tables.PHONE_LOOKUP + "("
+                    + PhoneLookupColumns.RAW_CONTACT_ID + ","
+                    + PhoneLookupColumns.DATA_ID + ","
+                    + PhoneLookupColumns.NORMALIZED_NUMBER + ","
+                    + PhoneLookupColumns.MIN_MATCH
+            + ") VALUES ",
+            "DELETE FROM " + Tables.PHONE_LOOKUP
+                    + " WHERE " + PhoneLookupColumns.DATA_ID + " IN (",
+            4);
+
+    private final StringBuilder mSb = new StringBuilder();
+
+    public LookupTableWriter(ContactsDatabaseHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    public void insertNameLookup(long rawContactId, long dataId, int lookupType, String name) {
+        mNameLookup.insert(dataId, new Object[] { rawContactId, dataId, (long) lookupType, name });
+    }
+
+    public void deleteNameLookup(long dataId) {
+        mNameLookup.delete(dataId);
+    }
+
+    public void insertPhoneLookup(long rawContactId, long dataId, String normalizedNumber,
+            String minMatch) {
+        mPhoneLookup.insert(dataId,
+                new Object[] { rawContactId, dataId, normalizedNumber, minMatch });
+    }
+
+    public void deletePhoneLookup(long dataId) {
+        mPhoneLookup.delete(dataId);
+    }
+
+    public boolean isEmpty() {
+        return mNameLookup.isEmpty() && mPhoneLookup.isEmpty();
+    }
+
+    /**
+     * Writes all the pending changes to the database.
+     */
+    public void flush(SQLiteDatabase db) {
+        // Deletes first: any row inserted after a delete is still pending.
+        mNameLookup.flushDeletes(db);
+        mPhoneLookup.flushDeletes(db);
+        mNameLookup.flushInserts(db);
+        mPhoneLookup.flushInserts(db);
+    }
+
+    /**
+     * Drops all the pending changes.
+     */
+    public void clear() {
+        mNameLookup.clear();
+        mPhoneLookup.clear();
+    }
+
+    private final class PendingRows {
+        private final String mInsertSql;
+        private final String mDeleteSql;
+        private final int mColumnCount;
+
+        /** Rows to insert, grouped by data ID. */
+        private final LinkedHashMap<Long, ArrayList<Object[]>> mInserts =
+                new LinkedHashMap<Long, ArrayList<Object[]>>();
+
+        /** Data IDs whose existing rows need to be deleted. */
+        private final HashSet<Long> mDeletes = new HashSet<Long>();
+
+        private int mInsertCount;
+
+        /** SQL inserting {@link #ROWS_PER_INSERT} rows, built on first use. */
+        private String mFullInsertSql;
+
+        PendingRows(String insertSql, String deleteSql, int columnCount) {
+            mInsertSql = insertSql;
+            mDeleteSql = deleteSql;
+            mColumnCount = columnCount;
+        }
+
+        void insert(long dataId, Object[] row) {
+            ArrayList<Object[]> rows = mInserts.get(dataId);
+            if (rows == null) {
+                rows = new ArrayList<Object[]>();
+                mInserts.put(dataId, rows);
+            }
+            rows.add(row);
+            mInsertCount++;
+        }
+
+        void delete(long dataId) {
+            final ArrayList<Object[]> rows = mInserts.remove(dataId);
+            if (rows != null) {
+                mInsertCount -= rows.size();
+            }
+            mDeletes.add(dataId);
+        }
+
+        boolean isEmpty() {
+            return mInserts.isEmpty() && mDeletes.isEmpty();
+        }
+
+        void clear() {
+            mInserts.clear();
+            mDeletes.clear();
+            mInsertCount = 0;
+        }
+
+        void flushDeletes(SQLiteDatabase db) {
+            if (mDeletes.isEmpty()) {
+                return;
+            }
+            mSb.setLength(0);
+            mSb.append(mDeleteSql);
+            boolean first = true;
+            for (long dataId : mDeletes) {
+                if (!first) {
+                    mSb.append(',');
+                }
+                mSb.append(dataId);
+                first = false;
+            }
+            mSb.append(')');
+            db.execSQL(mSb.toString());
+            mDeletes.clear();
+        }
+
+        void flushInserts(SQLiteDatabase db) {
+            if (mInsertCount == 0) {
+                return;
+            }
+
+            // Full batches all use the same SQL, which stays in the statement cache; the
+            // remainder is compiled for this flush only.  Both are compiled on the given
+            // database, as the name lookup may be rebuilt while it is being opened.
+            final SQLiteStatement fullInsert = mInsertCount >= ROWS_PER_INSERT
+                    ? mDbHelper.getCompiledStatement(db, getFullInsertSql()) : null;
+            final int remainder = mInsertCount % ROWS_PER_INSERT;
+            final SQLiteStatement remainderInsert = remainder != 0
+                    ? db.compileStatement(buildInsertSql(remainder)) : null;
+            try {
+                SQLiteStatement insert = mInsertCount >= ROWS_PER_INSERT
+                        ? fullInsert : remainderInsert;
+                int rowsLeft = mInsertCount;
+                int index = 1;
+                for (ArrayList<Object[]> rows : mInserts.values()) {
+                    for (Object[] row : rows) {
+                        for (Object value : row) {
+                            DatabaseUtils.bindObjectToProgram(insert, index++, value);
+                        }
+                        rowsLeft--;
+                        if (index > (insert == fullInsert ? ROWS_PER_INSERT : remainder)
+                                * mColumnCount) {
+                            insert.execute();
+                            insert = rowsLeft >= ROWS_PER_INSERT ? fullInsert : remainderInsert;
+                            index = 1;
+                        }
+                    }
+                }
+            } finally {
+                if (remainderInsert != null) {
+                    remainderInsert.close();
+                }
+            }
+            mInserts.clear();
+            mInsertCount = 0;
+        }
+
+        private String getFullInsertSql() {
+            if (mFullInsertSql == null) {
+                mFullInsertSql = buildInsertSql(ROWS_PER_INSERT);
+            }
+            return mFullInsertSql;
+        }
+
+        private String buildInsertSql(int rowCount) {
+            mSb.setLength(0);
+            mSb.append(mInsertSql);
+            for (int i = 0; i < rowCount; i++) {
+                if (i != 0) {
+                    mSb.append(',');
+                }
+                mSb.append('(');
+                for (int j = 0; j < mColumnCount; j++) {
+                    if (j != 0) {
+                        mSb.append(',');
+                    }
+                    mSb.append('?');
+                }
+                mSb.append(')');
+            }
+            return mSb.toString();
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupType;
+import com.android.providers.contacts.ContactsDatabaseHelper.NicknameLookupColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
+import com.android.providers.contacts.aggregation.util.CommonNicknameCache;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Rebuilds the {@link Tables#NAME_LOOKUP} rows of structured names, email addresses and
+ * nicknames, e.g. after a locale change.
+ * <p>
+ * The thread reading the data rows hands them over in chunks of {@link #CHUNK_SIZE} to a pool
+ * of worker threads, which split and normalize the names, and writes the resulting rows itself
+ * as the chunks complete, in order.  The workers never touch the database, which is usually in
+ * the middle of a transaction on the reading thread: each has its own {@link NameSplitter} and
+ * {@link NameLookupBuilder}, and they share a {@link CommonNicknameCache} over a copy of the
+ * nickname table loaded up front.
+ * <p>
+ * Only to be used from one thread; {@link #close} must be called when done.
+ */
+public class NameLookupRebuilder {
+
+    /** Number of names handed over to a worker at a time. */
+    @VisibleForTesting
+    static final int CHUNK_SIZE = 256;
+
+    private static final int MAX_THREADS = 4;
+
+    private static final int KIND_STRUCTURED_NAME = 0;
+    private static final int KIND_EMAIL = 1;
+    private static final int KIND_NICKNAME = 2;
+
+    private final SQLiteDatabase mDb;
+    private final LookupTableWriter mWriter;
+
+    /** Null if there is only one CPU, in which case the chunks are processed in place. */
+    private final ExecutorService mExecutor;
+
+    /** The workers not processing a chunk. */
+    private final ArrayBlockingQueue<Worker> mIdleWorkers;
+
+    /** Chunks handed over to the workers, in the order they need to be written. */
+    private final ArrayDeque<Future<Chunk>> mPendingChunks = new ArrayDeque<Future<Chunk>>();
+    private final int mMaxPendingChunks;
+
+    private Chunk mChunk = new Chunk();
+
+    public NameLookupRebuilder(ContactsDatabaseHelper dbHelper, SQLiteDatabase db) {
+        this(dbHelper, db, Math.min(Runtime.getRuntime().availableProcessors(), MAX_THREADS));
+    }
+
+    @VisibleForTesting
+    NameLookupRebuilder(ContactsDatabaseHelper dbHelper, SQLiteDatabase db, int threadCount) {
+        mDb = db;
+        mWriter = new LookupTableWriter(dbHelper);
+
+        final CommonNicknameCache nicknameCache = new PreloadedNicknameCache(db);
+        mIdleWorkers = new ArrayBlockingQueue<Worker>(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            mIdleWorkers.add(new Worker(dbHelper.createNameSplitter(), nicknameCache));
+        }
+
+        if (threadCount > 1) {
+            mExecutor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "NameLookupRebuilder");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        } else {
+            mExecutor = null;
+        }
+        // Enough to keep the workers busy while the oldest chunk is being written.
+        mMaxPendingChunks = threadCount * 2;
+    }
+
+    public void addStructuredName(long rawContactId, long dataId, String displayName) {
+        add(KIND_STRUCTURED_NAME, rawContactId, dataId, displayName);
+    }
+
+    /**
+     * @param handle The part of the email address before the '@'.
+     */
+    public void addEmail(long rawContactId, long dataId, String handle) {
+        add(KIND_EMAIL, rawContactId, dataId, handle);
+    }
+
+    public void addNickname(long rawContactId, long dataId, String nickname) {
+        add(KIND_NICKNAME, rawContactId, dataId, nickname);
+    }
+
+    private void add(int kind, long rawContactId, long dataId, String name) {
+        if (TextUtils.isEmpty(name)) {
+            return;
+        }
+        mChunk.add(kind, rawContactId, dataId, name);
+        if (mChunk.mCount == CHUNK_SIZE) {
+            submit(mChunk);
+            mChunk = new Chunk();
+        }
+    }
+
+    private void submit(final Chunk chunk) {
+        if (mExecutor == null) {
+            final Worker worker = mIdleWorkers.remove();
+            worker.process(chunk);
+            mIdleWorkers.add(worker);
+            write(chunk);
+            return;
+        }
+
+        if (mPendingChunks.size() == mMaxPendingChunks) {
+            write(waitFor(mPendingChunks.removeFirst()));
+        }
+        mPendingChunks.addLast(mExecutor.submit(new Callable<Chunk>() {
+            @Override
+            public Chunk call() throws InterruptedException {
+                final Worker worker = mIdleWorkers.take();
+                try {
+                    worker.process(chunk);
+                } finally {
+                    mIdleWorkers.put(worker);
+                }
+                return chunk;
+            }
+        }));
+    }
+
+    private static Chunk waitFor(Future<Chunk> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while rebuilding name lookup", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to rebuild name lookup", e.getCause());
+        }
+    }
+
+    private void write(Chunk chunk) {
+        final int count = chunk.mLookupTypes.size();
+        for (int i = 0; i < count; i++) {
+            mWriter.insertNameLookup(chunk.mLookupRawContactIds.get(i),
+                    chunk.mLookupDataIds.get(i), chunk.mLookupTypes.get(i),
+                    chunk.mLookupNames.get(i));
+        }
+        mWriter.flush(mDb);
+    }
+
+    /**
+     * Writes the rows of all the names added so far.
+     */
+    public void flush() {
+        if (mChunk.mCount != 0) {
+            submit(mChunk);
+            mChunk = new Chunk();
+        }
+        while (!mPendingChunks.isEmpty()) {
+            write(waitFor(mPendingChunks.removeFirst()));
+        }
+    }
+
+    /**
+     * Stops the worker threads.  Names added since the last {@link #flush} are dropped.
+     */
+    public void close() {
+        if (mExecutor != null) {
+            for (Future<Chunk> future : mPendingChunks) {
+                future.cancel(false);
+            }
+            mExecutor.shutdown();
+        }
+        mPendingChunks.clear();
+        mWriter.clear();
+    }
+
+    /**
+     * A chunk of names, and the lookup rows computed for them.
+     */
+    private static final class Chunk {
+        final int[] mKinds = new int[CHUNK_SIZE];
+        final long[] mRawContactIds = new long[CHUNK_SIZE];
+        final long[] mDataIds = new long[CHUNK_SIZE];
+        final String[] mNames = new String[CHUNK_SIZE];
+        int mCount;
+
+        final ArrayList<Long> mLookupRawContactIds = new ArrayList<Long>();
+        final ArrayList<Long> mLookupDataIds = new ArrayList<Long>();
+        final ArrayList<Integer> mLookupTypes = new ArrayList<Integer>();
+        final ArrayList<String> mLookupNames = new ArrayList<String>();
+
+        void add(int kind, long rawContactId, long dataId, String name) {
+            mKinds[mCount] = kind;
+            mRawContactIds[mCount] = rawContactId;
+            mDataIds[mCount] = dataId;
+            mNames[mCount] = name;
+            mCount++;
+        }
+
+        void addLookup(long rawContactId, long dataId, int lookupType, String name) {
+            mLookupRawContactIds.add(rawContactId);
+            mLookupDataIds.add(dataId);
+            mLookupTypes.add(lookupType);
+            mLookupNames.add(name);
+        }
+    }
+
+    /**
+     * Computes the lookup rows of a chunk.  Used by one thread at a time.
+     */
+    private static final class Worker extends NameLookupBuilder {
+        private final NameSplitter mSplitter;
+        private final CommonNicknameCache mNicknameCache;
+        private Chunk mChunk;
+
+        Worker(NameSplitter splitter, CommonNicknameCache nicknameCache) {
+            super(splitter);
+            mSplitter = splitter;
+            mNicknameCache = nicknameCache;
+        }
+
+        void process(Chunk chunk) {
+            mChunk = chunk;
+            try {
+                for (int i = 0; i < chunk.mCount; i++) {
+                    final String name = chunk.mNames[i];
+                    switch (chunk.mKinds[i]) {
+                        case KIND_STRUCTURED_NAME: {
+                            final int fullNameStyle = mSplitter.getAdjustedFullNameStyle(
+                                    mSplitter.guessFullNameStyle(name));
+                            insertNameLookup(chunk.mRawContactIds[i], chunk.mDataIds[i], name,
+                                    fullNameStyle);
+                            break;
+                        }
+                        case KIND_EMAIL:
+                            insertNameLookup(chunk.mRawContactIds[i], chunk.mDataIds[i],
+                                    NameLookupType.EMAIL_BASED_NICKNAME,
+                                    NameNormalizer.normalize(name));
+                            break;
+                        case KIND_NICKNAME:
+                            insertNameLookup(chunk.mRawContactIds[i], chunk.mDataIds[i],
+                                    NameLookupType.NICKNAME, NameNormalizer.normalize(name));
+                            break;
+                    }
+                }
+            } finally {
+                mChunk = null;
+            }
+        }
+
+        @Override
+        protected void insertNameLookup(long rawContactId, long dataId, int lookupType,
+                String name) {
+            if (!TextUtils.isEmpty(name)) {
+                mChunk.addLookup(rawContactId, dataId, lookupType, name);
+            }
+        }
+
+        @Override
+        protected String[] getCommonNicknameClusters(String normalizedName) {
+            return mNicknameCache.getCommonNicknameClusters(normalizedName);
+        }
+    }
+
+    /**
+     * Nickname cache that never goes to the database after it is constructed.
+     */
+    private static final class PreloadedNicknameCache extends CommonNicknameCache {
+        private final HashMap<String, ArrayList<String>> mClusters =
+                new HashMap<String, ArrayList<String>>();
+
+        PreloadedNicknameCache(SQLiteDatabase db) {
+            super(db);
+            final Cursor cursor = db.query(Tables.NICKNAME_LOOKUP, new String[] {
+                    NicknameLookupColumns.NAME, NicknameLookupColumns.CLUSTER},
+                    null, null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    final String name = cursor.getString(0);
+                    ArrayList<String> clusters = mClusters.get(name);
+                    if (clusters == null) {
+                        clusters = new ArrayList<String>();
+                        mClusters.put(name, clusters);
+                    }
+                    clusters.add(cursor.getString(1));
+                }
+            } finally {
+                cursor.close();
+            }
+
+            // Loads the Bloom filter.
+            getCommonNicknameClusters("");
+        }
+
+        @Override
+        protected String[] loadNicknameClusters(String normalizedName) {
+            final ArrayList<String> clusters = mClusters.get(normalizedName);
+            return clusters == null ? null : clusters.toArray(new String[clusters.size()]);
+        }
+    }
+}
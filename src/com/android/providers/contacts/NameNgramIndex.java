@@ -0,0 +1,445 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.providers.contacts.ContactsDatabaseHelper.SearchIndexColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.SearchNgramColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
+import com.android.providers.contacts.SearchIndexManager.FtsQueryBuilder;
+import com.android.providers.contacts.aggregation.util.NameDistance;
+import com.android.providers.contacts.util.Hex;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Maintains {@link Tables#SEARCH_NGRAM}, the n-grams of the names in {@link Tables#SEARCH_INDEX},
+ * and uses it to find the contacts whose name is close to a filter without starting with it,
+ * e.g. "John" for "jonh" (see {@link ContactsProvider2#QUERY_PARAMETER_FUZZY}).
+ * <p>
+ * The n-grams are the pairs of consecutive bytes of the collation key of each word of the name
+ * column, plus its first and last byte marked as such, so a typo only changes the few n-grams
+ * around it.  The contacts sharing enough n-grams with the filter are the candidates, whose
+ * names are then compared to the filter with {@link NameDistance}, like the approximate matches
+ * of the aggregator.  A contact has at most {@link #MAX_NGRAMS_PER_CONTACT} rows, and a filter
+ * reads at most {@link #MAX_CANDIDATES} names.
+ */
+public class NameNgramIndex {
+
+    @VisibleForTesting
+    static final int MAX_NGRAMS_PER_CONTACT = 64;
+
+    /** Fuzzy matches are only looked up if the filter has fewer prefix matches than this. */
+    @VisibleForTesting
+    static final int MIN_PREFIX_MATCHES = 3;
+
+    @VisibleForTesting
+    static final int MAX_CANDIDATES = 100;
+
+    /** Shorter tokens of the filter must be the prefix of a word of the name. */
+    private static final int MIN_FUZZY_TOKEN_LENGTH = 3;
+
+    private static final int MAX_MATCHED_NAME_LENGTH = 30;
+
+    @VisibleForTesting
+    static final float MATCH_THRESHOLD = 0.82f;
+
+    private static final char FIRST_BYTE_MARK = '^';
+    private static final char LAST_BYTE_MARK = '$';
+
+    private static final String INSERT_SQL = "INSERT OR IGNORE INTO " + Tables.SEARCH_NGRAM
+            + "(" + SearchNgramColumns.NGRAM + "," + SearchNgramColumns.CONTACT_ID + ")"
+            + " VALUES (?,?)";
+
+    private interface PrefixQuery {
+        String SELECT = "SELECT docid, " + SearchIndexColumns.CONTACT_ID
+                + " FROM " + Tables.SEARCH_INDEX
+                + " WHERE " + Tables.SEARCH_INDEX + " MATCH ";
+
+        // Omit results in "Other Contacts".
+        String WHERE_DEFAULT_DIRECTORY = " AND " + SearchIndexColumns.CONTACT_ID
+                + " IN " + Tables.DEFAULT_DIRECTORY;
+
+        int DOC_ID = 0;
+        int CONTACT_ID = 1;
+    }
+
+    private interface CandidateQuery {
+        String SELECT = "SELECT " + SearchNgramColumns.CONTACT_ID
+                + " FROM " + Tables.SEARCH_NGRAM
+                + " WHERE " + SearchNgramColumns.CONTACT_ID + " IN " + Tables.DEFAULT_DIRECTORY
+                + " AND " + SearchNgramColumns.NGRAM + " IN (";
+
+        String GROUP_BY = ") GROUP BY " + SearchNgramColumns.CONTACT_ID
+                + " HAVING COUNT(*) >= ";
+
+        String ORDER_BY = " ORDER BY COUNT(*) DESC LIMIT " + MAX_CANDIDATES;
+    }
+
+    private interface NameQuery {
+        String SELECT = "SELECT docid, " + SearchIndexColumns.CONTACT_ID + ", "
+                + SearchIndexColumns.NAME
+                + " FROM " + Tables.SEARCH_INDEX
+                + " WHERE " + SearchIndexColumns.CONTACT_ID + " IN (";
+
+        int DOC_ID = 0;
+        int CONTACT_ID = 1;
+        int NAME = 2;
+    }
+
+    private static final class Match {
+        final long mDocId;
+        final long mContactId;
+        final float mScore;
+
+        Match(long docId, long contactId, float score) {
+            mDocId = docId;
+            mContactId = contactId;
+            mScore = score;
+        }
+    }
+
+    /** Orders the matches closest first; ties go to the contact added first. */
+    private static final Comparator<Match> CLOSEST_FIRST = new Comparator<Match>() {
+        @Override
+        public int compare(Match lhs, Match rhs) {
+            if (lhs.mScore != rhs.mScore) {
+                return lhs.mScore > rhs.mScore ? -1 : 1;
+            }
+            return lhs.mContactId < rhs.mContactId ? -1
+                    : lhs.mContactId == rhs.mContactId ? 0 : 1;
+        }
+    };
+
+    private final ContactsDatabaseHelper mDbHelper;
+
+    public NameNgramIndex(ContactsDatabaseHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Inserts the n-grams of the name column of the search index row of a contact.
+     *
+     * @return The number of n-grams inserted.
+     */
+    public int insertNgrams(long contactId, String name) {
+        if (TextUtils.isEmpty(name)) {
+            return 0;
+        }
+        final Set<String> ngrams = getNgrams(name);
+        final SQLiteStatement insert = mDbHelper.getCompiledStatement(INSERT_SQL);
+        for (String ngram : ngrams) {
+            insert.bindString(1, ngram);
+            insert.bindLong(2, contactId);
+            insert.executeInsert();
+        }
+        return ngrams.size();
+    }
+
+    /**
+     * Deletes the n-grams of the contacts returned by a query on their IDs.
+     */
+    public void deleteNgrams(SQLiteDatabase db, String contactIdsQuery) {
+        db.delete(Tables.SEARCH_NGRAM,
+                SearchNgramColumns.CONTACT_ID + " IN " + contactIdsQuery, null);
+    }
+
+    /**
+     * Returns the n-grams of a name column: space separated words, each the collation key of a
+     * name in hex.  The n-grams of the first words come first, up to
+     * {@link #MAX_NGRAMS_PER_CONTACT}.
+     */
+    @VisibleForTesting
+    static Set<String> getNgrams(String name) {
+        final LinkedHashSet<String> ngrams = new LinkedHashSet<String>();
+        for (String word : TextUtils.split(name, " ")) {
+            // Two hex digits per byte.
+            final int length = word.length() & ~1;
+            if (length == 0) {
+                continue;
+            }
+            addNgram(ngrams, FIRST_BYTE_MARK + word.substring(0, 2));
+            for (int i = 0; i + 4 <= length; i += 2) {
+                addNgram(ngrams, word.substring(i, i + 4));
+            }
+            addNgram(ngrams, word.substring(length - 2, length) + LAST_BYTE_MARK);
+            if (ngrams.size() == MAX_NGRAMS_PER_CONTACT) {
+                break;
+            }
+        }
+        return ngrams;
+    }
+
+    private static void addNgram(Set<String> ngrams, String ngram) {
+        if (ngrams.size() < MAX_NGRAMS_PER_CONTACT) {
+            ngrams.add(ngram);
+        }
+    }
+
+    /**
+     * Adds the contacts whose name is close to a filter to its prefix matches, if it has fewer
+     * than {@link #MIN_PREFIX_MATCHES} of them.  The filter must not be an email address or
+     * phone number.
+     *
+     * @param prefixMatches The prefix matches of the filter, or null to look them up.
+     * @return The prefix matches then the fuzzy matches, closest first, or null if the prefix
+     *     matches weren't given and are enough, in which case the caller should run its usual
+     *     query.
+     */
+    public static SearchRanker.Result appendFuzzyMatches(SQLiteDatabase db, String filter,
+            SearchRanker.Result prefixMatches, int limit) {
+        if (prefixMatches == null) {
+            prefixMatches = queryPrefixMatches(db, filter);
+            if (prefixMatches.contactIds.length >= MIN_PREFIX_MATCHES) {
+                return null;
+            }
+        }
+        if (prefixMatches.contactIds.length >= MIN_PREFIX_MATCHES
+                || prefixMatches.contactIds.length >= limit) {
+            return prefixMatches;
+        }
+
+        final List<String> tokens = new ArrayList<String>();
+        String longestToken = null;
+        for (String token : SearchIndexManager.splitIntoFtsTokens(filter)) {
+            final String hexToken = NameNormalizer.normalizeToHex(token);
+            if (TextUtils.isEmpty(hexToken)) {
+                continue;
+            }
+            tokens.add(hexToken);
+            if (longestToken == null || hexToken.length() > longestToken.length()) {
+                longestToken = hexToken;
+            }
+        }
+        if (longestToken == null || longestToken.length() < MIN_FUZZY_TOKEN_LENGTH * 2) {
+            return prefixMatches;
+        }
+
+        final HashSet<Long> excluded = new HashSet<Long>();
+        for (long contactId : prefixMatches.contactIds) {
+            excluded.add(contactId);
+        }
+        final long[] candidates = queryCandidates(db, longestToken, excluded);
+        if (candidates.length == 0) {
+            return prefixMatches;
+        }
+
+        final List<Match> matches = scoreCandidates(db, candidates, tokens);
+        Collections.sort(matches, CLOSEST_FIRST);
+
+        final int prefixCount = prefixMatches.contactIds.length;
+        final int count = prefixCount + Math.min(matches.size(), limit - prefixCount);
+        final SearchRanker.Result result = new SearchRanker.Result(count);
+        System.arraycopy(prefixMatches.docIds, 0, result.docIds, 0, prefixCount);
+        System.arraycopy(prefixMatches.contactIds, 0, result.contactIds, 0, prefixCount);
+        for (int i = prefixCount; i < count; i++) {
+            final Match match = matches.get(i - prefixCount);
+            result.docIds[i] = match.mDocId;
+            result.contactIds[i] = match.mContactId;
+        }
+        return result;
+    }
+
+    private static SearchRanker.Result queryPrefixMatches(SQLiteDatabase db, String filter) {
+        final String sql = PrefixQuery.SELECT + "'"
+                + SearchIndexManager.getFtsMatchQuery(filter,
+                        FtsQueryBuilder.SCOPED_NAME_NORMALIZING)
+                + "'" + PrefixQuery.WHERE_DEFAULT_DIRECTORY + " LIMIT " + MIN_PREFIX_MATCHES;
+        final Cursor cursor = db.rawQuery(sql, null);
+        try {
+            final SearchRanker.Result result = new SearchRanker.Result(cursor.getCount());
+            int i = 0;
+            while (cursor.moveToNext()) {
+                result.docIds[i] = cursor.getLong(PrefixQuery.DOC_ID);
+                result.contactIds[i] = cursor.getLong(PrefixQuery.CONTACT_ID);
+                i++;
+            }
+            return result;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the contacts sharing the most n-grams with a token, at least a third of them:
+     * swapping two letters changes three n-grams out of the five of a four letter word.
+     */
+    private static long[] queryCandidates(SQLiteDatabase db, String hexToken,
+            Set<Long> excluded) {
+        final Set<String> ngrams = getNgrams(hexToken);
+        final String[] args = ngrams.toArray(new String[ngrams.size()]);
+        final StringBuilder sb = new StringBuilder(CandidateQuery.SELECT);
+        for (int i = 0; i < args.length; i++) {
+            sb.append(i == 0 ? "?" : ",?");
+        }
+        sb.append(CandidateQuery.GROUP_BY);
+        sb.append(Math.max(1, (args.length + 2) / 3));
+        sb.append(CandidateQuery.ORDER_BY);
+
+        final Cursor cursor = db.rawQuery(sb.toString(), args);
+        try {
+            final long[] candidates = new long[cursor.getCount()];
+            int count = 0;
+            while (cursor.moveToNext()) {
+                final long contactId = cursor.getLong(0);
+                if (!excluded.contains(contactId)) {
+                    candidates[count++] = contactId;
+                }
+            }
+            return Arrays.copyOf(candidates, count);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static List<Match> scoreCandidates(SQLiteDatabase db, long[] candidates,
+            List<String> hexTokens) {
+        final byte[][] tokens = new byte[hexTokens.size()][];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = decode(hexTokens.get(i));
+        }
+
+        final StringBuilder sb = new StringBuilder(NameQuery.SELECT);
+        for (int i = 0; i < candidates.length; i++) {
+            if (i != 0) {
+                sb.append(',');
+            }
+            sb.append(candidates[i]);
+        }
+        sb.append(')');
+
+        final NameDistance nameDistance = new NameDistance(MAX_MATCHED_NAME_LENGTH);
+        final List<Match> matches = new ArrayList<Match>();
+        final Cursor cursor = db.rawQuery(sb.toString(), null);
+        try {
+            while (cursor.moveToNext()) {
+                final String name = cursor.getString(NameQuery.NAME);
+                if (TextUtils.isEmpty(name)) {
+                    continue;
+                }
+                final String[] hexWords = TextUtils.split(name, " ");
+                final byte[][] words = new byte[hexWords.length][];
+                for (int i = 0; i < words.length; i++) {
+                    words[i] = decode(hexWords[i]);
+                }
+                final float score = computeScore(nameDistance, tokens, words);
+                if (score >= MATCH_THRESHOLD) {
+                    matches.add(new Match(cursor.getLong(NameQuery.DOC_ID),
+                            cursor.getLong(NameQuery.CONTACT_ID), score));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return matches;
+    }
+
+    /**
+     * Returns how close the words of a name are to the tokens of a filter: the average of the
+     * closeness of each token to the closest word, or 0 if a token isn't close to any word.
+     * Tokens are compared to the whole words and to their prefix of the same length, so that a
+     * partially typed name is close to the full name.
+     */
+    @VisibleForTesting
+    static float computeScore(NameDistance nameDistance, byte[][] tokens, byte[][] words) {
+        float total = 0;
+        for (byte[] token : tokens) {
+            float best = 0;
+            for (byte[] word : words) {
+                if (word.length == 0) {
+                    continue;
+                }
+                if (isPrefix(token, word)) {
+                    best = 1;
+                    break;
+                }
+                if (token.length < MIN_FUZZY_TOKEN_LENGTH) {
+                    continue;
+                }
+                best = Math.max(best, nameDistance.getDistance(token, word));
+                if (word.length > token.length) {
+                    best = Math.max(best, nameDistance.getDistance(token,
+                            Arrays.copyOf(word, token.length)));
+                }
+            }
+            if (best < MATCH_THRESHOLD) {
+                return 0;
+            }
+            total += best;
+        }
+        return tokens.length == 0 ? 0 : total / tokens.length;
+    }
+
+    private static boolean isPrefix(byte[] prefix, byte[] word) {
+        if (prefix.length > word.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (prefix[i] != word[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final byte[] EMPTY_BYTES = new byte[0];
+
+    private static byte[] decode(String hexWord) {
+        try {
+            return Hex.decodeHex(hexWord);
+        } catch (IllegalArgumentException e) {
+            return EMPTY_BYTES;
+        }
+    }
+
+    /**
+     * Returns the number of rows of the n-gram table.
+     */
+    public static long getRowCount(SQLiteDatabase db) {
+        return DatabaseUtils.queryNumEntries(db, Tables.SEARCH_NGRAM);
+    }
+
+    /**
+     * Prints the size of the n-gram table.
+     */
+    public static void dump(PrintWriter pw, SQLiteDatabase db) {
+        final long rows = getRowCount(db);
+        final long contacts = DatabaseUtils.longForQuery(db,
+                "SELECT COUNT(DISTINCT " + SearchNgramColumns.CONTACT_ID + ")"
+                + " FROM " + Tables.SEARCH_NGRAM, null);
+        final long bytes = DatabaseUtils.longForQuery(db,
+                "SELECT IFNULL(SUM(LENGTH(" + SearchNgramColumns.NGRAM + ")), 0)"
+                + " FROM " + Tables.SEARCH_NGRAM, null);
+        pw.print("Name n-gram index stats:\n");
+        pw.printf("  rows=%d  contacts=%d  avg rows/contact=%d (max %d)  n-gram text=%dKB\n",
+                rows, contacts, contacts == 0 ? 0 : rows / contacts, MAX_NGRAMS_PER_CONTACT,
+                bytes / 1024);
+    }
+}
@@ -15,6 +15,9 @@
  */
 package com.android.providers.contacts;
 
+import android.os.SystemProperties;
+import android.util.LruCache;
+
 import com.android.providers.contacts.util.Hex;
 import com.google.common.annotations.VisibleForTesting;
 
@@ -26,57 +29,260 @@ import java.util.Locale;
 /**
  * Converts a name to a normalized form by removing all non-letter characters and normalizing
  * UNICODE according to http://unicode.org/unicode/reports/tr15
+ * <p>
+ * The normalized form is the collation key of the name, encoded as text in one of two formats:
+ * {@link #KEY_FORMAT_HEX}, two hex digits per byte, and {@link #KEY_FORMAT_COMPACT}, one char
+ * per byte.  Both keep the order of the keys, and the key of a prefix of a name is a prefix of
+ * the key of the name, so GLOB prefix matches work the same way.
  */
 public class NameNormalizer {
 
-    private static final Object sCollatorLock = new Object();
+    /** Two uppercase hex digits per byte of the collation key.  The default. */
+    public static final int KEY_FORMAT_HEX = 0;
+
+    /**
+     * One char per byte of the collation key, skipping the chars that have a meaning in SQL
+     * string literals and GLOB patterns.  Bytes below 0x7A are a single byte in UTF-8, which is
+     * most of the key for Latin names.
+     */
+    public static final int KEY_FORMAT_COMPACT = 1;
+
+    /** Opts in to {@link #KEY_FORMAT_COMPACT}. */
+    private static final String COMPACT_KEYS_PROPERTY = "persist.contacts.compact_name_keys";
 
-    private static Locale sCollatorLocale;
+    private static final char[] COMPACT_CHARS = new char[256];
+    private static final byte[] COMPACT_BYTES;
+    static {
+        char c = 1;
+        for (int i = 0; i < 256; i++) {
+            while (c == '\'' || c == '*' || c == '?' || c == '[' || c == ']') {
+                c++;
+            }
+            COMPACT_CHARS[i] = c++;
+        }
+        COMPACT_BYTES = new byte[c];
+        for (int i = 0; i < 256; i++) {
+            COMPACT_BYTES[COMPACT_CHARS[i]] = (byte) i;
+        }
+    }
 
-    private static RuleBasedCollator sCachedCompressingCollator;
-    private static RuleBasedCollator sCachedComplexityCollator;
+    private static volatile int sKeyFormat =
+            SystemProperties.getBoolean(COMPACT_KEYS_PROPERTY, false)
+                    ? KEY_FORMAT_COMPACT : KEY_FORMAT_HEX;
+
+    /** Maximum number of names whose normalized form is kept by {@link #normalize}. */
+    @VisibleForTesting
+    static final int NORMALIZED_NAME_CACHE_SIZE = 1000;
 
     /**
-     * Ensure that the cached collators are for the current locale.
+     * The collators of each thread.  Collators aren't thread safe, and giving each thread its
+     * own means that concurrent syncs and filter queries don't wait for each other.
      */
-    private static void ensureCollators() {
-        final Locale locale = Locale.getDefault();
-        if (locale.equals(sCollatorLocale)) {
-            return;
+    private static final ThreadLocal<ThreadCollators> sThreadCollators =
+            new ThreadLocal<ThreadCollators>() {
+                @Override
+                protected ThreadCollators initialValue() {
+                    return new ThreadCollators();
+                }
+            };
+
+    /** Normalized names for the current locale and key format, shared by all threads. */
+    private static volatile NormalizedNameCache sNormalizedNames;
+
+    private static final class ThreadCollators {
+        private Locale mLocale;
+        private RuleBasedCollator mCompressingCollator;
+        private RuleBasedCollator mComplexityCollator;
+
+        /** Reused to encode the collation keys. */
+        private char[] mKeyBuffer = new char[64];
+
+        /**
+         * Ensure that the collators are for the current locale.
+         */
+        private void ensureCollators(Locale locale) {
+            if (locale.equals(mLocale)) {
+                return;
+            }
+            mLocale = locale;
+
+            mCompressingCollator = (RuleBasedCollator) Collator.getInstance(locale);
+            mCompressingCollator.setStrength(Collator.PRIMARY);
+            mCompressingCollator.setDecomposition(Collator.CANONICAL_DECOMPOSITION);
+
+            mComplexityCollator = (RuleBasedCollator) Collator.getInstance(locale);
+            mComplexityCollator.setStrength(Collator.SECONDARY);
         }
-        sCollatorLocale = locale;
 
-        sCachedCompressingCollator = (RuleBasedCollator) Collator.getInstance(locale);
-        sCachedCompressingCollator.setStrength(Collator.PRIMARY);
-        sCachedCompressingCollator.setDecomposition(Collator.CANONICAL_DECOMPOSITION);
+        private String encodeKey(byte[] array, int format) {
+            if (mKeyBuffer.length < array.length * 2) {
+                mKeyBuffer = new char[array.length * 2];
+            }
+            final int length;
+            if (format == KEY_FORMAT_COMPACT) {
+                length = encodeCompact(array, mKeyBuffer);
+            } else {
+                length = Hex.encodeHex(array, true, mKeyBuffer);
+            }
+            return new String(mKeyBuffer, 0, length);
+        }
+    }
+
+    private static final class NormalizedNameCache extends LruCache<String, String> {
+        private final Locale mLocale;
+        private final int mKeyFormat;
 
-        sCachedComplexityCollator = (RuleBasedCollator) Collator.getInstance(locale);
-        sCachedComplexityCollator.setStrength(Collator.SECONDARY);
+        NormalizedNameCache(Locale locale, int keyFormat) {
+            super(NORMALIZED_NAME_CACHE_SIZE);
+            mLocale = locale;
+            mKeyFormat = keyFormat;
+        }
+    }
+
+    /**
+     * Returns the format of the normalized names returned by {@link #normalize}.
+     */
+    public static int getKeyFormat() {
+        return sKeyFormat;
     }
 
     @VisibleForTesting
-    static RuleBasedCollator getCompressingCollator() {
-        synchronized (sCollatorLock) {
-            ensureCollators();
-            return sCachedCompressingCollator;
+    static void setKeyFormat(int format) {
+        sKeyFormat = format;
+    }
+
+    private static ThreadCollators getThreadCollators() {
+        final ThreadCollators collators = sThreadCollators.get();
+        collators.ensureCollators(Locale.getDefault());
+        return collators;
+    }
+
+    /**
+     * Returns the cache of normalized names, starting a new one if the locale or the key format
+     * has changed.
+     */
+    private static NormalizedNameCache getNormalizedNameCache(Locale locale, int format) {
+        NormalizedNameCache cache = sNormalizedNames;
+        if (cache == null || !locale.equals(cache.mLocale) || format != cache.mKeyFormat) {
+            cache = new NormalizedNameCache(locale, format);
+            sNormalizedNames = cache;
         }
+        return cache;
+    }
+
+    @VisibleForTesting
+    static RuleBasedCollator getCompressingCollator() {
+        return getThreadCollators().mCompressingCollator;
     }
 
     @VisibleForTesting
     static RuleBasedCollator getComplexityCollator() {
-        synchronized (sCollatorLock) {
-            ensureCollators();
-            return sCachedComplexityCollator;
-        }
+        return getThreadCollators().mComplexityCollator;
     }
 
     /**
      * Converts the supplied name to a string that can be used to perform approximate matching
      * of names.  It ignores non-letter, non-digit characters, and removes accents.
+     * <p>
+     * The result is in the format given by {@link #getKeyFormat}, which is the one used by the
+     * name lookup tables.
      */
     public static String normalize(String name) {
-        CollationKey key = getCompressingCollator().getCollationKey(lettersAndDigitsOnly(name));
-        return Hex.encodeHex(key.toByteArray(), true);
+        if (name == null) {
+            name = "";
+        }
+        final Locale locale = Locale.getDefault();
+        final int format = sKeyFormat;
+        final NormalizedNameCache cache = getNormalizedNameCache(locale, format);
+        String normalized = cache.get(name);
+        if (normalized == null) {
+            final ThreadCollators collators = sThreadCollators.get();
+            collators.ensureCollators(locale);
+            CollationKey key = collators.mCompressingCollator.getCollationKey(
+                    lettersAndDigitsOnly(name));
+            normalized = collators.encodeKey(key.toByteArray(), format);
+            cache.put(name, normalized);
+        }
+        return normalized;
+    }
+
+    /**
+     * Same as {@link #normalize}, but always in {@link #KEY_FORMAT_HEX}.  Used where the
+     * normalized name is kept outside of the lookup tables and can't change format: lookup keys
+     * and the full-text search index, whose tokenizer only keeps letters and digits.
+     */
+    public static String normalizeToHex(String name) {
+        final String normalized = normalize(name);
+        if (sKeyFormat == KEY_FORMAT_HEX) {
+            return normalized;
+        }
+        return Hex.encodeHex(decodeCompact(normalized), false);
+    }
+
+    /**
+     * Converts a normalized name in {@link #KEY_FORMAT_HEX}, e.g. from a lookup key, to the
+     * current key format.
+     *
+     * @throws IllegalArgumentException if the name isn't valid hex.
+     */
+    public static String fromHex(String hexName) {
+        if (sKeyFormat == KEY_FORMAT_HEX) {
+            return hexName;
+        }
+        final byte[] key = Hex.decodeHex(hexName);
+        final char[] chars = new char[key.length];
+        final int length = encodeCompact(key, chars);
+        return new String(chars, 0, length);
+    }
+
+    /**
+     * Returns the bytes of the collation key of a normalized name in the current key format.
+     *
+     * @throws IllegalArgumentException if the name isn't in the current key format.
+     */
+    public static byte[] decode(String normalizedName) {
+        if (sKeyFormat == KEY_FORMAT_HEX) {
+            return Hex.decodeHex(normalizedName);
+        }
+        return decodeCompact(normalizedName);
+    }
+
+    /**
+     * Returns the part of a normalized name that encodes the first byte of its collation key,
+     * or null if the name is too short.
+     */
+    public static String getFirstByte(String normalizedName) {
+        final int length = sKeyFormat == KEY_FORMAT_HEX ? 2 : 1;
+        return normalizedName.length() >= length ? normalizedName.substring(0, length) : null;
+    }
+
+    /**
+     * Encodes a zero-terminated collation key in {@link #KEY_FORMAT_COMPACT}.
+     *
+     * @return The number of chars written.
+     */
+    private static int encodeCompact(byte[] array, char[] out) {
+        int length = array.length;
+        if (length != 0 && array[length - 1] == 0) {
+            length--;
+        }
+        for (int i = 0; i < length; i++) {
+            out[i] = COMPACT_CHARS[array[i] & 0xFF];
+        }
+        return length;
+    }
+
+    private static byte[] decodeCompact(String name) {
+        final int length = name.length();
+        final byte[] key = new byte[length];
+        for (int i = 0; i < length; i++) {
+            final char c = name.charAt(i);
+            if (c >= COMPACT_BYTES.length || (c != COMPACT_CHARS[0] && COMPACT_BYTES[c] == 0)) {
+                throw new IllegalArgumentException("Invalid normalized name: " + name);
+            }
+            key[i] = COMPACT_BYTES[c];
+        }
+        return key;
     }
 
     /**
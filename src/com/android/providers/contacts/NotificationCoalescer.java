@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.providers.contacts.util.Clock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Keeps the notifications sent by {@link DbModifierWithNotification} from turning into a storm
+ * during call log restores and voicemail syncs.
+ * <ul>
+ *   <li>Call log change notifications are rate limited: the first change is notified right
+ *   away, and any further changes within {@link #CALL_LOG_CHANGE_INTERVAL_MS} are coalesced into
+ *   a single notification at the end of the interval.</li>
+ *   <li>The broadcast receivers resolved for an intent are cached per action, component, URI
+ *   scheme and authority, and resolved MIME type, and forgotten when packages are added,
+ *   replaced or removed.</li>
+ * </ul>
+ */
+/* package */ final class NotificationCoalescer {
+
+    /** Minimum interval between two call log change notifications. */
+    @VisibleForTesting
+    static final long CALL_LOG_CHANGE_INTERVAL_MS = 500;
+
+    private static final Object sLock = new Object();
+
+    /** Time of the last call log change notification, or 0. */
+    private static long sLastCallLogChangeMillis;
+
+    /** Whether a coalesced call log change notification is scheduled. */
+    private static boolean sCallLogChangePending;
+
+    private static Handler sHandler;
+
+    private static final HashMap<String, List<ComponentName>> sReceivers =
+            new HashMap<String, List<ComponentName>>();
+
+    /** Incremented when {@link #sReceivers} is cleared, so lookups racing with it aren't kept. */
+    private static int sReceiversGeneration;
+
+    private NotificationCoalescer() {
+    }
+
+    /**
+     * Runs {@code notifier} now, or once at the end of the current interval if a call log change
+     * has been notified within it.
+     */
+    public static void notifyCallLogChange(final Runnable notifier) {
+        synchronized (sLock) {
+            if (sCallLogChangePending) {
+                return;
+            }
+            final long now = Clock.getInstance().currentTimeMillis();
+            // Never wait longer than the interval, even if the clock has been set back.
+            final long wait = sLastCallLogChangeMillis == 0 ? 0
+                    : Math.min(sLastCallLogChangeMillis + CALL_LOG_CHANGE_INTERVAL_MS - now,
+                            CALL_LOG_CHANGE_INTERVAL_MS);
+            if (wait > 0) {
+                sCallLogChangePending = true;
+                getHandler().postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (sLock) {
+                            sCallLogChangePending = false;
+                            sLastCallLogChangeMillis = Clock.getInstance().currentTimeMillis();
+                        }
+                        notifier.run();
+                    }
+                }, wait);
+                return;
+            }
+            sLastCallLogChangeMillis = now;
+        }
+        notifier.run();
+    }
+
+    /**
+     * Returns the components of the broadcast receivers that can receive the given intent.
+     */
+    public static List<ComponentName> getReceiverComponents(Context context, Intent intent) {
+        final String key = getReceiverKey(context, intent);
+        final int generation;
+        synchronized (sLock) {
+            final List<ComponentName> components = sReceivers.get(key);
+            if (components != null) {
+                return components;
+            }
+            generation = sReceiversGeneration;
+        }
+
+        final List<ComponentName> components = new ArrayList<ComponentName>();
+        // For broadcast receivers ResolveInfo.activityInfo is the one that is populated.
+        for (ResolveInfo resolveInfo :
+                context.getPackageManager().queryBroadcastReceivers(intent, 0)) {
+            ActivityInfo activityInfo = resolveInfo.activityInfo;
+            components.add(new ComponentName(activityInfo.packageName, activityInfo.name));
+        }
+        final List<ComponentName> result = Collections.unmodifiableList(components);
+        synchronized (sLock) {
+            if (generation == sReceiversGeneration) {
+                sReceivers.put(key, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Forgets the resolved receivers, as a package has been added, replaced or removed, or had
+     * components enabled or disabled ({@link Intent#ACTION_PACKAGE_CHANGED}).
+     */
+    public static void invalidateReceivers() {
+        synchronized (sLock) {
+            sReceiversGeneration++;
+            sReceivers.clear();
+        }
+    }
+
+    /**
+     * Returns the key of the receivers resolved for the given intent.  Receivers match on the
+     * MIME type of the data rather than on its path, so the intents for all the rows of a table
+     * share a key, but those for different tables of the same authority don't.
+     */
+    @VisibleForTesting
+    static String getReceiverKey(Context context, Intent intent) {
+        final StringBuilder sb = new StringBuilder(intent.getAction());
+        final ComponentName component = intent.getComponent();
+        if (component != null) {
+            sb.append('|').append(component.flattenToShortString());
+        }
+        final Uri uri = intent.getData();
+        if (uri != null) {
+            sb.append('|').append(uri.getScheme()).append("://").append(uri.getAuthority());
+        }
+        final String type = intent.resolveTypeIfNeeded(context.getContentResolver());
+        sb.append('|').append(Objects.toString(type, ""));
+        return sb.toString();
+    }
+
+    /**
+     * Forgets the state of the rate limiting, and makes the coalesced notifications go through
+     * the given handler.
+     */
+    @VisibleForTesting
+    static void resetForTesting(Handler handler) {
+        synchronized (sLock) {
+            sLastCallLogChangeMillis = 0;
+            sCallLogChangePending = false;
+            sHandler = handler;
+        }
+    }
+
+    private static Handler getHandler() {
+        if (sHandler == null) {
+            final HandlerThread thread = new HandlerThread("NotificationCoalescer",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sHandler = new Handler(thread.getLooper());
+        }
+        return sHandler;
+    }
+}
@@ -26,12 +26,17 @@ import android.provider.ContactsContract;
 
 /**
  * Package intent receiver that invokes {@link ContactsProvider2#onPackageChanged} to update
- * the contact directory list.
+ * the contact directory list, and drops the broadcast receivers cached by
+ * {@link NotificationCoalescer}.
  */
 public class PackageIntentReceiver extends BroadcastReceiver {
 
     @Override
     public void onReceive(Context context, Intent intent) {
+        // The set of receivers for call log and voicemail broadcasts may have changed, including
+        // when only a component has been enabled or disabled (ACTION_PACKAGE_CHANGED).
+        NotificationCoalescer.invalidateReceivers();
+
         Uri packageUri = intent.getData();
         String packageName = packageUri.getSchemeSpecificPart();
         IContentProvider iprovider =
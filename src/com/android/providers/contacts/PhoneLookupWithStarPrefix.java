@@ -100,6 +100,19 @@ import android.util.Log;
         }
     }
 
+    /**
+     * Returns whether {@link #removeNonStarMatchesFromCursor} keeps a row with
+     * {@param matchingNumber} for {@param number}, which must not be empty.
+     */
+    public static boolean isStarMatch(String number, String matchingNumber) {
+        final String queryPhoneNumberNormalized = normalizeNumberWithStar(number);
+        final String matchingNumberNormalized = TextUtils.isEmpty(matchingNumber) ? ""
+                : normalizeNumberWithStar(matchingNumber);
+        return !matchingNumberNormalized.startsWith("*")
+                && !queryPhoneNumberNormalized.startsWith("*")
+                || matchingNumberNormalized.equals(queryPhoneNumberNormalized);
+    }
+
     @VisibleForTesting
     static String normalizeNumberWithStar(String phoneNumber) {
         if (TextUtils.isEmpty(phoneNumber)) {
@@ -131,7 +144,7 @@ import android.util.Log;
         return false;
     }
 
-    private static Object cursorValue(Cursor cursor, int column) {
+    static Object cursorValue(Cursor cursor, int column) {
         switch(cursor.getType(column)) {
             case Cursor.FIELD_TYPE_BLOB:
                 return cursor.getBlob(column);
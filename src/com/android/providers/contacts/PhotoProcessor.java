@@ -28,6 +28,7 @@ import com.android.providers.contacts.util.MemoryUtils;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 
 /**
@@ -246,10 +247,45 @@ import java.io.IOException;
         }
     }
 
+    /**
+     * Creates a smaller variant of the display photo in the given file, for clients that only
+     * need a photo of the given size.
+     * @param file The display photo file.
+     * @param maxDim Maximum width and height (in pixels) of the variant.
+     * @return The compressed variant, or null if the display photo already fits the given
+     *     dimensions.
+     * @throws IOException If bitmap decoding or scaling fails.
+     */
+    public static byte[] createVariantBytes(File file, int maxDim) throws IOException {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        final int largestDim = Math.max(options.outWidth, options.outHeight);
+        if (largestDim <= 0) {
+            throw new IOException("Invalid image file");
+        }
+        if (largestDim <= maxDim) {
+            return null;
+        }
+
+        // Decode no more pixels than needed; the final scaling is done below.
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (largestDim / (options.inSampleSize * 2) >= maxDim) {
+            options.inSampleSize *= 2;
+        }
+        final Bitmap original = BitmapFactory.decodeFile(file.getPath(), options);
+        if (original == null) {
+            throw new IOException("Invalid image file");
+        }
+        return getCompressedBytes(getNormalizedBitmap(original, maxDim, false),
+                COMPRESSION_DISPLAY_PHOTO);
+    }
+
     /**
      * Helper method to compress the given bitmap as a JPEG and return the resulting byte array.
      */
-    private byte[] getCompressedBytes(Bitmap b, int quality) throws IOException {
+    private static byte[] getCompressedBytes(Bitmap b, int quality) throws IOException {
         final ByteArrayOutputStream baos = new ByteArrayOutputStream();
         final boolean compressed = b.compress(Bitmap.CompressFormat.JPEG, quality, baos);
         baos.flush();
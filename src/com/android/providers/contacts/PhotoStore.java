@@ -16,26 +16,39 @@
 package com.android.providers.contacts;
 
 import android.content.ContentValues;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.graphics.Bitmap;
 import android.provider.ContactsContract.PhotoFiles;
 import android.util.Log;
 
+import com.android.providers.contacts.ContactsDatabaseHelper.DbProperties;
 import com.android.providers.contacts.ContactsDatabaseHelper.PhotoFilesColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
+import com.android.providers.contacts.util.PropertyUtils;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.TreeMap;
 
 /**
  * Photo storage system that stores the files directly onto the hard disk
  * in the specified directory.
+ *
+ * The index of the files in the directory is loaded lazily.  The photo files table already
+ * records the ID and size of every file, so as long as the directory hasn't changed behind
+ * our back (which is checked by comparing its modification time against the one recorded the
+ * last time we changed it), the index is read from there without touching the files.
+ * Otherwise, the directory is rescanned.
  */
 public class PhotoStore {
 
@@ -46,12 +59,44 @@ public class PhotoStore {
     // Directory name under the root directory for photo storage.
     private final String DIRECTORY = "photos";
 
-    /** Map of keys to entries in the directory. */
-    private final Map<Long, Entry> mEntries;
+    // Directory name under the root directory for cached photo size variants.
+    private final String VARIANTS_DIRECTORY = "photo_variants";
+
+    /** Maximum number of bytes taken up by cached photo size variants. */
+    @VisibleForTesting
+    static final long MAX_VARIANTS_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Requested variant sizes are rounded up to a multiple of this, so that slightly different
+     * requests share a cached variant.
+     */
+    @VisibleForTesting
+    static final int VARIANT_DIM_STEP = 32;
+
+    /** Map of keys to entries in the directory, ordered by key. */
+    private final NavigableMap<Long, Entry> mEntries;
 
     /** Total amount of space currently used by the photo store in bytes. */
     private long mTotalSize = 0;
 
+    /** Whether {@link #mEntries} has been loaded. */
+    private volatile boolean mLoaded;
+
+    /** The file path for cached photo size variants. */
+    private final File mVariantsPath;
+
+    /** Guards {@link #mVariants}, {@link #mVariantsSize} and the variant files. */
+    private final Object mVariantsLock = new Object();
+
+    /**
+     * Cached photo size variants by file name ("photoFileId_dim"), in least recently used
+     * order.  Null until loaded.
+     */
+    private LinkedHashMap<String, Entry> mVariants;
+
+    /** Total amount of space currently used by cached photo size variants in bytes. */
+    private long mVariantsSize = 0;
+
     /** The file path for photo storage. */
     private final File mStorePath;
 
@@ -68,6 +113,7 @@ public class PhotoStore {
      */
     public PhotoStore(File rootDirectory, ContactsDatabaseHelper databaseHelper) {
         mStorePath = new File(rootDirectory, DIRECTORY);
+        mVariantsPath = new File(rootDirectory, VARIANTS_DIRECTORY);
         synchronized (MKDIRS_LOCK) {
             if (!mStorePath.exists()) {
                 if (!mStorePath.mkdirs()) {
@@ -77,8 +123,7 @@ public class PhotoStore {
             }
         }
         mDatabaseHelper = databaseHelper;
-        mEntries = new HashMap<Long, Entry>();
-        initialize();
+        mEntries = new TreeMap<Long, Entry>();
     }
 
     /**
@@ -97,10 +142,24 @@ public class PhotoStore {
         mDb.delete(Tables.PHOTO_FILES, null, null);
         mEntries.clear();
         mTotalSize = 0;
+        mLoaded = true;
+        updateIndexStamp();
+
+        synchronized (mVariantsLock) {
+            files = mVariantsPath.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    cleanupFile(file);
+                }
+            }
+            mVariants = null;
+            mVariantsSize = 0;
+        }
     }
 
     @VisibleForTesting
     public long getTotalSize() {
+        ensureLoaded();
         return mTotalSize;
     }
 
@@ -108,14 +167,75 @@ public class PhotoStore {
      * Returns the entry with the specified key if it exists, null otherwise.
      */
     public Entry get(long key) {
+        ensureLoaded();
         return mEntries.get(key);
     }
 
+    /**
+     * Loads the index of the store if it hasn't been loaded yet.
+     */
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        synchronized (this) {
+            if (!mLoaded) {
+                mDb = mDatabaseHelper.getWritableDatabase();
+                if (!loadIndex()) {
+                    initialize();
+                }
+                mLoaded = true;
+            }
+        }
+    }
+
+    /**
+     * Loads the entries from the photo files table, without looking at the files themselves.
+     * @return Whether the index could be loaded; false if the directory has changed since the
+     *     index was last updated, in which case nothing is loaded.
+     */
+    private boolean loadIndex() {
+        final String stamp = PropertyUtils.getProperty(mDb,
+                DbProperties.PHOTO_STORE_INDEX_STAMP, null);
+        if (stamp == null || !stamp.equals(String.valueOf(mStorePath.lastModified()))) {
+            Log.i(TAG, "Photo store index is out of date, rescanning " + mStorePath.getPath());
+            return false;
+        }
+        Cursor c = mDb.query(Tables.PHOTO_FILES,
+                new String[] {PhotoFiles._ID, PhotoFiles.FILESIZE},
+                null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                long id = c.getLong(0);
+                putEntry(id, new Entry(id, c.getLong(1),
+                        getFileForPhotoFileId(id).getAbsolutePath()));
+            }
+        } finally {
+            c.close();
+        }
+        return true;
+    }
+
+    /**
+     * Records the current modification time of the directory, marking the photo files table
+     * as an up-to-date index of the directory.  Must be called after every change to the
+     * directory.
+     */
+    private void updateIndexStamp() {
+        PropertyUtils.setProperty(mDb, DbProperties.PHOTO_STORE_INDEX_STAMP,
+                String.valueOf(mStorePath.lastModified()));
+    }
+
     /**
      * Initializes the PhotoStore by scanning for all files currently in the
      * specified root directory.
      */
     public final void initialize() {
+        // Get a reference to the database.
+        mDb = mDatabaseHelper.getWritableDatabase();
+
+        mEntries.clear();
+        mTotalSize = 0;
         File[] files = mStorePath.listFiles();
         if (files == null) {
             return;
@@ -129,36 +249,77 @@ public class PhotoStore {
                 cleanupFile(file);
             }
         }
+        updateIndexStamp();
+        mLoaded = true;
+    }
 
-        // Get a reference to the database.
-        mDb = mDatabaseHelper.getWritableDatabase();
+    /**
+     * Returns up to {@code limit} keys greater than {@code afterKey} that exist in the store,
+     * in ascending order.
+     */
+    public long[] getKeysAfter(long afterKey, int limit) {
+        ensureLoaded();
+        final NavigableMap<Long, Entry> tail = mEntries.tailMap(afterKey, false);
+        final long[] keys = new long[Math.min(limit, tail.size())];
+        int i = 0;
+        for (Iterator<Long> it = tail.keySet().iterator(); it.hasNext() && i < keys.length; ) {
+            keys[i++] = it.next();
+        }
+        return keys;
     }
 
     /**
-     * Cleans up the photo store such that only the keys in use still remain as
-     * entries in the store (all other entries are deleted).
+     * Cleans up the keys of the photo store in the range ({@code afterKey}, {@code upToKey}]
+     * such that only the keys in use still remain as entries in the store: entries in that
+     * range which are not in {@code sortedKeysInUse} are deleted.
      *
-     * If an entry in the keys in use does not exist in the photo store, that key
-     * will be returned in the result set - the caller should take steps to clean
-     * up those references, as the underlying photo entries do not exist.
+     * If an entry in the keys in use does not exist in the photo store, that key will be
+     * returned in the result set - the caller should take steps to clean up those references,
+     * as the underlying photo entries do not exist.
      *
-     * @param keysInUse The set of all keys that are in use in the photo store.
+     * The keys in use are merge-joined against the (ordered) keys in the store, so no
+     * intermediate sets are built.
+     *
+     * @param afterKey The exclusive lower bound of the key range.
+     * @param upToKey The inclusive upper bound of the key range.
+     * @param sortedKeysInUse The keys in use within the range, in ascending order.  Duplicates
+     *     are allowed.
+     * @param count The number of valid elements in {@code sortedKeysInUse}.
      * @return The set of the keys in use that refer to non-existent entries.
      */
-    public Set<Long> cleanup(Set<Long> keysInUse) {
-        Set<Long> keysToRemove = new HashSet<Long>();
-        keysToRemove.addAll(mEntries.keySet());
-        keysToRemove.removeAll(keysInUse);
-        if (!keysToRemove.isEmpty()) {
-            Log.d(TAG, "cleanup removing " + keysToRemove.size() + " entries");
-            for (long key : keysToRemove) {
-                remove(key);
+    public Set<Long> cleanupRange(long afterKey, long upToKey, long[] sortedKeysInUse,
+            int count) {
+        ensureLoaded();
+        final Set<Long> missingKeys = new HashSet<Long>();
+        final Iterator<Entry> storeEntries =
+                mEntries.subMap(afterKey, false, upToKey, true).values().iterator();
+        Entry entry = storeEntries.hasNext() ? storeEntries.next() : null;
+        int removed = 0;
+        int i = 0;
+        while (entry != null || i < count) {
+            if (i < count && (entry == null || sortedKeysInUse[i] < entry.id)) {
+                // Referenced key without an entry.
+                missingKeys.add(sortedKeysInUse[i++]);
+                continue;
+            }
+            if (i < count && sortedKeysInUse[i] == entry.id) {
+                // Referenced key with an entry; skip over duplicate references too.
+                while (i < count && sortedKeysInUse[i] == entry.id) {
+                    i++;
+                }
+            } else {
+                // Entry is not referenced by anyone.
+                storeEntries.remove();
+                removeFile(entry);
+                removeVariants(entry.id);
+                removed++;
             }
+            entry = storeEntries.hasNext() ? storeEntries.next() : null;
+        }
+        if (removed > 0) {
+            Log.d(TAG, "cleanupRange removed " + removed + " entries");
+            updateIndexStamp();
         }
-
-        Set<Long> missingKeys = new HashSet<Long>();
-        missingKeys.addAll(keysInUse);
-        missingKeys.removeAll(mEntries.keySet());
         return missingKeys;
     }
 
@@ -184,6 +345,7 @@ public class PhotoStore {
      *     is thumbnail-sized or smaller and allowSmallImageStorage is false.
      */
     public long insert(PhotoProcessor photoProcessor, boolean allowSmallImageStorage) {
+        ensureLoaded();
         Bitmap displayPhoto = photoProcessor.getDisplayPhoto();
         int width = displayPhoto.getWidth();
         int height = displayPhoto.getHeight();
@@ -210,8 +372,8 @@ public class PhotoStore {
                     // Rename the temp file.
                     File target = getFileForPhotoFileId(id);
                     if (file.renameTo(target)) {
-                        Entry entry = new Entry(target);
-                        putEntry(entry.id, entry);
+                        putEntry(id, new Entry(id, photoBytes.length, target.getAbsolutePath()));
+                        updateIndexStamp();
                         return id;
                     }
                 }
@@ -222,6 +384,7 @@ public class PhotoStore {
             // If anything went wrong, clean up the file before returning.
             if (file != null) {
                 cleanupFile(file);
+                updateIndexStamp();
             }
         }
         return 0;
@@ -238,8 +401,173 @@ public class PhotoStore {
      * Removes the specified photo file from the store if it exists.
      */
     public void remove(long id) {
+        ensureLoaded();
         cleanupFile(getFileForPhotoFileId(id));
         removeEntry(id);
+        updateIndexStamp();
+        removeVariants(id);
+    }
+
+    /**
+     * Returns a variant of the photo with the given ID that fits in the given dimension,
+     * creating and caching it if needed.  Cached variants are evicted in least recently used
+     * order once they take up more than {@link #MAX_VARIANTS_SIZE}.
+     *
+     * @param id The photo file ID.
+     * @param maxDim Maximum width and height (in pixels) of the variant.
+     * @return The entry for the variant (which is the photo itself if it already fits in
+     *     the given dimension), or null if the photo doesn't exist.
+     */
+    public Entry getVariant(long id, int maxDim) {
+        final Entry entry = get(id);
+        if (entry == null || maxDim <= 0) {
+            return entry;
+        }
+        maxDim = ((maxDim + VARIANT_DIM_STEP - 1) / VARIANT_DIM_STEP) * VARIANT_DIM_STEP;
+        final String name = id + "_" + maxDim;
+        synchronized (mVariantsLock) {
+            ensureVariantsLoaded();
+            final Entry variant = mVariants.get(name);
+            if (variant != null) {
+                return variant;
+            }
+        }
+
+        // Scale outside of the lock; if two threads race to create the same variant, the
+        // second rename simply replaces the first file.
+        final byte[] bytes;
+        try {
+            bytes = PhotoProcessor.createVariantBytes(new File(entry.path), maxDim);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not create variant " + name, e);
+            return entry;
+        }
+        if (bytes == null) {
+            return entry;
+        }
+        synchronized (mVariantsLock) {
+            File file = null;
+            try {
+                file = File.createTempFile("variant", null, mVariantsPath);
+                FileOutputStream fos = new FileOutputStream(file);
+                try {
+                    fos.write(bytes);
+                } finally {
+                    fos.close();
+                }
+                final File target = new File(mVariantsPath, name);
+                if (file.renameTo(target)) {
+                    final Entry variant = new Entry(id, bytes.length, target.getAbsolutePath());
+                    putVariant(name, variant);
+                    trimVariants();
+                    return variant;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Could not store variant " + name, e);
+            }
+            if (file != null) {
+                cleanupFile(file);
+            }
+        }
+        return entry;
+    }
+
+    @VisibleForTesting
+    long getVariantsSize() {
+        synchronized (mVariantsLock) {
+            ensureVariantsLoaded();
+            return mVariantsSize;
+        }
+    }
+
+    /**
+     * Loads the cached variants from disk, oldest first.  Must be called with the variants
+     * lock held.
+     */
+    private void ensureVariantsLoaded() {
+        if (mVariants != null) {
+            return;
+        }
+        mVariants = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        mVariantsSize = 0;
+        if (!mVariantsPath.exists() && !mVariantsPath.mkdirs()) {
+            Log.w(TAG, "Unable to create photo variants directory " + mVariantsPath.getPath());
+            return;
+        }
+        final File[] files = mVariantsPath.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return Long.compare(lhs.lastModified(), rhs.lastModified());
+            }
+        });
+        for (File file : files) {
+            final String name = file.getName();
+            final int separator = name.indexOf('_');
+            try {
+                final long id = Long.parseLong(name.substring(0, separator));
+                Integer.parseInt(name.substring(separator + 1));
+                putVariant(name, new Entry(id, file.length(), file.getAbsolutePath()));
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                // Not a valid variant (e.g. a leftover temp file) - delete the file.
+                cleanupFile(file);
+            }
+        }
+        trimVariants();
+    }
+
+    private void putVariant(String name, Entry variant) {
+        final Entry oldVariant = mVariants.put(name, variant);
+        if (oldVariant != null) {
+            mVariantsSize -= oldVariant.size;
+        }
+        mVariantsSize += variant.size;
+    }
+
+    /**
+     * Evicts the least recently used variants until the budget is met.  Must be called with
+     * the variants lock held.
+     */
+    private void trimVariants() {
+        final Iterator<Entry> it = mVariants.values().iterator();
+        while (mVariantsSize > MAX_VARIANTS_SIZE && it.hasNext()) {
+            final Entry variant = it.next();
+            it.remove();
+            mVariantsSize -= variant.size;
+            cleanupFile(new File(variant.path));
+        }
+    }
+
+    /**
+     * Removes all the cached variants of the given photo.
+     */
+    private void removeVariants(long id) {
+        synchronized (mVariantsLock) {
+            ensureVariantsLoaded();
+            final Iterator<Entry> it = mVariants.values().iterator();
+            while (it.hasNext()) {
+                final Entry variant = it.next();
+                if (variant.id == id) {
+                    it.remove();
+                    mVariantsSize -= variant.size;
+                    cleanupFile(new File(variant.path));
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the file and database record for an entry that has already been removed from
+     * {@link #mEntries}.
+     */
+    private void removeFile(Entry entry) {
+        mTotalSize -= entry.size;
+        cleanupFile(getFileForPhotoFileId(entry.id));
+        mDb.delete(ContactsDatabaseHelper.Tables.PHOTO_FILES, PhotoFilesColumns.CONCRETE_ID + "=?",
+                new String[]{String.valueOf(entry.id)});
     }
 
     /**
@@ -289,9 +617,13 @@ public class PhotoStore {
         public final String path;
 
         public Entry(File file) {
-            id = Long.parseLong(file.getName());
-            size = file.length();
-            path = file.getAbsolutePath();
+            this(Long.parseLong(file.getName()), file.length(), file.getAbsolutePath());
+        }
+
+        public Entry(long id, long size, String path) {
+            this.id = id;
+            this.size = size;
+            this.path = path;
         }
     }
 }
@@ -231,12 +231,13 @@ public class SearchIndexManager {
             if (mSbName.length() != 0) {
                 mSbName.append(' ');
             }
-            mSbName.append(NameNormalizer.normalize(name));
+            mSbName.append(NameNormalizer.normalizeToHex(name));
         }
     }
 
     private final ContactsProvider2 mContactsProvider;
     private final ContactsDatabaseHelper mDbHelper;
+    private final NameNgramIndex mNgramIndex;
     private StringBuilder mSb = new StringBuilder();
     private IndexBuilder mIndexBuilder = new IndexBuilder();
     private ContentValues mValues = new ContentValues();
@@ -245,6 +246,7 @@ public class SearchIndexManager {
     public SearchIndexManager(ContactsProvider2 contactsProvider) {
         this.mContactsProvider = contactsProvider;
         mDbHelper = (ContactsDatabaseHelper) mContactsProvider.getDatabaseHelper();
+        mNgramIndex = new NameNgramIndex(mDbHelper);
     }
 
     public void updateIndex(boolean force) {
@@ -274,15 +276,17 @@ public class SearchIndexManager {
         mContactsProvider.setProviderStatus(ContactsProvider2.STATUS_UPGRADING);
         final long start = SystemClock.elapsedRealtime();
         int count = 0;
+        long ngramCount = 0;
         try {
             mDbHelper.createSearchIndexTable(db, true);
             count = buildAndInsertIndex(db, null);
+            ngramCount = NameNgramIndex.getRowCount(db);
         } finally {
             mContactsProvider.setProviderStatus(ContactsProvider2.STATUS_NORMAL);
 
             final long end = SystemClock.elapsedRealtime();
             Log.i(TAG, "Rebuild contact search index in " + (end - start) + "ms, "
-                    + count + " contacts");
+                    + count + " contacts, " + ngramCount + " name n-grams");
         }
     }
 
@@ -320,15 +324,18 @@ public class SearchIndexManager {
         // The selection to select raw_contacts.
         final String rawContactsSelection = sb.toString();
 
+        // The query selecting the affected contacts.
+        final String contactIdsQuery = "(SELECT " +
+                RawContacts.CONTACT_ID +
+                " FROM " + Tables.RAW_CONTACTS +
+                " WHERE " + rawContactsSelection +
+                ")";
+
         // Remove affected search_index rows.
         final SQLiteDatabase db = mDbHelper.getWritableDatabase();
         final int deleted = db.delete(Tables.SEARCH_INDEX,
-                SearchIndexColumns.CONTACT_ID + " IN (SELECT " +
-                    RawContacts.CONTACT_ID +
-                    " FROM " + Tables.RAW_CONTACTS +
-                    " WHERE " + rawContactsSelection +
-                    ")"
-                , null);
+                SearchIndexColumns.CONTACT_ID + " IN " + contactIdsQuery, null);
+        mNgramIndex.deleteNgrams(db, contactIdsQuery);
 
         // Then rebuild index for them.
         final int count = buildAndInsertIndex(db, rawContactsSelection);
@@ -397,6 +404,7 @@ public class SearchIndexManager {
         mValues.put(SearchIndexColumns.TOKENS, builder.getTokens());
         mValues.put(SearchIndexColumns.CONTACT_ID, contactId);
         db.insert(Tables.SEARCH_INDEX, null, mValues);
+        mNgramIndex.insertNgrams(contactId, builder.getName());
     }
     private int getSearchIndexVersion() {
         return Integer.parseInt(mDbHelper.getProperty(PROPERTY_SEARCH_INDEX_VERSION, "0"));
@@ -474,7 +482,7 @@ public class SearchIndexManager {
                     builder.append(token);
                     builder.append("* ");
 
-                    final String normalizedToken = NameNormalizer.normalize(token);
+                    final String normalizedToken = NameNormalizer.normalizeToHex(token);
                     if (!TextUtils.isEmpty(normalizedToken)) {
                         builder.append(" OR name:");
                         builder.append(normalizedToken);
@@ -494,7 +502,7 @@ public class SearchIndexManager {
 
             // the token could be empty (if the search query was "_"). we should still emit it
             // here, as we otherwise risk to end up with an empty MATCH-expression MATCH ""
-            builder.append(NameNormalizer.normalize(token));
+            builder.append(NameNormalizer.normalizeToHex(token));
             builder.append('*');
         }
     }
@@ -508,7 +516,7 @@ public class SearchIndexManager {
             builder.append(token);
             builder.append('*');
 
-            final String normalizedToken = NameNormalizer.normalize(token);
+            final String normalizedToken = NameNormalizer.normalizeToHex(token);
             if (!TextUtils.isEmpty(normalizedToken)) {
                 builder.append(" OR name:");
                 builder.append(normalizedToken);
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.providers.contacts.ContactsDatabaseHelper.ContactsColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.SearchIndexColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
+import com.android.providers.contacts.SearchIndexManager.FtsQueryBuilder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Picks the contacts best matching a filter, for the ranked mode of the contacts filter (see
+ * {@link ContactsProvider2#QUERY_PARAMETER_RANKED}).
+ * <p>
+ * Each {@link Tables#SEARCH_INDEX} row matching the filter is scored from the FTS matchinfo()
+ * of the row: tokens of the filter matching a name count for more than tokens matching other
+ * content, which count for more than tokens matching e.g. phone numbers.  Starred and frequently
+ * or recently contacted contacts get a bonus.  Only the best rows are kept while the matches
+ * are read.
+ */
+public class SearchRanker {
+
+    /** Number of contacts returned if the query doesn't set a limit. */
+    public static final int DEFAULT_LIMIT = 50;
+
+    /** Score of each term of the filter matching a column of the search index. */
+    @VisibleForTesting
+    static final int NAME_WEIGHT = 100;
+    @VisibleForTesting
+    static final int CONTENT_WEIGHT = 30;
+    @VisibleForTesting
+    static final int TOKENS_WEIGHT = 20;
+
+    /** Score of each additional match of a term. */
+    private static final int HIT_WEIGHT = 1;
+
+    @VisibleForTesting
+    static final int STARRED_WEIGHT = 50;
+
+    /** Multiplied by the log of the number of times the contact was contacted. */
+    private static final int TIMES_CONTACTED_WEIGHT = 5;
+
+    private static final int CONTACTED_LAST_WEEK_WEIGHT = 20;
+    private static final int CONTACTED_LAST_MONTH_WEIGHT = 10;
+
+    private static final long ONE_WEEK_MILLIS = 7L * 24 * 60 * 60 * 1000;
+    private static final long ONE_MONTH_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+    /** Indexes of the columns of the search index in matchinfo(). */
+    private static final int COLUMN_CONTENT = 1;
+    private static final int COLUMN_NAME = 2;
+    private static final int COLUMN_TOKENS = 3;
+
+    private interface RankQuery {
+        String SELECT = "SELECT "
+                + Tables.SEARCH_INDEX + ".docid, "
+                + Tables.SEARCH_INDEX + "." + SearchIndexColumns.CONTACT_ID + ", "
+                + "matchinfo(" + Tables.SEARCH_INDEX + ", 'pcx'), "
+                + ContactsColumns.CONCRETE_STARRED + ", "
+                + ContactsColumns.CONCRETE_TIMES_CONTACTED + ", "
+                + ContactsColumns.CONCRETE_LAST_TIME_CONTACTED
+                + " FROM " + Tables.SEARCH_INDEX
+                + " JOIN " + Tables.CONTACTS + " ON ("
+                + ContactsColumns.CONCRETE_ID + "="
+                + Tables.SEARCH_INDEX + "." + SearchIndexColumns.CONTACT_ID + ")"
+                + " WHERE " + Tables.SEARCH_INDEX + " MATCH ";
+
+        // Omit results in "Other Contacts".
+        String WHERE_DEFAULT_DIRECTORY = " AND " + Tables.SEARCH_INDEX + "."
+                + SearchIndexColumns.CONTACT_ID + " IN " + Tables.DEFAULT_DIRECTORY;
+
+        int DOC_ID = 0;
+        int CONTACT_ID = 1;
+        int MATCH_INFO = 2;
+        int STARRED = 3;
+        int TIMES_CONTACTED = 4;
+        int LAST_TIME_CONTACTED = 5;
+    }
+
+    /**
+     * The best matches, best first.
+     */
+    public static final class Result {
+        /** The rowids of the {@link Tables#SEARCH_INDEX} rows. */
+        public final long[] docIds;
+        public final long[] contactIds;
+
+        Result(int count) {
+            docIds = new long[count];
+            contactIds = new long[count];
+        }
+    }
+
+    private static final class Match {
+        final long mDocId;
+        final long mContactId;
+        final double mScore;
+
+        Match(long docId, long contactId, double score) {
+            mDocId = docId;
+            mContactId = contactId;
+            mScore = score;
+        }
+    }
+
+    /** Orders the matches worst first; ties go to the contact added first. */
+    private static final Comparator<Match> WORST_FIRST = new Comparator<Match>() {
+        @Override
+        public int compare(Match lhs, Match rhs) {
+            if (lhs.mScore != rhs.mScore) {
+                return lhs.mScore < rhs.mScore ? -1 : 1;
+            }
+            return lhs.mContactId > rhs.mContactId ? -1
+                    : lhs.mContactId == rhs.mContactId ? 0 : 1;
+        }
+    };
+
+    private SearchRanker() {
+    }
+
+    /**
+     * Returns the best {@code limit} contacts of the default directory matching a filter that
+     * isn't an email address or phone number.
+     */
+    public static Result rank(SQLiteDatabase db, String filter, int limit) {
+        final String sql = RankQuery.SELECT + "'"
+                + SearchIndexManager.getFtsMatchQuery(filter,
+                        FtsQueryBuilder.SCOPED_NAME_NORMALIZING)
+                + "'" + RankQuery.WHERE_DEFAULT_DIRECTORY;
+        final long now = System.currentTimeMillis();
+
+        // Grows as needed if the limit is larger.
+        final PriorityQueue<Match> best = new PriorityQueue<Match>(
+                Math.max(1, Math.min(limit, DEFAULT_LIMIT)), WORST_FIRST);
+        if (limit > 0) {
+            final Cursor cursor = db.rawQuery(sql, null);
+            try {
+                while (cursor.moveToNext()) {
+                    final double score = computeScore(cursor.getBlob(RankQuery.MATCH_INFO),
+                            cursor.getInt(RankQuery.STARRED) != 0,
+                            cursor.getInt(RankQuery.TIMES_CONTACTED),
+                            cursor.isNull(RankQuery.LAST_TIME_CONTACTED)
+                                    ? 0 : cursor.getLong(RankQuery.LAST_TIME_CONTACTED),
+                            now);
+                    final Match match = new Match(cursor.getLong(RankQuery.DOC_ID),
+                            cursor.getLong(RankQuery.CONTACT_ID), score);
+                    if (best.size() < limit) {
+                        best.add(match);
+                    } else if (WORST_FIRST.compare(match, best.peek()) > 0) {
+                        best.poll();
+                        best.add(match);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        final Result result = new Result(best.size());
+        for (int i = result.docIds.length - 1; i >= 0; i--) {
+            final Match match = best.poll();
+            result.docIds[i] = match.mDocId;
+            result.contactIds[i] = match.mContactId;
+        }
+        return result;
+    }
+
+    /**
+     * @param matchInfo The result of matchinfo() with the "pcx" format: the number of phrases,
+     *     the number of columns, then the hit counts of each phrase in each column.
+     */
+    @VisibleForTesting
+    static double computeScore(byte[] matchInfo, boolean starred, int timesContacted,
+            long lastTimeContacted, long now) {
+        double score = 0;
+        if (matchInfo != null) {
+            // matchinfo() is an array of 32-bit integers in the byte order of the machine.
+            final ByteBuffer buffer = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder());
+            final int phraseCount = buffer.getInt(0);
+            final int columnCount = buffer.getInt(4);
+            for (int phrase = 0; phrase < phraseCount; phrase++) {
+                for (int column = 0; column < columnCount; column++) {
+                    // The hits of the phrase in the column of this row, in the current row, and
+                    // the number of rows with hits; only the first is of interest.
+                    final int hits = buffer.getInt((2 + 3 * (phrase * columnCount + column)) * 4);
+                    if (hits != 0) {
+                        score += getColumnWeight(column) + (hits - 1) * HIT_WEIGHT;
+                    }
+                }
+            }
+        }
+
+        if (starred) {
+            score += STARRED_WEIGHT;
+        }
+        if (timesContacted > 0) {
+            score += TIMES_CONTACTED_WEIGHT * Math.log1p(timesContacted);
+        }
+        if (lastTimeContacted > 0) {
+            if (now - lastTimeContacted < ONE_WEEK_MILLIS) {
+                score += CONTACTED_LAST_WEEK_WEIGHT;
+            } else if (now - lastTimeContacted < ONE_MONTH_MILLIS) {
+                score += CONTACTED_LAST_MONTH_WEIGHT;
+            }
+        }
+        return score;
+    }
+
+    private static int getColumnWeight(int column) {
+        switch (column) {
+            case COLUMN_NAME:
+                return NAME_WEIGHT;
+            case COLUMN_CONTENT:
+                return CONTENT_WEIGHT;
+            case COLUMN_TOKENS:
+                return TOKENS_WEIGHT;
+            default:
+                return 0;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts;
+
+import android.icu.text.Transliterator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Remembers what a {@link Transliterator} turns each character of the Basic Multilingual Plane
+ * into, so that every character is only transliterated once per process.
+ * <p>
+ * The table is kept as pages of 256 chars, allocated the first time one of their characters is
+ * looked up, each entry being an index into the list of distinct results.  The pinyin of all the
+ * CJK ideographs takes about 40KB.
+ * <p>
+ * Only useful for transliterators that convert each character independently of the ones around
+ * it, or for callers that go character by character anyway.
+ */
+public class TransliterationCache {
+    private static final int PAGE_SHIFT = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    /** Entry of a character that hasn't been looked up yet. */
+    private static final char NOT_CACHED = 0;
+
+    /** Entry of a character that the transliterator leaves as it is. */
+    private static final char UNCHANGED = 1;
+
+    /** Entries from here on are indexes into {@link #mResults}. */
+    private static final char FIRST_RESULT = 2;
+
+    private final Transliterator mTransliterator;
+
+    private final char[][] mPages = new char[(Character.MAX_VALUE + 1) >> PAGE_SHIFT][];
+
+    private final ArrayList<String> mResults = new ArrayList<String>();
+    private final HashMap<String, Character> mResultIndexes = new HashMap<String, Character>();
+
+    public TransliterationCache(Transliterator transliterator) {
+        mTransliterator = transliterator;
+    }
+
+    /**
+     * Returns the transliteration of a single character.
+     */
+    public synchronized String transliterate(char c) {
+        char[] page = mPages[c >> PAGE_SHIFT];
+        if (page == null) {
+            page = new char[PAGE_SIZE];
+            mPages[c >> PAGE_SHIFT] = page;
+        }
+
+        final char entry = page[c & PAGE_MASK];
+        if (entry == UNCHANGED) {
+            return String.valueOf(c);
+        } else if (entry != NOT_CACHED) {
+            return mResults.get(entry - FIRST_RESULT);
+        }
+
+        final String source = String.valueOf(c);
+        final String result = mTransliterator.transliterate(source);
+        if (result.equals(source)) {
+            page[c & PAGE_MASK] = UNCHANGED;
+            return source;
+        }
+
+        Character index = mResultIndexes.get(result);
+        if (index == null) {
+            if (mResults.size() + FIRST_RESULT > Character.MAX_VALUE) {
+                // Out of indexes; can't happen with the transliterators we use.
+                return result;
+            }
+            index = (char) (mResults.size() + FIRST_RESULT);
+            mResults.add(result);
+            mResultIndexes.put(result, index);
+        }
+        page[c & PAGE_MASK] = index;
+        return mResults.get(index - FIRST_RESULT);
+    }
+
+    /**
+     * Transliterates a string character by character.
+     */
+    public String transliterate(String text) {
+        final int length = text.length();
+        final StringBuilder sb = new StringBuilder(length * 2);
+        for (int i = 0; i < length; i++) {
+            sb.append(transliterate(text.charAt(i)));
+        }
+        return sb.toString();
+    }
+}
@@ -24,9 +24,11 @@ import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Binder;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 import android.provider.BaseColumns;
 import android.provider.VoicemailContract;
@@ -48,6 +50,25 @@ import java.util.List;
  */
 public class VoicemailContentProvider extends ContentProvider
         implements VoicemailTable.DelegateHelper {
+    /**
+     * Option for {@link #openTypedAssetFile}: offset in bytes of the range of the audio to
+     * open.  Defaults to 0.
+     */
+    public static final String OPTION_RANGE_OFFSET = "range_offset";
+
+    /**
+     * Option for {@link #openTypedAssetFile}: length in bytes of the range of the audio to
+     * open.  Defaults to the rest of the file.
+     */
+    public static final String OPTION_RANGE_LENGTH = "range_length";
+
+    /**
+     * Option for {@link #openTypedAssetFile}: if true, opens only the first
+     * {@link VoicemailContentTable#PREVIEW_SIZE} bytes of the audio, so that a player can start
+     * playback without waiting for the whole file.
+     */
+    public static final String OPTION_PREVIEW = "preview";
+
     private VoicemailPermissions mVoicemailPermissions;
     private VoicemailTable.Delegate mVoicemailContentTable;
     private VoicemailTable.Delegate mVoicemailStatusTable;
@@ -64,10 +85,13 @@ public class VoicemailContentProvider extends ContentProvider
         setAppOps(AppOpsManager.OP_ADD_VOICEMAIL, AppOpsManager.OP_ADD_VOICEMAIL);
 
         mVoicemailPermissions = new VoicemailPermissions(context);
+        final CallLogDatabaseHelper dbHelper = getDatabaseHelper(context);
         mVoicemailContentTable = new VoicemailContentTable(Tables.CALLS, context,
-                getDatabaseHelper(context), this, createCallLogInsertionHelper(context));
+                dbHelper, this, createCallLogInsertionHelper(context));
         mVoicemailStatusTable = new VoicemailStatusTable(Tables.VOICEMAIL_STATUS, context,
                 getDatabaseHelper(context), this);
+        // Delete any files that a previous process queued but didn't get to.
+        VoicemailFileReclaimer.schedule(dbHelper);
         if (Log.isLoggable(Constants.PERFORMANCE_TAG, Log.INFO)) {
             Log.i(Constants.PERFORMANCE_TAG, "VoicemailContentProvider.onCreate finish");
         }
@@ -146,6 +170,19 @@ public class VoicemailContentProvider extends ContentProvider
         return getTableDelegate(uriData).openFile(uriData, mode);
     }
 
+    /**
+     * Opens the audio of a voicemail for reading.  Unlike {@link #openFile}, the whole file need
+     * not be served: {@code opts} may ask for a byte range with {@link #OPTION_RANGE_OFFSET} and
+     * {@link #OPTION_RANGE_LENGTH}, or for the leading segment of the audio with
+     * {@link #OPTION_PREVIEW}.
+     */
+    @Override
+    public AssetFileDescriptor openTypedAssetFile(Uri uri, String mimeTypeFilter, Bundle opts)
+            throws FileNotFoundException {
+        UriData uriData = checkPermissionsAndCreateUriDataForRead(uri);
+        return getTableDelegate(uriData).openTypedAssetFile(uriData, mimeTypeFilter, opts);
+    }
+
     /** Returns the correct table delegate object that can handle this URI. */
     private VoicemailTable.Delegate getTableDelegate(UriData uriData) {
         switch (uriData.getUriType()) {
@@ -19,23 +19,26 @@ import static com.android.providers.contacts.util.DbQueryUtils.checkForSupported
 import static com.android.providers.contacts.util.DbQueryUtils.concatenateClauses;
 import static com.android.providers.contacts.util.DbQueryUtils.getEqualityClause;
 
+import android.content.ClipDescription;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 import android.provider.CallLog.Calls;
 import android.provider.OpenableColumns;
 import android.provider.VoicemailContract.Voicemails;
-import android.util.Log;
 import com.android.common.content.ProjectionMap;
 import com.android.providers.contacts.VoicemailContentProvider.UriData;
-import com.android.providers.contacts.util.CloseUtils;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableSet;
+import libcore.io.IoUtils;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -45,13 +48,17 @@ import java.io.IOException;
  */
 public class VoicemailContentTable implements VoicemailTable.Delegate {
 
-    private static final String TAG = "VmContentProvider";
     private final ProjectionMap mVoicemailProjectionMap;
 
     /** The private directory in which to store the data associated with the voicemail. */
     private static final String DATA_DIRECTORY = "voicemail-data";
 
-    private static final String[] FILENAME_ONLY_PROJECTION = new String[] { Voicemails._DATA };
+    /** Number of bytes at the start of the audio that are served as a preview. */
+    @VisibleForTesting
+    static final long PREVIEW_SIZE = 64 * 1024;
+
+    private static final String[] MIME_TYPE_ONLY_PROJECTION = new String[] {
+            Voicemails.MIME_TYPE };
 
     private static final ImmutableSet<String> ALLOWED_COLUMNS = new ImmutableSet.Builder<String>()
             .add(Voicemails._ID)
@@ -198,30 +205,8 @@ public class VoicemailContentTable implements VoicemailTable.Delegate {
         String combinedClause = concatenateClauses(selection, uriData.getWhereClause(),
                 getCallTypeClause());
 
-        // Delete all the files associated with this query.  Once we've deleted the rows, there will
-        // be no way left to get hold of the files.
-        Cursor cursor = null;
-        try {
-            cursor = query(uriData, FILENAME_ONLY_PROJECTION, selection, selectionArgs, null);
-            while (cursor.moveToNext()) {
-                String filename = cursor.getString(0);
-                if (filename == null) {
-                    Log.w(TAG, "No filename for uri " + uriData.getUri() + ", cannot delete file");
-                    continue;
-                }
-                File file = new File(filename);
-                if (file.exists()) {
-                    boolean success = file.delete();
-                    if (!success) {
-                        Log.e(TAG, "Failed to delete file: " + file.getAbsolutePath());
-                    }
-                }
-            }
-        } finally {
-            CloseUtils.closeQuietly(cursor);
-        }
-
-        // Now delete the rows themselves.
+        // The files of the deleted rows are queued by a trigger, and deleted in the background by
+        // VoicemailFileReclaimer.
         return getDatabaseModifier(db).delete(mTableName, combinedClause,
                 selectionArgs);
     }
@@ -282,6 +267,65 @@ public class VoicemailContentTable implements VoicemailTable.Delegate {
         return mDelegateHelper.openDataFile(uriData, mode);
     }
 
+    @Override
+    public AssetFileDescriptor openTypedAssetFile(UriData uriData, String mimeTypeFilter,
+            Bundle opts) throws FileNotFoundException {
+        if (!uriData.hasId()) {
+            throw new FileNotFoundException("No voicemail ID in " + uriData.getUri());
+        }
+        final ParcelFileDescriptor pfd = mDelegateHelper.openDataFile(uriData, "r");
+        try {
+            checkMimeType(uriData, mimeTypeFilter);
+
+            // The segments are served as slices of the file, so nothing is copied, and a player
+            // can start on the preview and seek with range reads while the rest is fetched.
+            final long size = pfd.getStatSize();
+            long offset = 0;
+            long length = size;
+            if (opts != null) {
+                if (opts.getBoolean(VoicemailContentProvider.OPTION_PREVIEW)) {
+                    length = PREVIEW_SIZE;
+                } else {
+                    offset = opts.getLong(VoicemailContentProvider.OPTION_RANGE_OFFSET, 0);
+                    length = opts.getLong(VoicemailContentProvider.OPTION_RANGE_LENGTH, size);
+                }
+            }
+            if (offset < 0 || length < 0) {
+                throw new IllegalArgumentException(
+                        "Invalid range: offset=" + offset + " length=" + length);
+            }
+            offset = Math.min(offset, size);
+            length = Math.min(length, size - offset);
+            return new AssetFileDescriptor(pfd, offset, length);
+        } catch (FileNotFoundException | RuntimeException e) {
+            IoUtils.closeQuietly(pfd);
+            throw e;
+        }
+    }
+
+    /**
+     * Throws if the MIME type of the voicemail doesn't match {@code mimeTypeFilter}.
+     */
+    private void checkMimeType(UriData uriData, String mimeTypeFilter)
+            throws FileNotFoundException {
+        if (mimeTypeFilter == null || "*/*".equals(mimeTypeFilter)) {
+            return;
+        }
+        String mimeType = null;
+        Cursor cursor = query(uriData, MIME_TYPE_ONLY_PROJECTION, null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                mimeType = cursor.getString(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        if (mimeType == null || !ClipDescription.compareMimeTypes(mimeType, mimeTypeFilter)) {
+            throw new FileNotFoundException(
+                    "Can't open " + uriData.getUri() + " as type " + mimeTypeFilter);
+        }
+    }
+
     /** Creates a clause to restrict the selection to only voicemail call type.*/
     private String getCallTypeClause() {
         return getEqualityClause(Calls.TYPE, Calls.VOICEMAIL_TYPE);
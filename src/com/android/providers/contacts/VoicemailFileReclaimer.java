@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.providers.contacts.CallLogDatabaseHelper.Tables;
+import com.android.providers.contacts.CallLogDatabaseHelper.VoicemailReclaimColumns;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Deletes the files of deleted voicemails in the background.
+ * <p>
+ * When a voicemail row is deleted, a trigger queues its file in
+ * {@link Tables#VOICEMAIL_RECLAIM} as part of the same statement, so deleting any number of
+ * voicemails is a single SQL statement and a file is never lost track of.  The queue is then
+ * drained here in batches, off the caller's thread.
+ */
+/* package */ final class VoicemailFileReclaimer {
+    private static final String TAG = "VoicemailFileReclaimer";
+
+    @VisibleForTesting
+    static final int BATCH_SIZE = 100;
+
+    private static final String[] PROJECTION = new String[] {
+            VoicemailReclaimColumns._ID,
+            VoicemailReclaimColumns.DATA,
+    };
+
+    private static final Object sLock = new Object();
+
+    /** The databases (or database helpers) for which a run is already scheduled. */
+    private static final HashSet<Object> sPending = new HashSet<Object>();
+
+    private static Handler sHandler;
+
+    /** Whether the scheduled runs do anything; tests turn them off and call {@link #reclaim}. */
+    private static volatile boolean sEnabled = true;
+
+    private VoicemailFileReclaimer() {
+    }
+
+    /**
+     * Schedules the queued files of the given database to be deleted.
+     */
+    public static void schedule(final SQLiteDatabase db) {
+        post(db, new Runnable() {
+            @Override
+            public void run() {
+                reclaimAll(db);
+            }
+        });
+    }
+
+    /**
+     * Schedules the queued files to be deleted, opening the database on the background thread.
+     * Used on startup to finish off what a previous process left behind.
+     */
+    public static void schedule(final CallLogDatabaseHelper dbHelper) {
+        post(dbHelper, new Runnable() {
+            @Override
+            public void run() {
+                reclaimAll(dbHelper.getWritableDatabase());
+            }
+        });
+    }
+
+    private static void post(final Object key, final Runnable task) {
+        synchronized (sLock) {
+            if (!sPending.add(key)) {
+                return;
+            }
+            getHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (sLock) {
+                        sPending.remove(key);
+                    }
+                    if (sEnabled) {
+                        task.run();
+                    }
+                }
+            });
+        }
+    }
+
+    private static void reclaimAll(SQLiteDatabase db) {
+        try {
+            while (sEnabled && db.isOpen() && reclaim(db, BATCH_SIZE) == BATCH_SIZE) {
+                // Keep going until the queue is empty.
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Failed to reclaim voicemail files", e);
+        }
+    }
+
+    /**
+     * Deletes up to {@code batchSize} of the queued files, and removes them from the queue.
+     *
+     * @return The number of queue entries processed.
+     */
+    @VisibleForTesting
+    static int reclaim(SQLiteDatabase db, int batchSize) {
+        final ArrayList<String> paths = new ArrayList<String>();
+        long maxId = -1;
+        final Cursor cursor = db.query(Tables.VOICEMAIL_RECLAIM, PROJECTION, null, null, null,
+                null, VoicemailReclaimColumns._ID, String.valueOf(batchSize));
+        try {
+            while (cursor.moveToNext()) {
+                maxId = cursor.getLong(0);
+                paths.add(cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        if (paths.isEmpty()) {
+            return 0;
+        }
+
+        for (String path : paths) {
+            final File file = new File(path);
+            if (!file.delete() && file.exists()) {
+                Log.e(TAG, "Failed to delete file: " + file.getAbsolutePath());
+            }
+        }
+
+        // New entries always get a larger ID, so this only removes the ones processed above.
+        db.delete(Tables.VOICEMAIL_RECLAIM, VoicemailReclaimColumns._ID + "<=" + maxId, null);
+        return paths.size();
+    }
+
+    @VisibleForTesting
+    static void setEnabledForTesting(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    private static Handler getHandler() {
+        if (sHandler == null) {
+            final HandlerThread thread = new HandlerThread(TAG,
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sHandler = new Handler(thread.getLooper());
+        }
+        return sHandler;
+    }
+}
@@ -21,10 +21,12 @@ import static com.android.providers.contacts.util.DbQueryUtils.concatenateClause
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 import android.provider.VoicemailContract.Status;
 import com.android.common.content.ProjectionMap;
@@ -150,6 +152,12 @@ public class VoicemailStatusTable implements VoicemailTable.Delegate {
         throw new UnsupportedOperationException("File operation is not supported for status table");
     }
 
+    @Override
+    public AssetFileDescriptor openTypedAssetFile(UriData uriData, String mimeTypeFilter,
+            Bundle opts) {
+        throw new UnsupportedOperationException("File operation is not supported for status table");
+    }
+
     private DatabaseModifier getDatabaseModifier(SQLiteDatabase db) {
         return new DbModifierWithNotification(mTableName, db, mContext);
     }
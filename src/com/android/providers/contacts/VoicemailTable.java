@@ -17,8 +17,10 @@
 package com.android.providers.contacts;
 
 import android.content.ContentValues;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 
 import com.android.providers.contacts.VoicemailContentProvider.UriData;
@@ -44,6 +46,8 @@ public interface VoicemailTable {
         public String getType(UriData uriData);
         public ParcelFileDescriptor openFile(UriData uriData, String mode)
                 throws FileNotFoundException;
+        public AssetFileDescriptor openTypedAssetFile(UriData uriData, String mimeTypeFilter,
+                Bundle opts) throws FileNotFoundException;
     }
 
     /**
@@ -429,6 +429,9 @@ public abstract class AbstractContactAggregator {
             return;
         }
 
+        // Matching reads the lookup tables.
+        mDbHelper.flushLookupBatch();
+
         final long start = System.currentTimeMillis();
         if (DEBUG_LOGGING) {
             Log.d(TAG, "aggregateInTransaction for " + markedCount + " contacts");
@@ -673,6 +676,7 @@ public abstract class AbstractContactAggregator {
             return;
         }
 
+        mDbHelper.flushLookupBatch();
         MatchCandidateList candidates = new MatchCandidateList();
 
         long contactId = 0;
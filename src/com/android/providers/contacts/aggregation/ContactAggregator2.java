@@ -40,6 +40,7 @@ import com.android.providers.contacts.ContactsDatabaseHelper.PhoneLookupColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.RawContactsColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
 import com.android.providers.contacts.ContactsProvider2;
+import com.android.providers.contacts.NameNormalizer;
 import com.android.providers.contacts.NameSplitter;
 import com.android.providers.contacts.PhotoPriorityResolver;
 import com.android.providers.contacts.TransactionContext;
@@ -694,8 +695,8 @@ public class ContactAggregator2 extends AbstractContactAggregator {
         HashSet<String> firstLetters = new HashSet<>();
         for (int i = 0; i < candidates.mCount; i++) {
             final NameMatchCandidate candidate = candidates.mList.get(i);
-            if (candidate.mName.length() >= 2) {
-                String firstLetter = candidate.mName.substring(0, 2);
+            final String firstLetter = NameNormalizer.getFirstByte(candidate.mName);
+            if (firstLetter != null) {
                 if (!firstLetters.contains(firstLetter)) {
                     firstLetters.add(firstLetter);
                     final String selection = "(" + NameLookupColumns.NORMALIZED_NAME + " GLOB '"
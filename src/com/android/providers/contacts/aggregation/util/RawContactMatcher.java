@@ -17,7 +17,7 @@ package com.android.providers.contacts.aggregation.util;
 
 import android.util.Log;
 import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupType;
-import com.android.providers.contacts.util.Hex;
+import com.android.providers.contacts.NameNormalizer;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -212,8 +212,8 @@ public class RawContactMatcher {
         final byte[] decodedCandidateName;
         final byte[] decodedName;
         try {
-            decodedCandidateName = Hex.decodeHex(candidateName);
-            decodedName = Hex.decodeHex(name);
+            decodedCandidateName = NameNormalizer.decode(candidateName);
+            decodedName = NameNormalizer.decode(name);
         } catch (RuntimeException e) {
             // How could this happen??  See bug 6827136
             Log.e(TAG, "Failed to decode normalized name.  Skipping.", e);
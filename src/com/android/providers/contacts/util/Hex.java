@@ -57,7 +57,18 @@ public class Hex {
      */
     public static String encodeHex(byte[] array, boolean zeroTerminated) {
         char[] cArray = new char[array.length * 2];
+        int j = encodeHex(array, zeroTerminated, cArray);
+        return new String(cArray, 0, j);
+    }
 
+    /**
+     * Writes the hexadecimal representation of a byte array into the supplied buffer, which
+     * needs to hold at least twice as many chars as there are bytes.
+     *
+     * @param array byte array, possibly zero-terminated.
+     * @return The number of chars written.
+     */
+    public static int encodeHex(byte[] array, boolean zeroTerminated, char[] out) {
         int j = 0;
         for (int i = 0; i < array.length; i++) {
             int index = array[i] & 0xFF;
@@ -65,11 +76,10 @@ public class Hex {
                 break;
             }
 
-            cArray[j++] = FIRST_CHAR[index];
-            cArray[j++] = SECOND_CHAR[index];
+            out[j++] = FIRST_CHAR[index];
+            out[j++] = SECOND_CHAR[index];
         }
-
-        return new String(cArray, 0, j);
+        return j;
     }
 
     /**
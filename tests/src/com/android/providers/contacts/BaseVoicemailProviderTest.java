@@ -159,15 +159,26 @@ public abstract class BaseVoicemailProviderTest extends BaseContactsProvider2Tes
         public PackageManager getPackageManager();
     }
 
+    protected CallLogDatabaseHelper getDatabaseHelper() {
+        return ((TestVoicemailProvider) getProvider()).getDatabaseHelper(null);
+    }
+
     public static class TestVoicemailProvider extends VoicemailContentProvider {
         private static VvmProviderCalls mDelegate;
+        private CallLogDatabaseHelper mDbHelper;
+
         public static synchronized void setVvmProviderCallDelegate(VvmProviderCalls delegate) {
             mDelegate = delegate;
         }
 
         @Override
-        protected CallLogDatabaseHelper getDatabaseHelper(Context context) {
-            return new CallLogDatabaseHelperTestable(context, /* contactsDbForMigration = */ null);
+        protected synchronized CallLogDatabaseHelper getDatabaseHelper(Context context) {
+            // One in-memory database for all the tables, like the shared instance in production.
+            if (mDbHelper == null) {
+                mDbHelper = new CallLogDatabaseHelperTestable(context,
+                        /* contactsDbForMigration = */ null);
+            }
+            return mDbHelper;
         }
 
         @Override
@@ -18,8 +18,12 @@ package com.android.providers.contacts;
 
 import com.android.internal.telephony.CallerInfo;
 import com.android.internal.telephony.PhoneConstants;
+import com.android.providers.contacts.CallLogDatabaseHelper.CallGroupsColumns;
 import com.android.providers.contacts.CallLogDatabaseHelper.DbProperties;
+import com.android.providers.contacts.CallLogDatabaseHelper.Tables;
 import com.android.providers.contacts.testutil.CommonDatabaseUtils;
+import com.android.providers.contacts.testutil.RawContactUtil;
+import com.android.providers.contacts.util.PropertyUtils;
 
 import android.content.ComponentName;
 import android.content.ContentProvider;
@@ -99,6 +103,19 @@ public class CallLogProviderTest extends BaseContactsProvider2Test {
         assertLastModified(uri, 1000);
     }
 
+    public void testBulkInsert() {
+        setTimeForTest(1000L);
+        ContentValues[] values = new ContentValues[] {
+                getTestCallLogValues(0),
+                getTestCallLogValues(1),
+                getTestCallLogValues(2)};
+        for (ContentValues value : values) {
+            value.remove(Calls.ADD_FOR_ALL_USERS);
+        }
+        assertEquals(3, mResolver.bulkInsert(Calls.CONTENT_URI, values));
+        assertStoredValues(Calls.CONTENT_URI, values[0], values[1], values[2]);
+    }
+
     private void setUpWithVoicemailPermissions() {
         mActor.addPermissions(ADD_VOICEMAIL_PERMISSION);
         mActor.addPermissions(READ_VOICEMAIL_PERMISSION);
@@ -178,6 +195,24 @@ public class CallLogProviderTest extends BaseContactsProvider2Test {
         c.close();
     }
 
+    public void testCallLogFilter_NumberFormatsAndUpdates() {
+        ContentValues values = getDefaultCallValues();
+        values.put(Calls.NUMBER, "+1 650 555 1212");
+        Uri uri = mResolver.insert(Calls.CONTENT_URI, values);
+
+        assertEquals(1, getCount(
+                Uri.withAppendedPath(Calls.CONTENT_FILTER_URI, "(650) 555-1212"), null, null));
+
+        // Changing the number must move the call to the new number.
+        values.clear();
+        values.put(Calls.NUMBER, "650-555-3434");
+        assertEquals(1, mResolver.update(uri, values, null, null));
+        assertEquals(0, getCount(
+                Uri.withAppendedPath(Calls.CONTENT_FILTER_URI, "650-555-1212"), null, null));
+        assertEquals(1, getCount(
+                Uri.withAppendedPath(Calls.CONTENT_FILTER_URI, "6505553434"), null, null));
+    }
+
     public void testAddCall() {
         CallerInfo ci = new CallerInfo();
         ci.name = "1-800-GOOG-411";
@@ -434,6 +469,260 @@ public class CallLogProviderTest extends BaseContactsProvider2Test {
         assertEquals(10, mCallLogProvider.getLastSyncTime(/* forShadow =*/ false));
     }
 
+    public void testQuery_SeekPagination() {
+        final long id1 = ContentUris.parseId(insertCall("123", 100));
+        final long id2 = ContentUris.parseId(insertCall("456", 200));
+        final long id3 = ContentUris.parseId(insertCall("789", 200));
+
+        Uri page = Calls.CONTENT_URI.buildUpon()
+                .appendQueryParameter(Calls.LIMIT_PARAM_KEY, "2")
+                .build();
+        assertQueryIds(page, id3, id2);
+
+        page = Calls.CONTENT_URI.buildUpon()
+                .appendQueryParameter(Calls.LIMIT_PARAM_KEY, "2")
+                .appendQueryParameter(CallLogProvider.PARAM_KEY_BEFORE_DATE, "200")
+                .appendQueryParameter(CallLogProvider.PARAM_KEY_BEFORE_ID, String.valueOf(id2))
+                .build();
+        assertQueryIds(page, id1);
+    }
+
+    public void testQuery_Grouped() {
+        insertCall("123", 100);
+        final long id2 = ContentUris.parseId(insertCall("123", 200));
+        final long id3 = ContentUris.parseId(insertCall("456", 300));
+        final long id4 = ContentUris.parseId(insertCall("123", 400));
+        final Uri groupedUri = Uri.withAppendedPath(Calls.CONTENT_URI, "grouped");
+
+        assertQueryIds(groupedUri, id4, id3, id2);
+        Cursor c = mResolver.query(groupedUri, new String[] {
+                Calls.NUMBER, CallLogProvider.GROUPED_CALLS_COUNT,
+                CallLogProvider.GROUPED_CALLS_OLDEST_DATE}, null, null, null);
+        try {
+            assertEquals(3, c.getCount());
+            c.moveToLast();
+            assertEquals("123", c.getString(0));
+            assertEquals(2, c.getInt(1));
+            assertEquals(100, c.getLong(2));
+        } finally {
+            c.close();
+        }
+
+        // The _id in a selection is that of the call.
+        c = mResolver.query(groupedUri, new String[] {Calls._ID}, Calls._ID + "=" + id2, null,
+                null);
+        try {
+            assertEquals(1, c.getCount());
+        } finally {
+            c.close();
+        }
+
+        // Removing the call in between merges the groups around it.
+        mResolver.delete(Calls.CONTENT_URI, Calls._ID + "=" + id3, null);
+        c = mResolver.query(groupedUri, new String[] {
+                Calls._ID, CallLogProvider.GROUPED_CALLS_COUNT}, null, null, null);
+        try {
+            assertEquals(1, c.getCount());
+            c.moveToFirst();
+            assertEquals(id4, c.getLong(0));
+            assertEquals(3, c.getInt(1));
+        } finally {
+            c.close();
+        }
+
+        // A call that is older than the others is put in their group too.
+        insertCall("123", 50);
+        final long id6 = ContentUris.parseId(insertCall("123", 500));
+        final long id7 = ContentUris.parseId(insertCall("456", 600));
+        assertQueryIds(groupedUri, id7, id6);
+        assertQueryIds(groupedUri.buildUpon()
+                .appendQueryParameter(CallLogProvider.PARAM_KEY_BEFORE_DATE, "600")
+                .appendQueryParameter(CallLogProvider.PARAM_KEY_BEFORE_ID, String.valueOf(id7))
+                .build(), id6);
+    }
+
+    public void testQuery_Grouped_Incremental() {
+        final CallLogDatabaseHelper dbHelper = mCallLogProvider.getDatabaseHelper(getContext());
+        final long id1 = ContentUris.parseId(insertCall("123", 100));
+        insertCall("123", 300);
+        insertCall("456", 500);
+        assertCallGroupsMatchRebuild(dbHelper);
+
+        // Calls with another number in the middle of a group split it.
+        insertCall("456", 200);
+        assertCallGroupsMatchRebuild(dbHelper);
+        final long id5 = ContentUris.parseId(insertCall("789", 150));
+        assertCallGroupsMatchRebuild(dbHelper);
+
+        // Calls out of date order join the groups next to them.
+        insertCall("123", 400);
+        assertCallGroupsMatchRebuild(dbHelper);
+        insertCall("456", 250);
+        assertCallGroupsMatchRebuild(dbHelper);
+        insertCall("123", 50);
+        assertCallGroupsMatchRebuild(dbHelper);
+
+        // Deleting a group merges the groups around it.
+        mResolver.delete(Calls.CONTENT_URI, Calls._ID + "=" + id5, null);
+        assertCallGroupsMatchRebuild(dbHelper);
+        mResolver.delete(Calls.CONTENT_URI, Calls.DATE + " IN (200,250)", null);
+        assertCallGroupsMatchRebuild(dbHelper);
+        mResolver.delete(Calls.CONTENT_URI, Calls._ID + "=" + id1, null);
+        assertCallGroupsMatchRebuild(dbHelper);
+    }
+
+    public void testQuery_Grouped_Rebuild() {
+        final CallLogDatabaseHelper dbHelper = mCallLogProvider.getDatabaseHelper(getContext());
+        insertCall("123", 100);
+        insertCall("123", 200);
+        insertCall("456", 300);
+        insertCall("456", 400);
+        final Uri groupedUri = Uri.withAppendedPath(Calls.CONTENT_URI, "grouped");
+
+        // Until the groups are rebuilt, each call is returned on its own.
+        PropertyUtils.setProperty(dbHelper.getWritableDatabase(),
+                DbProperties.CALL_GROUPS_VALID, "0");
+        Cursor c = mResolver.query(groupedUri, new String[] {
+                CallLogProvider.GROUPED_CALLS_COUNT}, null, null, null);
+        try {
+            assertEquals(4, c.getCount());
+            while (c.moveToNext()) {
+                assertEquals(1, c.getInt(0));
+            }
+        } finally {
+            c.close();
+        }
+        dbHelper.ensureCallGroups();
+        assertEquals(2, getCount(groupedUri));
+
+        // A changed number invalidates the groups, and a rebuild applies it.
+        ContentValues values = new ContentValues();
+        values.put(Calls.NUMBER, "123");
+        mResolver.update(Calls.CONTENT_URI, values, Calls.DATE + "=300", null);
+        dbHelper.ensureCallGroups();
+        assertEquals(2, getCount(groupedUri));
+        assertCallGroupsMatchRebuild(dbHelper);
+    }
+
+    /**
+     * Asserts that the call groups maintained by the triggers are those a rebuild makes.
+     */
+    private void assertCallGroupsMatchRebuild(CallLogDatabaseHelper dbHelper) {
+        assertTrue(dbHelper.areCallGroupsValid());
+        final String groups = dumpCallGroups(dbHelper);
+        PropertyUtils.setProperty(dbHelper.getWritableDatabase(),
+                DbProperties.CALL_GROUPS_VALID, "0");
+        assertTrue(dbHelper.ensureCallGroups());
+        assertEquals(dumpCallGroups(dbHelper), groups);
+    }
+
+    private static String dumpCallGroups(CallLogDatabaseHelper dbHelper) {
+        final StringBuilder sb = new StringBuilder();
+        final Cursor c = dbHelper.getReadableDatabase().query(Tables.CALL_GROUPS, new String[] {
+                CallGroupsColumns.NUMBER, CallGroupsColumns.DATE,
+                CallGroupsColumns.NEWEST_CALL_ID, CallGroupsColumns.OLDEST_DATE,
+                CallGroupsColumns.OLDEST_CALL_ID, CallGroupsColumns.COUNT},
+                null, null, null, null, CallGroupsColumns.DATE);
+        try {
+            while (c.moveToNext()) {
+                for (int i = 0; i < c.getColumnCount(); i++) {
+                    sb.append(c.getString(i)).append(',');
+                }
+                sb.append('\n');
+            }
+        } finally {
+            c.close();
+        }
+        return sb.toString();
+    }
+
+    public void testUpdateContactInfo() {
+        final long rawContactId = RawContactUtil.createRawContactWithName(mResolver, "John",
+                "Doe");
+        insertPhoneNumber(rawContactId, "650-555-1212");
+        final long contactId = queryContactId(rawContactId);
+
+        final Uri known = insertCall("650-555-1212", 100);
+        final Uri unknown = insertCall("650-555-0000", 200);
+        mCallLogProvider.updateContactInfo(false);
+
+        ContentValues values = new ContentValues();
+        values.put(Calls.CACHED_NAME, "John Doe");
+        values.put(Calls.CACHED_NUMBER_TYPE, Phone.TYPE_HOME);
+        values.put(Calls.CACHED_MATCHED_NUMBER, "650-555-1212");
+        assertStoredValues(known, values);
+        assertTrue(getStoredValue(known, Calls.CACHED_LOOKUP_URI).startsWith(
+                ContactsContract.Contacts.CONTENT_LOOKUP_URI.toString()));
+        assertStoredValue(unknown, Calls.CACHED_NAME, null);
+
+        // Once the contact is gone, the cached info is cleared when contacts change.
+        mResolver.delete(ContentUris.withAppendedId(ContactsContract.Contacts.CONTENT_URI,
+                contactId), null, null);
+        mCallLogProvider.updateContactInfo(true);
+        assertStoredValue(known, Calls.CACHED_NAME, null);
+        assertStoredValue(known, Calls.CACHED_LOOKUP_URI, null);
+    }
+
+    public void testUpdateContactInfo_ChangedContactsOnly() {
+        final long rawContactId = RawContactUtil.createRawContactWithName(mResolver, "John",
+                "Doe");
+        insertPhoneNumber(rawContactId, "650-555-1212");
+        final Uri known = insertCall("650-555-1212", 100);
+        final Uri unknown = insertCall("650-555-0000", 200);
+        mCallLogProvider.updateContactInfo(false);
+        // The first time, all the calls are looked up again.
+        mCallLogProvider.updateContactInfo(true);
+        assertStoredValue(known, Calls.CACHED_NAME, "John Doe");
+
+        // A new contact for the other number is picked up through its phone number.
+        final long otherRawContactId = RawContactUtil.createRawContactWithName(mResolver, "Jane",
+                "Roe");
+        insertPhoneNumber(otherRawContactId, "650-555-0000");
+        mCallLogProvider.updateContactInfo(true);
+        assertStoredValue(unknown, Calls.CACHED_NAME, "Jane Roe");
+        assertStoredValue(known, Calls.CACHED_NAME, "John Doe");
+
+        // Once it is deleted, the calls whose info came from it are cleared.
+        mResolver.delete(ContentUris.withAppendedId(ContactsContract.Contacts.CONTENT_URI,
+                queryContactId(otherRawContactId)), null, null);
+        mCallLogProvider.updateContactInfo(true);
+        assertStoredValue(unknown, Calls.CACHED_NAME, null);
+        assertStoredValue(known, Calls.CACHED_NAME, "John Doe");
+    }
+
+    private Uri insertCall(String number, long date) {
+        ContentValues values = getDefaultCallValues();
+        values.put(Calls.NUMBER, number);
+        values.put(Calls.DATE, date);
+        return mResolver.insert(Calls.CONTENT_URI, values);
+    }
+
+    private void assertQueryIds(Uri uri, long... expectedIds) {
+        Cursor c = mResolver.query(uri, new String[] {Calls._ID}, null, null, null);
+        try {
+            assertEquals(expectedIds.length, c.getCount());
+            for (long expectedId : expectedIds) {
+                assertTrue(c.moveToNext());
+                assertEquals(expectedId, c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testCopyEntriesFromCursor_DuplicatesWithinCursorIgnored() {
+        final MatrixCursor cursor = new MatrixCursor(CallLogProvider.CALL_LOG_SYNC_PROJECTION);
+        for (int i = 0; i < 2; i++) {
+            cursor.addRow(CommonDatabaseUtils.getArrayFromContentValues(getTestCallLogValues(0),
+                    CallLogProvider.CALL_LOG_SYNC_PROJECTION));
+        }
+
+        assertEquals(10, mCallLogProvider.copyEntriesFromCursor(
+                cursor, 5, /* forShadow =*/ false));
+
+        assertStoredValues(Calls.CONTENT_URI, getTestCallLogValues(0));
+    }
+
     private ContentValues getDefaultValues(int callType) {
         ContentValues values = new ContentValues();
         values.put(Calls.TYPE, callType);
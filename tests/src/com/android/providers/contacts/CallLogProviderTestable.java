@@ -41,6 +41,12 @@ public class CallLogProviderTestable extends CallLogProvider {
         return mDbHelper;
     }
 
+    @Override
+    protected boolean isContactInfoUpdateEnabled() {
+        // Tests call updateContactInfo() directly.
+        return false;
+    }
+
     @Override
     protected CallLogInsertionHelper createCallLogInsertionHelper(Context context) {
         return new CallLogInsertionHelper() {
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * Tests for {@link CompiledStatementCache}.
+ */
+@SmallTest
+public class CompiledStatementCacheTest extends AndroidTestCase {
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE t (a INTEGER)");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        super.tearDown();
+    }
+
+    public void testReuse() {
+        final CompiledStatementCache cache = new CompiledStatementCache(mDb, 2);
+        final SQLiteStatement statement = cache.get("SELECT COUNT(*) FROM t");
+        assertSame(statement, cache.get("SELECT COUNT(*) FROM t"));
+        assertEquals(1, cache.getCompileCount());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    public void testEvictedStatementStillUsable() {
+        final CompiledStatementCache cache = new CompiledStatementCache(mDb, 2);
+        final SQLiteStatement insert = cache.get("INSERT INTO t VALUES (?)");
+        insert.bindLong(1, 1);
+
+        // Evicts the insert while it is bound but not executed yet.
+        cache.get("SELECT COUNT(*) FROM t");
+        cache.get("SELECT MAX(a) FROM t");
+        cache.get("SELECT MIN(a) FROM t");
+
+        insert.executeInsert();
+        assertEquals(1, cache.get("SELECT COUNT(*) FROM t").simpleQueryForLong());
+        assertNotSame(insert, cache.get("INSERT INTO t VALUES (?)"));
+    }
+}
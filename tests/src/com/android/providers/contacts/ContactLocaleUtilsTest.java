@@ -164,6 +164,18 @@ public class ContactLocaleUtilsTest extends AndroidTestCase {
         verifyLabels(getLabels(), LABELS_JA_JP);
     }
 
+    public void testJapaneseRomajiNameLookupKeys() throws Exception {
+        setLocales(Locale.JAPAN);
+        // Transliterated one kana at a time.
+        assertEquals("yamada", getNameLookupKeys("\u3084\u307e\u3060",
+                FullNameStyle.JAPANESE).next());
+        assertEquals("yamada", getNameLookupKeys("\u30e4\u30de\u30c0",
+                FullNameStyle.JAPANESE).next());
+        // Small kana need the whole name.
+        assertEquals("kyouko", getNameLookupKeys("\u304d\u3087\u3046\u3053",
+                FullNameStyle.JAPANESE).next());
+    }
+
     public void testChineseContactLocaleUtils() throws Exception {
         setLocales(Locale.SIMPLIFIED_CHINESE);
         assertEquals("#", getLabel(PHONE_NUMBER_1));
@@ -248,6 +260,23 @@ public class ContactLocaleUtilsTest extends AndroidTestCase {
         assertNull(getNameLookupKeys(CHINESE_NAME, FullNameStyle.CJK));
     }
 
+    public void testBucketInfo() throws Exception {
+        setLocales(Locale.US);
+        final ContactLocaleUtils.BucketInfo info = mTargetUtils.getBucketInfo(LATIN_NAME);
+        assertEquals(mTargetUtils.getBucketIndex(LATIN_NAME), info.bucketIndex);
+        assertEquals("J", info.bucketLabel);
+        assertSame(info, mTargetUtils.getBucketInfo(LATIN_NAME));
+
+        final ContactLocaleUtils.BucketInfo empty = mTargetUtils.getBucketInfo(null);
+        assertEquals(mTargetUtils.getNumberBucketIndex(), empty.bucketIndex);
+        assertEquals("#", empty.bucketLabel);
+        assertEquals("#", mTargetUtils.getBucketInfo(PHONE_NUMBER_1).bucketLabel);
+
+        // A new locale starts with an empty cache.
+        setLocales(Locale.JAPAN);
+        assertNotSame(info, mTargetUtils.getBucketInfo(LATIN_NAME));
+    }
+
     public void testKoreanContactLocaleUtils() throws Exception {
         setLocales(Locale.KOREA);
         assertEquals("\u3131", getLabel("\u1100"));
@@ -18,18 +18,27 @@ package com.android.providers.contacts;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.RawContacts;
 import android.test.MoreAsserts;
 import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.SmallTest;
 
+import com.android.providers.contacts.ContactsDatabaseHelper.DbProperties;
 import com.android.providers.contacts.ContactsDatabaseHelper.MimetypesColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupType;
+import com.android.providers.contacts.ContactsDatabaseHelper.PhoneLookupColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.RawContactsColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
+import com.android.providers.contacts.testutil.RawContactUtil;
 import com.google.android.collect.Sets;
 
+import libcore.icu.ICU;
+
 import java.util.HashSet;
 import java.util.Set;
 
@@ -155,6 +164,200 @@ public class ContactsDatabaseHelperTest extends BaseContactsProvider2Test {
         assertEquals(-1, ContactsDatabaseHelper.insertWithOneArgAndReturnId(mDb, insert, "value2"));
     }
 
+    /**
+     * Test for {@link CompiledStatementCache}.
+     */
+    public void testCompiledStatementCache() {
+        final CompiledStatementCache cache = new CompiledStatementCache(mDb, 2);
+        final String sql1 = "SELECT 1";
+        final String sql2 = "SELECT 2";
+        final String sql3 = "SELECT 3";
+
+        // The same statement is returned for the same SQL.
+        final SQLiteStatement statement1 = cache.get(sql1);
+        assertSame(statement1, cache.get(sql1));
+        assertEquals(1, statement1.simpleQueryForLong());
+        assertEquals(1, cache.getCompileCount());
+        assertEquals(1, cache.getHitCount());
+
+        // Going over the limit evicts the least recently used statement.
+        cache.get(sql2);
+        cache.get(sql1);
+        cache.get(sql3);
+        assertEquals(3, cache.getCompileCount());
+        assertSame(statement1, cache.get(sql1));
+        assertEquals(2, cache.get(sql2).simpleQueryForLong());
+        assertEquals(4, cache.getCompileCount());
+
+        cache.clear();
+        assertEquals(1, cache.get(sql1).simpleQueryForLong());
+        assertEquals(5, cache.getCompileCount());
+    }
+
+    /**
+     * Test for {@link ContactsDatabaseHelper#beginLookupBatch} and {@link LookupTableWriter}.
+     */
+    public void testLookupBatch() {
+        final int count = LookupTableWriter.ROWS_PER_INSERT * 2 + 10;
+        mDb.beginTransaction();
+        try {
+            mDbHelper.beginLookupBatch();
+            for (int i = 0; i < count; i++) {
+                mDbHelper.insertNameLookup(1, i, NameLookupType.NAME_EXACT, "name" + i);
+                mDbHelper.insertPhoneLookup(1, i, "1234" + i);
+            }
+            // Nothing is written until the batch is flushed.
+            assertEquals(0, DatabaseUtils.queryNumEntries(mDb, Tables.NAME_LOOKUP));
+            assertEquals(0, DatabaseUtils.queryNumEntries(mDb, Tables.PHONE_LOOKUP));
+
+            // Deleting drops the pending rows.
+            mDbHelper.deleteNameLookup(0);
+            mDbHelper.deletePhoneLookup(0);
+            mDbHelper.flushLookupBatch();
+            assertEquals(count - 1, DatabaseUtils.queryNumEntries(mDb, Tables.NAME_LOOKUP));
+            assertEquals(count - 1, DatabaseUtils.queryNumEntries(mDb, Tables.PHONE_LOOKUP));
+
+            // Deletes of written rows are applied before the inserts that follow them.
+            mDbHelper.deleteNameLookup(1);
+            mDbHelper.insertNameLookup(1, 1, NameLookupType.NAME_EXACT, "other");
+            mDbHelper.deletePhoneLookup(2);
+            mDbHelper.endLookupBatch(true);
+            assertEquals(count - 1, DatabaseUtils.queryNumEntries(mDb, Tables.NAME_LOOKUP));
+            assertEquals(count - 2, DatabaseUtils.queryNumEntries(mDb, Tables.PHONE_LOOKUP));
+            assertEquals("other", DatabaseUtils.stringForQuery(mDb,
+                    "SELECT " + NameLookupColumns.NORMALIZED_NAME + " FROM " + Tables.NAME_LOOKUP
+                            + " WHERE " + NameLookupColumns.DATA_ID + "=1", null));
+            assertEquals("12341", DatabaseUtils.stringForQuery(mDb,
+                    "SELECT " + PhoneLookupColumns.NORMALIZED_NUMBER
+                            + " FROM " + Tables.PHONE_LOOKUP
+                            + " WHERE " + PhoneLookupColumns.DATA_ID + "=1", null));
+
+            // Once the batch has ended, changes are written right away.
+            mDbHelper.deleteNameLookup(3);
+            assertEquals(count - 2, DatabaseUtils.queryNumEntries(mDb, Tables.NAME_LOOKUP));
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    /**
+     * Test for {@link NameLookupRebuilder}: the rows are the same whatever the number of threads.
+     */
+    public void testNameLookupRebuilder() {
+        final int count = NameLookupRebuilder.CHUNK_SIZE * 3 + 7;
+        final String query = "SELECT " + NameLookupColumns.DATA_ID + ","
+                + NameLookupColumns.NAME_TYPE + "," + NameLookupColumns.NORMALIZED_NAME
+                + " FROM " + Tables.NAME_LOOKUP + " ORDER BY 1, 2, 3";
+        final String[] expected = new String[2];
+        final int[] threadCounts = new int[] {1, 3};
+        for (int t = 0; t < threadCounts.length; t++) {
+            mDb.beginTransaction();
+            try {
+                final NameLookupRebuilder rebuilder =
+                        new NameLookupRebuilder(mDbHelper, mDb, threadCounts[t]);
+                try {
+                    for (int i = 0; i < count; i++) {
+                        rebuilder.addStructuredName(1, i, "Robert Smith" + i);
+                        rebuilder.addEmail(1, i, "bob" + i);
+                        rebuilder.addNickname(1, i, "Bobby" + i);
+                    }
+                    rebuilder.flush();
+                } finally {
+                    rebuilder.close();
+                }
+                expected[t] = dumpQuery(query);
+            } finally {
+                mDb.endTransaction();
+            }
+        }
+        // Every name got its rows, the last chunk included.
+        assertTrue(expected[0].startsWith("0,"));
+        assertTrue(expected[0].contains("\n" + (count - 1) + ","));
+        assertEquals(expected[0], expected[1]);
+    }
+
+    /**
+     * Test for {@link NameLookupRebuilder} used from {@link ContactsDatabaseHelper#onUpgrade},
+     * when {@link ContactsDatabaseHelper#getWritableDatabase} can't be called.
+     */
+    public void testNameLookupRebuilder_onUpgrade() {
+        final String databaseName = "name_lookup_upgrade_test.db";
+        final int count = LookupTableWriter.ROWS_PER_INSERT * 2 + 7;
+        getContext().deleteDatabase(databaseName);
+
+        ContactsDatabaseHelper helper = new ContactsDatabaseHelper(getContext(), databaseName,
+                false);
+        helper.getWritableDatabase().setVersion(ContactsDatabaseHelper.DATABASE_VERSION - 1);
+        helper.close();
+
+        helper = new ContactsDatabaseHelper(getContext(), databaseName, false) {
+            @Override
+            public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+                final NameLookupRebuilder rebuilder = new NameLookupRebuilder(this, db);
+                try {
+                    for (int i = 0; i < count; i++) {
+                        rebuilder.addStructuredName(1, i, "Robert Smith" + i);
+                    }
+                    rebuilder.flush();
+                } finally {
+                    rebuilder.close();
+                }
+            }
+        };
+        try {
+            final SQLiteDatabase db = helper.getWritableDatabase();
+            assertEquals(count, DatabaseUtils.longForQuery(db, "SELECT COUNT(DISTINCT "
+                    + NameLookupColumns.DATA_ID + ") FROM " + Tables.NAME_LOOKUP, null));
+        } finally {
+            helper.close();
+            getContext().deleteDatabase(databaseName);
+        }
+    }
+
+    private String dumpQuery(String query) {
+        final StringBuilder sb = new StringBuilder();
+        final Cursor cursor = mDb.rawQuery(query, null);
+        try {
+            while (cursor.moveToNext()) {
+                sb.append(cursor.getLong(0)).append(',').append(cursor.getInt(1)).append(',')
+                        .append(cursor.getString(2)).append('\n');
+            }
+        } finally {
+            cursor.close();
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Test for {@link ContactsDatabaseHelper#setLocale} resuming an interrupted locale change.
+     */
+    public void testSetLocale_resume() {
+        final long rawContactId1 = RawContactUtil.createRawContactWithName(mResolver, "John",
+                "Doe");
+        final long rawContactId2 = RawContactUtil.createRawContactWithName(mResolver, "Jane",
+                "Roe");
+        mDb.execSQL("DELETE FROM " + Tables.NAME_LOOKUP);
+
+        // Pretend the change was interrupted after the first raw contact.
+        final LocaleSet locales = LocaleSet.newDefault();
+        mDbHelper.setProperty(DbProperties.LOCALE, "");
+        mDbHelper.setProperty(DbProperties.LOCALE_CHANGE_TARGET,
+                locales.toString() + "/" + ICU.getIcuVersion());
+        mDbHelper.setProperty(DbProperties.LOCALE_CHANGE_CHECKPOINT,
+                String.valueOf(rawContactId1));
+
+        mDbHelper.setLocale(locales);
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, Tables.NAME_LOOKUP,
+                NameLookupColumns.RAW_CONTACT_ID + "=" + rawContactId1));
+        assertTrue(DatabaseUtils.queryNumEntries(mDb, Tables.NAME_LOOKUP,
+                NameLookupColumns.RAW_CONTACT_ID + "=" + rawContactId2) > 0);
+        assertEquals(locales.toString(), mDbHelper.getProperty(DbProperties.LOCALE, ""));
+        assertEquals("", mDbHelper.getProperty(DbProperties.LOCALE_CHANGE_TARGET, ""));
+        assertFalse(mDbHelper.needsToUpdateLocaleData(locales));
+        // The sort key indexes are in the order of the new collator.
+        assertEquals("ok", DatabaseUtils.stringForQuery(mDb, "PRAGMA integrity_check", null));
+    }
+
     /**
      * Test for {@link ContactsDatabaseHelper#getPackageId(String)} and
      * {@link ContactsDatabaseHelper#getMimeTypeId(String)}.
@@ -109,9 +109,11 @@ import java.io.OutputStream;
 import java.text.Collator;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -1867,6 +1869,48 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
         assertEquals(1, getCount(lookupUri2, null, null));
     }
 
+    public void testQueryPhoneLookups() {
+        long rawContactId = RawContactUtil.createRawContactWithName(mResolver, "Hot", "Tamale");
+        insertPhoneNumber(rawContactId, "+1-650-861-0000");
+        rawContactId = RawContactUtil.createRawContactWithName(mResolver, "Emergency", null);
+        insertPhoneNumber(rawContactId, "*123");
+        rawContactId = RawContactUtil.createRawContactWithName(mResolver, "Voice", "Mail");
+        insertPhoneNumber(rawContactId, "12 3");
+        rawContactId = RawContactUtil.createRawContactWithName(mResolver, "Senor", "Chang");
+        insertPhoneNumber(rawContactId, "01197297427289");
+
+        // Each number gets the first row of its own phone lookup, if any.
+        final List<String> numbers = Arrays.asList("+1 650 861 0000", "650 861 0000",
+                "649 861 0000", "123", "*1-23", "+97297427289", "97427289", "555");
+        final Map<String, String> expected = new HashMap<String, String>();
+        for (String number : numbers) {
+            final Cursor c = mResolver.query(
+                    Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(number)),
+                    new String[] {PhoneLookup.DISPLAY_NAME}, null, null, null);
+            try {
+                if (c.moveToFirst()) {
+                    expected.put(number, c.getString(0));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        assertEquals("Hot Tamale", expected.get("650 861 0000"));
+        assertEquals("Emergency", expected.get("*1-23"));
+
+        final Map<String, String> actual = new HashMap<String, String>();
+        final Cursor c = getContactsProvider().queryPhoneLookups(numbers,
+                new String[] {PhoneLookup.DISPLAY_NAME});
+        try {
+            while (c.moveToNext()) {
+                assertNull(actual.put(c.getString(0), c.getString(1)));
+            }
+        } finally {
+            c.close();
+        }
+        assertEquals(expected, actual);
+    }
+
     public void testIntlPhoneLookupUseCases() {
         // Checks the logic that relies on phone_number_compare_loose(Gingerbread) as a fallback
         //for phone number lookups.
@@ -3517,6 +3561,127 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
         assertContactFilterNoResult("goolish");
     }
 
+    public void testQueryContactFilterWithSession() {
+        long rawContactId1 = RawContactUtil.createRawContactWithName(mResolver, "John", "Doe");
+        long contactId1 = queryContactId(rawContactId1);
+        long rawContactId2 = RawContactUtil.createRawContactWithName(mResolver, "Joan", "Smith");
+        long contactId2 = queryContactId(rawContactId2);
+        long rawContactId3 = RawContactUtil.createRawContactWithName(mResolver, "Mary", "Johnson");
+        long contactId3 = queryContactId(rawContactId3);
+
+        final FilterSessionCache cache = getContactsProvider().getFilterSessionCache();
+        final long queryCount = cache.getQueryCount();
+        final long narrowCount = cache.getNarrowCount();
+
+        assertContactFilterWithSession("jo", contactId1, contactId2, contactId3);
+        assertContactFilterWithSession("joh", contactId1, contactId3);
+        assertContactFilterWithSession("john d", contactId1);
+        assertContactFilterWithSession("john do", contactId1);
+        assertEquals(queryCount + 1, cache.getQueryCount());
+        assertEquals(narrowCount + 3, cache.getNarrowCount());
+
+        // Not a continuation of the previous filter.
+        assertContactFilterWithSession("smi", contactId2);
+        assertEquals(queryCount + 2, cache.getQueryCount());
+
+        // Changes invalidate the session.
+        long rawContactId4 = RawContactUtil.createRawContactWithName(mResolver, "Sam", "Smith");
+        long contactId4 = queryContactId(rawContactId4);
+        assertContactFilterWithSession("smit", contactId2, contactId4);
+        assertEquals(queryCount + 3, cache.getQueryCount());
+        assertEquals(narrowCount + 3, cache.getNarrowCount());
+
+        // Only the filters following the first one of a session are matched in memory.
+        final SQLiteDatabase db = getContactsProvider().getDatabaseHelper().getReadableDatabase();
+        assertNull(cache.getCandidates(db, "direct", FilterSessionCache.MODE_CONTACTS, "jo"));
+        assertEquals(2, cache.getCandidates(db, "direct", FilterSessionCache.MODE_CONTACTS, "joh")
+                .size());
+    }
+
+    public void testQueryContactFilterRanked() {
+        long rawContactId1 = RawContactUtil.createRawContactWithName(mResolver, "Anna", "Bell");
+        insertNote(rawContactId1, "Met at the smithsonian");
+        long contactId1 = queryContactId(rawContactId1);
+        long rawContactId2 = RawContactUtil.createRawContactWithName(mResolver, "Adam", "Smith");
+        long contactId2 = queryContactId(rawContactId2);
+        long rawContactId3 = RawContactUtil.createRawContactWithName(mResolver, "Zed", "Smith");
+        long contactId3 = queryContactId(rawContactId3);
+        storeValue(Contacts.CONTENT_URI, contactId3, Contacts.STARRED, "1");
+        RawContactUtil.createRawContactWithName(mResolver, "Bob", "Jones");
+
+        // Starred name match, then name match, then other content.
+        Uri filterUri = Contacts.CONTENT_FILTER_URI.buildUpon().appendPath("smith")
+                .appendQueryParameter(ContactsProvider2.QUERY_PARAMETER_RANKED, "1")
+                .build();
+        assertStoredValuesOrderly(filterUri, createContactIdValues(contactId3),
+                createContactIdValues(contactId2), createContactIdValues(contactId1));
+
+        Uri limitedUri = filterUri.buildUpon()
+                .appendQueryParameter(ContactsContract.LIMIT_PARAM_KEY, "2")
+                .build();
+        assertStoredValuesOrderly(limitedUri, createContactIdValues(contactId3),
+                createContactIdValues(contactId2));
+
+        Uri noMatchUri = Contacts.CONTENT_FILTER_URI.buildUpon().appendPath("nobody")
+                .appendQueryParameter(ContactsProvider2.QUERY_PARAMETER_RANKED, "1")
+                .build();
+        assertEquals(0, getCount(noMatchUri, null, null));
+    }
+
+    public void testQueryContactFilterFuzzy() {
+        long rawContactId1 = RawContactUtil.createRawContactWithName(mResolver, "John", "Smith");
+        long contactId1 = queryContactId(rawContactId1);
+        long rawContactId2 = RawContactUtil.createRawContactWithName(mResolver, "Jonas", "Berg");
+        long contactId2 = queryContactId(rawContactId2);
+        RawContactUtil.createRawContactWithName(mResolver, "Bob", "Miller");
+
+        // Exact prefix search finds nothing.
+        Uri plainUri = Contacts.CONTENT_FILTER_URI.buildUpon().appendPath("jonh").build();
+        assertEquals(0, getCount(plainUri, null, null));
+
+        // The closest names are returned.
+        Uri fuzzyUri = plainUri.buildUpon()
+                .appendQueryParameter(ContactsProvider2.QUERY_PARAMETER_FUZZY, "1")
+                .build();
+        assertStoredValuesOrderly(fuzzyUri, createContactIdValues(contactId1),
+                createContactIdValues(contactId2));
+
+        // Prefix matches are still returned, without unrelated names.
+        Uri prefixUri = Contacts.CONTENT_FILTER_URI.buildUpon().appendPath("smith")
+                .appendQueryParameter(ContactsProvider2.QUERY_PARAMETER_FUZZY, "1")
+                .build();
+        assertStoredValuesOrderly(prefixUri, createContactIdValues(contactId1));
+
+        // Fuzzy matches are dropped with the contact.
+        mResolver.delete(ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId1), null, null);
+        assertStoredValuesOrderly(fuzzyUri, createContactIdValues(contactId2));
+    }
+
+    private ContentValues createContactIdValues(long contactId) {
+        ContentValues values = new ContentValues();
+        values.put(Contacts._ID, contactId);
+        return values;
+    }
+
+    private void assertContactFilterWithSession(String filter, long... expectedContactIds) {
+        Uri filterUri = Uri.withAppendedPath(Contacts.CONTENT_FILTER_URI, Uri.encode(filter));
+        Uri sessionUri = filterUri.buildUpon()
+                .appendQueryParameter(ContactsProvider2.QUERY_PARAMETER_FILTER_SESSION, "test")
+                .build();
+        Cursor c = mResolver.query(sessionUri, new String[] {Contacts._ID}, null, null,
+                Contacts._ID);
+        try {
+            assertEquals(expectedContactIds.length, c.getCount());
+            int i = 0;
+            while (c.moveToNext()) {
+                assertEquals(expectedContactIds[i++], c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        assertEquals(expectedContactIds.length, getCount(filterUri, null, null));
+    }
+
     public void testQueryContactFilterByEmailAddress() {
         ContentValues values = new ContentValues();
         long rawContactId = createRawContact(values, "18004664411",
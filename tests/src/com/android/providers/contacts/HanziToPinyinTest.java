@@ -16,6 +16,7 @@
 
 package com.android.providers.contacts;
 
+import android.icu.text.Transliterator;
 import android.test.suitebuilder.annotation.SmallTest;
 import android.text.TextUtils;
 import android.util.Log;
@@ -126,4 +127,23 @@ public class HanziToPinyinTest extends TestCase {
         test('\u9a08', "PIAN");
         test('\u9e09', "YANG");
     }
+
+    @SmallTest
+    public void testTransliterationCache() throws Exception {
+        final Transliterator transliterator = Transliterator.getInstance("Latin-Ascii");
+        final TransliterationCache cache = new TransliterationCache(transliterator);
+
+        assertEquals("e", cache.transliterate('\u00e9'));
+        assertSame(cache.transliterate('\u00e9'), cache.transliterate('\u00e8'));
+        assertEquals("ss", cache.transliterate('\u00df'));
+        assertEquals("a", cache.transliterate('a'));
+        assertEquals("Helene Strasse", cache.transliterate("H\u00e9l\u00e8ne Stra\u00dfe"));
+
+        if (!hasChineseTransliterator()) {
+            return;
+        }
+        // Looking up the same hanzi again gives the same result.
+        test('\u4e00', "YI");
+        test('\u4e00', "YI");
+    }
 }
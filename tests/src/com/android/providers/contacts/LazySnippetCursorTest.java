@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link LazySnippetCursor}.
+ *
+ * Run the test like this:
+ * <code>
+   adb shell am instrument -e class com.android.providers.contacts.LazySnippetCursorTest -w \
+           com.android.providers.contacts.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+@SmallTest
+public class LazySnippetCursorTest extends TestCase {
+
+    private static final String NOTE = "Please note: three notes or more make up a chord.";
+
+    public void testSnippetize() {
+        assertEquals("-note: [three]-", snippetize(NOTE, 2, "thr"));
+        assertEquals("[acme]@corp.com", snippetize("acme@corp.com", 5, "acme"));
+        assertEquals("john_[smith]", snippetize("john_smith", 5, "smi"));
+        assertEquals("[Please] note: [three] notes or-", snippetize(NOTE, 5, "three", "ple"));
+    }
+
+    public void testSnippetize_noMatch() {
+        assertEquals("Please note: three notes or-", snippetize(NOTE, 5, "xyz"));
+        assertEquals("a chord.", snippetize("a chord.", 5, "xyz"));
+        assertEquals("", snippetize(NOTE, 0, "three"));
+    }
+
+    public void testSnippetize_centersMatches() {
+        assertEquals("-six [seven] eight",
+                snippetize("one two three four five six seven eight", 3, "seven"));
+    }
+
+    public void testSnippetize_multipleFragments() {
+        assertEquals("[alpha] beta-eta [theta]",
+                snippetize("alpha beta gamma delta epsilon zeta eta theta", 4, "alpha", "theta"));
+    }
+
+    private static String snippetize(String content, int maxTokens, String... tokens) {
+        return LazySnippetCursor.snippetize(content, tokens, "[", "]", "-", maxTokens);
+    }
+}
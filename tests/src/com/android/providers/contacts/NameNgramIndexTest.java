@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.providers.contacts.aggregation.util.NameDistance;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Unit tests for {@link NameNgramIndex}.
+ *
+ * Run the test like this:
+ * <code>
+   adb shell am instrument -e class com.android.providers.contacts.NameNgramIndexTest -w \
+           com.android.providers.contacts.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+@SmallTest
+public class NameNgramIndexTest extends TestCase {
+
+    public void testGetNgrams() {
+        assertEquals(Arrays.asList("^4A", "4A4F", "4F48", "48$", "^41", "41$"),
+                new ArrayList<String>(NameNgramIndex.getNgrams("4A4F48 41")));
+    }
+
+    public void testGetNgrams_duplicates() {
+        assertEquals(Arrays.asList("^4A", "4A4F", "4F$"),
+                new ArrayList<String>(NameNgramIndex.getNgrams("4A4F 4A4F")));
+    }
+
+    public void testGetNgrams_bounded() {
+        final StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            name.append(String.format("%02X", i));
+        }
+        assertEquals(NameNgramIndex.MAX_NGRAMS_PER_CONTACT,
+                NameNgramIndex.getNgrams(name.toString()).size());
+    }
+
+    public void testComputeScore() {
+        final NameDistance distance = new NameDistance(30);
+        final byte[][] words = {"johnsmith".getBytes(), "john".getBytes(), "smith".getBytes()};
+
+        assertEquals(1f, NameNgramIndex.computeScore(distance,
+                new byte[][] {"smi".getBytes()}, words), 0f);
+        assertTrue(NameNgramIndex.computeScore(distance,
+                new byte[][] {"jonh".getBytes()}, words) >= NameNgramIndex.MATCH_THRESHOLD);
+        assertTrue(NameNgramIndex.computeScore(distance,
+                new byte[][] {"jonh".getBytes(), "smiht".getBytes()}, words)
+                >= NameNgramIndex.MATCH_THRESHOLD);
+        assertEquals(0f, NameNgramIndex.computeScore(distance,
+                new byte[][] {"jonh".getBytes(), "miller".getBytes()}, words), 0f);
+        assertEquals(0f, NameNgramIndex.computeScore(distance,
+                new byte[][] {"xyz".getBytes()}, words), 0f);
+    }
+}
@@ -19,6 +19,8 @@ package com.android.providers.contacts;
 import android.test.MoreAsserts;
 import android.test.suitebuilder.annotation.SmallTest;
 
+import com.android.providers.contacts.util.Hex;
+
 import java.text.RuleBasedCollator;
 import java.util.Locale;
 
@@ -44,6 +46,7 @@ public class NameNormalizerTest extends TestCase {
         super.setUp();
 
         mOriginalLocale = Locale.getDefault();
+        NameNormalizer.setKeyFormat(NameNormalizer.KEY_FORMAT_HEX);
 
         // Run all test in en_US
         Locale.setDefault(Locale.US);
@@ -51,6 +54,7 @@ public class NameNormalizerTest extends TestCase {
 
     @Override
     protected void tearDown() throws Exception {
+        NameNormalizer.setKeyFormat(NameNormalizer.KEY_FORMAT_HEX);
         Locale.setDefault(mOriginalLocale);
         super.tearDown();
     }
@@ -121,4 +125,67 @@ public class NameNormalizerTest extends TestCase {
         assertNotSame(compressing1, compressing3);
         assertNotSame(complexity1, complexity3);
     }
+
+    public void testNormalizeCached() {
+        final String name1 = NameNormalizer.normalize("Helene");
+        final String name2 = NameNormalizer.normalize("Helene");
+        assertSame(name1, name2);
+
+        // Change locale -- the name should be normalized again.
+        Locale.setDefault(Locale.FRANCE);
+
+        final String name3 = NameNormalizer.normalize("Helene");
+        assertNotSame(name1, name3);
+    }
+
+    public void testGetCollatorsPerThread() throws Exception {
+        final RuleBasedCollator[] otherThreadCollator = new RuleBasedCollator[1];
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                otherThreadCollator[0] = NameNormalizer.getCompressingCollator();
+            }
+        };
+        thread.start();
+        thread.join();
+
+        assertNotNull(otherThreadCollator[0]);
+        assertNotSame(NameNormalizer.getCompressingCollator(), otherThreadCollator[0]);
+    }
+
+    public void testCompactKeyFormat() {
+        final String hex = NameNormalizer.normalize("Helene");
+        final String hexPrefix = NameNormalizer.normalize("Hel");
+        assertEquals(2, NameNormalizer.getFirstByte(hex).length());
+
+        NameNormalizer.setKeyFormat(NameNormalizer.KEY_FORMAT_COMPACT);
+        final String compact = NameNormalizer.normalize("Helene");
+        final String compactPrefix = NameNormalizer.normalize("Hel");
+
+        // One char per byte, with the same bytes and prefixes as the hex format.
+        assertEquals(hex.length() / 2, compact.length());
+        MoreAsserts.assertEquals(NameNormalizer.decode(compact),
+                Hex.decodeHex(hex));
+        assertTrue(hex.startsWith(hexPrefix));
+        assertTrue(compact.startsWith(compactPrefix));
+        assertEquals(1, NameNormalizer.getFirstByte(compact).length());
+
+        // Lookup keys and the search index still get hex.
+        assertEquals(hex, NameNormalizer.normalizeToHex("Helene"));
+        assertEquals(compact, NameNormalizer.fromHex(hex));
+    }
+
+    public void testCompactKeyFormat_specialChars() {
+        NameNormalizer.setKeyFormat(NameNormalizer.KEY_FORMAT_COMPACT);
+        final byte[] key = new byte[255];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = (byte) (i + 1);
+        }
+        final String compact = NameNormalizer.fromHex(
+                Hex.encodeHex(key, false));
+        for (char c : new char[] { 0, '\'', '*', '?', '[', ']' }) {
+            assertEquals(-1, compact.indexOf(c));
+        }
+        MoreAsserts.assertEquals(key, NameNormalizer.decode(compact));
+    }
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.providers.contacts;
+
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.providers.contacts.util.MockClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link NotificationCoalescer}.
+ */
+@SmallTest
+public class NotificationCoalescerTest extends AndroidTestCase {
+    private final MockClock mClock = new MockClock();
+
+    /** Collects the messages sent to it, so that the test decides when they are handled. */
+    private static class PendingHandler extends Handler {
+        final List<Message> messages = new ArrayList<Message>();
+
+        PendingHandler() {
+            super(Looper.getMainLooper());
+        }
+
+        @Override
+        public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+            messages.add(msg);
+            return true;
+        }
+
+        void runPending() {
+            final List<Message> pending = new ArrayList<Message>(messages);
+            messages.clear();
+            for (Message msg : pending) {
+                msg.getCallback().run();
+            }
+        }
+    }
+
+    private PendingHandler mHandler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mClock.install();
+        mHandler = new PendingHandler();
+        NotificationCoalescer.resetForTesting(mHandler);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        NotificationCoalescer.resetForTesting(null);
+        mClock.uninstall();
+        super.tearDown();
+    }
+
+    public void testNotifyCallLogChange_Coalesced() {
+        final AtomicInteger count = new AtomicInteger();
+        final Runnable notifier = new Runnable() {
+            @Override
+            public void run() {
+                count.incrementAndGet();
+            }
+        };
+        final long start = mClock.currentTimeMillis();
+
+        NotificationCoalescer.notifyCallLogChange(notifier);
+        assertEquals(1, count.get());
+        assertTrue(mHandler.messages.isEmpty());
+
+        mClock.setCurrentTimeMillis(start + 100);
+        for (int i = 0; i < 10; i++) {
+            NotificationCoalescer.notifyCallLogChange(notifier);
+        }
+        assertEquals(1, count.get());
+        assertEquals(1, mHandler.messages.size());
+
+        mClock.setCurrentTimeMillis(start + NotificationCoalescer.CALL_LOG_CHANGE_INTERVAL_MS);
+        mHandler.runPending();
+        assertEquals(2, count.get());
+
+        // Once the interval is over, the next change is notified right away.
+        mClock.setCurrentTimeMillis(start + NotificationCoalescer.CALL_LOG_CHANGE_INTERVAL_MS * 3);
+        NotificationCoalescer.notifyCallLogChange(notifier);
+        assertEquals(3, count.get());
+        assertTrue(mHandler.messages.isEmpty());
+    }
+
+    public void testGetReceiverKey() {
+        final Uri first = Uri.parse("content://com.android.voicemail/voicemail/1");
+        final Uri second = Uri.parse("content://com.android.voicemail/voicemail/2");
+        final Uri status = Uri.parse("content://com.android.voicemail/status/1");
+        final String itemType = "vnd.android.cursor.item/voicemail";
+        final String statusType = "vnd.android.cursor.item/voicemail.source.status";
+
+        assertEquals(getReceiverKey(first, itemType), getReceiverKey(second, itemType));
+        assertFalse(getReceiverKey(first, itemType).equals(getReceiverKey(status, statusType)));
+    }
+
+    private String getReceiverKey(Uri uri, String type) {
+        final Intent intent = new Intent(Intent.ACTION_PROVIDER_CHANGED);
+        intent.setDataAndType(uri, type);
+        return NotificationCoalescer.getReceiverKey(getContext(), intent);
+    }
+}
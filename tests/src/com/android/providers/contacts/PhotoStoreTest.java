@@ -20,6 +20,7 @@ import static com.android.providers.contacts.ContactsActor.PACKAGE_GREY;
 
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.graphics.BitmapFactory;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.PhotoFiles;
 import android.test.suitebuilder.annotation.MediumTest;
@@ -30,6 +31,7 @@ import com.android.providers.contacts.tests.R;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -213,12 +215,15 @@ public class PhotoStoreTest extends PhotoLoadingTestCase {
         // Run cleanup with the indication that only the large and huge photos are in use, along
         // with a bogus photo file ID that isn't in the photo store.
         long bogusPhotoFileId = 123456789;
-        Set<Long> photoFileIdsInUse = new HashSet<Long>();
-        photoFileIdsInUse.add(resourceIdToPhotoMap.get(R.drawable.earth_large));
-        photoFileIdsInUse.add(resourceIdToPhotoMap.get(R.drawable.earth_huge));
-        photoFileIdsInUse.add(bogusPhotoFileId);
+        long[] photoFileIdsInUse = new long[] {
+                resourceIdToPhotoMap.get(R.drawable.earth_large),
+                resourceIdToPhotoMap.get(R.drawable.earth_huge),
+                bogusPhotoFileId
+        };
+        Arrays.sort(photoFileIdsInUse);
 
-        Set<Long> photoIdsToCleanup = mPhotoStore.cleanup(photoFileIdsInUse);
+        Set<Long> photoIdsToCleanup = mPhotoStore.cleanupRange(0, Long.MAX_VALUE,
+                photoFileIdsInUse, photoFileIdsInUse.length);
 
         // The set of photo IDs to clean up should consist of the bogus photo file ID.
         assertEquals(1, photoIdsToCleanup.size());
@@ -239,4 +244,86 @@ public class PhotoStoreTest extends PhotoLoadingTestCase {
             c.close();
         }
     }
+
+    public void testCleanupRange() throws IOException {
+        long[] photoFileIds = new long[3];
+        int[] resourceIds = new int[] {
+                R.drawable.earth_normal, R.drawable.earth_large, R.drawable.earth_huge
+        };
+        for (int i = 0; i < resourceIds.length; i++) {
+            photoFileIds[i] = mPhotoStore.insert(
+                    new PhotoProcessor(loadPhotoFromResource(resourceIds[i], PhotoSize.ORIGINAL),
+                            256, 96));
+        }
+        assertTrue(Arrays.equals(photoFileIds, mPhotoStore.getKeysAfter(0, 10)));
+        assertTrue(Arrays.equals(new long[] {photoFileIds[1]},
+                mPhotoStore.getKeysAfter(photoFileIds[0], 1)));
+
+        // Only look at the first two photos.  The first one is referenced twice, the second one
+        // isn't referenced, and there's a bogus reference in between.
+        long bogusPhotoFileId = photoFileIds[0] + 1;
+        assertTrue(bogusPhotoFileId < photoFileIds[1]);
+        long[] keysInUse = new long[] {photoFileIds[0], photoFileIds[0], bogusPhotoFileId, 0};
+        Set<Long> missing = mPhotoStore.cleanupRange(0, photoFileIds[1], keysInUse, 3);
+
+        assertEquals(1, missing.size());
+        assertTrue(missing.contains(bogusPhotoFileId));
+        assertNotNull(mPhotoStore.get(photoFileIds[0]));
+        assertNull(mPhotoStore.get(photoFileIds[1]));
+
+        // The third photo is outside of the range, so it must be left alone.
+        assertNotNull(mPhotoStore.get(photoFileIds[2]));
+        assertEquals(new File(mPhotoStore.get(photoFileIds[0]).path).length()
+                + new File(mPhotoStore.get(photoFileIds[2]).path).length(),
+                mPhotoStore.getTotalSize());
+    }
+
+    public void testLoadIndexWithoutRescan() throws IOException {
+        long photoFileId = mPhotoStore.insert(newPhotoProcessor(
+                loadPhotoFromResource(R.drawable.earth_normal, PhotoSize.ORIGINAL), false));
+        File storedFile = new File(mPhotoStore.get(photoFileId).path);
+        File rootDirectory = storedFile.getParentFile().getParentFile();
+
+        // A new store over the same directory picks up the entry from the index.
+        PhotoStore reloaded = new PhotoStore(rootDirectory,
+                mProvider.getDatabaseHelper(getContext()));
+        assertEquals(storedFile.length(), reloaded.get(photoFileId).size);
+        assertEquals(mPhotoStore.getTotalSize(), reloaded.getTotalSize());
+
+        // Once the directory changes behind the store's back, it is rescanned.
+        assertTrue(storedFile.delete());
+        File directory = storedFile.getParentFile();
+        directory.setLastModified(directory.lastModified() + 1000);
+        reloaded = new PhotoStore(rootDirectory, mProvider.getDatabaseHelper(getContext()));
+        assertNull(reloaded.get(photoFileId));
+        assertEquals(0, reloaded.getTotalSize());
+    }
+
+    public void testGetVariant() throws IOException {
+        long photoFileId = mPhotoStore.insert(newPhotoProcessor(
+                loadPhotoFromResource(R.drawable.earth_huge, PhotoSize.ORIGINAL), false));
+        PhotoStore.Entry entry = mPhotoStore.get(photoFileId);
+
+        // The requested size is rounded up to the next step.
+        PhotoStore.Entry variant = mPhotoStore.getVariant(photoFileId, 100);
+        assertEquals(photoFileId, variant.id);
+        assertFalse(entry.path.equals(variant.path));
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(variant.path, options);
+        assertEquals(128, Math.max(options.outWidth, options.outHeight));
+        assertEquals(variant.size, mPhotoStore.getVariantsSize());
+
+        // Same rounded size is served from the cache.
+        assertEquals(variant.path, mPhotoStore.getVariant(photoFileId, 120).path);
+
+        // No variant is created for sizes the display photo already fits in.
+        assertEquals(entry.path, mPhotoStore.getVariant(photoFileId, 1000).path);
+
+        // Removing the photo removes its variants.
+        mPhotoStore.remove(photoFileId);
+        assertFalse(new File(variant.path).exists());
+        assertEquals(0, mPhotoStore.getVariantsSize());
+        assertNull(mPhotoStore.getVariant(photoFileId, 100));
+    }
 }
@@ -18,9 +18,13 @@ package com.android.providers.contacts;
 
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.BatteryStats.Uid.Proc;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 import android.os.Process;
 import android.provider.CallLog;
@@ -32,13 +36,18 @@ import android.test.MoreAsserts;
 import android.test.suitebuilder.annotation.SmallTest;
 
 import com.android.common.io.MoreCloseables;
+import com.android.providers.contacts.CallLogDatabaseHelper.Tables;
+import com.android.providers.contacts.CallLogDatabaseHelper.VoicemailReclaimColumns;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Unit tests for {@link VoicemailContentProvider}.
@@ -136,6 +145,63 @@ public class VoicemailProviderTest extends BaseVoicemailProviderTest {
         in.close();
     }
 
+    public void testOpenTypedAssetFile_Ranges() throws Exception {
+        Uri uri = insertVoicemail();
+        OutputStream out = mResolver.openOutputStream(uri);
+        byte[] outBuffer = {0x1, 0x2, 0x3, 0x4, 0x5, 0x6};
+        out.write(outBuffer);
+        out.close();
+
+        Bundle opts = new Bundle();
+        opts.putLong(VoicemailContentProvider.OPTION_RANGE_OFFSET, 2);
+        opts.putLong(VoicemailContentProvider.OPTION_RANGE_LENGTH, 3);
+        MoreAsserts.assertEquals(new byte[] {0x3, 0x4, 0x5}, readAsset(uri, "*/*", opts));
+
+        // The range is clipped to the file.
+        opts.putLong(VoicemailContentProvider.OPTION_RANGE_LENGTH, 100);
+        MoreAsserts.assertEquals(new byte[] {0x3, 0x4, 0x5, 0x6}, readAsset(uri, "*/*", opts));
+
+        // A preview of a short voicemail is the whole voicemail.
+        opts = new Bundle();
+        opts.putBoolean(VoicemailContentProvider.OPTION_PREVIEW, true);
+        MoreAsserts.assertEquals(outBuffer, readAsset(uri, "*/*", opts));
+        MoreAsserts.assertEquals(outBuffer, readAsset(uri, "*/*", null));
+    }
+
+    public void testOpenTypedAssetFile_MimeType() throws Exception {
+        Uri uri = insertVoicemail();
+        ContentValues values = new ContentValues();
+        values.put(Voicemails.MIME_TYPE, "audio/amr");
+        mResolver.update(uri, values, null, null);
+
+        assertEquals(0, readAsset(uri, "audio/*", null).length);
+        try {
+            mResolver.openTypedAssetFileDescriptor(uri, "video/*", null);
+            fail("Expected FileNotFoundException");
+        } catch (FileNotFoundException expected) {
+        }
+    }
+
+    private byte[] readAsset(Uri uri, String mimeTypeFilter, Bundle opts) throws IOException {
+        AssetFileDescriptor afd = mResolver.openTypedAssetFileDescriptor(uri, mimeTypeFilter,
+                opts);
+        assertNotNull(afd);
+        byte[] bytes = new byte[(int) afd.getLength()];
+        InputStream in = afd.createInputStream();
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                int count = in.read(bytes, offset, bytes.length - offset);
+                assertTrue(count > 0);
+                offset += count;
+            }
+            assertEquals(-1, in.read());
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
     public void testUpdate() {
         setTimeForTest(1000L);
         Uri uri = insertVoicemail();
@@ -218,6 +284,53 @@ public class VoicemailProviderTest extends BaseVoicemailProviderTest {
         assertEquals(0, getCount(uri, null, null));
     }
 
+    public void testDelete_ReclaimsFiles() {
+        // The queue is drained here rather than in the background.
+        VoicemailFileReclaimer.setEnabledForTesting(false);
+        try {
+            final Uri first = insertVoicemail();
+            final Uri second = insertVoicemail();
+            final File firstFile = getDataFile(first);
+            final File secondFile = getDataFile(second);
+            assertTrue(firstFile.exists());
+            assertTrue(secondFile.exists());
+
+            // Deleting the rows queues their files.
+            assertEquals(2, mResolver.delete(voicemailUri(), null, null));
+            final SQLiteDatabase db = getDatabaseHelper().getWritableDatabase();
+            final Set<String> queued = new HashSet<String>();
+            final Cursor c = db.query(Tables.VOICEMAIL_RECLAIM,
+                    new String[] {VoicemailReclaimColumns.DATA}, null, null, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    queued.add(c.getString(0));
+                }
+            } finally {
+                c.close();
+            }
+            assertEquals(new HashSet<String>(Arrays.asList(firstFile.getAbsolutePath(),
+                    secondFile.getAbsolutePath())), queued);
+            assertTrue(firstFile.exists());
+
+            assertEquals(2, VoicemailFileReclaimer.reclaim(db, VoicemailFileReclaimer.BATCH_SIZE));
+            assertFalse(firstFile.exists());
+            assertFalse(secondFile.exists());
+            assertEquals(0, DatabaseUtils.queryNumEntries(db, Tables.VOICEMAIL_RECLAIM));
+        } finally {
+            VoicemailFileReclaimer.setEnabledForTesting(true);
+        }
+    }
+
+    private File getDataFile(Uri uri) {
+        Cursor c = mResolver.query(uri, new String[] {Voicemails._DATA}, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            return new File(c.getString(0));
+        } finally {
+            c.close();
+        }
+    }
+
     public void testUpdateAfterDelete_lastModifiedNotChanged() {
         setUpForFullPermission();
         setTimeForTest(1000L);
@@ -241,6 +354,37 @@ public class VoicemailProviderTest extends BaseVoicemailProviderTest {
         assertLastModified(anotherVoicemail, 3000);
     }
 
+    public void testUpdate_lastModified() {
+        setUpForFullPermission();
+        setTimeForTest(1000L);
+        final Uri voicemail = insertVoicemailForSourcePackage("another-package");
+        final Uri deletedVoicemail = insertVoicemailForSourcePackage("another-package");
+
+        // Clear the mapping for our own UID so that this doesn't look like an internal transaction.
+        mPackageManager.removePackage(Process.myUid());
+        mResolver.delete(deletedVoicemail, null, null);
+        mPackageManager.addPackage(Process.myUid(), mActor.packageName);
+
+        // One update sets the values on both rows, but last_modified only on the one that is not
+        // deleted.
+        setTimeForTest(2000L);
+        ContentValues values = new ContentValues();
+        values.put(Voicemails.TRANSCRIPTION, "Testing 123");
+        assertEquals(2, mResolver.update(voicemailUri(), values, null, null));
+        assertStoredValue(voicemail, Voicemails.TRANSCRIPTION, "Testing 123");
+        assertStoredValue(deletedVoicemail, Voicemails.TRANSCRIPTION, "Testing 123");
+        assertLastModified(voicemail, 2000);
+        assertLastModified(deletedVoicemail, 1000);
+
+        // A last_modified given by the caller is not overwritten.
+        setTimeForTest(3000L);
+        values = new ContentValues();
+        values.put(Voicemails.LAST_MODIFIED, 500);
+        assertEquals(2, mResolver.update(voicemailUri(), values, null, null));
+        assertLastModified(voicemail, 500);
+        assertLastModified(deletedVoicemail, 500);
+    }
+
     public void testGetType_ItemUri() throws Exception {
         // Random item uri.
         assertEquals(Voicemails.ITEM_TYPE,